@@ -0,0 +1,50 @@
+package com.speluncr.benchmarks;
+
+import com.speluncr.recording.AttitudeRecorder;
+import org.openjdk.jmh.annotations.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/************************************************************
+ * Latency of AttitudeRecorder.record() on the sampling thread
+ * while the writer thread drains to disk. Calls arrive far
+ * faster than the rover's sample rate, so the ring fills
+ * between drains and many calls take the drop path; both paths
+ * must stay free of locks and allocation (check with -prof gc).
+ ************************************************************/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttitudeRecorderBenchmark {
+    private File directory;
+    private AttitudeRecorder recorder;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException{
+        directory = Files.createTempDirectory("speluncr-recording").toFile();
+        recorder = new AttitudeRecorder(directory, 64 * 1048576L, 2);
+        recorder.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        recorder.stop();
+        File[] files = directory.listFiles();
+        if (files != null){
+            for (File file : files){
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void record(){
+        recorder.record(System.nanoTime(), 0.1, -0.2, 1.5, 25.3);
+    }
+}
@@ -0,0 +1,72 @@
+package com.speluncr.benchmarks;
+
+import com.speluncr.radiation.EventRingBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.concurrent.TimeUnit;
+
+/************************************************************
+ * Geiger counter event capture: the interrupt thread publishes
+ * a timestamp into the EventRingBuffer, as
+ * RadiationSensor.incrementCount() does, while the writer
+ * thread drains it in batches. The two run together in one
+ * group, so the producer is measured under contention on the
+ * ring's head and tail. Overflows are reported as a secondary
+ * result: a non-zero count means the consumer fell behind,
+ * which is expected on a single core machine where the two
+ * threads take turns.
+ ************************************************************/
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventCaptureBenchmark {
+    @Param({"1024", "16384"})
+    public int capacity;
+
+    @Param({"256"})
+    public int batch;
+
+    private EventRingBuffer ring;
+    private long[] drained;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Overflows {
+        public long overflows;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            overflows = 0;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setup(){
+        ring = new EventRingBuffer(capacity);
+        drained = new long[batch];
+    }
+
+    @Benchmark
+    @Group("capture")
+    @GroupThreads(1)
+    public boolean publish(Overflows counter){
+        boolean published = ring.publish(System.nanoTime());
+        if (!published){
+            counter.overflows++;
+        }
+        return published;
+    }
+
+    @Benchmark
+    @Group("capture")
+    @GroupThreads(1)
+    public void drain(Blackhole blackhole){
+        int n = ring.drain(drained);
+        if (n > 0){
+            blackhole.consume(drained[n - 1]);
+        }
+    }
+}
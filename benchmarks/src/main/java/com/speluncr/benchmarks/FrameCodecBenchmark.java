@@ -0,0 +1,56 @@
+package com.speluncr.benchmarks;
+
+import com.speluncr.websocket.FrameCodec;
+import org.openjdk.jmh.annotations.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/************************************************************
+ * Telemetry frame encoding. encodeAttitude packs a batch of
+ * attitude samples and finishes the frame, as the attitude
+ * broadcast thread does for each flush; the score is per
+ * sample and includes the copy into the shared payload.
+ * decodeAttitude reads every sample back with the getters.
+ ************************************************************/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+    private static final int SAMPLES = 10;
+
+    private FrameCodec.Encoder encoder;
+    private ByteBuffer frame;
+    private int sequence = 0;
+    private long time = 1600000000000000L; // us
+
+    @Setup
+    public void setup(){
+        encoder = new FrameCodec.Encoder(FrameCodec.TYPE_ATTITUDE, SAMPLES);
+        frame = FrameCodec.wrap(encodeAttitude());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public ByteBuffer encodeAttitude(){
+        for (int i = 0; i < SAMPLES; i++){
+            time += 10000;
+            encoder.addAttitude(sequence++, time, 0.1, -0.2, 1.5, 25.3);
+        }
+        return encoder.finish();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public double decodeAttitude(){
+        double sum = 0;
+        int count = FrameCodec.getCount(frame);
+        for (int i = 0; i < count; i++){
+            sum += FrameCodec.getTime(frame, i) + FrameCodec.getRoll(frame, i) + FrameCodec.getPitch(frame, i)
+                    + FrameCodec.getYaw(frame, i) + FrameCodec.getTemp(frame, i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,65 @@
+package com.speluncr.benchmarks;
+
+import com.speluncr.radiation.RadiationLog;
+import org.openjdk.jmh.annotations.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/************************************************************
+ * Radiation log writes at sustained event rates. Each
+ * invocation appends one batch of events spaced by the mean
+ * gap of the count rate and commits it, as the writer thread
+ * does after every drain. Segments are the default 16 MB and
+ * roll over when full, so the cost of opening and trimming
+ * segments is included. Scores are per event.
+ ************************************************************/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RadiationLogBenchmark {
+    private static final int BATCH = 256;
+
+    // Counts per second: background, a strong source, and the simulator's maximum
+    @Param({"1", "1000", "100000"})
+    public int countsPerSecond;
+
+    private File directory;
+    private RadiationLog log;
+    private long gap; // ns
+    private long time;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException{
+        directory = Files.createTempDirectory("speluncr-rlog").toFile();
+        time = System.nanoTime();
+        log = new RadiationLog(directory, 16 * 1048576L, 60 * 60000000000L, System.currentTimeMillis() * 1000000L, time);
+        gap = 1000000000L / countsPerSecond;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        log.close();
+        File[] files = directory.listFiles();
+        if (files != null){
+            for (File file : files){
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void appendAndCommit() throws IOException{
+        for (int i = 0; i < BATCH; i++){
+            time += gap;
+            log.append(time);
+        }
+        log.commit();
+    }
+}
@@ -0,0 +1,77 @@
+package com.speluncr.gpio;
+
+import com.speluncr.fusion.FusionFilter;
+import org.openjdk.jmh.annotations.*;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import static java.lang.Math.*;
+
+/************************************************************
+ * Cost per MPU6050 sample of decoding the 14 register bytes
+ * and updating the attitude filter, as AttitudeSensor does for
+ * every sample read from the FIFO. One invocation processes a
+ * full FIFO burst of 73 samples (1022 bytes) of a rocking
+ * rover with sensor noise.
+ *
+ * This class is in the gpio package to reach
+ * AttitudeSensor.decodeSample().
+ ************************************************************/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttitudeFilterBenchmark {
+    private static final int SAMPLE_BYTES = 14;
+    private static final int SAMPLES = 1024 / SAMPLE_BYTES;
+    private static final double ACC_SCALE = 16384; // LSB/g, as configured by AttitudeSensor, to encode the samples
+    private static final double GYR_SCALE = 32.8 * 180 / PI; // LSB/rad/s
+
+    @Param({"complementary", "mahony", "madgwick"})
+    public String filterName;
+
+    private final byte[] fifo = new byte[SAMPLES * SAMPLE_BYTES];
+    private FusionFilter filter;
+
+    @Setup
+    public void setup(){
+        Properties properties = new Properties();
+        properties.setProperty("AttitudeFilter", filterName);
+        properties.setProperty("AttitudeCalibrationSamples", "0");
+        filter = FusionFilter.fromProperties(properties);
+
+        Random noise = new Random(1);
+        for (int i = 0; i < SAMPLES; i++){
+            double t = i / 200d;
+            double roll = 0.3*sin(2*PI*0.2*t), pitch = 0.2*sin(2*PI*0.13*t);
+            int o = i * SAMPLE_BYTES;
+            putShort(o, (-sin(pitch) + noise.nextGaussian()*0.003) * ACC_SCALE);
+            putShort(o + 2, (sin(roll)*cos(pitch) + noise.nextGaussian()*0.003) * ACC_SCALE);
+            putShort(o + 4, (cos(roll)*cos(pitch) + noise.nextGaussian()*0.003) * ACC_SCALE);
+            putShort(o + 6, (25 - 36.53) * 340);
+            putShort(o + 8, (0.3*2*PI*0.2*cos(2*PI*0.2*t) + noise.nextGaussian()*0.002) * GYR_SCALE);
+            putShort(o + 10, (0.2*2*PI*0.13*cos(2*PI*0.13*t) + noise.nextGaussian()*0.002) * GYR_SCALE);
+            putShort(o + 12, noise.nextGaussian()*0.002 * GYR_SCALE);
+        }
+    }
+
+    // Time per sample
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public double decodeAndFilter(){
+        final double dt = 1 / 200d;
+        double temp = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            temp = AttitudeSensor.decodeSample(filter, fifo, i * SAMPLE_BYTES, dt);
+        }
+        return filter.getRoll() + filter.getPitch() + filter.getYaw() + temp;
+    }
+
+    private void putShort(int offset, double value){
+        long v = max(Short.MIN_VALUE, min(Short.MAX_VALUE, round(value)));
+        fifo[offset] = (byte) (v >> 8);
+        fifo[offset + 1] = (byte) v;
+    }
+}
@@ -0,0 +1,143 @@
+package com.speluncr.websocket;
+
+import org.openjdk.jmh.annotations.*;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/************************************************************
+ * Cost of handing one attitude frame to N sessions, through a
+ * per-endpoint Broadcaster (/attitude) and through the
+ * multiplexed /telemetry endpoint. The sessions are mocks:
+ * "fast" clients complete every send at once, "stalled"
+ * clients never complete, so each publish only replaces the
+ * waiting message (the slow viewer path). For /telemetry,
+ * maxHz 10 makes most subscribers skip most frames.
+ *
+ * This class is in the websocket package to reach
+ * TelemetryEndpoint.publishAttitude().
+ ************************************************************/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"1", "10", "100"})
+    public int sessions;
+
+    @Param({"fast", "stalled"})
+    public String clients;
+
+    @Param({"0", "10"})
+    public String maxHz;
+
+    private Session[] mocks;
+    private Broadcaster broadcaster;
+    private TelemetryEndpoint telemetry;
+    private ByteBuffer frame;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_ATTITUDE, 10);
+        for (int i = 0; i < 10; i++){
+            encoder.addAttitude(i, 1600000000000000L + i*10000, 0.1, -0.2, 1.5, 25.3);
+        }
+        frame = encoder.finish();
+
+        broadcaster = new Broadcaster("Benchmark");
+        telemetry = new TelemetryEndpoint();
+        mocks = new Session[sessions];
+        for (int i = 0; i < sessions; i++){
+            mocks[i] = mockSession("benchmark-" + i, clients.equals("fast"),
+                    Collections.singletonMap("attitude", Collections.singletonList(maxHz)));
+            broadcaster.add(mocks[i]);
+            telemetry.onOpen(mocks[i], null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        for (Session session : mocks){
+            broadcaster.remove(session);
+            telemetry.onClose(session, null);
+        }
+    }
+
+    @Benchmark
+    public void broadcaster(){
+        broadcaster.publish(frame);
+    }
+
+    @Benchmark
+    public void telemetry(){
+        TelemetryEndpoint.publishAttitude(frame);
+    }
+
+    // A session that accepts binary sends and completes them at once (fast) or never (stalled)
+    private static Session mockSession(String id, boolean fast, Map<String, List<String>> parameters){
+        return mockSession(id, fast, parameters, null);
+    }
+
+    // As above, and hands every binary message sent to the session to sent (if not null). Also used by
+    // TelemetryLoadBenchmark.
+    static Session mockSession(String id, boolean fast, Map<String, List<String>> parameters, Consumer<ByteBuffer> sent){
+        RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                FanOutBenchmark.class.getClassLoader(), new Class<?>[]{RemoteEndpoint.Async.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("sendBinary") && args.length == 2){
+                        if (sent != null){
+                            sent.accept((ByteBuffer) args[0]);
+                        }
+                        if (fast){
+                            ((SendHandler) args[1]).onResult(new SendResult());
+                        }
+                    }
+                    return defaultValue(method.getReturnType());
+                });
+        return (Session) Proxy.newProxyInstance(
+                FanOutBenchmark.class.getClassLoader(), new Class<?>[]{Session.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()){
+                        case "getId":
+                            return id;
+                        case "getAsyncRemote":
+                            return remote;
+                        case "getRequestParameterMap":
+                            return parameters;
+                        case "isOpen":
+                            return true;
+                        case "addMessageHandler":
+                            return null; // commands are not used here
+                        case "hashCode":
+                            return id.hashCode();
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return id;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultValue(Class<?> type){
+        if (type == boolean.class){
+            return false;
+        } else if (type == int.class){
+            return 0;
+        } else if (type == long.class){
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,132 @@
+package com.speluncr.websocket;
+
+import org.openjdk.jmh.annotations.*;
+import javax.websocket.Session;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/************************************************************
+ * Load of N viewers that each want every topic, connected
+ * either to the single topic endpoints (one /attitude and one
+ * /radiation session each) or to the multiplexed /telemetry
+ * endpoint (one session each, subscribed to attitude,
+ * radiation and statistics at full rate). Each operation is
+ * one second of telemetry at the default settings: 30
+ * attitude samples (in messages of batch samples), one
+ * per-second count and one statistics frame, published
+ * through the relay path so both layouts see the same
+ * frames.
+ *
+ * The time is the server's cost of that second. The
+ * connections, messages and bytes per second are printed at
+ * the end of each trial. Bytes are websocket frames as sent:
+ * the payload and its 2 or 4 byte header. Each connection
+ * also costs an HTTP upgrade when it opens and TCP/IP headers
+ * per message, which are not counted.
+ ************************************************************/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryLoadBenchmark {
+    private static final int ATTITUDE_RATE = 30; // AttitudeBroadcastRate
+    private static final long START_MICROS = 1600000000000000L;
+
+    @Param({"1", "10", "100"})
+    public int viewers;
+
+    @Param({"endpoints", "telemetry"})
+    public String layout;
+
+    @Param({"1", "10"})
+    public int batch;
+
+    private final List<Session> sessions = new ArrayList<>();
+    private final AttitudeEndpoint attitude = new AttitudeEndpoint();
+    private final RadiationEndpoint radiation = new RadiationEndpoint();
+    private final TelemetryEndpoint telemetry = new TelemetryEndpoint();
+    private ByteBuffer[] attitudeFrames;
+    private ByteBuffer countsFrame;
+    private ByteBuffer statisticsFrame;
+    private long seconds = 0;
+    private long messages = 0;
+    private long bytes = 0;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        attitudeFrames = new ByteBuffer[ATTITUDE_RATE / batch];
+        for (int f = 0; f < attitudeFrames.length; f++){
+            FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_ATTITUDE, batch);
+            for (int i = 0; i < batch; i++){
+                int sequence = f * batch + i;
+                encoder.addAttitude(sequence, START_MICROS + sequence * 1000000L / ATTITUDE_RATE, 0.1, -0.2, 1.5, 25.3);
+            }
+            attitudeFrames[f] = encoder.finish();
+        }
+        FrameCodec.Encoder counts = new FrameCodec.Encoder(FrameCodec.TYPE_RADIATION, 1);
+        counts.addRadiation(0, START_MICROS, 42);
+        countsFrame = counts.finish();
+        FrameCodec.Encoder statistics = new FrameCodec.Encoder(FrameCodec.TYPE_RADIATION_STATS, 1);
+        statistics.addStatistics(0, START_MICROS, new float[FrameCodec.STATS_VALUES]);
+        statisticsFrame = statistics.finish();
+
+        Map<String, List<String>> allTopics = new HashMap<>();
+        for (String topic : new String[]{"attitude", "radiation", "statistics"}){
+            allTopics.put(topic, Collections.singletonList("0"));
+        }
+        for (int i = 0; i < viewers; i++){
+            if (layout.equals("endpoints")){
+                Session attitudeSession = viewerSession("attitude-" + i, Collections.emptyMap());
+                Session radiationSession = viewerSession("radiation-" + i, Collections.emptyMap());
+                attitude.onOpen(attitudeSession);
+                radiation.onOpen(radiationSession);
+            } else {
+                telemetry.onOpen(viewerSession("telemetry-" + i, allTopics), null);
+            }
+        }
+        messages = 0; // not the history sent when connecting
+        bytes = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        System.out.printf("\n[INFO]: %d viewers on %s, %d samples per attitude message: %d connections, %.1f messages and %.0f bytes per second of telemetry\n",
+                viewers, layout, batch, sessions.size(), (double) messages / seconds, (double) bytes / seconds);
+        for (Session session : sessions){
+            if (layout.equals("endpoints")){
+                attitude.onClose(session);
+                radiation.onClose(session);
+            } else {
+                telemetry.onClose(session, null);
+            }
+        }
+    }
+
+    @Benchmark
+    public void second(){
+        for (ByteBuffer frame : attitudeFrames){
+            AttitudeEndpoint.relay(frame);
+        }
+        RadiationEndpoint.relayCounts(countsFrame);
+        RadiationEndpoint.relayStatistics(statisticsFrame);
+        seconds++;
+    }
+
+    // A viewer that receives every message at once, counting what it is sent
+    private Session viewerSession(String id, Map<String, List<String>> parameters){
+        Session session = FanOutBenchmark.mockSession(id, true, parameters, payload -> {
+            int length = payload.remaining();
+            messages++;
+            bytes += length + (length < 126 ? 2 : 4);
+        });
+        sessions.add(session);
+        return session;
+    }
+}
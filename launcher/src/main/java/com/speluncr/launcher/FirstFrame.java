@@ -0,0 +1,80 @@
+package com.speluncr.launcher;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.ContainerProvider;
+import javax.websocket.DeploymentException;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/************************************************************
+ * Start-up probe for the measure script. Connects to a
+ * websocket endpoint, retrying until the server accepts, and
+ * prints the milliseconds from the server's start (epoch ms
+ * given on the command line) until the connection was made
+ * and until the first frame arrived. It then stays connected
+ * for the given time, so the server keeps broadcasting while
+ * its memory is read:
+ *
+ *   java -cp launcher.jar com.speluncr.launcher.FirstFrame
+ *        ws://localhost:8080/speluncr/attitude <start ms> [timeout s] [hold s]
+ ************************************************************/
+public class FirstFrame extends Endpoint {
+    private final CountDownLatch received = new CountDownLatch(1);
+    private volatile long receivedAt = 0; // epoch ms
+
+    public static void main(String[] args) throws InterruptedException{
+        if (args.length < 2){
+            System.err.println("Usage: FirstFrame <ws url> <server start epoch ms> [timeout seconds] [hold seconds]");
+            System.exit(2);
+        }
+        URI uri = URI.create(args[0]);
+        long start = Long.parseLong(args[1]);
+        long deadline = System.currentTimeMillis() + (args.length > 2 ? Long.parseLong(args[2]) : 120) * 1000;
+        long hold = (args.length > 3 ? Long.parseLong(args[3]) : 0) * 1000;
+        WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+        FirstFrame probe = new FirstFrame();
+        Session session = null;
+        while (session == null){
+            try {
+                session = container.connectToServer(probe, ClientEndpointConfig.Builder.create().build(), uri);
+            } catch (DeploymentException | IOException e){
+                if (System.currentTimeMillis() > deadline){
+                    System.err.printf("[ERROR]: Could not connect to %s: %s\n", uri, e.getMessage());
+                    System.exit(1);
+                }
+                Thread.sleep(20);
+            }
+        }
+        long connected = System.currentTimeMillis() - start;
+        if (!probe.received.await(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)){
+            System.err.printf("[ERROR]: No frame from %s\n", uri);
+            System.exit(1);
+        }
+        System.out.printf("%d %d\n", connected, probe.receivedAt - start);
+        System.out.flush();
+        Thread.sleep(hold);
+        try {
+            session.close();
+        } catch (IOException e){
+            // Exiting anyway
+        }
+    }
+
+    @Override
+    public void onOpen(Session session, EndpointConfig config){
+        session.addMessageHandler(ByteBuffer.class, (MessageHandler.Whole<ByteBuffer>) frame -> {
+            if (receivedAt == 0){
+                receivedAt = System.currentTimeMillis();
+                received.countDown();
+            }
+        });
+    }
+}
@@ -0,0 +1,197 @@
+package com.speluncr.launcher;
+
+import com.speluncr.TelemetryServlet;
+import com.speluncr.assets.StaticAssetFilter;
+import com.speluncr.websocket.AttitudeEndpoint;
+import com.speluncr.websocket.EndpointConfig;
+import com.speluncr.websocket.RadiationEndpoint;
+import com.speluncr.websocket.TelemetryEndpoint;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.loader.WebappLoader;
+import org.apache.catalina.servlets.DefaultServlet;
+import org.apache.catalina.session.StandardManager;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.descriptor.web.ErrorPage;
+import org.apache.tomcat.util.descriptor.web.FilterDef;
+import org.apache.tomcat.util.descriptor.web.FilterMap;
+import org.apache.tomcat.util.modeler.Registry;
+import org.apache.tomcat.websocket.server.WsSci;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+/************************************************************
+ * Runs the webapp in an embedded Tomcat, without a Tomcat
+ * installation: the TelemetryServlet, the /attitude,
+ * /radiation and /telemetry websockets and the static files
+ * of an extracted speluncr.war, at /speluncr as when the war
+ * is deployed. The servlet reads and watches the war's
+ * WEB-INF/servlet.conf as it does in Tomcat.
+ *
+ * Only what the webapp uses is started, set up here in code
+ * instead of from web.xml (keep the two in step): no jar or
+ * annotation scanning, JSP, JMX registry or session
+ * persistence. The connector's thread pool and connection
+ * limits are sized for a handful of viewers on the Pi.
+ *
+ * The launch script runs it with a small JVM and, optionally,
+ * a class data sharing archive made with --train.
+ ************************************************************/
+public class Launcher {
+    private static final String CONTEXT_PATH = "/speluncr";
+
+    public static void main(String[] args){
+        File webapp = new File("webapp");
+        String address = null;
+        int port = 8080;
+        int threads = 8; // request threads. Websocket messages are sent asynchronously and need few.
+        int connections = 64;
+        int trainSeconds = 0;
+        try {
+            for (int i = 0; i < args.length; i++){
+                switch (args[i]){
+                    case "--webapp":
+                        webapp = new File(args[++i]);
+                        break;
+                    case "--address":
+                        address = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Math.max(2, Integer.parseInt(args[++i]));
+                        break;
+                    case "--connections":
+                        connections = Math.max(4, Integer.parseInt(args[++i]));
+                        break;
+                    case "--train":
+                        trainSeconds = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (RuntimeException e){
+            System.err.printf("[ERROR]: %s\n", e instanceof ArrayIndexOutOfBoundsException ? "Missing option value" : e.getMessage());
+            usage();
+            System.exit(2);
+        }
+        if (!new File(webapp, "WEB-INF").isDirectory()){
+            System.err.printf("[ERROR]: %s is not an extracted speluncr.war.\n", webapp.getAbsolutePath());
+            usage();
+            System.exit(2);
+        }
+
+        Tomcat tomcat = create(webapp.getAbsoluteFile(), address, port, threads, connections);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> stop(tomcat), "Launcher Shutdown"));
+        try {
+            tomcat.start();
+        } catch (LifecycleException e){
+            System.err.println("[ERROR]: The server failed to start.");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.out.printf("[INFO]: SPELUNCR started on port %d in %d ms.\n", port,
+                ManagementFactory.getRuntimeMXBean().getUptime());
+
+        // A training run for the class data sharing archive exits once startup and the first frames are done
+        if (trainSeconds > 0){
+            try {
+                Thread.sleep(trainSeconds * 1000L);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            System.exit(0);
+        }
+        tomcat.getServer().await();
+    }
+
+    private static Tomcat create(File webapp, String address, int port, int threads, int connections){
+        Registry.disableRegistry(); // nothing reads the MBeans, and registering them is slow on the Pi
+
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(new File(System.getProperty("java.io.tmpdir"), "speluncr-" + port).getAbsolutePath());
+        tomcat.getServer().setUtilityThreads(1);
+        tomcat.getHost().setAutoDeploy(false);
+
+        Connector connector = new Connector("HTTP/1.1");
+        connector.setPort(port);
+        if (address != null){
+            connector.setProperty("address", address);
+        }
+        connector.setProperty("maxThreads", Integer.toString(threads));
+        connector.setProperty("minSpareThreads", "2");
+        connector.setProperty("maxConnections", Integer.toString(connections));
+        connector.setProperty("acceptCount", "16");
+        connector.setProperty("processorCache", Integer.toString(threads));
+        connector.setProperty("connectionTimeout", "20000");
+        connector.setProperty("keepAliveTimeout", "15000");
+        connector.setProperty("compression", "off"); // StaticAssetFilter sends precompressed files
+        tomcat.setConnector(connector);
+
+        Context context = tomcat.addContext(CONTEXT_PATH, webapp.getPath());
+        // The webapp's classes come from launcher.jar, so the endpoints' static state is shared with the servlet
+        WebappLoader loader = new WebappLoader();
+        loader.setDelegate(true);
+        context.setLoader(loader);
+        StandardManager sessions = new StandardManager();
+        sessions.setPathname(null); // don't save sessions on shutdown
+        context.setManager(sessions);
+        context.setSessionTimeout(15);
+
+        // As in web.xml
+        Wrapper servlet = Tomcat.addServlet(context, "TelemetryServlet", new TelemetryServlet());
+        servlet.setLoadOnStartup(0);
+        context.addServletMappingDecoded("/speluncr", "TelemetryServlet");
+        context.addServletMappingDecoded("/speluncr/*", "TelemetryServlet");
+
+        FilterDef filter = new FilterDef();
+        filter.setFilterName("StaticAssetFilter");
+        filter.setFilterClass(StaticAssetFilter.class.getName());
+        filter.setFilter(new StaticAssetFilter());
+        context.addFilterDef(filter);
+        FilterMap filterMap = new FilterMap();
+        filterMap.setFilterName("StaticAssetFilter");
+        filterMap.addURLPattern("/*");
+        context.addFilterMap(filterMap);
+
+        Tomcat.addServlet(context, "default", new DefaultServlet());
+        context.addServletMappingDecoded("/", "default");
+        Tomcat.addDefaultMimeTypeMappings(context);
+        context.addMimeMapping("gltf", "model/gltf+json");
+        context.addWelcomeFile("index.html");
+        ErrorPage notFound = new ErrorPage();
+        notFound.setErrorCode(404);
+        notFound.setLocation("/404.html");
+        context.addErrorPage(notFound);
+
+        // The endpoints Tomcat would find by scanning WEB-INF/classes
+        context.addServletContainerInitializer(new WsSci(),
+                Set.of(AttitudeEndpoint.class, RadiationEndpoint.class, TelemetryEndpoint.class, EndpointConfig.class));
+        return tomcat;
+    }
+
+    // Stop the sensors (TelemetryServlet.destroy) and the connector
+    private static void stop(Tomcat tomcat){
+        try {
+            tomcat.stop();
+            tomcat.destroy();
+        } catch (LifecycleException e){
+            e.printStackTrace();
+        }
+    }
+
+    private static void usage(){
+        System.err.println("Usage: java -jar launcher.jar [--webapp <dir>] [--address <host>] [--port <n>]"
+                + " [--threads <n>] [--connections <n>] [--train <seconds>]");
+        System.err.println("  --webapp       extracted speluncr.war (default ./webapp)");
+        System.err.println("  --port         HTTP port (default 8080)");
+        System.err.println("  --threads      request threads (default 8)");
+        System.err.println("  --connections  open connections, including websockets (default 64)");
+        System.err.println("  --train        exit after this many seconds, to record the classes loaded for class data sharing");
+    }
+}
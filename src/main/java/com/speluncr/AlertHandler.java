@@ -0,0 +1,49 @@
+package com.speluncr;
+
+import com.speluncr.alert.AlertEngine;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+/************************************************************
+ * GET /alerts : raised alerts and the last alerts raised or
+ * cleared, newest first (JSON)
+ *
+ *   {"active":[{"alert":"roll","severity":"critical",
+ *    "value":41.2,"threshold":35,"time":"..."}],
+ *    "recent":[{"alert":"roll","state":"raised",...}, ...]}
+ *
+ * Values are in degrees, degrees a second or counts a second.
+ ************************************************************/
+class AlertHandler {
+    private final AlertEngine alerts;
+
+    AlertHandler(AlertEngine alerts){
+        this.alerts = alerts;
+    }
+
+    void handle(HttpServletResponse resp) throws IOException{
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-store");
+        PrintWriter out = resp.getWriter();
+        out.printf("{\"active\":[%s],\"recent\":[%s]}", toJson(alerts.getRaised(), false), toJson(alerts.getRecent(), true));
+    }
+
+    private static String toJson(List<AlertEngine.Alert> list, boolean withState){
+        StringBuilder json = new StringBuilder();
+        for (AlertEngine.Alert alert : list){
+            if (json.length() > 0){
+                json.append(',');
+            }
+            json.append(String.format("{\"alert\":\"%s\",", alert.getName()));
+            if (withState){
+                json.append(String.format("\"state\":\"%s\",", alert.isRaised() ? "raised" : "cleared"));
+            }
+            json.append(String.format("\"severity\":\"%s\",\"value\":%.3f,\"threshold\":%.3f,\"time\":\"%s\"}",
+                    alert.getSeverity(), alert.getValue(), alert.getThreshold(), alert.getTime()));
+        }
+        return json.toString();
+    }
+}
@@ -0,0 +1,136 @@
+package com.speluncr;
+
+import com.speluncr.recording.AttitudeRecording;
+import com.speluncr.recording.AttitudeReplay;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/************************************************************
+ * HTTP control of attitude recordings and replay:
+ *
+ *   GET  /attitude/recordings : list recordings (JSON)
+ *   GET  /attitude/replay     : replay status (JSON)
+ *   POST /attitude/replay     : action=start, file=<name>,
+ *                               speed=<factor>, from=<time>
+ *                               action=seek, from=<time>
+ *                               action=stop
+ *
+ * Times are epoch seconds, ISO-8601 instants or +seconds from
+ * the start of the recording.
+ ************************************************************/
+class AttitudeReplayHandler {
+    private final Supplier<File> directory;
+    private AttitudeReplay replay = null;
+
+    AttitudeReplayHandler(Supplier<File> directory){
+        this.directory = directory;
+    }
+
+    void listRecordings(HttpServletResponse resp) throws IOException{
+        File[] files = directory.get().listFiles(AttitudeRecording::isRecording);
+        if (files == null){
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        PrintWriter out = resp.getWriter();
+        out.print('[');
+        for (int i = 0; i < files.length; i++){
+            if (i > 0){
+                out.print(',');
+            }
+            out.printf("{\"name\":\"%s\",\"bytes\":%d", files[i].getName(), files[i].length());
+            try (AttitudeRecording recording = new AttitudeRecording(files[i])){
+                out.printf(",\"frames\":%d,\"start\":\"%s\",\"end\":\"%s\"", recording.getFrameCount(),
+                        Instant.ofEpochSecond(0, recording.getStartTime()),
+                        Instant.ofEpochSecond(0, recording.getEndTime()));
+            } catch (IOException e){
+                out.print(",\"error\":\"unreadable\"");
+            }
+            out.print('}');
+        }
+        out.print(']');
+    }
+
+    synchronized void status(HttpServletResponse resp) throws IOException{
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        PrintWriter out = resp.getWriter();
+        if (replay == null || !replay.isRunning()){
+            out.print("{\"running\":false}");
+            return;
+        }
+        out.printf("{\"running\":true,\"file\":\"%s\",\"speed\":%s,\"position\":\"%s\"}", replay.getFile().getName(),
+                replay.getSpeed(), Instant.ofEpochSecond(0, replay.getPosition()));
+    }
+
+    synchronized void control(HttpServletRequest req, HttpServletResponse resp) throws IOException{
+        String action = req.getParameter("action");
+        try {
+            if ("start".equals(action)){
+                String name = req.getParameter("file");
+                File file = name == null ? null : new File(directory.get(), new File(name).getName());
+                if (file == null || !AttitudeRecording.isRecording(file)){
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such recording");
+                    return;
+                }
+                double speed = req.getParameter("speed") == null ? 1 : Double.parseDouble(req.getParameter("speed"));
+                if (!(speed > 0 && speed <= 1000)){
+                    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "speed must be between 0 and 1000");
+                    return;
+                }
+                long from;
+                try (AttitudeRecording recording = new AttitudeRecording(file)){
+                    from = parseTime(req.getParameter("from"), recording.getStartTime());
+                }
+                stop();
+                replay = new AttitudeReplay(file, speed, from);
+                replay.start();
+            } else if ("seek".equals(action) && replay != null && replay.isRunning()){
+                try (AttitudeRecording recording = new AttitudeRecording(replay.getFile())){
+                    replay.seek(parseTime(req.getParameter("from"), recording.getStartTime()));
+                }
+            } else if ("stop".equals(action)){
+                stop();
+            } else {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "action must be start, seek or stop");
+                return;
+            }
+        } catch (NumberFormatException | DateTimeParseException e){
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        status(resp);
+    }
+
+    synchronized void stop(){
+        if (replay != null){
+            replay.stop();
+            replay = null;
+        }
+    }
+
+    // Parse epoch seconds, an ISO-8601 instant or +seconds after start (all in epoch ns)
+    private static long parseTime(String value, long start){
+        if (value == null || value.isBlank()){
+            return start;
+        }
+        value = value.trim();
+        if (value.startsWith("+")){
+            return start + (long) (Double.parseDouble(value.substring(1)) * 1e9);
+        }
+        if (value.chars().allMatch(Character::isDigit)){
+            return Long.parseLong(value) * 1000000000L;
+        }
+        Instant instant = Instant.parse(value);
+        return instant.getEpochSecond() * 1000000000L + instant.getNano();
+    }
+}
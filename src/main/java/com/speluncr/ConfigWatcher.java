@@ -0,0 +1,87 @@
+package com.speluncr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/************************************************************
+ * Watches servlet.conf and calls back when it changes, so
+ * settings apply without restarting Tomcat. Editors write a
+ * file in several steps (truncate, write, rename), so changes
+ * are only reported once the file has been quiet for
+ * QUIET_TIME.
+ ************************************************************/
+class ConfigWatcher {
+    private static final long QUIET_TIME = 500; // ms
+    private final File file;
+    private final Runnable onChange;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    ConfigWatcher(File file, Runnable onChange) throws IOException{
+        this.file = file;
+        this.onChange = onChange;
+        watchService = FileSystems.getDefault().newWatchService();
+        // Watch the directory, since the file may be replaced rather than written
+        file.getAbsoluteFile().getParentFile().toPath().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        thread = new Thread(this::run, "Config Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void close(){
+        try {
+            watchService.close();
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(){
+        try {
+            while (true){
+                // Wait for a change to the file, then for it to go quiet
+                if (!changed(watchService.take())){
+                    continue;
+                }
+                WatchKey key;
+                while ((key = watchService.poll(QUIET_TIME, TimeUnit.MILLISECONDS)) != null){
+                    changed(key);
+                }
+                try {
+                    onChange.run();
+                } catch (RuntimeException e){
+                    System.err.println("[ERROR]: Failed to apply the new settings.");
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e){
+            // closed
+        }
+    }
+
+    // True if the key's events include the watched file
+    private boolean changed(WatchKey key){
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()){
+            if (event.context() instanceof Path && ((Path) event.context()).toString().equals(file.getName())){
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
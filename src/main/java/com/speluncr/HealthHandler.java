@@ -0,0 +1,66 @@
+package com.speluncr;
+
+import com.speluncr.gpio.SensorSupervisor;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/************************************************************
+ * GET /health : state of each sensor (JSON)
+ *
+ *   {"status":"up","sensors":[{"name":"radiation",
+ *    "state":"RUNNING","since":"...","attempts":0}, ...]}
+ *
+ * Status is "up" (200) when every sensor is running, possibly
+ * degraded, and "down" (503) while any is starting or failed.
+ * Failed sensors also give the error and the next retry time.
+ ************************************************************/
+class HealthHandler {
+    private final SensorSupervisor supervisor;
+
+    HealthHandler(SensorSupervisor supervisor){
+        this.supervisor = supervisor;
+    }
+
+    void handle(HttpServletResponse resp) throws IOException{
+        boolean up = true;
+        StringBuilder sensors = new StringBuilder();
+        for (SensorSupervisor.Supervised sensor : supervisor.getSensors()){
+            SensorSupervisor.State state = sensor.getState();
+            up &= state == SensorSupervisor.State.RUNNING || state == SensorSupervisor.State.DEGRADED;
+            if (sensors.length() > 0){
+                sensors.append(',');
+            }
+            sensors.append(String.format("{\"name\":\"%s\",\"state\":\"%s\",\"since\":\"%s\",\"attempts\":%d",
+                    sensor.getName(), state, sensor.getSince(), sensor.getAttempts()));
+            if (sensor.getNextAttempt() != null){
+                sensors.append(String.format(",\"nextAttempt\":\"%s\"", sensor.getNextAttempt()));
+            }
+            if (sensor.getError() != null){
+                sensors.append(",\"error\":\"").append(escape(sensor.getError())).append('"');
+            }
+            sensors.append('}');
+        }
+        resp.setStatus(up ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-store");
+        PrintWriter out = resp.getWriter();
+        out.printf("{\"status\":\"%s\",\"sensors\":[%s]}", up ? "up" : "down", sensors);
+    }
+
+    // Errors come from exception messages, which may hold quotes, backslashes or line breaks
+    private static String escape(String text){
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (char c : text.toCharArray()){
+            if (c == '"' || c == '\\'){
+                escaped.append('\\').append(c);
+            } else if (c < 0x20){
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
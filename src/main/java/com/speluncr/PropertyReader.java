@@ -0,0 +1,43 @@
+package com.speluncr;
+
+import java.util.Properties;
+
+/************************************************************
+ * Helpers for reading typed values from servlet.conf. Invalid
+ * values are reported and replaced by the default, and values
+ * outside the allowed range are clamped.
+ ************************************************************/
+public final class PropertyReader {
+    private PropertyReader(){}
+
+    public static int getInt(Properties properties, String key, int defaultValue, int min, int max){
+        String value = properties.getProperty(key);
+        if (value == null){
+            return defaultValue;
+        }
+        try {
+            return Math.max(min, Math.min(max, Integer.parseInt(value.trim())));
+        } catch (NumberFormatException e){
+            System.err.printf("[INFO]: Invalid value %s for %s. Using %d.\n", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(Properties properties, String key, double defaultValue, double min, double max){
+        String value = properties.getProperty(key);
+        if (value == null){
+            return defaultValue;
+        }
+        try {
+            return Math.max(min, Math.min(max, Double.parseDouble(value.trim())));
+        } catch (NumberFormatException e){
+            System.err.printf("[INFO]: Invalid value %s for %s. Using %s.\n", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static String getString(Properties properties, String key, String defaultValue){
+        String value = properties.getProperty(key);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+}
@@ -0,0 +1,148 @@
+package com.speluncr;
+
+import com.speluncr.radiation.RadiationRollup;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/************************************************************
+ * Serves binned radiation counts from the rollup index:
+ *
+ *   GET /speluncr/speluncr/radiation/history?from=..&to=..&resolution=..&format=..
+ *
+ *   from, to   : epoch seconds or ISO-8601 instants
+ *                (default: the last hour)
+ *   resolution : bin width in seconds (default 60)
+ *   format     : json (default) or binary
+ *
+ * The binary form is little-endian: int64 first bin start
+ * (epoch seconds), int32 resolution, int32 bin count, then one
+ * uint32 count per bin. Bins are streamed in chunks so large
+ * ranges never need one big response buffer.
+ *
+ * A resolution the index no longer keeps for the start of the
+ * range (e.g. 90 s bins from last week, older than the 1 s
+ * buckets) is answered with 400.
+ ************************************************************/
+class RadiationHistoryHandler {
+    private static final int MAX_BINS = 1000000;
+    private static final int CHUNK = 4096; // bins read from the index at a time
+    private final RadiationRollup rollup;
+
+    RadiationHistoryHandler(RadiationRollup rollup){
+        this.rollup = rollup;
+    }
+
+    void handle(HttpServletRequest req, HttpServletResponse resp) throws IOException{
+        long now = Instant.now().getEpochSecond();
+        long to, from;
+        int resolution;
+        try {
+            to = parseTime(req.getParameter("to"), now);
+            from = parseTime(req.getParameter("from"), to - 3600);
+            resolution = req.getParameter("resolution") == null ? 60 : Integer.parseInt(req.getParameter("resolution"));
+        } catch (NumberFormatException | DateTimeParseException e){
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid from, to or resolution: " + e.getMessage());
+            return;
+        }
+        if (resolution < 1 || to <= from){
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "resolution must be positive and to after from");
+            return;
+        }
+
+        // Align the first bin to the resolution
+        long first = Math.floorDiv(from, resolution) * resolution;
+        long binCount = (to - first + resolution - 1) / resolution;
+        if (binCount > MAX_BINS){
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Too many bins requested. Increase the resolution.");
+            return;
+        }
+        int bins = (int) binCount;
+
+        // The first chunk is read before anything is written, so a range the index cannot answer is refused
+        long[] counts = new long[Math.min(CHUNK, bins)];
+        if (!rollup.query(first, resolution, counts, counts.length)){
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, String.format("Counts at %d s resolution are not kept "
+                    + "from %s. Use a multiple of 60 s for the last 90 days, or of 3600 s for the last 5 years.",
+                    resolution, Instant.ofEpochSecond(first)));
+            return;
+        }
+
+        resp.setHeader("Cache-Control", "no-cache");
+        if ("binary".equalsIgnoreCase(req.getParameter("format"))){
+            writeBinary(resp, first, resolution, bins, counts);
+        } else {
+            writeJson(resp, first, resolution, bins, counts);
+        }
+    }
+
+    // Fill counts with the chunk of bins starting at bin done, unless it is the first chunk, already read
+    private void readChunk(long first, int resolution, int done, long[] counts, int n) throws IOException{
+        if (done > 0 && !rollup.query(first + (long) done * resolution, resolution, counts, n)){
+            throw new IOException("Radiation index no longer holds the requested range");
+        }
+    }
+
+    private void writeJson(HttpServletResponse resp, long first, int resolution, int bins, long[] counts) throws IOException{
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        PrintWriter out = resp.getWriter();
+        out.print("{\"from\":");
+        out.print(first);
+        out.print(",\"resolution\":");
+        out.print(resolution);
+        out.print(",\"counts\":[");
+        for (int done = 0; done < bins; ){
+            int n = Math.min(counts.length, bins - done);
+            readChunk(first, resolution, done, counts, n);
+            for (int i = 0; i < n; i++){
+                if (done + i > 0){
+                    out.print(',');
+                }
+                out.print(counts[i]);
+            }
+            done += n;
+        }
+        out.print("]}");
+    }
+
+    private void writeBinary(HttpServletResponse resp, long first, int resolution, int bins, long[] counts) throws IOException{
+        resp.setContentType("application/octet-stream");
+        resp.setContentLength(16 + 4*bins);
+        OutputStream out = new BufferedOutputStream(resp.getOutputStream(), 16384);
+        ByteBuffer bb = ByteBuffer.allocate(Math.max(16, 4*Math.min(CHUNK, bins))).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putLong(first).putInt(resolution).putInt(bins);
+        out.write(bb.array(), 0, bb.position());
+
+        for (int done = 0; done < bins; ){
+            int n = Math.min(counts.length, bins - done);
+            readChunk(first, resolution, done, counts, n);
+            bb.clear();
+            for (int i = 0; i < n; i++){
+                bb.putInt((int) Math.min(counts[i], 0xFFFFFFFFL));
+            }
+            out.write(bb.array(), 0, bb.position());
+            done += n;
+        }
+        out.flush();
+    }
+
+    // Parse epoch seconds or an ISO-8601 instant
+    private static long parseTime(String value, long defaultValue){
+        if (value == null || value.isBlank()){
+            return defaultValue;
+        }
+        value = value.trim();
+        if (value.chars().allMatch(Character::isDigit)){
+            return Long.parseLong(value);
+        }
+        return Instant.parse(value).getEpochSecond();
+    }
+}
@@ -1,20 +1,42 @@
 package com.speluncr;
 
+import com.speluncr.alert.AlertEngine;
 import com.speluncr.gpio.AttitudeSensor;
-import com.speluncr.gpio.GPIOInitializer;
 import com.speluncr.gpio.RadiationSensor;
+import com.speluncr.gpio.SensorSupervisor;
+import com.speluncr.hardware.HardwareBackend;
+import com.speluncr.metrics.JvmMetrics;
+import com.speluncr.metrics.Metrics;
+import com.speluncr.scheduler.SensorScheduler;
+import com.speluncr.websocket.RelayClient;
 import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class TelemetryServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
     private final RadiationSensor gc = new RadiationSensor(this);
-    private final AttitudeSensor as = new AttitudeSensor();
-    private final Properties properties = new Properties();
+    private final AttitudeSensor as = new AttitudeSensor(this);
+    private final RelayClient relay = new RelayClient(this);
+    private volatile Properties properties = new Properties();
+    private volatile HardwareBackend hardware = null;
+    private volatile SensorScheduler scheduler = null;
+    private final AlertEngine alerts = new AlertEngine();
+    private final AlertHandler alertHandler = new AlertHandler(alerts);
+    private final SensorSupervisor supervisor = new SensorSupervisor();
+    private final HealthHandler health = new HealthHandler(supervisor);
+    private ConfigWatcher configWatcher = null;
+    private final RadiationHistoryHandler radiationHistory = new RadiationHistoryHandler(gc.getRollup());
+    private final AttitudeReplayHandler attitudeReplay = new AttitudeReplayHandler(as::getRecordingDirectory);
 
     public TelemetryServlet(){
         System.out.println("Telemetry servlet constructed");
@@ -22,36 +44,138 @@ public class TelemetryServlet extends HttpServlet {
 
     @Override
     public void init() {
-        LoadProperties();
-        gc.startSensor();
-        System.out.println("Geiger Counter Initialized");
-        as.startSensor();
-        System.out.println("Attitude Sensor Initialized");
+        properties = LoadProperties();
+        JvmMetrics.register();
+        hardware = HardwareBackend.fromProperties(properties);
+        scheduler = SensorScheduler.fromProperties(properties);
+        alerts.configure(properties);
+        alerts.start();
+        // Sensors start in the background so deployment doesn't wait for them. See /health for their state.
+        addSensors();
+        supervisor.start();
+        try {
+            configWatcher = new ConfigWatcher(getPropertiesFile(), this::reloadProperties);
+        } catch (IOException e){
+            System.err.println("[WARNING]: Cannot watch servlet.conf. Changes apply after a restart.");
+            e.printStackTrace();
+        }
     }
 
     @Override
     public void destroy() {
-        gc.stopSensor();
-        System.out.println("Geiger Counter Stopped");
-        as.stopSensor();
-        System.out.println("Attitude Sensor Stopped");
-        GPIOInitializer.getInstance().getGpioController().shutdown();
+        if (configWatcher != null){
+            configWatcher.close();
+        }
+        synchronized (this){
+            attitudeReplay.stop();
+            supervisor.stop();
+            alerts.stop();
+            System.out.println("Sensors Stopped");
+            scheduler.shutdown();
+            hardware.shutdown();
+        }
+    }
+
+    // Apply a changed servlet.conf. Sensor settings restart only their sensor, anything else restarts them all.
+    private synchronized void reloadProperties(){
+        Properties loaded = LoadProperties();
+        Set<String> changed = new TreeSet<>(loaded.stringPropertyNames());
+        changed.addAll(properties.stringPropertyNames());
+        changed.removeIf(key -> Objects.equals(loaded.getProperty(key), properties.getProperty(key)));
+        if (changed.isEmpty()){
+            return;
+        }
+        System.out.printf("[INFO]: servlet.conf changed: %s\n", changed);
+        properties = loaded;
+        // Alert rules apply without restarting anything
+        if (changed.removeIf(key -> key.startsWith("Alert"))){
+            alerts.configure(properties);
+        }
+        if (changed.isEmpty()){
+            return;
+        }
+        if (supervisor.handles(changed)){
+            supervisor.restart(changed);
+            return;
+        }
+        supervisor.stop();
+        scheduler.shutdown();
+        hardware.shutdown();
+        hardware = HardwareBackend.fromProperties(properties);
+        scheduler = SensorScheduler.fromProperties(properties);
+        supervisor.clear();
+        addSensors();
+        supervisor.start();
     }
 
-    private void LoadProperties(){
+    // The rover runs the sensors. A relay (Mode=relay) instead re-broadcasts the rover's telemetry to its viewers.
+    private void addSensors(){
+        if ("relay".equalsIgnoreCase(PropertyReader.getString(properties, "Mode", "rover"))){
+            supervisor.add("relay", "Relay", relay);
+        } else {
+            supervisor.add("radiation", "Radiation", gc);
+            supervisor.add("attitude", "Attitude", as);
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String path = req.getPathInfo() == null ? "" : req.getPathInfo();
+        switch (path){
+            case "/radiation/history":
+                radiationHistory.handle(req, resp);
+                break;
+            case "/attitude/recordings":
+                attitudeReplay.listRecordings(resp);
+                break;
+            case "/attitude/replay":
+                attitudeReplay.status(resp);
+                break;
+            case "/alerts":
+                alertHandler.handle(resp);
+                break;
+            case "/health":
+                health.handle(resp);
+                break;
+            case "/metrics":
+                resp.setContentType("text/plain; version=0.0.4");
+                resp.setCharacterEncoding("UTF-8");
+                Metrics.write(resp.getWriter());
+                break;
+            default:
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String path = req.getPathInfo() == null ? "" : req.getPathInfo();
+        if ("/attitude/replay".equals(path)){
+            attitudeReplay.control(req, resp);
+        } else {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    private File getPropertiesFile(){
         // Navigate to the servlet.conf file that contains properties used by this class
         // The following try-catch block is only necessary because the absolute path
         // of servlet.conf will be different on other computers and I want this to work
         // right away so you don't have to hard-code your specific path and recompile this code.
         Path servletRoot = Path.of(getServletContext().getRealPath("/"));
-        File propertiesFile = servletRoot.resolve("WEB-INF/servlet.conf").toFile();
+        return servletRoot.resolve("WEB-INF/servlet.conf").toFile();
+    }
+
+    private Properties LoadProperties(){
+        Properties properties = new Properties();
+        File propertiesFile = getPropertiesFile();
         System.out.format("Attempting to load properties from: %s%n", propertiesFile.getAbsolutePath());
 
         // Stop if there's no file to load the properties
         if (!propertiesFile.exists()){
             System.err.println("[INFO]: The properties file could not be read. Using defaults");
             properties.setProperty("RadiationSaveDirectory", System.getProperty("user.home"));
-            return;
+            return properties;
         }
 
         // Load properties from file
@@ -61,9 +185,25 @@ public class TelemetryServlet extends HttpServlet {
         } catch (IOException e){
             e.printStackTrace();
         }
+        return properties;
     }
 
     public Properties getProperties(){
         return properties;
     }
+
+    // GPIO and I2C access for the sensors, chosen by HardwareBackend in servlet.conf
+    public HardwareBackend getHardware(){
+        return hardware;
+    }
+
+    // Alert rules checked by the sensors on every sample
+    public AlertEngine getAlerts(){
+        return alerts;
+    }
+
+    // Shared timing and worker threads for the sensors' periodic work
+    public SensorScheduler getScheduler(){
+        return scheduler;
+    }
 }
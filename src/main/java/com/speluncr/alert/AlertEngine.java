@@ -0,0 +1,469 @@
+package com.speluncr.alert;
+
+import com.speluncr.PropertyReader;
+import com.speluncr.metrics.Counter;
+import com.speluncr.metrics.Histogram;
+import com.speluncr.metrics.Metrics;
+import com.speluncr.websocket.AlertChannel;
+import com.speluncr.websocket.FrameCodec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/************************************************************
+ * Checks every attitude sample and every Geiger counter event
+ * against the alert rules in servlet.conf, on the thread that
+ * produced it, and raises or clears alerts:
+ *
+ *   roll, pitch      |angle| reaches the limit (critical).
+ *                    Cleared once it is back below the limit
+ *                    minus AlertTiltHysteresisDegrees.
+ *   tilt rate        the angle from level changes faster than
+ *                    the limit, averaged over
+ *                    AlertTiltRateMillis (warning), e.g. the
+ *                    rover starting to tip over. Cleared below
+ *                    the limit times (1 - hysteresis).
+ *   radiation rate   AlertRadiationCps counts a second or more
+ *                    within AlertRadiationWindowMillis
+ *                    (warning). Cleared when the window holds
+ *                    fewer than the rate times
+ *                    (1 - hysteresis).
+ *
+ * A limit of 0 turns its rule off. Checking a sample takes a
+ * few comparisons and allocates nothing. Only a change of
+ * state is handed to the alert dispatcher thread, which sends
+ * it to every viewer ahead of their queued telemetry (see
+ * AlertChannel), counts it in the metrics and appends it to
+ * the alert log (AlertLogFile). The time from the sample to
+ * the hand-off is recorded in speluncr_alert_latency_seconds.
+ ************************************************************/
+public class AlertEngine {
+    public static final int ROLL = 1;
+    public static final int PITCH = 2;
+    public static final int TILT_RATE = 3;
+    public static final int RADIATION_RATE = 4;
+    public static final int WARNING = 1;
+    public static final int CRITICAL = 2;
+    private static final String[] NAMES = {"", "roll", "pitch", "tilt_rate", "radiation_rate"};
+    private static final int RECENT = 100; // alerts kept for /alerts
+    private static final long IDLE_CHECK = 50000000L; // ns between checks for a radiation alert with no events
+    private static final Histogram LATENCY = Metrics.histogram("speluncr_alert_latency_seconds",
+            "Time from the sample or event that raised or cleared an alert until it was queued to every viewer.");
+    private static final Rules RELAYED = new Rules(new Properties()); // marks alerts received from the rover
+    private final Counter[] raisedCount = new Counter[NAMES.length];
+    private final ConcurrentLinkedQueue<Alert> changes = new ConcurrentLinkedQueue<>();
+    private volatile Rules rules = new Rules(new Properties());
+    private volatile boolean reset = false; // rules were replaced, clear the alerts raised under the old ones
+    private volatile Thread dispatcher = null;
+    private volatile boolean running = false;
+    // Only used by the dispatcher, or with the lock on this
+    private final ByteBuffer[] raisedFrames = new ByteBuffer[NAMES.length]; // frame of each raised alert
+    private final Alert[] raised = new Alert[NAMES.length];
+    private final ArrayDeque<Alert> recent = new ArrayDeque<>();
+    private int sequence = 0;
+    private Path logFile = null;
+    private boolean logFailed = false;
+
+    // One change of state of an alert
+    public static class Alert {
+        private final Rules rules; // rules that made the change, so changes made under replaced rules are dropped
+        private final int alert;
+        private final boolean raised;
+        private final int severity;
+        private final double value; // deg, deg/s or counts/s
+        private final double threshold;
+        private final long sampleNanos; // System.nanoTime() of the sample or event, 0 if relayed
+        private final long timeMicros; // epoch us
+
+        Alert(Rules rules, int alert, boolean raised, int severity, double value, double threshold, long sampleNanos,
+              long timeMicros){
+            this.rules = rules;
+            this.alert = alert;
+            this.raised = raised;
+            this.severity = severity;
+            this.value = value;
+            this.threshold = threshold;
+            this.sampleNanos = sampleNanos;
+            this.timeMicros = timeMicros;
+        }
+
+        public String getName(){
+            return NAMES[alert];
+        }
+
+        public boolean isRaised(){
+            return raised;
+        }
+
+        public String getSeverity(){
+            return severity == CRITICAL ? "critical" : "warning";
+        }
+
+        public double getValue(){
+            return value;
+        }
+
+        public double getThreshold(){
+            return threshold;
+        }
+
+        public Instant getTime(){
+            return Instant.ofEpochSecond(Math.floorDiv(timeMicros, 1000000L), Math.floorMod(timeMicros, 1000000L) * 1000);
+        }
+    }
+
+    // Limits from servlet.conf, and the state of each rule. Replaced as a whole when servlet.conf changes.
+    private static class Rules {
+        final double rollLimit, pitchLimit, tiltClear; // rad, clear below limit - tiltClear
+        final double rateLimit, rateClear, rateTau; // rad/s, rad/s, s
+        final double cps;
+        final long window; // ns
+        final long[] events; // times of the last N Geiger counter events, null if the rule is off
+        final int clearCount; // fewer events than this in the window clear the alert
+        // Attitude state, only used by the attitude sensor's sampling thread
+        boolean rollRaised, pitchRaised, rateRaised;
+        long lastSample = 0;
+        double lastTilt, rate;
+        // Radiation state, only used by the interrupt thread, except radiationRaised and lastEvent
+        int next = 0;
+        long received = 0;
+        volatile long lastEvent;
+        final AtomicBoolean radiationRaised = new AtomicBoolean(false);
+
+        Rules(Properties properties){
+            rollLimit = Math.toRadians(PropertyReader.getDouble(properties, "AlertRollDegrees", 35, 0, 180));
+            pitchLimit = Math.toRadians(PropertyReader.getDouble(properties, "AlertPitchDegrees", 35, 0, 90));
+            tiltClear = Math.toRadians(PropertyReader.getDouble(properties, "AlertTiltHysteresisDegrees", 5, 0, 90));
+            rateLimit = Math.toRadians(PropertyReader.getDouble(properties, "AlertTiltRateDegPerSec", 90, 0, 10000));
+            rateClear = rateLimit * (1 - PropertyReader.getDouble(properties, "AlertTiltRateHysteresis", 0.5, 0, 1));
+            rateTau = PropertyReader.getInt(properties, "AlertTiltRateMillis", 100, 1, 10000) / 1000d;
+            cps = PropertyReader.getDouble(properties, "AlertRadiationCps", 50, 0, 100000);
+            window = PropertyReader.getInt(properties, "AlertRadiationWindowMillis", 250, 10, 60000) * 1000000L;
+            double hysteresis = PropertyReader.getDouble(properties, "AlertRadiationHysteresis", 0.5, 0, 1);
+            int raiseCount = (int) Math.min(1 << 20, Math.max(2, Math.ceil(cps * window / 1e9)));
+            events = cps > 0 ? new long[raiseCount] : null;
+            clearCount = (int) Math.max(1, Math.ceil(cps * (1 - hysteresis) * window / 1e9));
+        }
+    }
+
+    public AlertEngine(){
+        for (int alert = 1; alert < NAMES.length; alert++){
+            final int a = alert;
+            raisedCount[alert] = Metrics.counter("speluncr_alerts_raised_total", "Alerts raised.", "alert", NAMES[alert]);
+            Metrics.gauge("speluncr_alert_active", "1 while the alert is raised.", () -> isRaised(a) ? 1 : 0,
+                    "alert", NAMES[alert]);
+        }
+    }
+
+    // Read the rules and the log file from servlet.conf. Alerts raised under the old rules are cleared, and
+    // raised again by the next sample that is still beyond a limit.
+    public synchronized void configure(Properties properties){
+        File saveDirectory = new File(properties.getProperty("RadiationSaveDirectory", System.getProperty("user.home")));
+        String log = PropertyReader.getString(properties, "AlertLogFile", new File(saveDirectory, "alerts.log").getPath());
+        logFile = log.isEmpty() ? null : Path.of(log);
+        logFailed = false;
+        rules = new Rules(properties);
+        reset = true;
+        LockSupport.unpark(dispatcher);
+    }
+
+    public synchronized void start(){
+        if (dispatcher != null){
+            return;
+        }
+        running = true;
+        dispatcher = new Thread(this::dispatch, "Alert Dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    // Send the changes already made, then stop the dispatcher
+    public void stop(){
+        Thread thread;
+        synchronized (this){
+            thread = dispatcher;
+            if (thread == null || !running){
+                return;
+            }
+            running = false;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this){
+            dispatcher = null;
+        }
+    }
+
+    // Called by the attitude sensor with every sample (roll and pitch in rad). Never blocks or allocates,
+    // unless an alert changes state.
+    public void onAttitude(long sampleNanos, double roll, double pitch){
+        Rules r = rules;
+        if (r.rollLimit > 0){
+            double angle = Math.abs(roll);
+            if (!r.rollRaised && angle >= r.rollLimit){
+                r.rollRaised = true;
+                change(r, ROLL, true, CRITICAL, angle, r.rollLimit, sampleNanos);
+            } else if (r.rollRaised && angle < r.rollLimit - r.tiltClear){
+                r.rollRaised = false;
+                change(r, ROLL, false, CRITICAL, angle, r.rollLimit - r.tiltClear, sampleNanos);
+            }
+        }
+        if (r.pitchLimit > 0){
+            double angle = Math.abs(pitch);
+            if (!r.pitchRaised && angle >= r.pitchLimit){
+                r.pitchRaised = true;
+                change(r, PITCH, true, CRITICAL, angle, r.pitchLimit, sampleNanos);
+            } else if (r.pitchRaised && angle < r.pitchLimit - r.tiltClear){
+                r.pitchRaised = false;
+                change(r, PITCH, false, CRITICAL, angle, r.pitchLimit - r.tiltClear, sampleNanos);
+            }
+        }
+        if (r.rateLimit > 0){
+            // Angle between the rover's up axis and vertical, so turning about that axis is not counted
+            double tilt = Math.acos(Math.max(-1, Math.min(1, Math.cos(roll) * Math.cos(pitch))));
+            double dt = (sampleNanos - r.lastSample) / 1e9;
+            if (r.lastSample == 0 || dt <= 0 || dt > 1){
+                r.rate = 0; // first sample, or after a gap
+            } else {
+                r.rate += ((tilt - r.lastTilt) / dt - r.rate) * dt / (r.rateTau + dt); // noise averages out
+            }
+            r.lastSample = sampleNanos;
+            r.lastTilt = tilt;
+            double rate = Math.abs(r.rate);
+            if (!r.rateRaised && rate >= r.rateLimit){
+                r.rateRaised = true;
+                change(r, TILT_RATE, true, WARNING, rate, r.rateLimit, sampleNanos);
+            } else if (r.rateRaised && rate < r.rateClear){
+                r.rateRaised = false;
+                change(r, TILT_RATE, false, WARNING, rate, r.rateClear, sampleNanos);
+            }
+        }
+    }
+
+    // Called by the Geiger counter interrupt with the time of each event. Never blocks or allocates, unless an
+    // alert changes state.
+    public void onRadiationEvent(long eventNanos){
+        Rules r = rules;
+        long[] events = r.events;
+        if (events == null){
+            return;
+        }
+        events[r.next] = eventNanos;
+        r.next = r.next + 1 == events.length ? 0 : r.next + 1;
+        r.received++;
+        r.lastEvent = eventNanos;
+        if (!r.radiationRaised.get()){
+            // The oldest of the last N events is the next to be replaced
+            long span = eventNanos - events[r.next];
+            if (r.received >= events.length && span <= r.window && r.radiationRaised.compareAndSet(false, true)){
+                change(r, RADIATION_RATE, true, WARNING, (events.length - 1) * 1e9 / Math.max(span, 1), r.cps, eventNanos);
+            }
+        } else if (r.received >= r.clearCount){
+            // Fewer than M events in the window if the M-th newest is older than it
+            int m = Math.floorMod(r.next - r.clearCount, events.length);
+            if (eventNanos - events[m] > r.window && r.radiationRaised.compareAndSet(true, false)){
+                change(r, RADIATION_RATE, false, WARNING, (r.clearCount - 1) * 1e9 / (eventNanos - events[m]),
+                        r.clearCount * 1e9 / r.window, eventNanos);
+            }
+        }
+    }
+
+    // Send alerts received from the rover in relay mode, keeping the rover's sequence numbers. A state the relay
+    // already has is dropped, as the rover sends its raised alerts again whenever the relay connects.
+    public void relay(ByteBuffer frame){
+        ByteBuffer in = FrameCodec.wrap(frame);
+        List<Alert> received = new ArrayList<>();
+        synchronized (this){
+            for (int i = 0; i < FrameCodec.getCount(in); i++){
+                int alert = FrameCodec.getAlert(in, i);
+                if (alert < 1 || alert >= NAMES.length || (raised[alert] != null) == FrameCodec.isAlertRaised(in, i)){
+                    continue;
+                }
+                Alert change = new Alert(RELAYED, alert, FrameCodec.isAlertRaised(in, i), FrameCodec.getAlertSeverity(in, i),
+                        FrameCodec.getAlertValue(in, i), FrameCodec.getAlertThreshold(in, i), 0, FrameCodec.getTime(in, i));
+                send(change, FrameCodec.getSequence(in) + i);
+                received.add(change);
+            }
+        }
+        for (Alert change : received){
+            log(change);
+        }
+    }
+
+    // Clear the relayed alerts the rover no longer has raised (stillRaised by alert number), e.g. ones that
+    // cleared while the relay was disconnected. Called once the rover has sent its raised alerts on connecting.
+    public void clearRelayed(boolean[] stillRaised){
+        List<Alert> cleared = new ArrayList<>();
+        synchronized (this){
+            for (int alert = 1; alert < NAMES.length; alert++){
+                Alert current = raised[alert];
+                if (current == null || current.rules != RELAYED || (alert < stillRaised.length && stillRaised[alert])){
+                    continue;
+                }
+                // Not before the raise, whatever the difference between the rover's clock and this one
+                long time = Math.max(FrameCodec.toEpochMicros(System.nanoTime()), current.timeMicros + 1);
+                Alert change = new Alert(RELAYED, alert, false, current.severity, 0, 0, 0, time);
+                send(change, sequence++);
+                cleared.add(change);
+            }
+        }
+        for (Alert change : cleared){
+            log(change);
+        }
+    }
+
+    public boolean isRaised(int alert){
+        synchronized (this){
+            return raised[alert] != null;
+        }
+    }
+
+    // The alerts raised now
+    public synchronized List<Alert> getRaised(){
+        List<Alert> active = new ArrayList<>();
+        for (Alert alert : raised){
+            if (alert != null){
+                active.add(alert);
+            }
+        }
+        return active;
+    }
+
+    // The last alerts raised or cleared, newest first
+    public synchronized List<Alert> getRecent(){
+        List<Alert> newest = new ArrayList<>(recent);
+        Collections.reverse(newest);
+        return newest;
+    }
+
+    // Hand a change of state to the dispatcher. Angles are converted to degrees.
+    private void change(Rules r, int alert, boolean raise, int severity, double value, double threshold, long sampleNanos){
+        if (alert != RADIATION_RATE){
+            value = Math.toDegrees(value);
+            threshold = Math.toDegrees(threshold);
+        }
+        changes.add(new Alert(r, alert, raise, severity, value, threshold, sampleNanos, FrameCodec.toEpochMicros(sampleNanos)));
+        LockSupport.unpark(dispatcher);
+    }
+
+    private void dispatch(){
+        while (running || !changes.isEmpty()){
+            if (reset){
+                reset = false;
+                clearAll();
+            }
+            Alert change;
+            while ((change = changes.poll()) != null){
+                if (change.rules == rules){
+                    dispatch(change);
+                }
+            }
+            checkIdle();
+            LockSupport.parkNanos(this, IDLE_CHECK);
+        }
+    }
+
+    private void dispatch(Alert change){
+        synchronized (this){
+            send(change, sequence++);
+        }
+        if (change.sampleNanos != 0){
+            LATENCY.recordSince(change.sampleNanos);
+        }
+        log(change);
+    }
+
+    // Encode a change as a frame of its own and publish it. Called with the lock on this.
+    private void send(Alert change, int sequence){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_ALERT, 1);
+        encoder.addAlert(sequence, change.timeMicros, change.alert, change.raised, change.severity, change.value,
+                change.threshold);
+        publish(change, encoder.finish());
+    }
+
+    // Send a change to every viewer and keep it. Called with the lock on this.
+    private void publish(Alert change, ByteBuffer frame){
+        raised[change.alert] = change.raised ? change : null;
+        raisedFrames[change.alert] = change.raised ? frame : null;
+        List<ByteBuffer> frames = new ArrayList<>();
+        for (ByteBuffer raisedFrame : raisedFrames){
+            if (raisedFrame != null){
+                frames.add(raisedFrame);
+            }
+        }
+        AlertChannel.publish(frame, frames);
+        if (change.raised){
+            raisedCount[change.alert].increment();
+        }
+        if (recent.size() == RECENT){
+            recent.poll();
+        }
+        recent.add(change);
+    }
+
+    // Clear a radiation alert once no events arrive, which the interrupt thread cannot notice
+    private void checkIdle(){
+        Rules r = rules;
+        long now = System.nanoTime();
+        if (r.radiationRaised.get() && now - r.lastEvent > r.window && r.radiationRaised.compareAndSet(true, false)){
+            dispatch(new Alert(r, RADIATION_RATE, false, WARNING, 0, r.clearCount * 1e9 / r.window, now,
+                    FrameCodec.toEpochMicros(now)));
+        }
+    }
+
+    // Clear the alerts raised under replaced rules, with a threshold of 0
+    private void clearAll(){
+        for (int alert = 1; alert < NAMES.length; alert++){
+            Alert current;
+            synchronized (this){
+                current = raised[alert];
+            }
+            if (current != null && current.rules != rules && current.rules != RELAYED){
+                long now = System.nanoTime();
+                dispatch(new Alert(null, alert, false, current.severity, 0, 0, 0, FrameCodec.toEpochMicros(now)));
+            }
+        }
+    }
+
+    // Append a change to the alert log: time, alert, raised or cleared, severity, value, threshold
+    private void log(Alert change){
+        Path file;
+        synchronized (this){
+            file = logFile;
+        }
+        if (file == null){
+            return;
+        }
+        String line = String.format("%s,%s,%s,%s,%.3f,%.3f\n", change.getTime(), change.getName(),
+                change.raised ? "raised" : "cleared", change.getSeverity(), change.value, change.threshold);
+        try {
+            Files.write(file, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e){
+            synchronized (this){
+                if (logFailed){
+                    return;
+                }
+                logFailed = true;
+            }
+            System.err.printf("[ERROR]: Cannot write the alert log %s.\n", file);
+            e.printStackTrace();
+        }
+    }
+}
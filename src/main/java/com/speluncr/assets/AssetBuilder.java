@@ -0,0 +1,256 @@
+package com.speluncr.assets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/************************************************************
+ * Build step run by build.xml on the webapp directory:
+ *
+ *   1. Copies the assets the pages reference to a content-
+ *      hashed name (main.js -> main.1a2b3c4d.js) that browsers
+ *      can cache forever. References in scripts and styles are
+ *      updated before they are hashed. Large media (the video)
+ *      is not copied and is revalidated with its ETag instead.
+ *   2. Points the references in the .html pages at the hashed
+ *      names. The pages keep their names and are revalidated.
+ *   3. Writes a .gz variant of every compressible file that
+ *      gzip makes smaller, except the originals of hashed
+ *      files. build.xml adds .br variants with
+ *      the brotli tool when it is installed.
+ *
+ * The original files are kept, so links to them still work.
+ * Assets nothing references are left as they are.
+ * Hashed names and variants left by earlier builds are
+ * deleted. StaticAssetFilter serves the results.
+ ************************************************************/
+public class AssetBuilder {
+    // Extensions of files worth compressing. Images and video are compressed already.
+    static final List<String> COMPRESSIBLE = List.of("html", "js", "css", "gltf", "json", "svg", "ico", "txt", "xml");
+    // Extensions of text files whose references to other assets are rewritten
+    private static final List<String> REFERENCING = List.of("js", "css", "gltf", "json", "svg");
+    // Media larger than this is revalidated rather than copied to a hashed name, which would double its size in the WAR
+    private static final long HASH_MEDIA_SIZE = 256 * 1024; // bytes
+    // name.<8 hex digits>.ext
+    static final Pattern HASHED_NAME = Pattern.compile("(.+)\\.([0-9a-f]{8})(\\.[^.]+)");
+
+    private final Path root;
+    private final Map<String, String> hashedNames = new LinkedHashMap<>(); // path from root -> hashed path from root
+
+    private AssetBuilder(Path root){
+        this.root = root;
+    }
+
+    public static void main(String[] args) throws IOException{
+        if (args.length != 1){
+            System.err.println("Usage: AssetBuilder <webapp directory>");
+            System.exit(2);
+        }
+        new AssetBuilder(Paths.get(args[0])).build();
+    }
+
+    private void build() throws IOException{
+        List<Path> files = listFiles();
+        List<Path> assets = new ArrayList<>(), scripts = new ArrayList<>(), pages = new ArrayList<>();
+        for (Path file : files){
+            if (extension(file).equals("html")){
+                pages.add(file);
+            }
+        }
+        for (Path file : referenced(pages, files)){
+            if (REFERENCING.contains(extension(file))){
+                scripts.add(file);
+            } else if (Files.size(file) <= HASH_MEDIA_SIZE){
+                assets.add(file);
+            }
+        }
+
+        // Hash the assets that reference nothing first, so references to them can be rewritten
+        for (Path file : assets){
+            hash(file, Files.readAllBytes(file));
+        }
+        // Then the text assets, each after the ones it references
+        while (!scripts.isEmpty()){
+            List<Path> ready = new ArrayList<>();
+            for (Path file : scripts){
+                if (scripts.stream().noneMatch(other -> other != file && references(file, other))){
+                    ready.add(file);
+                }
+            }
+            if (ready.isEmpty()){
+                ready.addAll(scripts); // circular references, which cannot all be hashed
+            }
+            for (Path file : ready){
+                hash(file, rewrite(file));
+            }
+            scripts.removeAll(ready);
+        }
+        for (Path file : pages){
+            Files.write(file, rewrite(file));
+        }
+
+        long original = 0, compressed = 0;
+        for (Path file : listFiles()){
+            // Originals of hashed files are only fetched by old links, so they are not worth a variant
+            if (COMPRESSIBLE.contains(extension(file)) && !hashedNames.containsKey(path(file))){
+                byte[] content = Files.readAllBytes(file);
+                byte[] gzip = gzip(content);
+                if (gzip.length < content.length * 0.95){
+                    Files.write(file.resolveSibling(file.getFileName() + ".gz"), gzip);
+                    original += content.length;
+                    compressed += gzip.length;
+                }
+            }
+        }
+        System.out.printf("[INFO]: Hashed %d assets. Gzip variants are %d of %d bytes.\n", hashedNames.size(),
+                compressed, original);
+    }
+
+    // Files to process, after deleting the output of an earlier build
+    private List<Path> listFiles() throws IOException{
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(root)){
+            files = paths.filter(Files::isRegularFile)
+                    .filter(file -> !root.relativize(file).startsWith("WEB-INF") && !root.relativize(file).startsWith("META-INF"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        List<Path> sources = new ArrayList<>();
+        for (Path file : files){
+            String name = file.getFileName().toString();
+            if (name.endsWith(".gz") || name.endsWith(".br")){
+                Files.delete(file);
+            } else if (isHashed(file)){
+                if (!hashedNames.containsValue(path(file))){
+                    Files.delete(file);
+                }
+            } else {
+                sources.add(file);
+            }
+        }
+        // The hashed names written by this build are compressed too
+        for (String hashed : hashedNames.values()){
+            sources.add(root.resolve(hashed));
+        }
+        return sources;
+    }
+
+    // Assets the pages reference, directly or through the scripts and styles they reference, in the order of files
+    private static List<Path> referenced(List<Path> pages, List<Path> files) throws IOException{
+        Set<Path> referenced = new HashSet<>();
+        Deque<Path> pending = new ArrayDeque<>(pages);
+        while (!pending.isEmpty()){
+            Path file = pending.pop();
+            String text = read(file);
+            for (Path asset : files){
+                if (!referenced.contains(asset) && !pages.contains(asset)
+                        && referencePattern(file, asset).matcher(text).find()){
+                    referenced.add(asset);
+                    if (REFERENCING.contains(extension(asset))){
+                        pending.push(asset);
+                    }
+                }
+            }
+        }
+        return files.stream().filter(referenced::contains).collect(Collectors.toList());
+    }
+
+    private void hash(Path file, byte[] content) throws IOException{
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String hashedName = dot <= 0 ? name + "." + digest(content)
+                : name.substring(0, dot) + "." + digest(content) + name.substring(dot);
+        Path hashed = file.resolveSibling(hashedName);
+        Files.write(hashed, content);
+        hashedNames.put(path(file), path(hashed));
+    }
+
+    // Content of a text file with its references to hashed assets replaced by the hashed names
+    private byte[] rewrite(Path file) throws IOException{
+        String text = read(file);
+        for (Map.Entry<String, String> entry : hashedNames.entrySet()){
+            String hashed = reference(file, root.resolve(entry.getValue()));
+            text = referencePattern(file, root.resolve(entry.getKey())).matcher(text)
+                    .replaceAll(Matcher.quoteReplacement(hashed));
+        }
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean references(Path file, Path asset){
+        try {
+            return referencePattern(file, asset).matcher(read(file)).find();
+        } catch (IOException e){
+            return false;
+        }
+    }
+
+    // Only whole references: quoted or in url(), possibly followed by a query or fragment. The hashed name from an
+    // earlier build counts too, so building again finds the same assets and points at their new hashed names.
+    private static Pattern referencePattern(Path file, Path asset){
+        String reference = reference(file, asset);
+        int dot = reference.lastIndexOf('.');
+        String name = dot <= reference.lastIndexOf('/') + 1 ? Pattern.quote(reference) + "(?:\\.[0-9a-f]{8})?"
+                : Pattern.quote(reference.substring(0, dot)) + "(?:\\.[0-9a-f]{8})?" + Pattern.quote(reference.substring(dot));
+        return Pattern.compile("(?<=[\"'(])" + name + "(?=[\"')?#])");
+    }
+
+    // Relative URL of asset from file
+    private static String reference(Path file, Path asset){
+        return file.getParent().relativize(asset).toString().replace('\\', '/');
+    }
+
+    // ISO-8859-1 maps every byte to one char, so the bytes outside the references are unchanged
+    private static String read(Path file) throws IOException{
+        return new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+    }
+
+    private String path(Path file){
+        return root.relativize(file).toString().replace('\\', '/');
+    }
+
+    static boolean isHashed(Path file){
+        Matcher matcher = HASHED_NAME.matcher(file.getFileName().toString());
+        return matcher.matches() && Files.exists(file.resolveSibling(matcher.group(1) + matcher.group(3)));
+    }
+
+    private static String extension(Path file){
+        String name = file.getFileName().toString();
+        return name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+    }
+
+    private static String digest(byte[] content){
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+            return String.format("%02x%02x%02x%02x", hash[0], hash[1], hash[2], hash[3]);
+        } catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out){{ def.setLevel(Deflater.BEST_COMPRESSION); }}){
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+}
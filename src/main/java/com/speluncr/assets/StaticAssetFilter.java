@@ -0,0 +1,310 @@
+package com.speluncr.assets;
+
+import com.speluncr.metrics.Counter;
+import com.speluncr.metrics.Metrics;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/************************************************************
+ * Serves the webapp's static files in place of Tomcat's
+ * default servlet, using the output of AssetBuilder:
+ *
+ * - Picks the .br or .gz variant of a file when the browser
+ *   accepts it (Accept-Encoding) and it is smaller.
+ * - Sends large files with Tomcat's sendfile, so the kernel
+ *   copies them to the socket.
+ * - Strong ETags from the file content, and 304 responses to
+ *   If-None-Match and If-Modified-Since.
+ * - Content-hashed names (main.1a2b3c4d.js) are cached for a
+ *   year as immutable. Other files must be revalidated.
+ * - Single byte ranges (Range, If-Range) of uncompressed
+ *   responses, so the video can be seeked.
+ *
+ * Anything else (servlets, websockets, missing files) goes on
+ * down the filter chain. File details are cached until the
+ * file's size or modification time changes.
+ ************************************************************/
+public class StaticAssetFilter extends HttpFilter {
+    private static final long serialVersionUID = 1L;
+    private static final long SENDFILE_SIZE = 48 * 1024; // bytes, smaller files are copied
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "no-cache";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final Counter IDENTITY = responses("identity");
+    private static final Counter GZIP = responses("gzip");
+    private static final Counter BROTLI = responses("br");
+    private static final Counter NOT_MODIFIED = responses("not_modified");
+    private static final Counter PARTIAL = responses("partial");
+    private final ConcurrentHashMap<String, Asset> assets = new ConcurrentHashMap<>();
+
+    // A file with its precompressed variants
+    private static class Asset {
+        final File file;
+        final long length;
+        final long lastModified; // ms, rounded down to seconds as in HTTP dates
+        final String etag;
+        final boolean immutable;
+        final File brotli; // null if there is no smaller variant
+        final File gzip;
+
+        Asset(File file, String etag){
+            this.file = file;
+            length = file.length();
+            lastModified = file.lastModified() / 1000 * 1000;
+            this.etag = etag;
+            immutable = AssetBuilder.isHashed(file.toPath());
+            brotli = variant(file, ".br");
+            gzip = variant(file, ".gz");
+        }
+
+        boolean isCurrent(){
+            return file.length() == length && file.lastModified() / 1000 * 1000 == lastModified;
+        }
+
+        private static File variant(File file, String suffix){
+            File variant = new File(file.getPath() + suffix);
+            return variant.isFile() && variant.length() < file.length() ? variant : null;
+        }
+    }
+
+    private static Counter responses(String type){
+        return Metrics.counter("speluncr_static_responses_total", "Static file responses by encoding.", "type", type);
+    }
+
+    @Override
+    protected void doFilter(HttpServletRequest req, HttpServletResponse resp, FilterChain chain) throws IOException, ServletException{
+        String method = req.getMethod();
+        Asset asset = "GET".equals(method) || "HEAD".equals(method) ? find(req) : null;
+        if (asset == null){
+            chain.doFilter(req, resp);
+            return;
+        }
+
+        String contentType = getServletContext().getMimeType(asset.file.getName());
+        resp.setContentType(contentType == null ? "application/octet-stream" : contentType);
+        resp.setHeader("Cache-Control", asset.immutable ? IMMUTABLE : REVALIDATE);
+        resp.setDateHeader("Last-Modified", asset.lastModified);
+        if (asset.brotli != null || asset.gzip != null){
+            resp.setHeader("Vary", "Accept-Encoding");
+        }
+
+        // Choose the representation. Each gets its own strong ETag.
+        String accept = req.getHeader("Accept-Encoding");
+        File file = asset.file;
+        String encoding = null;
+        if (asset.brotli != null && accepts(accept, "br")){
+            file = asset.brotli;
+            encoding = "br";
+        } else if (asset.gzip != null && accepts(accept, "gzip")){
+            file = asset.gzip;
+            encoding = "gzip";
+        }
+        String etag = encoding == null ? "\"" + asset.etag + "\"" : "\"" + asset.etag + "-" + encoding + "\"";
+        resp.setHeader("ETag", etag);
+
+        if (notModified(req, etag, asset.lastModified)){
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            NOT_MODIFIED.increment();
+            return;
+        }
+
+        long length = file.length();
+        long start = 0, end = length; // bytes [start, end) are sent
+        if (encoding != null){
+            resp.setHeader("Content-Encoding", encoding);
+            ("br".equals(encoding) ? BROTLI : GZIP).increment();
+        } else {
+            resp.setHeader("Accept-Ranges", "bytes");
+            String range = req.getHeader("Range");
+            if (range != null && ifRange(req.getHeader("If-Range"), etag, asset.lastModified)){
+                Matcher matcher = RANGE.matcher(range.trim());
+                if (matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())){
+                    try {
+                        if (matcher.group(1).isEmpty()){
+                            start = Math.max(0, length - Long.parseLong(matcher.group(2))); // last n bytes
+                        } else {
+                            start = Long.parseLong(matcher.group(1));
+                            if (!matcher.group(2).isEmpty()){
+                                end = Math.min(length, Long.parseLong(matcher.group(2)) + 1);
+                            }
+                        }
+                    } catch (NumberFormatException e){
+                        start = length; // too large
+                    }
+                    if (start >= end){
+                        resp.setHeader("Content-Range", "bytes */" + length);
+                        resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                        return;
+                    }
+                    resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    resp.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+                    PARTIAL.increment();
+                }
+                // Several ranges are answered with the whole file, which HTTP allows
+            }
+            if (end - start == length){
+                IDENTITY.increment();
+            }
+        }
+        resp.setContentLengthLong(end - start);
+        if ("HEAD".equals(method)){
+            return;
+        }
+        send(req, resp, file, start, end);
+    }
+
+    // The file for the request path, or null if it is not a static file
+    private Asset find(HttpServletRequest req) throws IOException{
+        String path = req.getServletPath() + (req.getPathInfo() == null ? "" : req.getPathInfo());
+        if (path.endsWith("/")){
+            path += "index.html";
+        }
+        String upper = path.toUpperCase(Locale.ROOT);
+        if (upper.startsWith("/WEB-INF") || upper.startsWith("/META-INF")){
+            return null;
+        }
+        Asset asset = assets.get(path);
+        if (asset != null && asset.isCurrent()){
+            return asset;
+        }
+        String realPath = getServletContext().getRealPath(path);
+        File file = realPath == null ? null : new File(realPath);
+        if (file == null || !file.isFile()){
+            assets.remove(path);
+            return null;
+        }
+        asset = new Asset(file, digest(file));
+        assets.put(path, asset);
+        return asset;
+    }
+
+    private void send(HttpServletRequest req, HttpServletResponse resp, File file, long start, long end) throws IOException{
+        if (end - start >= SENDFILE_SIZE && Boolean.TRUE.equals(req.getAttribute("org.apache.tomcat.sendfile.support"))){
+            // Tomcat writes the file to the socket after the filter returns
+            req.setAttribute("org.apache.tomcat.sendfile.filename", file.getCanonicalPath());
+            req.setAttribute("org.apache.tomcat.sendfile.start", start);
+            req.setAttribute("org.apache.tomcat.sendfile.end", end);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+            while (start < end){
+                long n = channel.transferTo(start, end - start, out);
+                if (n <= 0){
+                    break; // file shrank
+                }
+                start += n;
+            }
+        }
+    }
+
+    // True if Accept-Encoding lists the coding (or *) without q=0
+    static boolean accepts(String acceptEncoding, String coding){
+        if (acceptEncoding == null){
+            return false;
+        }
+        boolean accepted = false;
+        for (String part : acceptEncoding.split(",")){
+            String[] params = part.split(";");
+            String name = params[0].trim().toLowerCase(Locale.ROOT);
+            if (!name.equals(coding) && !name.equals("*")){
+                continue;
+            }
+            boolean zero = false;
+            for (int i = 1; i < params.length; i++){
+                String param = params[i].trim().toLowerCase(Locale.ROOT);
+                if (param.startsWith("q=")){
+                    try {
+                        zero = Double.parseDouble(param.substring(2)) <= 0;
+                    } catch (NumberFormatException e){
+                        zero = true;
+                    }
+                }
+            }
+            if (name.equals(coding)){
+                return !zero; // an explicit entry wins over *
+            }
+            accepted = !zero;
+        }
+        return accepted;
+    }
+
+    private static boolean notModified(HttpServletRequest req, String etag, long lastModified){
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null){
+            // Weak comparison, as HTTP requires for If-None-Match
+            for (String tag : ifNoneMatch.split(",")){
+                tag = tag.trim();
+                if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(etag)){
+                    return true;
+                }
+            }
+            return false;
+        }
+        try {
+            long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+            return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+        } catch (IllegalArgumentException e){
+            return false; // unparseable date
+        }
+    }
+
+    // True if a Range request may be answered with part of the file: no If-Range, or it matches exactly
+    private static boolean ifRange(String ifRange, String etag, long lastModified){
+        if (ifRange == null){
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+            return ifRange.equals(etag); // strong comparison
+        }
+        try {
+            return ZonedDateTime.parse(ifRange, HTTP_DATE).toInstant().equals(Instant.ofEpochMilli(lastModified));
+        } catch (DateTimeParseException e){
+            return false;
+        }
+    }
+
+    // First 16 bytes of the file's SHA-256 in hex
+    private static String digest(File file) throws IOException{
+        try (InputStream in = Files.newInputStream(file.toPath())){
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) > 0){
+                sha.update(buffer, 0, n);
+            }
+            StringBuilder hex = new StringBuilder(32);
+            byte[] hash = sha.digest();
+            for (int i = 0; i < 16; i++){
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+}
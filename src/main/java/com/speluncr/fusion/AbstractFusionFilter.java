@@ -0,0 +1,95 @@
+package com.speluncr.fusion;
+
+import static java.lang.Math.*;
+
+/************************************************************
+ * Common state for the fusion filters: startup gyro bias
+ * calibration and the roll/pitch angles implied by gravity.
+ *
+ * While calibrating, the rover is assumed to be at rest. The
+ * gyro readings are averaged to find the bias and the attitude
+ * follows the accelerometer. Once calibrated, every update has
+ * the bias removed before it is passed to integrate().
+ ************************************************************/
+abstract class AbstractFusionFilter implements FusionFilter {
+    private final int calibrationSamples;
+    private int calibrationCount = 0;
+    private double biasX, biasY, biasZ; // rad/s
+    protected double roll, pitch, yaw; // rad
+
+    AbstractFusionFilter(int calibrationSamples){
+        this.calibrationSamples = calibrationSamples;
+    }
+
+    @Override
+    public final void update(double gyrX, double gyrY, double gyrZ, double accX, double accY, double accZ, double dt){
+        if (calibrationCount < calibrationSamples){
+            // Accumulate the bias sums and level the filter using gravity alone
+            biasX += gyrX;
+            biasY += gyrY;
+            biasZ += gyrZ;
+            if (++calibrationCount == calibrationSamples){
+                biasX /= calibrationSamples;
+                biasY /= calibrationSamples;
+                biasZ /= calibrationSamples;
+                System.out.printf("[INFO]: Gyro bias calibrated: %.4f, %.4f, %.4f rad/s\n", biasX, biasY, biasZ);
+            }
+            double magAcc = sqrt(accX*accX + accY*accY + accZ*accZ);
+            if (magAcc > 0){
+                roll = atan2(accY, accZ);
+                pitch = asin(-accX / magAcc);
+                yaw = 0;
+                level(roll, pitch);
+            }
+            return;
+        }
+        if (dt <= 0){
+            return;
+        }
+        integrate(gyrX - biasX, gyrY - biasY, gyrZ - biasZ, accX, accY, accZ, dt);
+    }
+
+    // Advance the estimate by one bias corrected sample
+    abstract void integrate(double gyrX, double gyrY, double gyrZ, double accX, double accY, double accZ, double dt);
+
+    // Set the estimate to the given roll and pitch with zero yaw
+    abstract void level(double roll, double pitch);
+
+    @Override
+    public double getRoll(){
+        return roll;
+    }
+
+    @Override
+    public double getPitch(){
+        return pitch;
+    }
+
+    @Override
+    public double getYaw(){
+        return yaw;
+    }
+
+    @Override
+    public boolean isCalibrating(){
+        return calibrationCount < calibrationSamples;
+    }
+
+    @Override
+    public void reset(){
+        calibrationCount = 0;
+        biasX = biasY = biasZ = 0;
+        roll = pitch = yaw = 0;
+        level(0, 0);
+    }
+
+    // Wrap an angle to [-pi, pi]
+    static double wrap(double angle){
+        if (angle > PI){
+            return angle - 2*PI;
+        } else if (angle < -PI){
+            return angle + 2*PI;
+        }
+        return angle;
+    }
+}
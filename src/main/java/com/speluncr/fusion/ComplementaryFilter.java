@@ -0,0 +1,55 @@
+package com.speluncr.fusion;
+
+import static java.lang.Math.*;
+
+/************************************************************
+ * Complementary filter on Euler angles. Gyro rates are
+ * integrated and blended with the accelerometer angles using
+ * a coefficient derived from the time constant and the actual
+ * sample period: a = tau / (tau + dt).
+ ************************************************************/
+public class ComplementaryFilter extends AbstractFusionFilter {
+    private final double tau; // s
+
+    public ComplementaryFilter(int calibrationSamples, double tau){
+        super(calibrationSamples);
+        this.tau = tau;
+    }
+
+    @Override
+    void integrate(double gyrX, double gyrY, double gyrZ, double accX, double accY, double accZ, double dt){
+        final double a = tau / (tau + dt);
+
+        // Body rates to Euler angle rates
+        double sinRoll = sin(roll), cosRoll = cos(roll);
+        double cosPitch = cos(pitch);
+        if (abs(cosPitch) < 1e-6){
+            cosPitch = copySign(1e-6, cosPitch);
+        }
+        double tanPitch = sin(pitch) / cosPitch;
+        double rollRate = gyrX + (sinRoll*gyrY + cosRoll*gyrZ)*tanPitch;
+        double pitchRate = cosRoll*gyrY - sinRoll*gyrZ;
+        double yawRate = (sinRoll*gyrY + cosRoll*gyrZ) / cosPitch;
+
+        double gyrRoll = roll + rollRate*dt;
+        double gyrPitch = pitch + pitchRate*dt;
+        yaw = wrap(yaw + yawRate*dt);
+
+        // Blend towards gravity unless the accelerometer reading is unusable
+        double magAcc = sqrt(accX*accX + accY*accY + accZ*accZ);
+        if (magAcc > 0){
+            double accRoll = atan2(accY, accZ);
+            double accPitch = asin(-accX / magAcc);
+            roll = wrap(gyrRoll + (1 - a)*wrap(accRoll - gyrRoll));
+            pitch = a*gyrPitch + (1 - a)*accPitch;
+        } else {
+            roll = wrap(gyrRoll);
+            pitch = gyrPitch;
+        }
+    }
+
+    @Override
+    void level(double roll, double pitch){
+        // Euler angles are the state, nothing else to set
+    }
+}
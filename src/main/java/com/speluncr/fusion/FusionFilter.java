@@ -0,0 +1,48 @@
+package com.speluncr.fusion;
+
+import com.speluncr.PropertyReader;
+import java.util.Properties;
+
+/************************************************************
+ * A sensor fusion filter combines accelerometer and gyroscope
+ * samples into a roll, pitch and yaw estimate. Filters keep
+ * their state between updates and must not allocate in
+ * update() so they can run at the full IMU sample rate.
+ *
+ * Units: gyro in rad/s, acceleration in g, dt in seconds and
+ * angles in radians. Yaw is relative to the heading at startup
+ * since the rover has no magnetometer.
+ ************************************************************/
+public interface FusionFilter {
+    void update(double gyrX, double gyrY, double gyrZ, double accX, double accY, double accZ, double dt);
+    double getRoll();
+    double getPitch();
+    double getYaw();
+
+    // True while the filter is still averaging samples to find the gyro bias
+    boolean isCalibrating();
+
+    // Forget the attitude estimate and calibrate the gyro bias again
+    void reset();
+
+    // Create the filter selected by AttitudeFilter in servlet.conf
+    static FusionFilter fromProperties(Properties properties){
+        int calibrationSamples = PropertyReader.getInt(properties, "AttitudeCalibrationSamples", 200, 0, 100000);
+        String name = PropertyReader.getString(properties, "AttitudeFilter", "complementary");
+        switch (name.toLowerCase()){
+            case "mahony":
+                return new MahonyFilter(calibrationSamples,
+                        PropertyReader.getDouble(properties, "AttitudeMahonyKp", 1.0, 0, 100),
+                        PropertyReader.getDouble(properties, "AttitudeMahonyKi", 0.0, 0, 100));
+            case "madgwick":
+                return new MadgwickFilter(calibrationSamples,
+                        PropertyReader.getDouble(properties, "AttitudeMadgwickBeta", 0.1, 0, 10));
+            case "complementary":
+                break;
+            default:
+                System.err.printf("[INFO]: Unknown attitude filter %s. Using complementary filter.\n", name);
+        }
+        return new ComplementaryFilter(calibrationSamples,
+                PropertyReader.getDouble(properties, "AttitudeFilterTau", 2.0, 0.01, 1000));
+    }
+}
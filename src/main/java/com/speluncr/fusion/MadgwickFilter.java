@@ -0,0 +1,59 @@
+package com.speluncr.fusion;
+
+import static java.lang.Math.*;
+
+/************************************************************
+ * Madgwick gradient descent filter (IMU only). The gyro
+ * quaternion derivative is corrected by one gradient descent
+ * step towards the accelerometer gravity vector, weighted by
+ * beta.
+ ************************************************************/
+public class MadgwickFilter extends QuaternionFilter {
+    private final double beta;
+
+    public MadgwickFilter(int calibrationSamples, double beta){
+        super(calibrationSamples);
+        this.beta = beta;
+    }
+
+    @Override
+    void integrate(double gx, double gy, double gz, double ax, double ay, double az, double dt){
+        // Rate of change of quaternion from gyroscope
+        double qDot1 = 0.5*(-q1*gx - q2*gy - q3*gz);
+        double qDot2 = 0.5*(q0*gx + q2*gz - q3*gy);
+        double qDot3 = 0.5*(q0*gy - q1*gz + q3*gx);
+        double qDot4 = 0.5*(q0*gz + q1*gy - q2*gx);
+
+        double norm = sqrt(ax*ax + ay*ay + az*az);
+        if (norm > 0){
+            ax /= norm;
+            ay /= norm;
+            az /= norm;
+
+            double _2q0 = 2*q0, _2q1 = 2*q1, _2q2 = 2*q2, _2q3 = 2*q3;
+            double _4q0 = 4*q0, _4q1 = 4*q1, _4q2 = 4*q2;
+            double _8q1 = 8*q1, _8q2 = 8*q2;
+            double q0q0 = q0*q0, q1q1 = q1*q1, q2q2 = q2*q2, q3q3 = q3*q3;
+
+            // Gradient of the objective function
+            double s0 = _4q0*q2q2 + _2q2*ax + _4q0*q1q1 - _2q1*ay;
+            double s1 = _4q1*q3q3 - _2q3*ax + 4*q0q0*q1 - _2q0*ay - _4q1 + _8q1*q1q1 + _8q1*q2q2 + _4q1*az;
+            double s2 = 4*q0q0*q2 + _2q0*ax + _4q2*q3q3 - _2q3*ay - _4q2 + _8q2*q1q1 + _8q2*q2q2 + _4q2*az;
+            double s3 = 4*q1q1*q3 - _2q1*ax + 4*q2q2*q3 - _2q2*ay;
+            double sNorm = sqrt(s0*s0 + s1*s1 + s2*s2 + s3*s3);
+            if (sNorm > 0){
+                sNorm = 1 / sNorm;
+                qDot1 -= beta*s0*sNorm;
+                qDot2 -= beta*s1*sNorm;
+                qDot3 -= beta*s2*sNorm;
+                qDot4 -= beta*s3*sNorm;
+            }
+        }
+
+        q0 += qDot1*dt;
+        q1 += qDot2*dt;
+        q2 += qDot3*dt;
+        q3 += qDot4*dt;
+        normaliseAndConvert();
+    }
+}
@@ -0,0 +1,67 @@
+package com.speluncr.fusion;
+
+import static java.lang.Math.*;
+
+/************************************************************
+ * Mahony nonlinear complementary filter (IMU only). The
+ * error between measured and estimated gravity drives a PI
+ * correction of the gyro rates before they are integrated
+ * into the quaternion.
+ ************************************************************/
+public class MahonyFilter extends QuaternionFilter {
+    private final double kp, ki;
+    private double integralX, integralY, integralZ;
+
+    public MahonyFilter(int calibrationSamples, double kp, double ki){
+        super(calibrationSamples);
+        this.kp = kp;
+        this.ki = ki;
+    }
+
+    @Override
+    void integrate(double gx, double gy, double gz, double ax, double ay, double az, double dt){
+        double norm = sqrt(ax*ax + ay*ay + az*az);
+        if (norm > 0){
+            ax /= norm;
+            ay /= norm;
+            az /= norm;
+
+            // Estimated direction of gravity
+            double vx = 2*(q1*q3 - q0*q2);
+            double vy = 2*(q0*q1 + q2*q3);
+            double vz = q0*q0 - q1*q1 - q2*q2 + q3*q3;
+
+            // Error is the cross product between measured and estimated gravity
+            double ex = ay*vz - az*vy;
+            double ey = az*vx - ax*vz;
+            double ez = ax*vy - ay*vx;
+
+            if (ki > 0){
+                integralX += ki*ex*dt;
+                integralY += ki*ey*dt;
+                integralZ += ki*ez*dt;
+                gx += integralX;
+                gy += integralY;
+                gz += integralZ;
+            }
+            gx += kp*ex;
+            gy += kp*ey;
+            gz += kp*ez;
+        }
+
+        // Integrate the rate of change of the quaternion
+        double half = 0.5*dt;
+        double qa = q0, qb = q1, qc = q2;
+        q0 += (-qb*gx - qc*gy - q3*gz)*half;
+        q1 += (qa*gx + qc*gz - q3*gy)*half;
+        q2 += (qa*gy - qb*gz + q3*gx)*half;
+        q3 += (qa*gz + qb*gy - qc*gx)*half;
+        normaliseAndConvert();
+    }
+
+    @Override
+    public void reset(){
+        integralX = integralY = integralZ = 0;
+        super.reset();
+    }
+}
@@ -0,0 +1,37 @@
+package com.speluncr.fusion;
+
+import static java.lang.Math.*;
+
+/************************************************************
+ * Base for filters that keep the attitude as a unit
+ * quaternion (q0 is the scalar part) and report Euler angles.
+ ************************************************************/
+abstract class QuaternionFilter extends AbstractFusionFilter {
+    protected double q0 = 1, q1 = 0, q2 = 0, q3 = 0;
+
+    QuaternionFilter(int calibrationSamples){
+        super(calibrationSamples);
+    }
+
+    @Override
+    void level(double roll, double pitch){
+        double cr = cos(roll / 2), sr = sin(roll / 2);
+        double cp = cos(pitch / 2), sp = sin(pitch / 2);
+        q0 = cr*cp;
+        q1 = sr*cp;
+        q2 = cr*sp;
+        q3 = -sr*sp;
+    }
+
+    // Normalise the quaternion and update roll, pitch and yaw from it
+    void normaliseAndConvert(){
+        double norm = 1 / sqrt(q0*q0 + q1*q1 + q2*q2 + q3*q3);
+        q0 *= norm;
+        q1 *= norm;
+        q2 *= norm;
+        q3 *= norm;
+        roll = atan2(2*(q0*q1 + q2*q3), 1 - 2*(q1*q1 + q2*q2));
+        pitch = asin(max(-1, min(1, 2*(q0*q2 - q3*q1))));
+        yaw = atan2(2*(q0*q3 + q1*q2), 1 - 2*(q2*q2 + q3*q3));
+    }
+}
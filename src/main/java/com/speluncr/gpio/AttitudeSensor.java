@@ -1,15 +1,23 @@
 package com.speluncr.gpio;
 
-import com.pi4j.io.gpio.*;
-import com.pi4j.io.i2c.I2CBus;
-import com.pi4j.io.i2c.I2CDevice;
-import com.pi4j.io.i2c.I2CFactory;
+import com.speluncr.PropertyReader;
+import com.speluncr.TelemetryServlet;
+import com.speluncr.alert.AlertEngine;
+import com.speluncr.fusion.FusionFilter;
+import com.speluncr.hardware.HardwareBackend;
+import com.speluncr.hardware.RegisterDevice;
+import com.speluncr.metrics.Counter;
+import com.speluncr.metrics.Histogram;
+import com.speluncr.metrics.Metrics;
+import com.speluncr.recording.AttitudeRecorder;
+import com.speluncr.scheduler.ScheduledTask;
 import com.speluncr.websocket.AttitudeEndpoint;
+import com.speluncr.websocket.FrameCodec;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Properties;
+import java.util.concurrent.locks.LockSupport;
 import static java.lang.Math.*;
 
 /************************************************************
@@ -17,16 +25,64 @@ import static java.lang.Math.*;
  * then read data and broadcast the data on all
  * AttitudeEnpoints at 30 Hz.
  *
+ * Two acquisition modes are available (AttitudeAcquisitionMode
+ * in servlet.conf):
+ *  polling : registers are read by a timer at the broadcast rate,
+ *            with the sensor sampling at least that fast
+ *  fifo    : the MPU6050 samples into its FIFO at up to 1 kHz
+ *            and raises data ready interrupts on a GPIO pin.
+ *            The FIFO is drained in batches and the filtered
+ *            attitude is decimated to the broadcast rate.
+ *
  * THE LOGICAL PIN NUMBERS DO NOT ALWAYS MATCH THE PHYSICAL
  * PIN NUMBERS. Refer to the pi4j pin diagram at the url:
  * https://pi4j.com/1.4/pins/rpi-4b.html
  ************************************************************/
 public class AttitudeSensor implements Sensor{
+    private static final int SAMPLE_BYTES = 14; // accel (6), temp (2) and gyro (6) registers
+    private static final int FIFO_SIZE = 1024; // bytes
+    private static final int I2C_BUS = 1;
+    private static final int ADO_PIN = 16; // wiringPi GPIO_16 selects the MPU6050 address
+    private static final Histogram I2C_READ = Metrics.histogram("speluncr_attitude_i2c_read_seconds",
+            "Time taken by each I2C read from the MPU6050.");
+    private static final Histogram LOOP_JITTER = Metrics.histogram("speluncr_attitude_loop_jitter_seconds",
+            "Difference between each sampling loop period and the nominal period.");
+    private static final Counter FIFO_OVERFLOWS = Metrics.counter("speluncr_attitude_fifo_overflows_total",
+            "MPU6050 FIFO overflows. The FIFO is reset and its samples are lost.");
+    private final TelemetryServlet servlet;
     private long lastMeasTime = System.nanoTime();
-    private I2CBus bus = null;
-    private I2CDevice MPU6050 = null;
-    private final Timer POLLING_TIMER = new Timer("Attitude Polling Timer");
-    private boolean running = false;
+    private RegisterDevice MPU6050 = null;
+    private ScheduledTask pollingTask = null;
+    private volatile boolean running = false;
+    private volatile String error = null; // why the last start failed, for the health report
+    private volatile int readFailures = 0; // consecutive failed I2C reads, written by the sampling thread
+
+    // Reused for every sample so the sampling loop does not allocate
+    private final byte[] rawData = new byte[SAMPLE_BYTES];
+    private double roll, pitch, yaw, temp;
+    private FusionFilter filter = null;
+    private AlertEngine alerts = null;
+    private long sampleTime; // nanoTime of the sample being processed
+    private long loopPeriod; // ns, nominal time between polls or FIFO drains
+    private long lastLoopTime = 0; // nanoTime of the last poll or FIFO drain, 0 before the first
+    private AttitudeRecorder recorder = null;
+
+    // FIFO acquisition state
+    private boolean fifoMode = false;
+    private int interruptPin = 0;
+    private int decimation = 1; // FIFO samples per broadcast frame
+    private int decimationCount = 0;
+    private int fifoBatch = 1; // data ready interrupts per FIFO drain
+    private int pendingInterrupts = 0; // only touched by the ISR thread
+    private double samplePeriod = 0.001; // s
+    private long fifoOverflows = 0;
+    private final byte[] fifoCount = new byte[2];
+    private final byte[] fifoData = new byte[(FIFO_SIZE / SAMPLE_BYTES) * SAMPLE_BYTES];
+    private volatile Thread fifoThread = null;
+
+    public AttitudeSensor(TelemetryServlet telemetryServlet){
+        servlet = telemetryServlet;
+    }
 
     public synchronized void startSensor(){
         final int MPU6050_ADDR  = 0x69; // 0x68 when ADO set low. 0x69 when ADO set high
@@ -34,8 +90,10 @@ public class AttitudeSensor implements Sensor{
         final int SMPLRT_DIV    = 0x19; // Sample Rate (8 or 1 kHz) = Gyroscope Output Rate / (1 + SMPLRT_DIV)
         final int GYRO_CONFIG   = 0x1B;
         final int ACCEL_CONFIG  = 0x1C;
+        final int FIFO_EN       = 0x23; // Selects which sensor registers are written to the FIFO
         final int INT_PIN_CFG   = 0x37; // Interrupt pin configuration
         final int INT_ENABLE    = 0x38; // Register enables interrupt generation
+        final int USER_CTRL     = 0x6A; // FIFO enable and reset
         final int PWR_MGMT_1    = 0x6B; // Power management 1
         final int PWR_MGMT_2    = 0x6C; // Power management 2
 
@@ -43,21 +101,46 @@ public class AttitudeSensor implements Sensor{
         if (running){
             return;
         }
+        error = null;
+        readFailures = 0;
 
-        // Set ADO pin high (address = 0x69). GPIO_16 is physical pin 10
-        final GpioPinDigitalOutput ADO = GPIOInitializer.getInstance().getGpioController()
-                .provisionDigitalOutputPin(RaspiPin.GPIO_16, PinState.HIGH);
+        // Read acquisition settings from servlet.conf
+        Properties properties = servlet.getProperties();
+        fifoMode = "fifo".equalsIgnoreCase(properties.getProperty("AttitudeAcquisitionMode", "polling").trim());
+        int broadcastRate = PropertyReader.getInt(properties, "AttitudeBroadcastRate", 30, 1, 100);
+        int sampleRate = PropertyReader.getInt(properties, "AttitudeSampleRate", 1000, broadcastRate, 1000);
+        interruptPin = PropertyReader.getInt(properties, "AttitudeInterruptPin", 0, 0, 31);
+        filter = FusionFilter.fromProperties(properties);
+        alerts = servlet.getAlerts();
+        AttitudeEndpoint.setBatching(PropertyReader.getInt(properties, "AttitudeBatchSamples", 1, 1, 1000),
+                PropertyReader.getInt(properties, "AttitudeBatchMillis", 100, 0, 10000) * 1000000L);
+        AttitudeEndpoint.setHistory(PropertyReader.getInt(properties, "AttitudeHistoryMinutes", 10, 0, 60) * 60 * broadcastRate);
+        if (Boolean.parseBoolean(PropertyReader.getString(properties, "AttitudeRecording", "true"))){
+            recorder = new AttitudeRecorder(getRecordingDirectory(),
+                    PropertyReader.getInt(properties, "AttitudeRecordingFileMB", 64, 1, 2047) * 1048576L,
+                    PropertyReader.getInt(properties, "AttitudeRecordingMaxFiles", 20, 1, 10000));
+            Metrics.counter("speluncr_attitude_recording_dropped_total",
+                    "Attitude samples not recorded because the recording buffer was full.", recorder::getDroppedCount);
+        }
 
-        // Set shutdown state of ADO to low
-        ADO.setShutdownOptions(true, PinState.LOW);
+        // Sample rate = 1 kHz / (1 + SMPLRT_DIV) while the low-pass filter is enabled. When polling, the sensor
+        // samples at least as fast as it is read (30.3 Hz for 30 Hz), so no poll reads the same sample twice.
+        int divider = min(0xFF, 1000 / (fifoMode ? sampleRate : broadcastRate) - 1);
+        samplePeriod = (1 + divider) / 1000d;
+        decimation = max(1, (int) round(1d / (samplePeriod * broadcastRate)));
+        decimationCount = 0;
+        fifoBatch = min(decimation, fifoData.length / SAMPLE_BYTES / 2);
+        loopPeriod = fifoMode ? (long) (fifoBatch * samplePeriod * 1e9) : 1000000000L / broadcastRate;
+        lastLoopTime = 0;
 
-        // Open I2C bus for communication with MPU6050
+        // Set ADO pin high (address = 0x69) and low at shutdown. GPIO_16 is physical pin 10.
+        // Then open I2C bus for communication with MPU6050
+        HardwareBackend hardware = servlet.getHardware();
         try {
-            bus = I2CFactory.getInstance(I2CBus.BUS_1);
-            MPU6050 = bus.getDevice(MPU6050_ADDR);
-        } catch (I2CFactory.UnsupportedBusNumberException | IOException e){
-            System.err.println("initializeSensor(): Failed to get bus or device.");
-            e.printStackTrace();
+            hardware.provisionOutput(ADO_PIN, true, false);
+            MPU6050 = hardware.openDevice(I2C_BUS, MPU6050_ADDR);
+        } catch (IOException e){
+            failStart("initializeSensor(): Failed to get bus or device.", e);
             return;
         }
 
@@ -65,117 +148,315 @@ public class AttitudeSensor implements Sensor{
         try {
             MPU6050.write(PWR_MGMT_1, (byte) 0x00); // no reset, no sleep, no cycle, default clock
             MPU6050.write(PWR_MGMT_2, (byte) 0x00); // No standby mode and 1.25 Hz wake-up frequency (not applicable)
-            MPU6050.write(CONFIG, (byte) 0x06); // Disable external frame sync and enable low-pass filter
-            MPU6050.write(SMPLRT_DIV, (byte) 0x20); // Set SMPLRT_DIV = 32 for 30.3 Hz sample rate
+            MPU6050.write(SMPLRT_DIV, (byte) divider); // SMPLRT_DIV = 32 for 30 Hz polling, up to 1 kHz in FIFO mode
             MPU6050.write(GYRO_CONFIG, (byte) 0x10); // Set full scale range to +/- 1000 deg/s
             MPU6050.write(ACCEL_CONFIG, (byte) 0x00); // Set full scale range to +/- 2g
-            MPU6050.write(INT_PIN_CFG, (byte) 0x00); // active high, push-pull, high until status read
-            MPU6050.write(INT_ENABLE, (byte) 0x00); // Enable data ready interrupts on interrupt pin (open drain)
+            if (fifoMode){
+                MPU6050.write(CONFIG, (byte) 0x01); // Disable external frame sync and set 184 Hz low-pass filter
+                MPU6050.write(INT_PIN_CFG, (byte) 0x00); // active high, push-pull, 50 us pulse
+                MPU6050.write(USER_CTRL, (byte) 0x04); // Reset FIFO
+                MPU6050.write(FIFO_EN, (byte) 0xF8); // Temp, gyro x/y/z and accel in register order (14 bytes)
+                MPU6050.write(USER_CTRL, (byte) 0x40); // Enable FIFO
+                MPU6050.write(INT_ENABLE, (byte) 0x01); // Enable data ready interrupts on interrupt pin
+            } else {
+                MPU6050.write(CONFIG, (byte) 0x06); // Disable external frame sync and enable low-pass filter
+                MPU6050.write(INT_PIN_CFG, (byte) 0x00); // active high, push-pull, high until status read
+                MPU6050.write(FIFO_EN, (byte) 0x00); // FIFO not used while polling
+                MPU6050.write(INT_ENABLE, (byte) 0x00); // Disable interrupts, registers are polled
+            }
             System.out.println("Sensor configuration registers have been set.");
         } catch (IOException e){
-            System.err.println("initializeSensor(): Failed to set configuration registers.");
-            e.printStackTrace();
+            failStart("initializeSensor(): Failed to set configuration registers.", e);
             return;
         }
         lastMeasTime = System.nanoTime(); // Used to find time difference for integrating gyro data
+        if (recorder != null){
+            recorder.start();
+        }
 
-        POLLING_TIMER.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                AttitudeEndpoint.broadcast(getAttitude());
+        if (fifoMode){
+            try {
+                startFifoAcquisition();
+            } catch (IOException e){
+                failStart("[ERROR] GPIO setup failed.", e);
+                return;
             }
-        }, 0, 33); // Immediately start reading attitude data every 33 ms (30.3 Hz)
+            System.out.printf("[INFO]: Attitude FIFO sampling at %.0f Hz, broadcasting every %d samples.\n",
+                    1 / samplePeriod, decimation);
+        } else {
+            // Read attitude data at the broadcast rate (30 Hz by default)
+            pollingTask = servlet.getScheduler().scheduleAtRate("attitude-polling", broadcastRate, () -> {
+                ByteBuffer frame = getAttitude();
+                if (frame != null){
+                    AttitudeEndpoint.broadcast(frame);
+                }
+            });
+        }
         running = true;
     }
 
     public synchronized void stopSensor(){
+        final int FIFO_EN       = 0x23;
+        final int INT_ENABLE    = 0x38;
+        final int USER_CTRL     = 0x6A;
+
         // Don't execute this method if sensor is not running
         if (!running) {
             return;
         }
 
-        POLLING_TIMER.cancel();
+        boolean idle; // false if a read is still in progress, which keeps the bus open
+        if (fifoMode){
+            // Stop interrupts and wait for the drain thread to finish its current batch
+            servlet.getHardware().detachInterrupt(interruptPin);
+            Thread thread = fifoThread;
+            fifoThread = null;
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            idle = !thread.isAlive();
+            if (idle){
+                try {
+                    MPU6050.write(INT_ENABLE, (byte) 0x00);
+                    MPU6050.write(FIFO_EN, (byte) 0x00);
+                    MPU6050.write(USER_CTRL, (byte) 0x00);
+                } catch (IOException e){
+                    System.err.println("stopSensor(): Failed to disable FIFO.");
+                    e.printStackTrace();
+                }
+            }
+        } else {
+            idle = pollingTask.cancel(); // waits for a read in progress before the bus is closed
+            pollingTask = null;
+        }
+        if (recorder != null){
+            recorder.stop();
+            recorder = null;
+        }
 
-        // Close I2C bus if open
-        if (bus != null){
+        // Close I2C bus if open, but not under a read still in progress
+        if (MPU6050 != null && !idle){
+            System.err.println("[WARNING]: stopSensor(): Sensor read still in progress, leaving the bus open.");
+        } else if (MPU6050 != null){
             try{
-                bus.close();
+                MPU6050.close();
             } catch (IOException e){
                 System.err.println("stopSensor(): Failed to close bus.");
                 e.printStackTrace();
             }
+            MPU6050 = null;
         }
         running = false;
     }
 
-    // Read two bytes from the MPU6050 register and cast to float
-    private synchronized double read16ToDouble(int addr) throws IOException{
-        byte[] bytes = new byte[2];
-        ByteBuffer bb = ByteBuffer.wrap(bytes);
-        bb.order(ByteOrder.BIG_ENDIAN);
-        MPU6050.read(addr, bytes, 0, 2);
-        return bb.getShort();
-    }
-
-    // Read the MPU6050 sensor registers and return a ByteBuffer of floats
-    // The order of returned values is: accX, accY, accZ, gyrX, gyrY, gyrZ, temp
-    private synchronized ByteBuffer getAttitude(){
-        final int TEMP_OUT      = 0x41; // 16-bit signed value (0x41-0x42)
-        final int ACCEL_X       = 0x3B; // 16-bit 2's comp. value (0x3B-0x3C)
-        final int ACCEL_Y       = 0x3D; // 16-bit 2's comp. value (0x3D-0x3E)
-        final int ACCEL_Z       = 0x3F; // 16-bit 2's comp. value (0x3F-0x40)
-        final int GYRO_X        = 0x43; // 16-bit 2's comp. value (0x43-0x44)
-        final int GYRO_Y        = 0x45; // 16-bit 2's comp. value (0x45-0x46)
-        // final int GYRO_Z        = 0x47; // 16-bit 2's comp. value (0x47-0x48)
-        final double ACC_SCALE = 16384; // LSB/g for +/- 2g range
-        final double GYR_SCALE = 32.8f; // LSB/deg/s for +/- 1000 deg/s range
-
-        // Gyro, Accelerometer and Temperature values in big-endian
-        double accX = 0, accY = 0, accZ = 0, gyrX = 0, gyrY = 0, temp = 0; //gyrZ = 0
-        ByteBuffer bb = ByteBuffer.wrap(new byte[4*Double.BYTES]);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
+    // Attach the data ready interrupt and start the thread that drains the FIFO
+    private void startFifoAcquisition() throws IOException{
+        pendingInterrupts = 0;
+        fifoThread = new Thread(this::drainFifo, "Attitude FIFO Reader");
+        fifoThread.start();
 
+        // The ISR only counts samples and wakes the reader once a batch is waiting in the FIFO
         try {
-            // Read data from MPU6050 registers and convert to g, deg/s, and C
-            accX = read16ToDouble(ACCEL_X) / ACC_SCALE;
-            accY = read16ToDouble(ACCEL_Y) / ACC_SCALE;
-            accZ = read16ToDouble(ACCEL_Z) / ACC_SCALE;
-            gyrX = read16ToDouble(GYRO_X) / GYR_SCALE;
-            gyrY = read16ToDouble(GYRO_Y) / GYR_SCALE;
-            // gyrZ = read16ToDouble(GYRO_Z) / GYR_SCALE;
-            temp = read16ToDouble(TEMP_OUT) / 340d + 36.53d; // see register map for this conversion
+            servlet.getHardware().attachInterrupt(interruptPin, HardwareBackend.Edge.RISING, HardwareBackend.Pull.DOWN, () -> {
+                if (++pendingInterrupts >= fifoBatch){
+                    pendingInterrupts = 0;
+                    LockSupport.unpark(fifoThread);
+                }
+            });
         } catch (IOException e){
-            System.err.println("readAttitudeData(): Failed to read sensor data.");
-            e.printStackTrace();
+            Thread thread = fifoThread;
+            fifoThread = null;
+            LockSupport.unpark(thread);
+            throw e;
         }
+    }
+
+    // Undo a partial start, keeping the reason for the health report
+    private void failStart(String message, IOException e){
+        System.err.println(message);
+        e.printStackTrace();
+        error = message + " " + e.getMessage();
+        if (recorder != null){
+            recorder.stop();
+            recorder = null;
+        }
+        if (MPU6050 != null){
+            try {
+                MPU6050.close();
+            } catch (IOException closeException){
+                closeException.printStackTrace();
+            }
+            MPU6050 = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning(){
+        return running;
+    }
+
+    // Degraded while I2C reads are failing
+    @Override
+    public boolean isDegraded(){
+        return running && readFailures > 0;
+    }
+
+    @Override
+    public String getError(){
+        return running && readFailures > 0 ? readFailures + " consecutive I2C reads failed." : error;
+    }
+
+    private void drainFifo(){
+        // Wake at least every 50 ms in case interrupts are missed
+        final long timeout = 50000000L;
+        while (fifoThread == Thread.currentThread()){
+            LockSupport.parkNanos(this, timeout);
+            try {
+                readFifo();
+                readFailures = 0;
+            } catch (IOException e){
+                if (readFailures++ == 0){ // report the first failure, the health state shows the rest
+                    System.err.println("drainFifo(): Failed to read FIFO.");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
 
-        // Apply complementary filter to combine accel. and gyro to determine attitude
-        // Don't care about yaw since only roll and pitch can flip rover
-        final double A = 0.9836; // Constant for complementary filter tau = 2s, dt = 1/30
-        double roll = 0, pitch = 0, yaw = 0;
+    // Read every complete sample waiting in the FIFO in one I2C transaction and process them in order
+    private void readFifo() throws IOException{
+        final int USER_CTRL     = 0x6A;
+        final int FIFO_COUNT_H  = 0x72; // 16-bit unsigned byte count (0x72-0x73)
+        final int FIFO_R_W      = 0x74; // FIFO data register
+
+        long start = System.nanoTime();
+        recordLoopPeriod(start);
+        MPU6050.read(FIFO_COUNT_H, fifoCount, 0, 2);
+        I2C_READ.recordSince(start);
+        int count = ((fifoCount[0] & 0xFF) << 8) | (fifoCount[1] & 0xFF);
+
+        // A full FIFO has overflowed and the sample boundaries are lost, so start again. Short of full, up to a
+        // sample less a byte is only a partial sample and is left for the next read.
+        if (count >= FIFO_SIZE){
+            fifoOverflows++;
+            FIFO_OVERFLOWS.increment();
+            System.err.printf("[WARNING]: Attitude FIFO overflowed (%d times). Resetting FIFO.\n", fifoOverflows);
+            MPU6050.write(USER_CTRL, (byte) 0x44); // Keep FIFO enabled and reset it
+            return;
+        }
+
+        int samples = min(count / SAMPLE_BYTES, fifoData.length / SAMPLE_BYTES);
+        if (samples == 0){
+            return;
+        }
+        start = System.nanoTime();
+        MPU6050.read(FIFO_R_W, fifoData, 0, samples * SAMPLE_BYTES);
+        long readTime = System.nanoTime();
+        I2C_READ.record(readTime - start);
+        long periodNanos = (long) (samplePeriod * 1e9);
+        for (int i = 0; i < samples; i++){
+            sampleTime = readTime - (samples - 1 - i) * periodNanos; // last sample in the FIFO is the newest
+            processSample(fifoData, i * SAMPLE_BYTES, samplePeriod);
+            if (++decimationCount >= decimation){
+                decimationCount = 0;
+                ByteBuffer frame = fillFrame();
+                if (frame != null){
+                    AttitudeEndpoint.broadcast(frame);
+                }
+            }
+        }
+    }
+
+    // Recordings are saved in AttitudeRecordingDirectory, or the radiation save directory by default
+    public File getRecordingDirectory(){
+        Properties properties = servlet.getProperties();
+        return new File(PropertyReader.getString(properties, "AttitudeRecordingDirectory",
+                properties.getProperty("RadiationSaveDirectory", System.getProperty("user.home"))));
+    }
+
+    // Record how far the time since the last poll or drain was from the nominal loop period
+    private void recordLoopPeriod(long now){
+        if (lastLoopTime != 0){
+            LOOP_JITTER.record(abs(now - lastLoopTime - loopPeriod));
+        }
+        lastLoopTime = now;
+    }
+
+    // Decode a big-endian 16-bit 2's complement value from the burst buffer
+    private static int toShort(byte[] bytes, int offset){
+        return (short) ((bytes[offset] << 8) | (bytes[offset + 1] & 0xFF));
+    }
+
+    // Read the MPU6050 sensor registers and fill a pooled frame with attitude data
+    // Returns null if there is no free frame to fill
+    // Ticks of the polling task never overlap, and stopSensor() waits for a tick in progress
+    private ByteBuffer getAttitude(){
+        final int ACCEL_XOUT_H  = 0x3B; // First register of the 14 byte data block (0x3B-0x48)
+
+        recordLoopPeriod(System.nanoTime());
+        try {
+            // Read accel (0x3B-0x40), temp (0x41-0x42) and gyro (0x43-0x48) in one I2C transaction
+            long start = System.nanoTime();
+            MPU6050.read(ACCEL_XOUT_H, rawData, 0, rawData.length);
+            I2C_READ.recordSince(start);
+            readFailures = 0;
+        } catch (IOException e){
+            if (readFailures++ == 0){ // report the first failure, the health state shows the rest
+                System.err.println("readAttitudeData(): Failed to read sensor data.");
+                e.printStackTrace();
+            }
+            return null;
+        }
 
         // Calculate time period to integrate gyro data and update measurement time
         long currMeasTime = System.nanoTime();
         double dt = (currMeasTime - lastMeasTime) / (1000000000d); // time since last sample (s)
         lastMeasTime = currMeasTime;
+        sampleTime = currMeasTime;
+
+        processSample(rawData, 0, dt);
+        return fillFrame();
+    }
 
-        // Filtered roll and pitch values
-        double magAcc = sqrt(pow(accX, 2d)+pow(accY, 2d)+pow(accZ, 2d)); // Magnitude of acceleration vector
-        double accRoll = atan2(accY/magAcc, accZ/magAcc);
-        double accPitch = asin(-accX/magAcc);
-        double gyrRoll = roll + gyrX*dt;
-        double gyrPitch = pitch + gyrY*dt;
-        roll = (1 - A)*(gyrRoll) + A*accRoll;
-        pitch = (1 - A)*(gyrPitch) + A*accPitch;
-        // System.out.printf("AccRoll = %.2f, GyrRoll = %.2f, AccPitch = %.2f, GyrPitch = %.2f, Acc = %.2f,%.2f,%.2f Gyr = %.2f,%.2f\n",
-        //        accRoll, gyrRoll, accPitch, gyrPitch, accX, accY, accZ, gyrX, gyrY);
-
-        // Put data from MPU6050 registers into byte buffer to return
-        //System.out.printf("R = %.2f, P = %.2f, Y = %.2f\n", toDegrees(roll), toDegrees(pitch), toDegrees(yaw));
-        bb.putDouble(roll);
-        bb.putDouble(pitch);
-        bb.putDouble(yaw);
-        bb.putDouble(temp);
+    // Decode one 14 byte sample (register or FIFO order) and update the attitude estimate
+    private void processSample(byte[] data, int offset, double dt){
+        temp = decodeSample(filter, data, offset, dt);
+        roll = filter.getRoll();
+        pitch = filter.getPitch();
+        yaw = filter.getYaw();
+        alerts.onAttitude(sampleTime, roll, pitch);
+    }
+
+    // Convert one 14 byte sample to g, rad/s and C, fuse the accel. and gyro into the filter's attitude and
+    // return the temperature. Yaw is relative to the heading at startup. Also timed by AttitudeFilterBenchmark.
+    static double decodeSample(FusionFilter filter, byte[] data, int offset, double dt){
+        final double ACC_SCALE = 16384; // LSB/g for +/- 2g range
+        final double GYR_SCALE = 32.8 * 180 / PI; // LSB/rad/s for +/- 1000 deg/s range
+
+        double accX = toShort(data, offset) / ACC_SCALE;
+        double accY = toShort(data, offset + 2) / ACC_SCALE;
+        double accZ = toShort(data, offset + 4) / ACC_SCALE;
+        double temp = toShort(data, offset + 6) / 340d + 36.53d; // see register map for this conversion
+        double gyrX = toShort(data, offset + 8) / GYR_SCALE;
+        double gyrY = toShort(data, offset + 10) / GYR_SCALE;
+        double gyrZ = toShort(data, offset + 12) / GYR_SCALE;
+        filter.update(gyrX, gyrY, gyrZ, accX, accY, accZ, dt);
+        return temp;
+    }
+
+    // Record the attitude and put it into a recycled frame. The endpoint returns it to the pool once sent.
+    private ByteBuffer fillFrame(){
+        if (recorder != null){
+            recorder.record(sampleTime, roll, pitch, yaw, temp);
+        }
+        ByteBuffer bb = AttitudeEndpoint.acquireFrame();
+        if (bb == null){
+            return null;
+        }
+        AttitudeEndpoint.setFrame(bb, FrameCodec.toEpochMicros(sampleTime), roll, pitch, yaw, temp);
         return bb;
     }
-}
\ No newline at end of file
+}
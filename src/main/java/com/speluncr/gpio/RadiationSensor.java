@@ -1,27 +1,44 @@
 package com.speluncr.gpio;
 
-import com.pi4j.wiringpi.Gpio;
+import com.speluncr.PropertyReader;
 import com.speluncr.TelemetryServlet;
+import com.speluncr.alert.AlertEngine;
+import com.speluncr.hardware.HardwareBackend;
+import com.speluncr.metrics.Metrics;
+import com.speluncr.radiation.EventRingBuffer;
+import com.speluncr.radiation.RadiationEventWriter;
+import com.speluncr.radiation.RadiationLog;
+import com.speluncr.radiation.RadiationRollup;
+import com.speluncr.radiation.RadiationStatistics;
 import com.speluncr.websocket.RadiationEndpoint;
 import java.io.*;
 import java.nio.file.Path;
-import java.time.LocalDateTime;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.time.Instant;
+import java.util.Properties;
 
 /************************************************************
  * This class will initialize the GPIO pin for the geiger
  * counter, listen for activity, and allow other classes to
  * access data collected from the geiger counter.
+ *
+ * The interrupt handler only timestamps each pulse and
+ * publishes it to a lock-free ring buffer. A background
+ * writer drains the buffer in batches, saves the events and
+ * broadcasts the counts for each second.
  ************************************************************/
 public class RadiationSensor implements Sensor {
     private final int INTERRUPT_PIN = 7;
-    private final Timer COUNT_TIMER = new Timer("Radiation Update Timer");
     private final TelemetryServlet servlet;
-    private DataOutputStream outputStream = null;
+    private EventRingBuffer events = null;
+    private AlertEngine alerts = null;
+    private volatile RadiationEventWriter writer = null;
+    private final RadiationRollup rollup = new RadiationRollup();
+    private RadiationStatistics statistics = null;
+    private int statisticsPeriod = 1; // seconds between statistics broadcasts
+    private boolean rollupBuilt = false;
     private long initTime = System.nanoTime(); // time when sensor started
-    private int cps = 0; // counts in the current 1-second period
-    private boolean running = false;
+    private volatile boolean running = false;
+    private volatile String error = null; // why the last start failed, for the health report
 
     public RadiationSensor(TelemetryServlet telemetryServlet){
         servlet = telemetryServlet;
@@ -32,54 +49,86 @@ public class RadiationSensor implements Sensor {
         if (running){
             return;
         }
+        error = null;
 
-        // Open a data file for the raw data
-        String fileName = "radiation-" + LocalDateTime.now().toString() + ".data";
-        File saveFile = new File(servlet.getProperties().getProperty(
-                "RadiationSaveDirectory", System.getProperty("user.home")), fileName);
+        Properties properties = servlet.getProperties();
+        events = new EventRingBuffer(PropertyReader.getInt(properties, "RadiationBufferSize", 65536, 1024, 1 << 24));
+        final EventRingBuffer buffer = events;
+        Metrics.gauge("speluncr_radiation_buffer_depth", "Geiger counter events waiting for the writer.", buffer::size);
+        Metrics.counter("speluncr_radiation_buffer_overflows_total",
+                "Geiger counter events lost because the event buffer was full.", buffer::getOverflowCount);
+
+        // Dose rate factor of the tube (uSv/h per CPM), dead time (0 = no correction) and averaging
+        statistics = new RadiationStatistics(
+                PropertyReader.getDouble(properties, "RadiationUsvPerCpm", 0.0057, 0, 1),
+                PropertyReader.getDouble(properties, "RadiationDeadTimeMicros", 0, 0, 10000) / 1e6,
+                PropertyReader.getDouble(properties, "RadiationAverageSeconds", 60, 1, 86400));
+        alerts = servlet.getAlerts();
+        statisticsPeriod = PropertyReader.getInt(properties, "RadiationStatisticsPeriod", 1, 1, 3600);
+        RadiationEndpoint.setHistory(PropertyReader.getInt(properties, "RadiationHistoryMinutes", 10, 0, 1440) * 60);
+
+        // Open the event log in the directory from servlet.conf, or user.home if that fails
+        long segmentBytes = PropertyReader.getInt(properties, "RadiationLogSegmentMB", 16, 1, 1024) * 1048576L;
+        long segmentNanos = PropertyReader.getInt(properties, "RadiationLogSegmentMinutes", 60, 1, 1440) * 60000000000L;
+        long syncInterval = PropertyReader.getInt(properties, "RadiationLogSyncMillis", 1000, 10, 60000) * 1000000L;
+        File saveDirectory = new File(properties.getProperty("RadiationSaveDirectory", System.getProperty("user.home")));
+        Instant now = Instant.now();
+        initTime = System.nanoTime();
+        long initEpochNanos = now.getEpochSecond() * 1000000000L + now.getNano();
+        RadiationLog log = null;
         try {
-            // Attempt to create output stream file in directory specified in servlet.conf
-            outputStream = new DataOutputStream(new FileOutputStream(saveFile));
-        }catch (FileNotFoundException e){
-            // Attempt to put file in user home directory if directory from properties file does not work
+            log = new RadiationLog(saveDirectory, segmentBytes, segmentNanos, initEpochNanos, initTime);
+        } catch (IOException e){
             // Only try user.home if it hasn't already been tried.
-            if (!saveFile.toPath().getParent().equals(Path.of(System.getProperty("user.home")))){
-                System.out.printf("[INFO]: Output file at %s could not be created.\n", saveFile.getPath());
-                saveFile = new File(System.getProperty("user.home"), fileName);
+            if (!saveDirectory.toPath().equals(Path.of(System.getProperty("user.home")))){
+                System.out.printf("[INFO]: Radiation log in %s could not be created.\n", saveDirectory.getPath());
+                saveDirectory = new File(System.getProperty("user.home"));
                 try {
-                    outputStream = new DataOutputStream(new FileOutputStream(saveFile));
-                    System.out.printf("[INFO]: Using output file at %s.\n", saveFile.getPath());
-                } catch (FileNotFoundException fileNotFoundException) {
-                    System.err.printf("[ERROR]: Failed to create radiation output file at %s.\n", saveFile.getPath());
-                    fileNotFoundException.printStackTrace();
+                    log = new RadiationLog(saveDirectory, segmentBytes, segmentNanos, initEpochNanos, initTime);
+                    System.out.printf("[INFO]: Using radiation log in %s.\n", saveDirectory.getPath());
+                } catch (IOException ioException) {
+                    System.err.printf("[ERROR]: Failed to create radiation log in %s.\n", saveDirectory.getPath());
+                    ioException.printStackTrace();
                 }
             } else {
-                System.err.printf("[ERROR]: Failed to create radiation output file at %s.\n", saveFile.getPath());
+                System.err.printf("[ERROR]: Failed to create radiation log in %s.\n", saveDirectory.getPath());
                 e.printStackTrace();
             }
         }
 
-        // Setup wiring pi
-        if (Gpio.wiringPiSetup() == -1){
-            System.err.println("[ERROR] GPIO setup failed.");
-            return;
+        // Rebuild the history index from earlier logs once, in the background
+        if (!rollupBuilt){
+            rollupBuilt = true;
+            final File directory = saveDirectory;
+            Thread rebuild = new Thread(() -> rollup.rebuild(directory, initEpochNanos), "Radiation Index Rebuild");
+            rebuild.setDaemon(true);
+            rebuild.start();
         }
 
-        // Set initial time
-        initTime = System.nanoTime();
+        // Start draining events
+        final RadiationStatistics stats = statistics;
+        writer = new RadiationEventWriter(events, log, syncInterval, initEpochNanos, initTime, (second, count) -> {
+            rollup.add(second, count);
+            stats.add(second, count);
+            RadiationEndpoint.broadcast(second, count); // send the number of counts for this second to all endpoints
+            if (Math.floorMod(second + 1, (long) statisticsPeriod) == 0){
+                RadiationEndpoint.broadcastStatistics(stats);
+            }
+        });
+        writer.start(servlet.getScheduler());
 
         // Configure input pin 7, activate pull-up resistor and attach interrupt callback method
-        Gpio.pinMode(INTERRUPT_PIN, Gpio.INPUT);
-        Gpio.pullUpDnControl(INTERRUPT_PIN, Gpio.PUD_UP);
-        Gpio.wiringPiISR(INTERRUPT_PIN, Gpio.INT_EDGE_FALLING, i -> incrementCount());
-
-        COUNT_TIMER.schedule(new TimerTask() {
-            @Override
-            public synchronized void run() {
-                RadiationEndpoint.broadcast(cps); // send the number of counts for this second to all endpoints
-                cps = 0; // reset count to 0 for next 1-second interval
-            }
-        }, 0, 1000);
+        try {
+            servlet.getHardware().attachInterrupt(INTERRUPT_PIN, HardwareBackend.Edge.FALLING, HardwareBackend.Pull.UP,
+                    this::incrementCount);
+        } catch (IOException e){
+            System.err.println("[ERROR] GPIO setup failed.");
+            e.printStackTrace();
+            error = "GPIO setup failed. " + e.getMessage();
+            writer.stop(); // also closes the log
+            writer = null;
+            return;
+        }
         running = true;
     }
 
@@ -89,34 +138,50 @@ public class RadiationSensor implements Sensor {
             return;
         }
 
-        Gpio.wiringPiClearISR(INTERRUPT_PIN);
+        servlet.getHardware().detachInterrupt(INTERRUPT_PIN);
 
-        // Stop the update timer and set cps to 0
-        COUNT_TIMER.cancel();
-        cps = 0;
-
-        // Save and close data file if open
-        if (outputStream != null){
-            try {
-            outputStream.flush();
-            outputStream.close();
-            } catch (IOException e){
-                e.printStackTrace();
-            }
-        }
+        // Write the remaining events, then commit and close the log
+        writer.stop();
+        writer = null;
         running = false;
     }
 
-    private synchronized void incrementCount(){
-        long time = System.nanoTime() - initTime; // get time of event relative to initTime
-        cps++;
+    // Runs on the interrupt thread. Only takes a timestamp, publishes it and checks the alert rules, never blocks.
+    private void incrementCount(){
+        long time = System.nanoTime();
+        events.publish(time);
+        alerts.onRadiationEvent(time);
+    }
 
-        // Write raw interrupt time to data file
-        try {
-            outputStream.writeLong(time);
-        } catch (IOException e){
-            System.err.printf("count(): Failed to write value %d to data file\n", time);
-            e.printStackTrace();
-        }
+    @Override
+    public boolean isRunning(){
+        return running;
+    }
+
+    // Degraded while counts are broadcast but events are not saved
+    @Override
+    public boolean isDegraded(){
+        RadiationEventWriter current = writer;
+        return running && current != null && !current.isLogging();
+    }
+
+    @Override
+    public String getError(){
+        return isDegraded() ? "Radiation events are not being saved." : error;
+    }
+
+    // Per-second, per-minute and per-hour counts for history queries
+    public RadiationRollup getRollup(){
+        return rollup;
+    }
+
+    // Running count rate and dose rate statistics, null until the sensor has started
+    public RadiationStatistics getStatistics(){
+        return statistics;
+    }
+
+    public long getLostEventCount(){
+        EventRingBuffer buffer = events;
+        return buffer == null ? 0 : buffer.getOverflowCount();
     }
 }
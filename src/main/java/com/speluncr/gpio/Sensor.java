@@ -3,4 +3,17 @@ package com.speluncr.gpio;
 public interface Sensor {
     void startSensor();
     void stopSensor();
+
+    // True once startSensor() has succeeded, until stopSensor()
+    boolean isRunning();
+
+    // True while running with reduced function, e.g. data no longer saved or failing reads
+    default boolean isDegraded(){
+        return false;
+    }
+
+    // Why the last start failed or the sensor is degraded, null if nothing went wrong
+    default String getError(){
+        return null;
+    }
 }
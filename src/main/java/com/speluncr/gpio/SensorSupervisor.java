@@ -0,0 +1,258 @@
+package com.speluncr.gpio;
+
+import com.speluncr.metrics.Metrics;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/************************************************************
+ * Brings the sensors up in parallel, off the thread that
+ * deploys the webapp, and keeps them up.
+ *
+ * Each sensor starts on its own supervisor thread. A start
+ * that fails (e.g. the I2C device is missing) is retried with
+ * exponential backoff from 1 s up to 1 min. A health check
+ * every 5 s restarts sensors that stopped running, or that
+ * stayed degraded for a minute.
+ *
+ * States: STOPPED, STARTING, RUNNING, DEGRADED (running with
+ * reduced function) and FAILED (waiting to retry).
+ ************************************************************/
+public class SensorSupervisor {
+    public enum State {STOPPED, STARTING, RUNNING, DEGRADED, FAILED}
+
+    private static final long MIN_BACKOFF = 1000; // ms
+    private static final long MAX_BACKOFF = 60000; // ms
+    private static final long CHECK_PERIOD = 5000; // ms
+    private static final long DEGRADED_RESTART = 60000; // ms degraded before a restart
+    private final List<Supervised> sensors = new ArrayList<>();
+    private ScheduledThreadPoolExecutor executor = null;
+
+    // A sensor and its health. Fields are written with the entry locked and read by the health report.
+    public static class Supervised {
+        private final String name;
+        private final String keyPrefix;
+        private final Sensor sensor;
+        private volatile State state = State.STOPPED;
+        private volatile long since = System.currentTimeMillis(); // when the state last changed
+        private volatile int attempts = 0; // failed starts since the last success
+        private volatile long nextAttempt = 0; // epoch ms of the next retry while FAILED
+        private volatile String error = null;
+        private volatile double startSeconds = 0; // time the last successful start took
+        private long backoff = MIN_BACKOFF;
+        private ScheduledFuture<?> pending = null; // retry waiting to run
+
+        Supervised(String name, String keyPrefix, Sensor sensor){
+            this.name = name;
+            this.keyPrefix = keyPrefix;
+            this.sensor = sensor;
+        }
+
+        public String getName(){
+            return name;
+        }
+
+        public State getState(){
+            return state;
+        }
+
+        public Instant getSince(){
+            return Instant.ofEpochMilli(since);
+        }
+
+        public int getAttempts(){
+            return attempts;
+        }
+
+        public Instant getNextAttempt(){
+            return state == State.FAILED ? Instant.ofEpochMilli(nextAttempt) : null;
+        }
+
+        public String getError(){
+            return error;
+        }
+
+        // True if the servlet.conf key configures this sensor
+        boolean uses(String key){
+            return key.startsWith(keyPrefix);
+        }
+
+        private void setState(State newState){
+            if (state != newState){
+                state = newState;
+                since = System.currentTimeMillis();
+            }
+        }
+    }
+
+    // Add a sensor before start(). Settings starting with keyPrefix restart only this sensor when they change.
+    public synchronized void add(String name, String keyPrefix, Sensor sensor){
+        Supervised entry = new Supervised(name, keyPrefix, sensor);
+        sensors.add(entry);
+        Metrics.gauge("speluncr_sensor_up", "1 while the sensor is running, possibly degraded.",
+                () -> entry.state == State.RUNNING || entry.state == State.DEGRADED ? 1 : 0, "sensor", name);
+        Metrics.gauge("speluncr_sensor_degraded", "1 while the sensor runs with reduced function.",
+                () -> entry.state == State.DEGRADED ? 1 : 0, "sensor", name);
+        Metrics.gauge("speluncr_sensor_start_seconds", "Time the last successful sensor start took.",
+                () -> entry.startSeconds, "sensor", name);
+    }
+
+    // Remove every sensor, e.g. to add a different set. Only called while stopped.
+    public synchronized void clear(){
+        sensors.clear();
+    }
+
+    public synchronized Collection<Supervised> getSensors(){
+        return new ArrayList<>(sensors);
+    }
+
+    // Start every sensor in the background and return at once
+    public synchronized void start(){
+        if (executor != null){
+            return;
+        }
+        AtomicInteger count = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(sensors.size() + 1, runnable -> {
+            Thread thread = new Thread(runnable, "Sensor Supervisor " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        for (Supervised entry : sensors){
+            entry.backoff = MIN_BACKOFF;
+            entry.attempts = 0;
+            entry.setState(State.STARTING);
+            executor.execute(() -> attempt(entry));
+        }
+        executor.scheduleWithFixedDelay(this::check, CHECK_PERIOD, CHECK_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    // Cancel retries, wait for starts in progress and stop every sensor
+    public void stop(){
+        ScheduledThreadPoolExecutor stopping;
+        synchronized (this){
+            stopping = executor;
+            executor = null;
+        }
+        if (stopping == null){
+            return;
+        }
+        stopping.shutdownNow();
+        try {
+            if (!stopping.awaitTermination(10, TimeUnit.SECONDS)){
+                System.err.println("[WARNING]: Sensor start still in progress at shutdown.");
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        for (Supervised entry : getSensors()){
+            synchronized (entry){
+                entry.sensor.stopSensor();
+                entry.setState(State.STOPPED);
+                entry.error = null;
+            }
+        }
+    }
+
+    // Stop the sensors using a changed servlet.conf key and start them again with the new settings
+    public void restart(Collection<String> changedKeys){
+        for (Supervised entry : getSensors()){
+            if (changedKeys.stream().anyMatch(entry::uses)){
+                System.out.printf("[INFO]: Restarting %s sensor with new settings.\n", entry.name);
+                restart(entry);
+            }
+        }
+    }
+
+    // True if every changed key belongs to a sensor, so restarting those sensors applies the change
+    public boolean handles(Collection<String> changedKeys){
+        Collection<Supervised> all = getSensors();
+        return changedKeys.stream().allMatch(key -> all.stream().anyMatch(entry -> entry.uses(key)));
+    }
+
+    private void restart(Supervised entry){
+        synchronized (entry){
+            if (entry.pending != null){
+                entry.pending.cancel(false);
+                entry.pending = null;
+            }
+            entry.sensor.stopSensor();
+            entry.backoff = MIN_BACKOFF;
+            entry.attempts = 0;
+            entry.setState(State.STARTING);
+        }
+        submit(entry, 0);
+    }
+
+    private void attempt(Supervised entry){
+        synchronized (entry){
+            entry.pending = null;
+            entry.setState(State.STARTING);
+            long start = System.nanoTime();
+            try {
+                entry.sensor.startSensor();
+            } catch (RuntimeException e){
+                System.err.printf("[ERROR]: %s sensor failed to start.\n", entry.name);
+                e.printStackTrace();
+            }
+            if (entry.sensor.isRunning()){
+                entry.error = entry.sensor.getError();
+                entry.setState(entry.sensor.isDegraded() ? State.DEGRADED : State.RUNNING);
+                entry.attempts = 0;
+                entry.backoff = MIN_BACKOFF;
+                entry.startSeconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("[INFO]: %s sensor started in %.0f ms.\n", entry.name, entry.startSeconds * 1000);
+                return;
+            }
+            entry.error = entry.sensor.getError();
+            entry.attempts++;
+            entry.nextAttempt = System.currentTimeMillis() + entry.backoff;
+            entry.setState(State.FAILED);
+            System.err.printf("[WARNING]: %s sensor failed to start (attempt %d). Retrying in %d s.\n",
+                    entry.name, entry.attempts, entry.backoff / 1000);
+            entry.pending = submit(entry, entry.backoff);
+            entry.backoff = Math.min(MAX_BACKOFF, entry.backoff * 2);
+        }
+    }
+
+    private synchronized ScheduledFuture<?> submit(Supervised entry, long delay){
+        if (executor == null){
+            return null; // stopped
+        }
+        return executor.schedule(() -> attempt(entry), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Update the running sensors' states and restart any that stopped or stayed degraded
+    private void check(){
+        for (Supervised entry : getSensors()){
+            boolean restart = false;
+            synchronized (entry){
+                if (entry.state != State.RUNNING && entry.state != State.DEGRADED){
+                    continue;
+                }
+                if (!entry.sensor.isRunning()){
+                    System.err.printf("[WARNING]: %s sensor stopped running. Restarting.\n", entry.name);
+                    restart = true;
+                } else if (entry.sensor.isDegraded()){
+                    entry.setState(State.DEGRADED);
+                    entry.error = entry.sensor.getError();
+                    if (System.currentTimeMillis() - entry.since >= DEGRADED_RESTART){
+                        System.err.printf("[WARNING]: %s sensor degraded: %s Restarting.\n", entry.name, entry.error);
+                        restart = true;
+                    }
+                } else {
+                    entry.setState(State.RUNNING);
+                    entry.error = null;
+                }
+            }
+            if (restart){
+                restart(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package com.speluncr.hardware;
+
+public interface DigitalOutput {
+    void set(boolean high);
+}
@@ -0,0 +1,47 @@
+package com.speluncr.hardware;
+
+import com.speluncr.PropertyReader;
+import java.io.IOException;
+import java.util.Properties;
+
+/************************************************************
+ * The hardware the sensors talk to: GPIO outputs, GPIO pin
+ * interrupts and I2C register devices. Pin numbers are
+ * wiringPi numbers.
+ *
+ * Two backends are available (HardwareBackend in
+ * servlet.conf):
+ *  pi4j      : the Raspberry Pi's GPIO pins and I2C bus
+ *  simulator : seeded Geiger counter pulses and a synthetic
+ *              MPU6050, so the server runs on any machine
+ ************************************************************/
+public interface HardwareBackend {
+    enum Edge {RISING, FALLING}
+    enum Pull {OFF, UP, DOWN}
+
+    // Provision a pin as an output. Provisioning the same pin again returns the same output.
+    DigitalOutput provisionOutput(int pin, boolean high, boolean shutdownHigh) throws IOException;
+
+    // Call handler on every edge of the input pin. The handler runs on an interrupt thread.
+    void attachInterrupt(int pin, Edge edge, Pull pull, Runnable handler) throws IOException;
+
+    void detachInterrupt(int pin);
+
+    RegisterDevice openDevice(int bus, int address) throws IOException;
+
+    // Release the hardware and set outputs to their shutdown states
+    void shutdown();
+
+    // Create the backend named by HardwareBackend in servlet.conf
+    static HardwareBackend fromProperties(Properties properties){
+        String name = PropertyReader.getString(properties, "HardwareBackend", "pi4j");
+        if ("simulator".equalsIgnoreCase(name)){
+            System.out.println("[INFO]: Using simulated hardware.");
+            return new SimulatorBackend(properties);
+        }
+        if (!"pi4j".equalsIgnoreCase(name)){
+            System.err.printf("[INFO]: Unknown HardwareBackend \"%s\". Using pi4j.\n", name);
+        }
+        return new Pi4jBackend();
+    }
+}
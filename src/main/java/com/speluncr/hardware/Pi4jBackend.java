@@ -0,0 +1,115 @@
+package com.speluncr.hardware;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioFactory;
+import com.pi4j.io.gpio.GpioPinDigitalOutput;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiPin;
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CDevice;
+import com.pi4j.io.i2c.I2CFactory;
+import com.pi4j.wiringpi.Gpio;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/************************************************************
+ * Raspberry Pi hardware through pi4j. The GPIO controller and
+ * wiringPi are only set up when they are first needed, so
+ * nothing touches the Pi's hardware until a sensor starts.
+ ************************************************************/
+public class Pi4jBackend implements HardwareBackend {
+    private GpioController gpioController = null;
+    private boolean wiringPiReady = false;
+    private final Map<Integer, DigitalOutput> outputs = new HashMap<>();
+
+    @Override
+    public synchronized DigitalOutput provisionOutput(int pin, boolean high, boolean shutdownHigh) throws IOException{
+        DigitalOutput output = outputs.get(pin);
+        if (output == null){
+            if (gpioController == null){
+                try {
+                    gpioController = GpioFactory.getInstance();
+                } catch (LinkageError e){
+                    throw unavailable(e);
+                }
+            }
+            final GpioPinDigitalOutput gpio = gpioController.provisionDigitalOutputPin(
+                    RaspiPin.getPinByAddress(pin), high ? PinState.HIGH : PinState.LOW);
+            gpio.setShutdownOptions(true, shutdownHigh ? PinState.HIGH : PinState.LOW);
+            output = value -> gpio.setState(value);
+            outputs.put(pin, output);
+        } else {
+            output.set(high);
+        }
+        return output;
+    }
+
+    @Override
+    public synchronized void attachInterrupt(int pin, Edge edge, Pull pull, Runnable handler) throws IOException{
+        if (!wiringPiReady){
+            try {
+                if (Gpio.wiringPiSetup() == -1){
+                    throw new IOException("GPIO setup failed.");
+                }
+            } catch (LinkageError e){
+                throw unavailable(e);
+            }
+            wiringPiReady = true;
+        }
+        Gpio.pinMode(pin, Gpio.INPUT);
+        Gpio.pullUpDnControl(pin, pull == Pull.UP ? Gpio.PUD_UP : pull == Pull.DOWN ? Gpio.PUD_DOWN : Gpio.PUD_OFF);
+        Gpio.wiringPiISR(pin, edge == Edge.RISING ? Gpio.INT_EDGE_RISING : Gpio.INT_EDGE_FALLING, p -> handler.run());
+    }
+
+    @Override
+    public synchronized void detachInterrupt(int pin){
+        if (wiringPiReady){
+            Gpio.wiringPiClearISR(pin);
+        }
+    }
+
+    @Override
+    public RegisterDevice openDevice(int busNumber, int address) throws IOException{
+        final I2CBus bus;
+        try {
+            bus = I2CFactory.getInstance(busNumber);
+        } catch (I2CFactory.UnsupportedBusNumberException e){
+            throw new IOException("Unsupported I2C bus " + busNumber, e);
+        } catch (LinkageError e){
+            throw unavailable(e);
+        }
+        final I2CDevice device = bus.getDevice(address);
+        return new RegisterDevice() {
+            @Override
+            public void write(int register, byte value) throws IOException{
+                device.write(register, value);
+            }
+
+            @Override
+            public int read(int register, byte[] buffer, int offset, int length) throws IOException{
+                return device.read(register, buffer, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException{
+                bus.close();
+            }
+        };
+    }
+
+    @Override
+    public synchronized void shutdown(){
+        if (gpioController != null){
+            gpioController.shutdown();
+            gpioController = null;
+            outputs.clear();
+        }
+    }
+
+    // pi4j's native libraries only load on a Raspberry Pi
+    private static IOException unavailable(LinkageError e){
+        return new IOException("pi4j is not available on this machine (" + System.getProperty("os.arch")
+                + "). Set HardwareBackend=simulator in servlet.conf to run without the rover's hardware.", e);
+    }
+}
@@ -0,0 +1,16 @@
+package com.speluncr.hardware;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/************************************************************
+ * A device on an I2C bus that is accessed through 8-bit
+ * registers. Reads of several bytes start at the given
+ * register and are done in one bus transaction.
+ ************************************************************/
+public interface RegisterDevice extends Closeable {
+    void write(int register, byte value) throws IOException;
+
+    // Returns the number of bytes read
+    int read(int register, byte[] buffer, int offset, int length) throws IOException;
+}
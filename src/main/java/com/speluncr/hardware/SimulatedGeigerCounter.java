@@ -0,0 +1,71 @@
+package com.speluncr.hardware;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/************************************************************
+ * Poisson pulse train for a simulated Geiger counter. Gaps
+ * between pulses are drawn from an exponential distribution
+ * with a seeded random generator, so a seed always gives the
+ * same pulse schedule.
+ *
+ * The pulse thread sleeps until the next pulse is due, then
+ * fires every pulse that is due. At high rates the sleep is
+ * longer than the gaps, so pulses arrive in short bursts a few
+ * tens of microseconds late, much like a busy interrupt
+ * thread. This keeps up with 10^5 counts per second.
+ ************************************************************/
+class SimulatedGeigerCounter {
+    private final Runnable handler;
+    private final double meanGap; // ns
+    private final Random random;
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    SimulatedGeigerCounter(long seed, double countsPerSecond, Runnable handler){
+        this.handler = handler;
+        meanGap = 1e9 / countsPerSecond;
+        random = new Random(seed);
+    }
+
+    synchronized void start(){
+        if (running){
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "Simulated Geiger Counter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop(){
+        running = false;
+        if (thread != null){
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    private void run(){
+        long start = System.nanoTime();
+        double next = nextGap(); // ns after start. Fractional gaps add up without drift.
+        while (running){
+            long wait = start + (long) next - System.nanoTime();
+            if (wait > 0){
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            handler.run();
+            next += nextGap();
+        }
+    }
+
+    private double nextGap(){
+        return -Math.log(1 - random.nextDouble()) * meanGap;
+    }
+}
@@ -0,0 +1,300 @@
+package com.speluncr.hardware;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import static java.lang.Math.*;
+
+/************************************************************
+ * Register level model of the MPU6050 for the simulator. A
+ * sampling thread produces accelerometer, temperature and gyro
+ * samples at the rate set by SMPLRT_DIV and CONFIG, following
+ * a motion profile with seeded gyro bias and sensor noise.
+ * The sensor is at rest for the first two seconds so the gyro
+ * bias can be calibrated, as on the rover.
+ *
+ * Modelled registers: sample rate and full scale settings,
+ * PWR_MGMT_1 sleep, the data registers (0x3B-0x48), the 1024
+ * byte FIFO (FIFO_EN, USER_CTRL enable and reset, FIFO_COUNT,
+ * FIFO_R_W, oldest data overwritten when full) and the data
+ * ready interrupt (INT_ENABLE), raised through the handler
+ * given by the backend.
+ *
+ * Samples depend only on the seed and the sample clock, so
+ * runs are repeatable whatever the thread timing.
+ ************************************************************/
+class SimulatedMPU6050 {
+    private static final int SMPLRT_DIV     = 0x19;
+    private static final int CONFIG         = 0x1A;
+    private static final int GYRO_CONFIG    = 0x1B;
+    private static final int ACCEL_CONFIG   = 0x1C;
+    private static final int FIFO_EN        = 0x23;
+    private static final int INT_ENABLE     = 0x38;
+    private static final int ACCEL_XOUT_H   = 0x3B;
+    private static final int USER_CTRL      = 0x6A;
+    private static final int PWR_MGMT_1     = 0x6B;
+    private static final int FIFO_COUNT_H   = 0x72;
+    private static final int FIFO_COUNT_L   = 0x73;
+    private static final int FIFO_R_W       = 0x74;
+    private static final int WHO_AM_I       = 0x75;
+    private static final int FIFO_SIZE      = 1024;
+    private static final double ACC_NOISE   = 0.003; // g
+    private static final double GYR_NOISE   = 0.002; // rad/s
+    private static final double MAX_BIAS    = 0.02; // rad/s
+    private static final double SETTLE_TIME = 2; // s at rest before the motion starts, for gyro calibration
+
+    // Attitude over time. Angles in rad, t in s.
+    enum MotionProfile {
+        STILL {
+            void angles(double t, double[] rpy){
+                rpy[0] = 0; rpy[1] = 0; rpy[2] = 0;
+            }
+        },
+        ROCK { // rover rocking on uneven ground
+            void angles(double t, double[] rpy){
+                rpy[0] = 0.3*sin(2*PI*0.2*t);
+                rpy[1] = 0.2*sin(2*PI*0.13*t);
+                rpy[2] = 0.1*sin(2*PI*0.05*t);
+            }
+        },
+        SPIN { // turning on the spot
+            void angles(double t, double[] rpy){
+                rpy[0] = 0.05*sin(2*PI*0.5*t);
+                rpy[1] = 0.05*cos(2*PI*0.5*t);
+                rpy[2] = 0.5*t;
+            }
+        },
+        TUMBLE { // large angles on every axis
+            void angles(double t, double[] rpy){
+                rpy[0] = 1.2*sin(2*PI*0.05*t);
+                rpy[1] = 0.6*sin(2*PI*0.07*t + 1);
+                rpy[2] = 0.3*t;
+            }
+        };
+
+        abstract void angles(double t, double[] rpy);
+
+        static MotionProfile fromName(String name){
+            for (MotionProfile profile : values()){
+                if (profile.name().equalsIgnoreCase(name)){
+                    return profile;
+                }
+            }
+            System.err.printf("[INFO]: Unknown SimulatorMotion \"%s\". Using still.\n", name);
+            return STILL;
+        }
+    }
+
+    private final MotionProfile motion;
+    private final long seed;
+    private final byte[] registers = new byte[128];
+    private final byte[] fifo = new byte[FIFO_SIZE];
+    private int fifoHead = 0; // oldest byte
+    private int fifoCount = 0;
+    private final byte[] sample = new byte[14]; // accel, temp and gyro registers in order
+    private final double[] rpy = new double[3], before = new double[3], after = new double[3];
+    private Random noise;
+    private double biasX, biasY, biasZ;
+    private volatile Runnable interruptHandler = null;
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    SimulatedMPU6050(long seed, MotionProfile motion){
+        this.seed = seed;
+        this.motion = motion;
+    }
+
+    void setInterruptHandler(Runnable handler){
+        interruptHandler = handler;
+    }
+
+    // Power on with reset register values and start sampling
+    synchronized RegisterDevice open(){
+        if (!running){
+            Arrays.fill(registers, (byte) 0);
+            registers[PWR_MGMT_1] = 0x40; // sleeping until woken
+            registers[WHO_AM_I] = 0x68;
+            fifoHead = 0;
+            fifoCount = 0;
+            noise = new Random(seed);
+            biasX = (noise.nextDouble()*2 - 1) * MAX_BIAS;
+            biasY = (noise.nextDouble()*2 - 1) * MAX_BIAS;
+            biasZ = (noise.nextDouble()*2 - 1) * MAX_BIAS;
+            running = true;
+            thread = new Thread(this::run, "Simulated MPU6050");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return new RegisterDevice() {
+            @Override
+            public void write(int register, byte value){
+                writeRegister(register, value);
+            }
+
+            @Override
+            public int read(int register, byte[] buffer, int offset, int length){
+                return readRegisters(register, buffer, offset, length);
+            }
+
+            @Override
+            public void close(){
+                SimulatedMPU6050.this.close();
+            }
+        };
+    }
+
+    void close(){
+        Thread t;
+        synchronized (this){
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != null){
+            LockSupport.unpark(t);
+            try {
+                t.join(1000);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void writeRegister(int register, byte value){
+        if (register == USER_CTRL && (value & 0x04) != 0){
+            fifoHead = 0; // FIFO_RESET, clears itself
+            fifoCount = 0;
+            value &= ~0x04;
+        }
+        registers[register & 0x7F] = value;
+    }
+
+    private synchronized int readRegisters(int register, byte[] buffer, int offset, int length){
+        for (int i = 0; i < length; i++){
+            if (register == FIFO_R_W){
+                // FIFO reads do not advance the register address
+                buffer[offset + i] = fifoCount > 0 ? fifo[fifoHead] : 0;
+                if (fifoCount > 0){
+                    fifoHead = (fifoHead + 1) % FIFO_SIZE;
+                    fifoCount--;
+                }
+                continue;
+            }
+            int r = register++ & 0x7F;
+            if (r >= ACCEL_XOUT_H && r < ACCEL_XOUT_H + sample.length){
+                buffer[offset + i] = sample[r - ACCEL_XOUT_H];
+            } else if (r == FIFO_COUNT_H){
+                buffer[offset + i] = (byte) (fifoCount >> 8);
+            } else if (r == FIFO_COUNT_L){
+                buffer[offset + i] = (byte) fifoCount;
+            } else {
+                buffer[offset + i] = registers[r];
+            }
+        }
+        return length;
+    }
+
+    private synchronized long samplePeriod(){
+        int dlpf = registers[CONFIG] & 0x07;
+        long gyroRate = dlpf == 0 || dlpf == 7 ? 8000 : 1000; // Hz
+        return 1000000000L * (1 + (registers[SMPLRT_DIV] & 0xFF)) / gyroRate;
+    }
+
+    private void run(){
+        long next = System.nanoTime();
+        long time = 0; // ns of simulated time at the next sample
+        while (running){
+            long period = samplePeriod();
+            long wait = next - System.nanoTime();
+            if (wait > 0){
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            next += period;
+            boolean interrupt;
+            synchronized (this){
+                if ((registers[PWR_MGMT_1] & 0x40) != 0){
+                    continue; // asleep
+                }
+                generateSample(time / 1e9);
+                time += period;
+                if ((registers[USER_CTRL] & 0x40) != 0){
+                    writeFifo();
+                }
+                interrupt = (registers[INT_ENABLE] & 0x01) != 0;
+            }
+            Runnable handler = interruptHandler;
+            if (interrupt && handler != null){
+                handler.run();
+            }
+        }
+    }
+
+    // Fill the data registers with the sample at time t
+    private void generateSample(double t){
+        final double h = 0.0001; // s, step used to differentiate the motion
+        // At rest in the starting attitude for SETTLE_TIME, then follow the motion
+        boolean moving = t > SETTLE_TIME;
+        t = max(0, t - SETTLE_TIME);
+        motion.angles(t, rpy);
+        motion.angles(t - h, before);
+        motion.angles(t + h, after);
+        double roll = rpy[0], pitch = rpy[1];
+        double rollRate = moving ? (after[0] - before[0]) / (2*h) : 0;
+        double pitchRate = moving ? (after[1] - before[1]) / (2*h) : 0;
+        double yawRate = moving ? (after[2] - before[2]) / (2*h) : 0;
+
+        // Euler angle rates to body rates, and gravity in the body frame (ZYX angles)
+        double gyrX = rollRate - yawRate*sin(pitch);
+        double gyrY = pitchRate*cos(roll) + yawRate*cos(pitch)*sin(roll);
+        double gyrZ = -pitchRate*sin(roll) + yawRate*cos(pitch)*cos(roll);
+        double accX = -sin(pitch);
+        double accY = sin(roll)*cos(pitch);
+        double accZ = cos(roll)*cos(pitch);
+        double temp = 25 + 2*sin(2*PI*t / 600);
+
+        double accScale = 16384 >> ((registers[ACCEL_CONFIG] >> 3) & 0x03); // LSB/g
+        double gyrScale = 131.0 / (1 << ((registers[GYRO_CONFIG] >> 3) & 0x03)) * 180 / PI; // LSB/rad/s
+        putShort(0, (accX + noise.nextGaussian()*ACC_NOISE) * accScale);
+        putShort(2, (accY + noise.nextGaussian()*ACC_NOISE) * accScale);
+        putShort(4, (accZ + noise.nextGaussian()*ACC_NOISE) * accScale);
+        putShort(6, (temp - 36.53) * 340);
+        putShort(8, (gyrX + biasX + noise.nextGaussian()*GYR_NOISE) * gyrScale);
+        putShort(10, (gyrY + biasY + noise.nextGaussian()*GYR_NOISE) * gyrScale);
+        putShort(12, (gyrZ + biasZ + noise.nextGaussian()*GYR_NOISE) * gyrScale);
+    }
+
+    // Store a big-endian 16-bit register value, saturated like the real sensor
+    private void putShort(int offset, double value){
+        long v = max(Short.MIN_VALUE, min(Short.MAX_VALUE, round(value)));
+        sample[offset] = (byte) (v >> 8);
+        sample[offset + 1] = (byte) v;
+    }
+
+    // Append the registers selected by FIFO_EN in register order
+    private void writeFifo(){
+        int enabled = registers[FIFO_EN] & 0xFF;
+        if ((enabled & 0x08) != 0){
+            pushFifo(0, 6); // accel x, y, z
+        }
+        if ((enabled & 0x80) != 0){
+            pushFifo(6, 2); // temp
+        }
+        for (int axis = 0; axis < 3; axis++){
+            if ((enabled & (0x40 >> axis)) != 0){
+                pushFifo(8 + 2*axis, 2); // gyro x, y, z
+            }
+        }
+    }
+
+    private void pushFifo(int offset, int length){
+        for (int i = 0; i < length; i++){
+            if (fifoCount == FIFO_SIZE){
+                fifoHead = (fifoHead + 1) % FIFO_SIZE; // full, the oldest byte is overwritten
+                fifoCount--;
+            }
+            fifo[(fifoHead + fifoCount) % FIFO_SIZE] = sample[offset + i];
+            fifoCount++;
+        }
+    }
+}
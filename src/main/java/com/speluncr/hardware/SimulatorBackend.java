@@ -0,0 +1,88 @@
+package com.speluncr.hardware;
+
+import com.speluncr.PropertyReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/************************************************************
+ * Simulated hardware for running the server away from the
+ * rover. Settings in servlet.conf:
+ *
+ *  SimulatorSeed          : seed for every random source
+ *  SimulatorRadiationCps  : mean Geiger counter rate (up to
+ *                           10^5 counts per second)
+ *  SimulatorGeigerPin     : pin the pulses arrive on
+ *  SimulatorMotion        : still, rock, spin or tumble
+ *
+ * The MPU6050 answers at 0x68 and 0x69 on any bus. Its data
+ * ready interrupt arrives on AttitudeInterruptPin. Outputs
+ * only remember their state.
+ ************************************************************/
+public class SimulatorBackend implements HardwareBackend {
+    private final long seed;
+    private final double radiationCps;
+    private final int geigerPin;
+    private final int imuInterruptPin;
+    private final SimulatedMPU6050 imu;
+    private final Map<Integer, SimulatedGeigerCounter> geigerCounters = new HashMap<>();
+    private final Map<Integer, DigitalOutput> outputs = new HashMap<>();
+
+    public SimulatorBackend(Properties properties){
+        seed = PropertyReader.getInt(properties, "SimulatorSeed", 1, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        radiationCps = PropertyReader.getDouble(properties, "SimulatorRadiationCps", 0.5, 0.001, 100000);
+        geigerPin = PropertyReader.getInt(properties, "SimulatorGeigerPin", 7, 0, 31);
+        imuInterruptPin = PropertyReader.getInt(properties, "AttitudeInterruptPin", 0, 0, 31);
+        imu = new SimulatedMPU6050(seed, SimulatedMPU6050.MotionProfile.fromName(
+                PropertyReader.getString(properties, "SimulatorMotion", "rock")));
+    }
+
+    @Override
+    public synchronized DigitalOutput provisionOutput(int pin, boolean high, boolean shutdownHigh){
+        return outputs.computeIfAbsent(pin, p -> value -> {});
+    }
+
+    @Override
+    public synchronized void attachInterrupt(int pin, Edge edge, Pull pull, Runnable handler) throws IOException{
+        if (pin == imuInterruptPin){
+            imu.setInterruptHandler(handler);
+        } else if (pin == geigerPin){
+            detachInterrupt(pin);
+            SimulatedGeigerCounter counter = new SimulatedGeigerCounter(seed, radiationCps, handler);
+            geigerCounters.put(pin, counter);
+            counter.start();
+            System.out.printf("[INFO]: Simulating %.1f Geiger counts per second on pin %d.\n", radiationCps, pin);
+        } else {
+            throw new IOException("No simulated signal on pin " + pin);
+        }
+    }
+
+    @Override
+    public synchronized void detachInterrupt(int pin){
+        if (pin == imuInterruptPin){
+            imu.setInterruptHandler(null);
+        }
+        SimulatedGeigerCounter counter = geigerCounters.remove(pin);
+        if (counter != null){
+            counter.stop();
+        }
+    }
+
+    @Override
+    public RegisterDevice openDevice(int bus, int address) throws IOException{
+        if (address != 0x68 && address != 0x69){
+            throw new IOException(String.format("No simulated device at address 0x%02X", address));
+        }
+        return imu.open();
+    }
+
+    @Override
+    public synchronized void shutdown(){
+        for (SimulatedGeigerCounter counter : geigerCounters.values()){
+            counter.stop();
+        }
+        geigerCounters.clear();
+        imu.close();
+    }
+}
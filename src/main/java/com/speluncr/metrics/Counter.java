@@ -0,0 +1,23 @@
+package com.speluncr.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/************************************************************
+ * Monotonic event counter. Lock-free and allocation-free, so
+ * it can be updated from interrupt and sampling threads.
+ ************************************************************/
+public class Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    public void increment(){
+        value.incrementAndGet();
+    }
+
+    public void add(long n){
+        value.addAndGet(n);
+    }
+
+    public long get(){
+        return value.get();
+    }
+}
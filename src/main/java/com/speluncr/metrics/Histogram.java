@@ -0,0 +1,68 @@
+package com.speluncr.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/************************************************************
+ * Latency histogram with fixed buckets. Values are recorded in
+ * nanoseconds and exposed in seconds. Recording is a bucket
+ * search and two atomic adds: no locks and no allocation.
+ *
+ * The default buckets run from 10 us to 10 s in 1-2.5-5 steps,
+ * which covers an I2C transfer as well as a stalled websocket.
+ ************************************************************/
+public class Histogram {
+    public static final long[] LATENCY_BUCKETS = {
+            10000L, 25000L, 50000L, 100000L, 250000L, 500000L, // 10 us - 500 us
+            1000000L, 2500000L, 5000000L, 10000000L, 25000000L, 50000000L, // 1 ms - 50 ms
+            100000000L, 250000000L, 500000000L, 1000000000L, 2500000000L, 5000000000L, 10000000000L}; // 100 ms - 10 s
+
+    private final long[] bounds; // upper bounds in ns, ascending
+    private final AtomicLongArray counts; // one per bound, then the +Inf bucket
+    private final AtomicLong sum = new AtomicLong(); // ns
+
+    public Histogram(){
+        this(LATENCY_BUCKETS);
+    }
+
+    public Histogram(long[] bounds){
+        this.bounds = bounds.clone();
+        counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long nanos){
+        int lo = 0, hi = bounds.length; // find the first bound >= nanos
+        while (lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if (bounds[mid] < nanos){
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        counts.incrementAndGet(lo);
+        sum.addAndGet(nanos);
+    }
+
+    // Record the time since a System.nanoTime() value
+    public void recordSince(long startNanos){
+        record(System.nanoTime() - startNanos);
+    }
+
+    int getBucketCount(){
+        return bounds.length;
+    }
+
+    long getBound(int bucket){
+        return bounds[bucket];
+    }
+
+    // Bucket i holds values up to bound i. The last bucket holds everything larger.
+    long getCount(int bucket){
+        return counts.get(bucket);
+    }
+
+    long getSum(){
+        return sum.get();
+    }
+}
@@ -0,0 +1,74 @@
+package com.speluncr.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+/************************************************************
+ * JVM metrics: heap use, garbage collections, threads and the
+ * bytes allocated by all threads. The allocation counter is
+ * the one to watch for the sensor paths, which should not
+ * allocate at all: its rate is the JVM allocation rate.
+ *
+ * Java 11 only reports allocations per live thread, so the
+ * counter adds up each thread's growth between scrapes.
+ * Allocations by a thread that ended since the last scrape
+ * are missed, which keeps the total monotonic.
+ ************************************************************/
+public final class JvmMetrics {
+    private static boolean registered = false;
+    private static final Map<Long, Long> THREAD_ALLOCATED = new HashMap<>(); // bytes by thread id at the last scrape
+    private static long allocated = 0; // guarded by THREAD_ALLOCATED
+
+    private JvmMetrics(){}
+
+    public static synchronized void register(){
+        if (registered){
+            return;
+        }
+        registered = true;
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Metrics.gauge("jvm_memory_heap_used_bytes", "Heap memory in use.",
+                () -> memory.getHeapMemoryUsage().getUsed());
+        Metrics.gauge("jvm_memory_heap_committed_bytes", "Heap memory committed by the JVM.",
+                () -> memory.getHeapMemoryUsage().getCommitted());
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            Metrics.counter("jvm_gc_collections_total", "Garbage collections.",
+                    gc::getCollectionCount, "gc", gc.getName());
+            Metrics.counter("jvm_gc_collection_seconds_total", "Time spent in garbage collections.",
+                    () -> gc.getCollectionTime() / 1e3, "gc", gc.getName());
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Metrics.gauge("jvm_threads", "Live threads.", threads::getThreadCount);
+        if (threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()){
+            com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+            allocation.setThreadAllocatedMemoryEnabled(true);
+            Metrics.counter("jvm_allocated_bytes_total", "Bytes allocated by all threads.",
+                    () -> allocatedBytes(allocation));
+        } else {
+            System.out.println("[INFO]: Thread allocation counting is not supported by this JVM.");
+        }
+    }
+
+    // Only called while scraping. Locks the map rather than the class, which register() holds while it calls Metrics.
+    private static double allocatedBytes(com.sun.management.ThreadMXBean threads){
+        synchronized (THREAD_ALLOCATED){
+            long[] ids = threads.getAllThreadIds();
+            long[] bytes = threads.getThreadAllocatedBytes(ids);
+            Map<Long, Long> previous = new HashMap<>(THREAD_ALLOCATED);
+            THREAD_ALLOCATED.clear();
+            for (int i = 0; i < ids.length; i++){
+                if (bytes[i] < 0){
+                    continue; // thread ended while reading
+                }
+                allocated += bytes[i] - previous.getOrDefault(ids[i], 0L);
+                THREAD_ALLOCATED.put(ids[i], bytes[i]);
+            }
+            return allocated;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.speluncr.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/************************************************************
+ * Registry of the server's metrics, written in the Prometheus
+ * text format (version 0.0.4) by the /metrics servlet path.
+ *
+ * Counters and histograms are created once, usually in a
+ * static field, and updated lock-free on the hot paths. Values
+ * that already exist elsewhere (queue sizes, drop counts kept
+ * by a component) are registered as functions that are only
+ * read when the metrics are scraped. Registering a function
+ * again replaces it, so components that are restarted can
+ * register their new state.
+ *
+ * Labels are given as name, value pairs. Metric and label
+ * names follow the Prometheus conventions: snake_case, a
+ * speluncr_ prefix, _total for counters and base units
+ * (seconds, bytes).
+ ************************************************************/
+public final class Metrics {
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final String HISTOGRAM = "histogram";
+    private static final Map<String, Family> FAMILIES = new LinkedHashMap<>(); // guarded by Metrics.class
+
+    // All series of one metric name. Series are a Counter, a Histogram or a DoubleSupplier.
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Object> series = new LinkedHashMap<>(); // by label text
+
+        Family(String name, String help, String type){
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private Metrics(){}
+
+    // Get or create a counter
+    public static synchronized Counter counter(String name, String help, String... labels){
+        Object series = family(name, help, COUNTER).series.computeIfAbsent(labelText(labels), k -> new Counter());
+        if (!(series instanceof Counter)){
+            throw new IllegalArgumentException(name + " is registered as a function");
+        }
+        return (Counter) series;
+    }
+
+    // Register a counter whose total is kept elsewhere
+    public static synchronized void counter(String name, String help, DoubleSupplier value, String... labels){
+        family(name, help, COUNTER).series.put(labelText(labels), value);
+    }
+
+    // Register a gauge, read when the metrics are scraped
+    public static synchronized void gauge(String name, String help, DoubleSupplier value, String... labels){
+        family(name, help, GAUGE).series.put(labelText(labels), value);
+    }
+
+    // Get or create a latency histogram with the default buckets
+    public static synchronized Histogram histogram(String name, String help, String... labels){
+        return (Histogram) family(name, help, HISTOGRAM).series.computeIfAbsent(labelText(labels), k -> new Histogram());
+    }
+
+    // Write every metric in the Prometheus text format
+    public static synchronized void write(Writer out) throws IOException{
+        StringBuilder text = new StringBuilder(8192);
+        for (Family family : FAMILIES.values()){
+            text.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            text.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()){
+                Object value = series.getValue();
+                if (value instanceof Histogram){
+                    writeHistogram(text, family.name, series.getKey(), (Histogram) value);
+                } else if (value instanceof Counter){
+                    writeSample(text, family.name, series.getKey(), ((Counter) value).get());
+                } else {
+                    double sample;
+                    try {
+                        sample = ((DoubleSupplier) value).getAsDouble();
+                    } catch (RuntimeException e){
+                        continue; // a component that is shutting down, skip it for this scrape
+                    }
+                    writeSample(text, family.name, series.getKey(), sample);
+                }
+            }
+        }
+        out.write(text.toString());
+    }
+
+    private static Family family(String name, String help, String type){
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(name, help, type));
+        if (!family.type.equals(type)){
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static void writeHistogram(StringBuilder text, String name, String labels, Histogram histogram){
+        // Buckets are cumulative in the text format
+        long cumulative = 0;
+        String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+        for (int i = 0; i <= histogram.getBucketCount(); i++){
+            cumulative += histogram.getCount(i);
+            String bound = i < histogram.getBucketCount() ? format(histogram.getBound(i) / 1e9) : "+Inf";
+            writeSample(text, name + "_bucket", prefix + "le=\"" + bound + "\"}", cumulative);
+        }
+        writeSample(text, name + "_sum", labels, histogram.getSum() / 1e9);
+        writeSample(text, name + "_count", labels, cumulative);
+    }
+
+    private static void writeSample(StringBuilder text, String name, String labels, double value){
+        text.append(name).append(labels).append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value){
+        if (Double.isNaN(value)){
+            return "NaN";
+        } else if (Double.isInfinite(value)){
+            return value > 0 ? "+Inf" : "-Inf";
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15){
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    // {name="value",...} with the values escaped, or an empty string without labels
+    private static String labelText(String[] labels){
+        if (labels.length % 2 != 0){
+            throw new IllegalArgumentException("Labels must be name, value pairs");
+        }
+        if (labels.length == 0){
+            return "";
+        }
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2){
+            if (i > 0){
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return text.append('}').toString();
+    }
+}
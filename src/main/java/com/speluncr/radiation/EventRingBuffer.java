@@ -0,0 +1,64 @@
+package com.speluncr.radiation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/************************************************************
+ * Lock-free single-producer/single-consumer ring buffer of
+ * primitive long values. The producer (the GPIO interrupt
+ * thread) only publishes and never blocks: when the buffer is
+ * full the value is dropped and counted as an overflow. The
+ * consumer drains values in batches into its own array.
+ ************************************************************/
+public class EventRingBuffer {
+    private final long[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next index to read, written by consumer
+    private final AtomicLong tail = new AtomicLong(); // next index to write, written by producer
+    private final AtomicLong overflows = new AtomicLong(); // written by producer
+    private long cachedHead = 0; // producer's last view of head
+
+    // Capacity is rounded up to a power of two
+    public EventRingBuffer(int capacity){
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        buffer = new long[size];
+        mask = size - 1;
+    }
+
+    // Producer only. Returns false if the buffer was full and the value was dropped.
+    public boolean publish(long value){
+        long t = tail.get();
+        if (t - cachedHead >= buffer.length){
+            cachedHead = head.get();
+            if (t - cachedHead >= buffer.length){
+                overflows.lazySet(overflows.get() + 1);
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = value;
+        tail.lazySet(t + 1); // ordered store publishes the value before the new tail
+        return true;
+    }
+
+    // Consumer only. Copies up to dst.length values into dst and returns how many were copied.
+    public int drain(long[] dst){
+        long h = head.get();
+        int n = (int) Math.min(tail.get() - h, dst.length);
+        for (int i = 0; i < n; i++){
+            dst[i] = buffer[(int) (h + i) & mask];
+        }
+        head.lazySet(h + n);
+        return n;
+    }
+
+    public int size(){
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity(){
+        return buffer.length;
+    }
+
+    public long getOverflowCount(){
+        return overflows.get();
+    }
+}
@@ -0,0 +1,72 @@
+package com.speluncr.radiation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.function.LongConsumer;
+
+/************************************************************
+ * Reads the radiation-<LocalDateTime>.data files written
+ * before the segmented log. Each event is a big-endian long of
+ * nanoseconds since the sensor started, a System.nanoTime()
+ * base that was never saved. The file name holds the local
+ * time the sensor started, so it anchors the events to
+ * absolute time to within a few milliseconds (the file was
+ * opened just before the base was taken).
+ *
+ * A partly written last event (power loss) is ignored.
+ ************************************************************/
+public class LegacyDataReader {
+    public static final String EXTENSION = ".data";
+    private static final long MAP_SIZE = 1L << 30; // bytes
+
+    private LegacyDataReader(){}
+
+    public static boolean isDataFile(File file){
+        return file.isFile() && file.getName().startsWith("radiation-") && file.getName().endsWith(EXTENSION);
+    }
+
+    // Epoch time (ns) the sensor started, from the file name in the server's time zone
+    public static long getStartTime(File file, ZoneId zone) throws IOException{
+        String name = file.getName();
+        String time = name.substring("radiation-".length(), name.length() - EXTENSION.length());
+        try {
+            Instant start = LocalDateTime.parse(time).atZone(zone).toInstant();
+            return start.getEpochSecond() * 1000000000L + start.getNano();
+        } catch (DateTimeParseException e){
+            throw new IOException(file + " does not have a start time in its name", e);
+        }
+    }
+
+    public static long getEventCount(File file){
+        return file.length() / Long.BYTES;
+    }
+
+    // Pass the absolute time (epoch ns) of each event to the consumer. Returns the number of events read.
+    public static long read(File file, ZoneId zone, LongConsumer epochNanosConsumer) throws IOException{
+        long start = getStartTime(file, zone);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            long size = channel.size() / Long.BYTES * Long.BYTES;
+            long count = 0;
+            // Map at most MAP_SIZE bytes at a time, since a mapping is limited to 2 GB
+            for (long position = 0; position < size; position += MAP_SIZE){
+                LongBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_SIZE, size - position)).asLongBuffer();
+                while (offsets.hasRemaining()){
+                    long offset = offsets.get();
+                    if (offset >= 0){ // anything else is garbage from a damaged file
+                        epochNanosConsumer.accept(start + offset);
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+}
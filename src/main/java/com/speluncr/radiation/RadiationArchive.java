@@ -0,0 +1,360 @@
+package com.speluncr.radiation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/************************************************************
+ * Compressed, time-ordered archive of Geiger counter events
+ * made by RadiationCompactor from the radiation logs.
+ *
+ *   header (64 bytes, big-endian)
+ *     0  long  magic "SPLRARCH"
+ *     8  int   format version
+ *     12 int   header size
+ *     16 long  event count
+ *     24 long  first event, epoch time (ns)
+ *     32 long  last event, epoch time (ns)
+ *     40 long  index offset
+ *     48 int   block count
+ *     52       reserved
+ *   blocks
+ *     deflated unsigned LEB128 varints of the nanoseconds
+ *     since the previous event (the block's first event for
+ *     the first), as in RadiationLog
+ *   index (40 bytes per block)
+ *     long first event, long last event, long file offset,
+ *     int compressed length, int uncompressed length,
+ *     int event count, int reserved
+ *
+ * Blocks are compressed independently, so they can be built
+ * in parallel and a time range is read by a binary search of
+ * the index and inflating only the blocks it covers.
+ ************************************************************/
+public class RadiationArchive {
+    public static final long MAGIC = 0x53504C5241524348L; // "SPLRARCH"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int INDEX_ENTRY_SIZE = 40;
+    public static final String EXTENSION = ".rarc";
+    private static final int MAX_VARINT = 10; // bytes
+
+    private RadiationArchive(){}
+
+    public static boolean isArchive(File file){
+        return file.isFile() && file.getName().endsWith(EXTENSION);
+    }
+
+    /************************************************************
+     * One compressed block of consecutive events.
+     ************************************************************/
+    public static class Block {
+        private final long first;
+        private final long last;
+        private final int events;
+        private final int rawLength;
+        private final byte[] data;
+
+        private Block(long first, long last, int events, int rawLength, byte[] data){
+            this.first = first;
+            this.last = last;
+            this.events = events;
+            this.rawLength = rawLength;
+            this.data = data;
+        }
+
+        // Compress times[from, to), which must be in time order. Safe to call from several threads.
+        public static Block compress(long[] times, int from, int to){
+            byte[] raw = new byte[(to - from) * MAX_VARINT];
+            int length = 0;
+            long previous = times[from];
+            for (int i = from; i < to; i++){
+                long delta = times[i] - previous;
+                while ((delta & ~0x7FL) != 0){
+                    raw[length++] = (byte) ((delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                }
+                raw[length++] = (byte) delta;
+                previous = times[i];
+            }
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try {
+                deflater.setInput(raw, 0, length);
+                deflater.finish();
+                byte[] data = new byte[length + length / 1000 + 64];
+                int compressed = 0;
+                while (!deflater.finished()){
+                    if (compressed == data.length){
+                        data = Arrays.copyOf(data, data.length * 2);
+                    }
+                    compressed += deflater.deflate(data, compressed, data.length - compressed);
+                }
+                return new Block(times[from], times[to - 1], to - from, length,
+                        Arrays.copyOf(data, compressed));
+            } finally {
+                deflater.end();
+            }
+        }
+
+        public int getEventCount(){
+            return events;
+        }
+
+        public int getCompressedLength(){
+            return data.length;
+        }
+    }
+
+    /************************************************************
+     * Writes blocks in time order to a temporary file that
+     * replaces the archive when it is closed, so an existing
+     * archive survives a failed compaction. Not thread safe.
+     ************************************************************/
+    public static class Writer implements AutoCloseable {
+        private final File file;
+        private final File temporary;
+        private final FileChannel channel;
+        private ByteBuffer index = ByteBuffer.allocate(64 * INDEX_ENTRY_SIZE);
+        private long offset = HEADER_SIZE;
+        private long events = 0;
+        private long first = 0;
+        private long last = Long.MIN_VALUE;
+        private int blocks = 0;
+        private boolean closed = false;
+
+        public Writer(File file) throws IOException{
+            this.file = file;
+            temporary = new File(file.getPath() + ".tmp");
+            channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        public void add(Block block) throws IOException{
+            if (block.first < last){
+                throw new IOException("Archive blocks must be added in time order");
+            }
+            write(ByteBuffer.wrap(block.data), offset);
+            if (index.remaining() < INDEX_ENTRY_SIZE){
+                ByteBuffer grown = ByteBuffer.allocate(index.capacity() * 2);
+                index.flip();
+                index = grown.put(index);
+            }
+            index.putLong(block.first).putLong(block.last).putLong(offset)
+                    .putInt(block.data.length).putInt(block.rawLength).putInt(block.events).putInt(0);
+            if (blocks == 0){
+                first = block.first;
+            }
+            last = block.last;
+            offset += block.data.length;
+            events += block.events;
+            blocks++;
+        }
+
+        // Write the index and header, sync and replace the archive
+        @Override
+        public void close() throws IOException{
+            if (closed){
+                return;
+            }
+            closed = true;
+            try {
+                index.flip();
+                write(index, offset);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putLong(events)
+                        .putLong(first).putLong(blocks == 0 ? 0 : last).putLong(offset).putInt(blocks).clear();
+                write(header, 0);
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Close and delete the temporary file, leaving any existing archive as it was
+        public void abort(){
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+            if (!temporary.delete()){
+                System.err.printf("[WARNING]: Could not delete %s.\n", temporary);
+            }
+        }
+
+        private void write(ByteBuffer buffer, long position) throws IOException{
+            while (buffer.hasRemaining()){
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /************************************************************
+     * Memory-mapped archive reader. The index is read when the
+     * archive is opened. Reads from several threads are safe.
+     ************************************************************/
+    public static class Reader implements AutoCloseable {
+        private final FileChannel channel;
+        private final long events;
+        private final int blocks;
+        private final long[] firstTimes;
+        private final long[] lastTimes;
+        private final long[] offsets;
+        private final int[] compressedLengths;
+        private final int[] rawLengths;
+        private final int[] eventCounts;
+
+        public Reader(File file) throws IOException{
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size < HEADER_SIZE){
+                    throw new IOException(file + " is too short to be a radiation archive");
+                }
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getLong(0) != MAGIC){
+                    throw new IOException(file + " is not a radiation archive");
+                }
+                if (header.getInt(8) > VERSION){
+                    throw new IOException(file + " uses unsupported archive version " + header.getInt(8));
+                }
+                events = header.getLong(16);
+                long indexOffset = header.getLong(40);
+                blocks = header.getInt(48);
+                if (blocks < 0 || indexOffset + (long) blocks * INDEX_ENTRY_SIZE > size){
+                    throw new IOException(file + " is truncated");
+                }
+                firstTimes = new long[blocks];
+                lastTimes = new long[blocks];
+                offsets = new long[blocks];
+                compressedLengths = new int[blocks];
+                rawLengths = new int[blocks];
+                eventCounts = new int[blocks];
+                MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                        (long) blocks * INDEX_ENTRY_SIZE);
+                for (int i = 0; i < blocks; i++){
+                    firstTimes[i] = index.getLong();
+                    lastTimes[i] = index.getLong();
+                    offsets[i] = index.getLong();
+                    compressedLengths[i] = index.getInt();
+                    rawLengths[i] = index.getInt();
+                    eventCounts[i] = index.getInt();
+                    index.getInt();
+                }
+            } catch (IOException e){
+                channel.close();
+                throw e;
+            }
+        }
+
+        public long getEventCount(){
+            return events;
+        }
+
+        public int getBlockCount(){
+            return blocks;
+        }
+
+        // Epoch time of the first event (ns), or 0 if empty
+        public long getStartTime(){
+            return blocks == 0 ? 0 : firstTimes[0];
+        }
+
+        // Epoch time of the last event (ns), or 0 if empty
+        public long getEndTime(){
+            return blocks == 0 ? 0 : lastTimes[blocks - 1];
+        }
+
+        // Pass the times of the events in [fromNanos, toNanos) to the consumer. Returns the number of events.
+        public long read(long fromNanos, long toNanos, LongConsumer epochNanosConsumer) throws IOException{
+            // Last times increase with the block, so the first block that can hold fromNanos is a binary search
+            int low = 0, high = blocks;
+            while (low < high){
+                int middle = (low + high) >>> 1;
+                if (lastTimes[middle] < fromNanos){
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            long count = 0;
+            Inflater inflater = new Inflater();
+            try {
+                for (int block = low; block < blocks && firstTimes[block] < toNanos; block++){
+                    count += readBlock(block, inflater, fromNanos, toNanos, epochNanosConsumer);
+                }
+            } finally {
+                inflater.end();
+            }
+            return count;
+        }
+
+        public long readAll(LongConsumer epochNanosConsumer) throws IOException{
+            return read(Long.MIN_VALUE, Long.MAX_VALUE, epochNanosConsumer);
+        }
+
+        private int readBlock(int block, Inflater inflater, long fromNanos, long toNanos,
+                              LongConsumer epochNanosConsumer) throws IOException{
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, offsets[block], compressedLengths[block]);
+            byte[] raw = new byte[rawLengths[block]];
+            inflater.reset();
+            inflater.setInput(data);
+            try {
+                int length = 0;
+                while (length < raw.length && !inflater.finished()){
+                    int n = inflater.inflate(raw, length, raw.length - length);
+                    if (n == 0 && inflater.needsInput()){
+                        break;
+                    }
+                    length += n;
+                }
+                if (length != raw.length){
+                    throw new IOException("Archive block " + block + " is truncated");
+                }
+            } catch (DataFormatException e){
+                throw new IOException("Archive block " + block + " is corrupt", e);
+            }
+
+            long time = firstTimes[block];
+            int count = 0;
+            int position = 0;
+            for (int i = 0; i < eventCounts[block] && position < raw.length; i++){
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = raw[position++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0 && position < raw.length);
+                time += delta;
+                if (time >= toNanos){
+                    break;
+                }
+                if (time >= fromNanos){
+                    epochNanosConsumer.accept(time);
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException{
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package com.speluncr.radiation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/************************************************************
+ * Command line tool that merges radiation event files into
+ * one time-ordered RadiationArchive and/or a CSV file:
+ *
+ *   RadiationCompactor [options] <file or directory>...
+ *     --archive <file>  write a .rarc archive
+ *     --csv <file>      write time,epoch_ns rows
+ *     --zone <id>       time zone of the server that wrote
+ *                       the .data files (default: this one)
+ *     --from <time>     only events at or after this time
+ *     --to <time>       only events before this time
+ *     --block <events>  events per archive block (65536)
+ *     --threads <n>     worker threads (all processors)
+ *
+ * Inputs are legacy .data files, .rlog segments and .rarc
+ * archives, or directories searched for them. Times are epoch
+ * seconds or ISO-8601 instants.
+ *
+ * Files are memory-mapped and decoded in parallel by a
+ * fork/join pool, then merged pairwise up the task tree.
+ * Files from separate sessions do not overlap, so most merges
+ * are concatenations. Events with the same time, in one file
+ * or several, are stored once, so an archive can be compacted
+ * again together with newer logs. Archive blocks and CSV rows are
+ * produced in parallel batches and written in order. All
+ * events are held in memory while merging, 8 bytes each.
+ ************************************************************/
+public class RadiationCompactor {
+    private static final int DEFAULT_BLOCK_EVENTS = 65536;
+    private static final int CSV_ROW_SIZE = 64; // bytes, at most
+    private static final int BATCH_BLOCKS_PER_THREAD = 4; // blocks built per thread before writing them
+    private final ZoneId zone;
+    private final long fromNanos;
+    private final long toNanos;
+    private final int blockEvents;
+    private final ForkJoinPool pool;
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    public RadiationCompactor(ZoneId zone, long fromNanos, long toNanos, int blockEvents, int threads){
+        this.zone = zone;
+        this.fromNanos = fromNanos;
+        this.toNanos = toNanos;
+        this.blockEvents = blockEvents;
+        pool = new ForkJoinPool(threads);
+    }
+
+    public static void main(String[] args){
+        File archive = null, csv = null;
+        ZoneId zone = ZoneId.systemDefault();
+        long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+        int blockEvents = DEFAULT_BLOCK_EVENTS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> inputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++){
+                switch (args[i]){
+                    case "--archive":
+                        archive = new File(args[++i]);
+                        break;
+                    case "--csv":
+                        csv = new File(args[++i]);
+                        break;
+                    case "--zone":
+                        zone = ZoneId.of(args[++i]);
+                        break;
+                    case "--from":
+                        from = parseTime(args[++i]);
+                        break;
+                    case "--to":
+                        to = parseTime(args[++i]);
+                        break;
+                    case "--block":
+                        blockEvents = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--threads":
+                        threads = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        if (args[i].startsWith("--")){
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        inputs.add(new File(args[i]));
+                }
+            }
+        } catch (RuntimeException e){
+            System.err.printf("[ERROR]: %s\n", e instanceof ArrayIndexOutOfBoundsException ? "Missing option value" : e.getMessage());
+            usage();
+            System.exit(2);
+        }
+        if (inputs.isEmpty() || (archive == null && csv == null)){
+            usage();
+            System.exit(2);
+        }
+
+        RadiationCompactor compactor = new RadiationCompactor(zone, from, to, blockEvents, threads);
+        try {
+            List<File> files = findFiles(inputs);
+            long start = System.nanoTime();
+            long[] events = compactor.load(files);
+            System.out.printf("[INFO]: Read %d events from %d files (%d skipped) in %.2f s.\n", events.length,
+                    files.size(), compactor.skipped.get(), (System.nanoTime() - start) / 1e9);
+            start = System.nanoTime();
+            compactor.write(events, archive, csv);
+            System.out.printf("[INFO]: Wrote %d events in %.2f s.\n", events.length, (System.nanoTime() - start) / 1e9);
+        } catch (IOException e){
+            System.err.printf("[ERROR]: Compaction failed: %s\n", e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            compactor.pool.shutdown();
+        }
+    }
+
+    private static void usage(){
+        System.err.println("Usage: RadiationCompactor [--archive <file.rarc>] [--csv <file.csv>] [--zone <id>]"
+                + " [--from <time>] [--to <time>] [--block <events>] [--threads <n>] <file or directory>...");
+    }
+
+    // Epoch seconds or an ISO-8601 instant, as epoch ns
+    private static long parseTime(String value){
+        Instant instant = value.chars().allMatch(Character::isDigit)
+                ? Instant.ofEpochSecond(Long.parseLong(value)) : Instant.parse(value);
+        return instant.getEpochSecond() * 1000000000L + instant.getNano();
+    }
+
+    // Radiation files given directly or found in the given directories, sorted by name
+    private static List<File> findFiles(List<File> inputs) throws IOException{
+        List<File> files = new ArrayList<>();
+        for (File input : inputs){
+            if (input.isDirectory()){
+                try (Stream<Path> paths = Files.walk(input.toPath())){
+                    files.addAll(paths.map(Path::toFile).filter(RadiationCompactor::isEventFile).collect(Collectors.toList()));
+                }
+            } else if (isEventFile(input)){
+                files.add(input);
+            } else {
+                System.err.printf("[WARNING]: %s is not a radiation data file, log or archive. Skipping.\n", input);
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+
+    private static boolean isEventFile(File file){
+        return LegacyDataReader.isDataFile(file) || RadiationLogReader.isLogFile(file) || RadiationArchive.isArchive(file);
+    }
+
+    // Read the files in parallel and return their events in time order
+    public long[] load(List<File> files){
+        if (files.isEmpty()){
+            return new long[0];
+        }
+        Events events = pool.invoke(new LoadTask(files, 0, files.size()));
+        return Arrays.copyOf(events.times, events.size);
+    }
+
+    // Write events in blocks of blockEvents to the archive and/or CSV file (either may be null)
+    public void write(long[] events, File archiveFile, File csvFile) throws IOException{
+        int blocks = (events.length + blockEvents - 1) / blockEvents;
+        int batch = pool.getParallelism() * BATCH_BLOCKS_PER_THREAD;
+        RadiationArchive.Block[] archiveBlocks = archiveFile == null ? null : new RadiationArchive.Block[batch];
+        byte[][] csvBlocks = csvFile == null ? null : new byte[batch][];
+        long compressed = 0;
+
+        RadiationArchive.Writer archive = archiveFile == null ? null : new RadiationArchive.Writer(archiveFile);
+        try (OutputStream csv = csvFile == null ? OutputStream.nullOutputStream() : Files.newOutputStream(csvFile.toPath())){
+            csv.write("time,epoch_ns\n".getBytes(StandardCharsets.US_ASCII));
+            for (int first = 0; first < blocks; first += batch){
+                int count = Math.min(batch, blocks - first);
+                pool.invoke(new OutputTask(events, first, 0, count, archiveBlocks, csvBlocks));
+                for (int i = 0; i < count; i++){
+                    if (archive != null){
+                        archive.add(archiveBlocks[i]);
+                        compressed += archiveBlocks[i].getCompressedLength();
+                    }
+                    if (csvBlocks != null){
+                        csv.write(csvBlocks[i]);
+                    }
+                }
+            }
+            if (archive != null){
+                archive.close();
+                System.out.printf("[INFO]: Archived %d events in %d blocks to %s (%.2f bytes per event).\n",
+                        events.length, blocks, archiveFile, events.length == 0 ? 0 : (double) compressed / events.length);
+            }
+        } catch (IOException | RuntimeException e){
+            if (archive != null){
+                archive.abort();
+            }
+            throw e;
+        }
+        if (csvFile != null){
+            System.out.printf("[INFO]: Exported %d events to %s.\n", events.length, csvFile);
+        }
+    }
+
+    /************************************************************
+     * Growable array of event times.
+     ************************************************************/
+    private static class Events {
+        long[] times;
+        int size = 0;
+
+        Events(int capacity){
+            times = new long[Math.max(16, capacity)];
+        }
+
+        void add(long time){
+            if (size == times.length){
+                times = Arrays.copyOf(times, size * 2);
+            }
+            times[size++] = time;
+        }
+
+        long first(){
+            return times[0];
+        }
+
+        long last(){
+            return times[size - 1];
+        }
+    }
+
+    /************************************************************
+     * Decodes files[from, to) by splitting the range in half
+     * until one file is left, then merges the sorted halves.
+     ************************************************************/
+    private class LoadTask extends RecursiveTask<Events> {
+        private static final long serialVersionUID = 1L;
+        private final List<File> files;
+        private final int from;
+        private final int to;
+
+        LoadTask(List<File> files, int from, int to){
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Events compute(){
+            if (to - from == 1){
+                return read(files.get(from));
+            }
+            int middle = (from + to) >>> 1;
+            LoadTask left = new LoadTask(files, from, middle);
+            left.fork();
+            Events right = new LoadTask(files, middle, to).compute();
+            return merge(left.join(), right);
+        }
+    }
+
+    private Events read(File file){
+        Events events;
+        try {
+            if (LegacyDataReader.isDataFile(file)){
+                events = new Events((int) Math.min(Integer.MAX_VALUE - 8, LegacyDataReader.getEventCount(file)));
+                LegacyDataReader.read(file, zone, time -> {
+                    if (time >= fromNanos && time < toNanos){
+                        events.add(time);
+                    }
+                });
+            } else if (RadiationLogReader.isLogFile(file)){
+                events = new Events(1024);
+                RadiationLogReader.read(file, time -> {
+                    if (time >= fromNanos && time < toNanos){
+                        events.add(time);
+                    }
+                });
+            } else {
+                try (RadiationArchive.Reader archive = new RadiationArchive.Reader(file)){
+                    events = new Events((int) Math.min(Integer.MAX_VALUE - 8, archive.getEventCount()));
+                    archive.read(fromNanos, toNanos, events::add);
+                }
+            }
+        } catch (IOException e){
+            System.err.printf("[WARNING]: Skipping %s: %s\n", file, e.getMessage());
+            skipped.incrementAndGet();
+            return new Events(0);
+        }
+        // Events are logged in order, but sort in case a clock went backwards
+        for (int i = 1; i < events.size; i++){
+            if (events.times[i] < events.times[i - 1]){
+                Arrays.sort(events.times, 0, events.size);
+                break;
+            }
+        }
+        // Keep one of each time, so files that do not overlap can be concatenated by merge()
+        int n = Math.min(1, events.size);
+        for (int i = 1; i < events.size; i++){
+            if (events.times[i] != events.times[n - 1]){
+                events.times[n++] = events.times[i];
+            }
+        }
+        events.size = n;
+        return events;
+    }
+
+    // Merge two sorted event lists that each hold one of each time, keeping one of each time
+    private static Events merge(Events a, Events b){
+        if (a.size == 0){
+            return b;
+        }
+        if (b.size == 0){
+            return a;
+        }
+        if (b.last() < a.first()){
+            Events swap = a;
+            a = b;
+            b = swap;
+        }
+        if ((long) a.size + b.size > Integer.MAX_VALUE - 8){
+            throw new IllegalStateException("Too many events to merge in one archive");
+        }
+        Events merged = new Events(a.size + b.size);
+        long[] out = merged.times;
+        int i = 0, j = 0, n = 0;
+        if (a.last() < b.first()){
+            // Separate sessions, no overlap
+            System.arraycopy(a.times, 0, out, 0, a.size);
+            System.arraycopy(b.times, 0, out, a.size, b.size);
+            merged.size = a.size + b.size;
+            return merged;
+        }
+        while (i < a.size && j < b.size){
+            long next = a.times[i] <= b.times[j] ? a.times[i++] : b.times[j++];
+            if (n == 0 || out[n - 1] != next){
+                out[n++] = next;
+            }
+        }
+        while (i < a.size){
+            if (out[n - 1] != a.times[i]){
+                out[n++] = a.times[i];
+            }
+            i++;
+        }
+        while (j < b.size){
+            if (out[n - 1] != b.times[j]){
+                out[n++] = b.times[j];
+            }
+            j++;
+        }
+        merged.size = n;
+        return merged;
+    }
+
+    /************************************************************
+     * Builds the archive block and CSV rows of blocks
+     * [first + from, first + to) into slots [from, to).
+     ************************************************************/
+    private class OutputTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long[] events;
+        private final int first;
+        private final int from;
+        private final int to;
+        private final RadiationArchive.Block[] archiveBlocks;
+        private final byte[][] csvBlocks;
+
+        OutputTask(long[] events, int first, int from, int to, RadiationArchive.Block[] archiveBlocks, byte[][] csvBlocks){
+            this.events = events;
+            this.first = first;
+            this.from = from;
+            this.to = to;
+            this.archiveBlocks = archiveBlocks;
+            this.csvBlocks = csvBlocks;
+        }
+
+        @Override
+        protected void compute(){
+            if (to - from > 1){
+                int middle = (from + to) >>> 1;
+                invokeAll(new OutputTask(events, first, from, middle, archiveBlocks, csvBlocks),
+                        new OutputTask(events, first, middle, to, archiveBlocks, csvBlocks));
+                return;
+            }
+            int start = (first + from) * blockEvents;
+            int end = Math.min(events.length, start + blockEvents);
+            if (archiveBlocks != null){
+                archiveBlocks[from] = RadiationArchive.Block.compress(events, start, end);
+            }
+            if (csvBlocks != null){
+                csvBlocks[from] = formatCsv(events, start, end);
+            }
+        }
+    }
+
+    // Rows of "<ISO-8601 UTC time with ns>,<epoch ns>". Much faster than Instant.toString() for millions of rows.
+    private static byte[] formatCsv(long[] events, int from, int to){
+        byte[] out = new byte[(to - from) * CSV_ROW_SIZE];
+        byte[] day = null; // "yyyy-MM-ddT"
+        long currentDay = Long.MIN_VALUE;
+        int n = 0;
+        for (int i = from; i < to; i++){
+            long time = events[i];
+            long second = Math.floorDiv(time, 1000000000L);
+            long nanos = Math.floorMod(time, 1000000000L);
+            long epochDay = Math.floorDiv(second, 86400);
+            int secondOfDay = Math.floorMod(second, 86400);
+            if (epochDay != currentDay){
+                currentDay = epochDay;
+                day = (LocalDate.ofEpochDay(epochDay) + "T").getBytes(StandardCharsets.US_ASCII);
+            }
+            System.arraycopy(day, 0, out, n, day.length);
+            n += day.length;
+            n = digits(out, n, secondOfDay / 3600, 2);
+            out[n++] = ':';
+            n = digits(out, n, secondOfDay / 60 % 60, 2);
+            out[n++] = ':';
+            n = digits(out, n, secondOfDay % 60, 2);
+            out[n++] = '.';
+            n = digits(out, n, nanos, 9);
+            out[n++] = 'Z';
+            out[n++] = ',';
+            if (time < 0){
+                out[n++] = '-';
+                time = -time;
+            }
+            int width = 1;
+            for (long value = time; value >= 10; value /= 10){
+                width++;
+            }
+            n = digits(out, n, time, width);
+            out[n++] = '\n';
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // Write value as width decimal digits, zero padded
+    private static int digits(byte[] out, int position, long value, int width){
+        for (int i = position + width - 1; i >= position; i--){
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + width;
+    }
+}
@@ -0,0 +1,174 @@
+package com.speluncr.radiation;
+
+import com.speluncr.metrics.Histogram;
+import com.speluncr.metrics.Metrics;
+import com.speluncr.scheduler.ScheduledTask;
+import com.speluncr.scheduler.SensorScheduler;
+import java.io.IOException;
+
+/************************************************************
+ * Consumer side of the radiation event capture. A scheduled
+ * task drains event timestamps (System.nanoTime() values)
+ * from the ring buffer in batches, appends them to the
+ * radiation log and counts them into 1-second periods taken
+ * from the timestamps themselves. Periods are aligned to epoch
+ * seconds and each completed period is passed to the count
+ * listener.
+ *
+ * The log is committed after every batch and synced to the
+ * storage device at the configured interval.
+ *
+ * The latency from each interrupt to the log commit, and from
+ * the end of each second to its broadcast, are recorded in
+ * the metrics.
+ ************************************************************/
+public class RadiationEventWriter {
+    private static final long SECOND = 1000000000L; // ns
+    private static final long DRAIN_PERIOD = 10000000L; // ns between drains
+    private static final long LATE_EVENT_GRACE = 50000000L; // ns to wait for events still in flight
+    private static final Histogram LOG_LATENCY = Metrics.histogram("speluncr_radiation_isr_to_log_seconds",
+            "Time from each Geiger counter interrupt until its event was committed to the radiation log.");
+    private static final Histogram BROADCAST_LATENCY = Metrics.histogram("speluncr_radiation_isr_to_broadcast_seconds",
+            "Time from the end of each counted second (its last possible interrupt) until the count was broadcast.");
+    private final EventRingBuffer events;
+    private final CountListener countListener;
+    private final long epochAnchor; // epoch ns at nanoAnchor
+    private final long nanoAnchor;
+    private final long syncInterval; // ns
+    private final long[] batch = new long[4096];
+    private RadiationLog log;
+    private long periodEnd; // end of the current 1-second period (nanoTime)
+    private long periodSecond; // epoch second of the current period
+    private int periodCount = 0;
+    private long lastSync;
+    private long reportedOverflows = 0;
+    private ScheduledTask task = null;
+    private volatile boolean logging; // false once the log could not be written
+
+    public interface CountListener {
+        void onPeriod(long epochSecond, int count);
+    }
+
+    // epochAnchor is the epoch time (ns) at System.nanoTime() == nanoAnchor.
+    // The log may be null if it could not be opened.
+    public RadiationEventWriter(EventRingBuffer events, RadiationLog log, long syncInterval, long epochAnchor,
+                                long nanoAnchor, CountListener countListener){
+        this.events = events;
+        this.log = log;
+        logging = log != null;
+        this.syncInterval = syncInterval;
+        this.countListener = countListener;
+        this.epochAnchor = epochAnchor;
+        this.nanoAnchor = nanoAnchor;
+        periodSecond = Math.floorDiv(epochAnchor, SECOND);
+        periodEnd = nanoAnchor + (periodSecond + 1) * SECOND - epochAnchor;
+        lastSync = nanoAnchor;
+    }
+
+    // Convert a System.nanoTime() value to epoch nanoseconds
+    public long toEpochNanos(long nanoTime){
+        return epochAnchor + (nanoTime - nanoAnchor);
+    }
+
+    public synchronized void start(SensorScheduler scheduler){
+        if (task == null){
+            task = scheduler.scheduleAtFixedRate("radiation-writer", DRAIN_PERIOD, this::drain);
+        }
+    }
+
+    // False if events are not being saved because the log could not be opened or written
+    public boolean isLogging(){
+        return logging;
+    }
+
+    // Drain everything left in the buffer, then commit and close the log
+    public synchronized void stop(){
+        if (task == null){
+            return;
+        }
+        boolean idle = task.cancel(); // waits for a drain in progress
+        task = null;
+        if (!idle){
+            // The drain is the buffer's only consumer and the log's only writer, so both are left to it
+            System.err.println("[WARNING]: Radiation event writer still draining, leaving the log open.");
+            return;
+        }
+        drain();
+        if (log != null){
+            log.close();
+            log = null;
+        }
+    }
+
+    private void drain(){
+        int n;
+        while ((n = events.drain(batch)) > 0){
+            for (int i = 0; i < n; i++){
+                long time = batch[i];
+                // Close any periods that ended before this event, including empty ones
+                while (time >= periodEnd){
+                    closePeriod();
+                }
+                periodCount++;
+                write(time);
+            }
+            if (log != null){
+                log.commit();
+                long committed = System.nanoTime();
+                for (int i = 0; i < n; i++){
+                    LOG_LATENCY.record(committed - batch[i]);
+                }
+            }
+        }
+
+        // Close periods that have ended once late events have had a chance to arrive
+        long now = System.nanoTime();
+        while (now >= periodEnd + LATE_EVENT_GRACE){
+            closePeriod();
+        }
+        if (log != null && now - lastSync >= syncInterval){
+            log.force();
+            lastSync = now;
+            try {
+                log.rollOverIfExpired(now);
+            } catch (IOException e){
+                failLog(e);
+            }
+        }
+    }
+
+    private void closePeriod(){
+        countListener.onPeriod(periodSecond, periodCount);
+        BROADCAST_LATENCY.record(System.nanoTime() - periodEnd);
+        periodCount = 0;
+        periodSecond++;
+        periodEnd += SECOND;
+
+        long overflows = events.getOverflowCount();
+        if (overflows != reportedOverflows){
+            System.err.printf("[WARNING]: Radiation event buffer overflowed. %d events lost in total.\n", overflows);
+            reportedOverflows = overflows;
+        }
+    }
+
+    private void write(long time){
+        if (log == null){
+            return;
+        }
+        try {
+            log.append(time);
+        } catch (IOException e){
+            failLog(e);
+        }
+    }
+
+    // Stop logging if a segment cannot be created. Counts are still broadcast.
+    private void failLog(IOException e){
+        System.err.printf("[ERROR]: Failed to start a new radiation log segment in %s. Events are no longer saved.\n",
+                log.getDirectory());
+        e.printStackTrace();
+        log.close();
+        log = null;
+        logging = false;
+    }
+}
@@ -0,0 +1,188 @@
+package com.speluncr.radiation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/************************************************************
+ * Segmented, memory-mapped log of Geiger counter events.
+ *
+ * Each segment is a preallocated file mapped into memory:
+ *
+ *   header (64 bytes, big-endian)
+ *     0  long  magic "SPLRADLG"
+ *     8  int   format version
+ *     12 int   header size
+ *     16 long  anchor, epoch time (ns since 1970 UTC)
+ *     24 long  anchor, System.nanoTime() at the same instant
+ *     32 long  committed length (bytes, including the header)
+ *     40 long  committed event count
+ *     48 long  nanoTime of the last committed event
+ *     56 long  reserved
+ *   events
+ *     unsigned LEB128 varint of the nanoseconds since the
+ *     previous event (the anchor for the first event)
+ *
+ * Readers only trust bytes up to the committed length, which
+ * is updated after every batch. If the JVM dies the mapped
+ * pages are still written back by the OS, so at most the batch
+ * in progress is lost. force() is called periodically to bound
+ * the loss on power failure without syncing on every batch.
+ *
+ * A new segment is started when the current one is full or
+ * older than the segment duration. File names use UTC basic
+ * ISO-8601 time so they contain no colons.
+ ************************************************************/
+public class RadiationLog {
+    public static final long MAGIC = 0x53504C5241444C47L; // "SPLRADLG"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final String EXTENSION = ".rlog";
+    static final int COMMITTED_LENGTH = 32;
+    static final int EVENT_COUNT = 40;
+    static final int LAST_EVENT = 48;
+    private static final int MAX_VARINT = 10; // bytes
+    private static final DateTimeFormatter FILE_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    private final File directory;
+    private final long segmentBytes;
+    private final long segmentNanos;
+    private final long sessionEpochNanos; // epoch time of sessionNanoTime
+    private final long sessionNanoTime;
+
+    private RandomAccessFile file = null;
+    private MappedByteBuffer map = null;
+    private File segmentFile = null;
+    private long segmentEnd; // nanoTime when the current segment expires
+    private long lastEvent; // nanoTime of the last appended event
+    private long eventCount = 0;
+
+    // Open the first segment. sessionEpochNanos is the epoch time at System.nanoTime() == sessionNanoTime.
+    public RadiationLog(File directory, long segmentBytes, long segmentNanos, long sessionEpochNanos,
+                        long sessionNanoTime) throws IOException{
+        this.directory = directory;
+        this.segmentBytes = Math.max(HEADER_SIZE + 4096, segmentBytes);
+        this.segmentNanos = segmentNanos;
+        this.sessionEpochNanos = sessionEpochNanos;
+        this.sessionNanoTime = sessionNanoTime;
+        openSegment(sessionNanoTime);
+    }
+
+    // Convert a System.nanoTime() value from this JVM to epoch nanoseconds
+    public long toEpochNanos(long nanoTime){
+        return sessionEpochNanos + (nanoTime - sessionNanoTime);
+    }
+
+    public File getDirectory(){
+        return directory;
+    }
+
+    public File getSegmentFile(){
+        return segmentFile;
+    }
+
+    // Append one event. Events must be appended in time order.
+    public void append(long nanoTime) throws IOException{
+        if (map.remaining() < MAX_VARINT || nanoTime - segmentEnd >= 0){
+            rollOver();
+        }
+        long delta = Math.max(0, nanoTime - lastEvent);
+        while ((delta & ~0x7FL) != 0){
+            map.put((byte) ((delta & 0x7F) | 0x80));
+            delta >>>= 7;
+        }
+        map.put((byte) delta);
+        lastEvent = nanoTime;
+        eventCount++;
+    }
+
+    // Mark everything appended so far as valid for readers
+    public void commit(){
+        if (map == null){
+            return;
+        }
+        map.putLong(EVENT_COUNT, eventCount);
+        map.putLong(LAST_EVENT, lastEvent);
+        map.putLong(COMMITTED_LENGTH, map.position());
+    }
+
+    // Write committed pages to the storage device
+    public void force(){
+        if (map != null){
+            map.force();
+        }
+    }
+
+    // Start a new segment if the current one has been open longer than the segment duration
+    public void rollOverIfExpired(long nanoTime) throws IOException{
+        if (map != null && eventCount > 0 && nanoTime - segmentEnd >= 0){
+            rollOver();
+        }
+    }
+
+    // Commit, sync and trim the current segment to its committed length
+    public void close(){
+        if (map == null){
+            return;
+        }
+        commit();
+        force();
+        long length = map.position();
+        map = null;
+        try {
+            file.getChannel().truncate(length);
+        } catch (IOException e){
+            System.err.printf("close(): Failed to trim %s.\n", segmentFile);
+            e.printStackTrace();
+        }
+        try {
+            file.close();
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+        file = null;
+    }
+
+    private void rollOver() throws IOException{
+        close();
+        // The new segment is anchored at the last event so deltas stay positive
+        openSegment(lastEvent);
+    }
+
+    private void openSegment(long anchorNanoTime) throws IOException{
+        long anchorEpoch = toEpochNanos(anchorNanoTime);
+        String name = "radiation-" + FILE_TIME.format(Instant.ofEpochSecond(0, anchorEpoch));
+        File candidate = new File(directory, name + EXTENSION);
+        for (int i = 1; candidate.exists(); i++){
+            candidate = new File(directory, name + "-" + i + EXTENSION);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(candidate, "rw");
+        try {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } catch (IOException e){
+            raf.close();
+            throw e;
+        }
+        file = raf;
+        segmentFile = candidate;
+        segmentEnd = Math.max(anchorNanoTime, System.nanoTime()) + segmentNanos;
+        lastEvent = anchorNanoTime;
+        eventCount = 0;
+
+        map.putLong(0, MAGIC);
+        map.putInt(8, VERSION);
+        map.putInt(12, HEADER_SIZE);
+        map.putLong(16, anchorEpoch);
+        map.putLong(24, anchorNanoTime);
+        map.putLong(56, 0);
+        map.position(HEADER_SIZE);
+        commit();
+    }
+}
@@ -0,0 +1,61 @@
+package com.speluncr.radiation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+
+/************************************************************
+ * Reads the committed events of a RadiationLog segment and
+ * passes their absolute times (epoch nanoseconds) to a
+ * consumer. Bytes after the committed length are ignored, so
+ * segments left behind by a crash can be read safely.
+ ************************************************************/
+public class RadiationLogReader {
+    private RadiationLogReader(){}
+
+    public static boolean isLogFile(File file){
+        return file.isFile() && file.getName().startsWith("radiation-")
+                && file.getName().endsWith(RadiationLog.EXTENSION);
+    }
+
+    // Returns the number of events read
+    public static long read(File file, LongConsumer epochNanosConsumer) throws IOException{
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            if (channel.size() < RadiationLog.HEADER_SIZE){
+                throw new IOException(file + " is too short to be a radiation log");
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.getLong(0) != RadiationLog.MAGIC){
+                throw new IOException(file + " is not a radiation log");
+            }
+            if (map.getInt(8) > RadiationLog.VERSION){
+                throw new IOException(file + " uses unsupported log version " + map.getInt(8));
+            }
+            int headerSize = map.getInt(12);
+            long anchorEpoch = map.getLong(16);
+            long committed = Math.min(map.getLong(RadiationLog.COMMITTED_LENGTH), channel.size());
+
+            map.limit((int) committed);
+            map.position(headerSize);
+            long time = anchorEpoch;
+            long count = 0;
+            while (map.hasRemaining()){
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = map.get();
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0 && map.hasRemaining());
+                time += delta;
+                epochNanosConsumer.accept(time);
+                count++;
+            }
+            return count;
+        }
+    }
+}
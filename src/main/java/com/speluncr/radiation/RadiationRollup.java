@@ -0,0 +1,155 @@
+package com.speluncr.radiation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/************************************************************
+ * Multi-resolution index of Geiger counter counts. Counts for
+ * each completed second are added to three circular levels of
+ * primitive arrays: 1 second buckets (2 days), 1 minute
+ * buckets (90 days) and 1 hour buckets (5 years). Queries read
+ * the finest level whose buckets divide the requested bins and
+ * that still holds the start of the range, so they never have
+ * to scan the raw event logs. A range no level holds at that
+ * resolution is refused rather than read as zero counts.
+ *
+ * The index is kept in memory and rebuilt from the radiation
+ * logs when the server starts.
+ ************************************************************/
+public class RadiationRollup {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private final Level[] levels = {
+            new Level(1, 2*86400),
+            new Level(60, 90*1440),
+            new Level(3600, 5*8760)
+    };
+
+    private static class Level {
+        final int bucketSeconds;
+        final long[] bucketIds; // bucket number stored in each slot, -1 if unused
+        final int[] counts;
+        long newest = Long.MIN_VALUE; // newest bucket added
+
+        Level(int bucketSeconds, int capacity){
+            this.bucketSeconds = bucketSeconds;
+            bucketIds = new long[capacity];
+            counts = new int[capacity];
+            Arrays.fill(bucketIds, -1);
+        }
+
+        void add(long epochSecond, int count){
+            long bucket = Math.floorDiv(epochSecond, bucketSeconds);
+            int slot = (int) Math.floorMod(bucket, (long) counts.length);
+            if (bucketIds[slot] != bucket){
+                // Slot belongs to an older bucket. Drop it unless this bucket is older still.
+                if (bucketIds[slot] > bucket){
+                    return;
+                }
+                bucketIds[slot] = bucket;
+                counts[slot] = 0;
+            }
+            counts[slot] = (int) Math.min(Integer.MAX_VALUE, (long) counts[slot] + count);
+            newest = Math.max(newest, bucket);
+        }
+
+        long get(long bucket){
+            int slot = (int) Math.floorMod(bucket, (long) counts.length);
+            return bucketIds[slot] == bucket ? counts[slot] : 0;
+        }
+
+        // True if this level still holds the bucket that contains epochSecond. An empty level has lost nothing.
+        boolean retains(long epochSecond){
+            return newest == Long.MIN_VALUE || Math.floorDiv(epochSecond, bucketSeconds) > newest - counts.length;
+        }
+    }
+
+    // Add the counts for one completed second
+    public synchronized void add(long epochSecond, int count){
+        for (Level level : levels){
+            level.add(epochSecond, count);
+        }
+    }
+
+    /**
+     * Fill counts with the total counts of consecutive bins of resolution seconds,
+     * the first starting at fromSecond. fromSecond should be a multiple of resolution.
+     * Returns false, leaving counts unchanged, if no level holds fromSecond in buckets
+     * that divide the bins, e.g. 90 s bins from before the 1 s buckets kept.
+     */
+    public synchronized boolean query(long fromSecond, int resolution, long[] counts, int bins){
+        // Use the finest level that divides the bins and still holds the start time
+        Level level = null;
+        for (Level l : levels){
+            if (resolution % l.bucketSeconds == 0 && Math.floorMod(fromSecond, l.bucketSeconds) == 0 && l.retains(fromSecond)){
+                level = l;
+                break;
+            }
+        }
+        if (level == null){
+            return false;
+        }
+
+        int bucketsPerBin = Math.max(1, resolution / level.bucketSeconds);
+        long bucket = Math.floorDiv(fromSecond, level.bucketSeconds);
+        for (int i = 0; i < bins; i++){
+            long sum = 0;
+            for (int b = 0; b < bucketsPerBin; b++){
+                sum += level.get(bucket++);
+            }
+            counts[i] = sum;
+        }
+        return true;
+    }
+
+    // Rebuild the index from every radiation log in the directory, keeping only events before endEpochNanos
+    public void rebuild(File directory, long endEpochNanos){
+        File[] files = directory.listFiles(RadiationLogReader::isLogFile);
+        if (files == null){
+            return;
+        }
+        long start = System.nanoTime();
+        long events = 0;
+        for (File file : files){
+            SecondCounter counter = new SecondCounter(endEpochNanos);
+            try {
+                events += RadiationLogReader.read(file, counter::accept);
+            } catch (IOException e){
+                System.err.printf("[INFO]: Skipping %s while rebuilding radiation index: %s\n", file, e.getMessage());
+            }
+            counter.finish();
+        }
+        System.out.printf("[INFO]: Radiation index rebuilt from %d logs (%d events) in %d ms.\n",
+                files.length, events, (System.nanoTime() - start) / 1000000);
+    }
+
+    // Counts time ordered events into seconds and adds each completed second to the index
+    private class SecondCounter {
+        private final long endEpochNanos;
+        private long second = Long.MIN_VALUE;
+        private int count = 0;
+
+        SecondCounter(long endEpochNanos){
+            this.endEpochNanos = endEpochNanos;
+        }
+
+        void accept(long epochNanos){
+            if (epochNanos >= endEpochNanos){
+                return;
+            }
+            long s = Math.floorDiv(epochNanos, NANOS_PER_SECOND);
+            if (s != second){
+                finish();
+                second = s;
+            }
+            count++;
+        }
+
+        void finish(){
+            if (count > 0){
+                add(second, count);
+            }
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.speluncr.radiation;
+
+import java.util.Arrays;
+
+/************************************************************
+ * Running statistics of the Geiger counter, updated with the
+ * count of each completed second (periods are cut from the
+ * event timestamps by RadiationEventWriter).
+ *
+ * Sliding windows of 1 s, 10 s, 60 s and 10 min share one ring
+ * of per-second counts. Each window keeps a running sum, so an
+ * update costs the same whatever the window length. For each
+ * window the engine gives the count rate (CPM), a 95% Poisson
+ * confidence interval and the dose rate (uSv/h). An
+ * exponential moving average smooths the rate for display.
+ *
+ * With a tube dead time set, rates are corrected for the
+ * events lost while the tube recovers: n = m / (1 - m*tau).
+ ************************************************************/
+public class RadiationStatistics {
+    public static final int[] WINDOWS = {1, 10, 60, 600}; // seconds
+    private static final int CAPACITY = 600; // seconds of counts kept, the longest window
+    private static final double Z = 1.959964; // normal quantile for a 95% interval
+
+    private final double usvPerCpm;
+    private final double deadTime; // s, 0 for no correction
+    private final double emaAlpha;
+    private final int[] counts = new int[CAPACITY];
+    private final long[] sums = new long[WINDOWS.length];
+    private long lastSecond = Long.MIN_VALUE; // newest second added
+    private long seconds = 0; // consecutive seconds added since the last gap
+    private double ema = Double.NaN; // measured counts per second
+
+    public RadiationStatistics(double usvPerCpm, double deadTimeSeconds, double emaSeconds){
+        this.usvPerCpm = usvPerCpm;
+        this.deadTime = deadTimeSeconds;
+        emaAlpha = 1 - Math.exp(-1 / emaSeconds);
+    }
+
+    // Add the count of one completed second
+    public synchronized void add(long epochSecond, int count){
+        if (epochSecond <= lastSecond){
+            return;
+        }
+        // The windows only hold consecutive seconds. Start again after a gap (e.g. the sensor was stopped).
+        if (epochSecond != lastSecond + 1){
+            seconds = 0;
+            ema = Double.NaN;
+            Arrays.fill(sums, 0);
+        }
+        int slot = (int) Math.floorMod(epochSecond, (long) CAPACITY);
+        for (int w = 0; w < WINDOWS.length; w++){
+            if (seconds >= WINDOWS[w]){
+                sums[w] -= counts[Math.floorMod(slot - WINDOWS[w], CAPACITY)]; // second leaving the window
+            }
+            sums[w] += count;
+        }
+        counts[slot] = count;
+        lastSecond = epochSecond;
+        seconds++;
+        ema = Double.isNaN(ema) ? count : ema + emaAlpha * (count - ema);
+    }
+
+    // Newest second in the windows
+    public synchronized long getLastSecond(){
+        return lastSecond;
+    }
+
+    // Seconds of data in window w (WINDOWS index). Less than the window length just after a start.
+    public synchronized int getSeconds(int w){
+        return (int) Math.min(seconds, WINDOWS[w]);
+    }
+
+    // Total counts in window w
+    public synchronized long getCount(int w){
+        return sums[w];
+    }
+
+    // Counts per minute in window w, dead time corrected
+    public synchronized double getCpm(int w){
+        return rate(sums[w], w);
+    }
+
+    // Lower bound of the 95% confidence interval of the CPM in window w
+    public synchronized double getCpmLower(int w){
+        long n = sums[w];
+        if (n == 0){
+            return 0;
+        }
+        double c = 1 - 1 / (9d * n) - Z / (3 * Math.sqrt(n));
+        return rate(n * c * c * c, w);
+    }
+
+    // Upper bound of the 95% confidence interval of the CPM in window w
+    public synchronized double getCpmUpper(int w){
+        long n = sums[w] + 1;
+        double c = 1 - 1 / (9d * n) + Z / (3 * Math.sqrt(n));
+        return rate(n * c * c * c, w);
+    }
+
+    public synchronized double getDoseRate(int w){
+        return getCpm(w) * usvPerCpm;
+    }
+
+    // Exponential moving average of the CPM, dead time corrected
+    public synchronized double getEmaCpm(){
+        return Double.isNaN(ema) ? 0 : 60 * correct(ema);
+    }
+
+    public synchronized double getEmaDoseRate(){
+        return getEmaCpm() * usvPerCpm;
+    }
+
+    // Convert counts in window w to corrected counts per minute
+    private double rate(double count, int w){
+        int n = getSeconds(w);
+        return n == 0 ? 0 : 60 * correct(count / n);
+    }
+
+    // Correct a measured count rate (cps) for dead time. Saturates where the tube would be paralysed.
+    private double correct(double cps){
+        if (deadTime <= 0){
+            return cps;
+        }
+        double busy = Math.min(cps * deadTime, 0.99);
+        return cps / (1 - busy);
+    }
+}
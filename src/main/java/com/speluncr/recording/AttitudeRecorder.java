@@ -0,0 +1,234 @@
+package com.speluncr.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/************************************************************
+ * Records attitude frames to columnar files (see
+ * AttitudeRecording) without slowing the sampling thread.
+ *
+ * record() copies the frame into a fixed size single-producer
+ * ring of primitive columns and returns. If the ring is full
+ * the frame is dropped and counted. A background thread
+ * drains the ring into blocks and writes each block with one
+ * channel write. Files rotate at a maximum size and the
+ * oldest recordings are deleted beyond a maximum file count.
+ ************************************************************/
+public class AttitudeRecorder {
+    private static final int CAPACITY = 4096; // frames buffered between the sampler and the writer
+    private static final long DRAIN_PERIOD = 250000000L; // ns
+    private static final long MAX_BLOCK_AGE = 10000000000L; // ns a partial block waits before it is written
+    private static final long MAX_BLOCK_SPAN = 0xFFFFFFFFL * 1000; // ns, block time offsets are uint32 us
+    private static final DateTimeFormatter FILE_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    private final File directory;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final long epochAnchor; // epoch ns at nanoAnchor
+    private final long nanoAnchor;
+
+    // Ring of frames written by the sampling thread
+    private final long[] times = new long[CAPACITY];
+    private final float[] rolls = new float[CAPACITY];
+    private final float[] pitches = new float[CAPACITY];
+    private final float[] yaws = new float[CAPACITY];
+    private final float[] temps = new float[CAPACITY];
+    private final AtomicLong head = new AtomicLong(); // written by the writer thread
+    private final AtomicLong tail = new AtomicLong(); // written by the sampling thread
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Block being assembled by the writer thread
+    private final ByteBuffer block = ByteBuffer.allocateDirect(
+            AttitudeRecording.BLOCK_HEADER_SIZE + AttitudeRecording.BLOCK_FRAMES * AttitudeRecording.FRAME_SIZE);
+    private final long[] blockTimes = new long[AttitudeRecording.BLOCK_FRAMES];
+    private final float[] blockRolls = new float[AttitudeRecording.BLOCK_FRAMES];
+    private final float[] blockPitches = new float[AttitudeRecording.BLOCK_FRAMES];
+    private final float[] blockYaws = new float[AttitudeRecording.BLOCK_FRAMES];
+    private final float[] blockTemps = new float[AttitudeRecording.BLOCK_FRAMES];
+    private int blockCount = 0;
+
+    private FileChannel channel = null;
+    private File file = null;
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    public AttitudeRecorder(File directory, long maxFileBytes, int maxFiles){
+        this.directory = directory;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        Instant now = Instant.now();
+        nanoAnchor = System.nanoTime();
+        epochAnchor = now.getEpochSecond() * 1000000000L + now.getNano();
+    }
+
+    public synchronized void start(){
+        if (running){
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "Attitude Recorder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Write everything still buffered and close the file
+    public synchronized void stop(){
+        if (!running){
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Called by the sampling thread. Never blocks or allocates.
+    public void record(long nanoTime, double roll, double pitch, double yaw, double temp){
+        long t = tail.get();
+        if (t - head.get() >= CAPACITY){
+            dropped.lazySet(dropped.get() + 1);
+            return;
+        }
+        int i = (int) t & (CAPACITY - 1);
+        times[i] = nanoTime;
+        rolls[i] = (float) roll;
+        pitches[i] = (float) pitch;
+        yaws[i] = (float) yaw;
+        temps[i] = (float) temp;
+        tail.lazySet(t + 1);
+    }
+
+    public long getDroppedCount(){
+        return dropped.get();
+    }
+
+    private void run(){
+        while (running){
+            LockSupport.parkNanos(this, DRAIN_PERIOD);
+            drain();
+        }
+        drain();
+        writeBlock();
+        closeFile();
+    }
+
+    private void drain(){
+        long h = head.get();
+        long t = tail.get();
+        for (; h < t; h++){
+            int i = (int) h & (CAPACITY - 1);
+            long epochNanos = epochAnchor + (times[i] - nanoAnchor);
+            if (blockCount == AttitudeRecording.BLOCK_FRAMES
+                    || (blockCount > 0 && epochNanos - blockTimes[0] > MAX_BLOCK_SPAN)){
+                writeBlock();
+            }
+            blockTimes[blockCount] = epochNanos;
+            blockRolls[blockCount] = rolls[i];
+            blockPitches[blockCount] = pitches[i];
+            blockYaws[blockCount] = yaws[i];
+            blockTemps[blockCount] = temps[i];
+            blockCount++;
+        }
+        head.lazySet(h);
+
+        // Don't hold a slow block in memory for long
+        if (blockCount > 0 && epochAnchor + (System.nanoTime() - nanoAnchor) - blockTimes[0] > MAX_BLOCK_AGE){
+            writeBlock();
+        }
+    }
+
+    private void writeBlock(){
+        if (blockCount == 0){
+            return;
+        }
+        int n = blockCount;
+        blockCount = 0;
+        block.clear();
+        block.putInt(AttitudeRecording.BLOCK_MAGIC).putInt(n).putLong(blockTimes[0]);
+        for (int i = 0; i < n; i++){
+            block.putInt((int) ((blockTimes[i] - blockTimes[0]) / 1000));
+        }
+        for (int i = 0; i < n; i++){
+            block.putFloat(blockRolls[i]);
+        }
+        for (int i = 0; i < n; i++){
+            block.putFloat(blockPitches[i]);
+        }
+        for (int i = 0; i < n; i++){
+            block.putFloat(blockYaws[i]);
+        }
+        for (int i = 0; i < n; i++){
+            block.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(blockTemps[i] * 100))));
+        }
+        block.flip();
+
+        try {
+            if (channel == null || channel.size() + block.remaining() > maxFileBytes){
+                openFile(blockTimes[0]);
+            }
+            while (block.hasRemaining()){
+                channel.write(block);
+            }
+        } catch (IOException e){
+            System.err.printf("[ERROR]: Failed to write attitude recording %s.\n", file);
+            e.printStackTrace();
+            closeFile();
+        }
+    }
+
+    private void openFile(long epochNanos) throws IOException{
+        closeFile();
+        deleteOldRecordings();
+        String name = "attitude-" + FILE_TIME.format(Instant.ofEpochSecond(0, epochNanos));
+        file = new File(directory, name + AttitudeRecording.EXTENSION);
+        for (int i = 1; file.exists(); i++){
+            file = new File(directory, name + "-" + i + AttitudeRecording.EXTENSION);
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(AttitudeRecording.HEADER_SIZE);
+        header.putLong(AttitudeRecording.MAGIC).putInt(AttitudeRecording.VERSION).putInt(0).flip();
+        while (header.hasRemaining()){
+            channel.write(header);
+        }
+        System.out.printf("[INFO]: Recording attitude to %s\n", file);
+    }
+
+    private void closeFile(){
+        if (channel == null){
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+
+    // Keep at most maxFiles recordings, including the one about to be created
+    private void deleteOldRecordings(){
+        File[] recordings = directory.listFiles(AttitudeRecording::isRecording);
+        if (recordings == null || recordings.length < maxFiles){
+            return;
+        }
+        Arrays.sort(recordings); // names sort by time
+        for (int i = 0; i <= recordings.length - maxFiles; i++){
+            if (!recordings[i].delete()){
+                System.err.printf("[INFO]: Could not delete old attitude recording %s\n", recordings[i]);
+            }
+        }
+    }
+}
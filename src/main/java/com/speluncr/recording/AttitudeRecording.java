@@ -0,0 +1,189 @@
+package com.speluncr.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/************************************************************
+ * Columnar attitude recording file format and reader.
+ *
+ *   file header (16 bytes, big-endian)
+ *     long magic "SPLATREC", int version, int reserved
+ *   blocks of up to BLOCK_FRAMES frames
+ *     int   block magic "ABLK"
+ *     int   frame count n
+ *     long  epoch time of the first frame (ns)
+ *     int[n]   time since the first frame (us)
+ *     float[n] roll (rad)
+ *     float[n] pitch (rad)
+ *     float[n] yaw (rad)
+ *     short[n] temperature (0.01 C)
+ *
+ * A frame takes 18 bytes. Opening a recording only reads the
+ * block headers to build an index, so seeking is a binary
+ * search and replay keeps one decoded block in memory.
+ * A truncated last block (power loss) is ignored.
+ ************************************************************/
+public class AttitudeRecording implements AutoCloseable {
+    public static final long MAGIC = 0x53504C4154524543L; // "SPLATREC"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int BLOCK_MAGIC = 0x41424C4B; // "ABLK"
+    public static final int BLOCK_HEADER_SIZE = 16;
+    public static final int FRAME_SIZE = 18;
+    public static final int BLOCK_FRAMES = 1024;
+    public static final String EXTENSION = ".arec";
+
+    private final FileChannel channel;
+    private long[] blockOffsets = new long[64];
+    private long[] blockTimes = new long[64];
+    private int[] blockCounts = new int[64];
+    private int blocks = 0;
+    private long frames = 0;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE + BLOCK_FRAMES * FRAME_SIZE);
+
+    // Decoded frames of the most recently read block
+    private int loadedBlock = -1;
+    private int loadedCount = 0;
+    private final long[] time = new long[BLOCK_FRAMES];
+    private final float[] roll = new float[BLOCK_FRAMES];
+    private final float[] pitch = new float[BLOCK_FRAMES];
+    private final float[] yaw = new float[BLOCK_FRAMES];
+    private final float[] temp = new float[BLOCK_FRAMES];
+
+    public AttitudeRecording(File file) throws IOException{
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header, 0) < HEADER_SIZE || header.getLong(0) != MAGIC){
+                throw new IOException(file + " is not an attitude recording");
+            }
+            buildIndex();
+        } catch (IOException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static boolean isRecording(File file){
+        return file.isFile() && file.getName().startsWith("attitude-") && file.getName().endsWith(EXTENSION);
+    }
+
+    private void buildIndex() throws IOException{
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        long offset = HEADER_SIZE;
+        long size = channel.size();
+        while (offset + BLOCK_HEADER_SIZE <= size){
+            header.clear();
+            channel.read(header, offset);
+            int count = header.getInt(4);
+            if (header.getInt(0) != BLOCK_MAGIC || count <= 0 || count > BLOCK_FRAMES
+                    || offset + BLOCK_HEADER_SIZE + (long) count * FRAME_SIZE > size){
+                break;
+            }
+            if (blocks == blockOffsets.length){
+                blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+                blockTimes = Arrays.copyOf(blockTimes, blocks * 2);
+                blockCounts = Arrays.copyOf(blockCounts, blocks * 2);
+            }
+            blockOffsets[blocks] = offset;
+            blockTimes[blocks] = header.getLong(8);
+            blockCounts[blocks] = count;
+            blocks++;
+            frames += count;
+            offset += BLOCK_HEADER_SIZE + (long) count * FRAME_SIZE;
+        }
+    }
+
+    public int getBlockCount(){
+        return blocks;
+    }
+
+    public long getFrameCount(){
+        return frames;
+    }
+
+    // Epoch time of the first frame (ns), or 0 if empty
+    public long getStartTime(){
+        return blocks == 0 ? 0 : blockTimes[0];
+    }
+
+    // Epoch time of the last frame (ns), or 0 if empty
+    public long getEndTime() throws IOException{
+        if (blocks == 0){
+            return 0;
+        }
+        loadBlock(blocks - 1);
+        return time[loadedCount - 1];
+    }
+
+    // Index of the block that contains epochNanos (the first block if it is before the recording)
+    public int findBlock(long epochNanos){
+        int index = Arrays.binarySearch(blockTimes, 0, blocks, epochNanos);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    // Decode a block into the frame arrays and return its frame count
+    public int loadBlock(int block) throws IOException{
+        if (block == loadedBlock){
+            return loadedCount;
+        }
+        int count = blockCounts[block];
+        buffer.clear();
+        buffer.limit(BLOCK_HEADER_SIZE + count * FRAME_SIZE);
+        while (buffer.hasRemaining()){
+            if (channel.read(buffer, blockOffsets[block] + buffer.position()) < 0){
+                throw new IOException("Unexpected end of recording");
+            }
+        }
+        long first = buffer.getLong(8);
+        int pos = BLOCK_HEADER_SIZE;
+        for (int i = 0; i < count; i++, pos += 4){
+            time[i] = first + (buffer.getInt(pos) & 0xFFFFFFFFL) * 1000;
+        }
+        for (int i = 0; i < count; i++, pos += 4){
+            roll[i] = buffer.getFloat(pos);
+        }
+        for (int i = 0; i < count; i++, pos += 4){
+            pitch[i] = buffer.getFloat(pos);
+        }
+        for (int i = 0; i < count; i++, pos += 4){
+            yaw[i] = buffer.getFloat(pos);
+        }
+        for (int i = 0; i < count; i++, pos += 2){
+            temp[i] = buffer.getShort(pos) / 100f;
+        }
+        loadedBlock = block;
+        loadedCount = count;
+        return count;
+    }
+
+    // Accessors for frames of the loaded block
+    public long getTime(int i){
+        return time[i];
+    }
+
+    public float getRoll(int i){
+        return roll[i];
+    }
+
+    public float getPitch(int i){
+        return pitch[i];
+    }
+
+    public float getYaw(int i){
+        return yaw[i];
+    }
+
+    public float getTemp(int i){
+        return temp[i];
+    }
+
+    @Override
+    public void close() throws IOException{
+        channel.close();
+    }
+}
@@ -0,0 +1,129 @@
+package com.speluncr.recording;
+
+import com.speluncr.websocket.AttitudeEndpoint;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/************************************************************
+ * Streams an attitude recording through AttitudeEndpoint with
+ * the original frame timing, scaled by a speed factor. While a
+ * replay is running the live attitude frames are held back so
+ * viewers only see the recording. A running replay can be
+ * seeked to any time in the recording.
+ ************************************************************/
+public class AttitudeReplay {
+    private final File file;
+    private final double speed;
+    private volatile long seekTarget; // epoch ns, or -1 if no seek is pending
+    private volatile long position = 0; // epoch ns of the last frame sent
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    // Replay file at speed times real time, starting at startEpochNanos (0 for the beginning)
+    public AttitudeReplay(File file, double speed, long startEpochNanos){
+        this.file = file;
+        this.speed = speed;
+        seekTarget = startEpochNanos;
+    }
+
+    public synchronized void start(){
+        if (running){
+            return;
+        }
+        running = true;
+        AttitudeEndpoint.setReplaying(true);
+        thread = new Thread(this::run, "Attitude Replay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop(){
+        running = false;
+        if (thread != null){
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void seek(long epochNanos){
+        seekTarget = epochNanos;
+        LockSupport.unpark(thread);
+    }
+
+    public boolean isRunning(){
+        return running;
+    }
+
+    public File getFile(){
+        return file;
+    }
+
+    public double getSpeed(){
+        return speed;
+    }
+
+    public long getPosition(){
+        return position;
+    }
+
+    private void run(){
+        try (AttitudeRecording recording = new AttitudeRecording(file)){
+            int block = 0, frame = 0;
+            long recordingStart = 0, wallStart = 0; // frame time and nanoTime that the schedule is based on
+
+            while (running && block < recording.getBlockCount()){
+                // Restart the schedule at a new position after a seek
+                long target = seekTarget;
+                if (target >= 0){
+                    seekTarget = -1;
+                    block = recording.findBlock(target);
+                    int count = recording.loadBlock(block);
+                    frame = 0;
+                    while (frame < count - 1 && recording.getTime(frame) < target){
+                        frame++;
+                    }
+                    recordingStart = recording.getTime(frame);
+                    wallStart = System.nanoTime();
+                }
+
+                int count = recording.loadBlock(block);
+                if (frame >= count){
+                    block++;
+                    frame = 0;
+                    continue;
+                }
+
+                // Wait until this frame is due
+                long time = recording.getTime(frame);
+                long due = wallStart + (long) ((time - recordingStart) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0){
+                    LockSupport.parkNanos(this, wait);
+                    continue; // re-check for stop, seek or early wake up
+                }
+
+                ByteBuffer bb = AttitudeEndpoint.acquireFrame();
+                if (bb != null){
+                    AttitudeEndpoint.setFrame(bb, time / 1000, recording.getRoll(frame), recording.getPitch(frame),
+                            recording.getYaw(frame), recording.getTemp(frame));
+                    AttitudeEndpoint.broadcastReplay(bb);
+                }
+                position = time;
+                frame++;
+            }
+            System.out.printf("[INFO]: Attitude replay of %s finished.\n", file.getName());
+        } catch (IOException e){
+            System.err.printf("[ERROR]: Failed to replay attitude recording %s.\n", file);
+            e.printStackTrace();
+        } finally {
+            running = false;
+            AttitudeEndpoint.setReplaying(false);
+        }
+    }
+}
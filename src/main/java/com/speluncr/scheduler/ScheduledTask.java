@@ -0,0 +1,176 @@
+package com.speluncr.scheduler;
+
+import com.speluncr.metrics.Counter;
+import com.speluncr.metrics.Histogram;
+import com.speluncr.metrics.Metrics;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/************************************************************
+ * A fixed-rate task of the SensorScheduler. Tick k is due at
+ * base + k * num / den nanoseconds, computed from the tick
+ * number rather than by adding periods, so the schedule never
+ * drifts. A tick never runs while the previous one is still
+ * running: that tick is skipped and the previous one counted
+ * as an overrun.
+ *
+ * Ticks, skipped ticks, overruns and errors are kept per task
+ * and in the metrics, with the lateness of each tick's start
+ * after its deadline.
+ ************************************************************/
+public class ScheduledTask {
+    private static final int MAX_REPORTED_ERRORS = 10; // stack traces printed before errors are only counted
+
+    private final SensorScheduler scheduler;
+    private final String name;
+    private final Runnable action;
+    final Runnable runner = this::run; // handed to the workers on every tick without allocating
+    private final long num; // period = num / den ns
+    private final long den;
+    private final long base; // nanoTime of tick 0
+    private long tick; // next tick to run, only used by the timing thread
+    private long deadline; // nanoTime of that tick
+    private long overrunDeadline; // deadline of the tick after the one running, handed to the worker with it
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile boolean cancelled = false;
+    private final AtomicLong ticks = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final Counter ticksMetric;
+    private final Counter skippedMetric;
+    private final Counter overrunsMetric;
+    private final Counter errorsMetric;
+    private final Histogram lateness;
+
+    ScheduledTask(SensorScheduler scheduler, String name, long num, long den, long base, long firstTick, Runnable action){
+        this.scheduler = scheduler;
+        this.name = name;
+        this.num = num;
+        this.den = den;
+        this.base = base;
+        this.action = action;
+        tick = firstTick;
+        deadline = deadlineOf(firstTick);
+        ticksMetric = Metrics.counter("speluncr_scheduler_ticks_total", "Scheduled task ticks run.", "task", name);
+        skippedMetric = Metrics.counter("speluncr_scheduler_skipped_total",
+                "Ticks skipped because the task was still running or the scheduler was late.", "task", name);
+        overrunsMetric = Metrics.counter("speluncr_scheduler_overruns_total",
+                "Ticks that ran past the deadline of the next tick.", "task", name);
+        errorsMetric = Metrics.counter("speluncr_scheduler_errors_total", "Ticks that threw an exception.", "task", name);
+        lateness = Metrics.histogram("speluncr_scheduler_lateness_seconds",
+                "Time from each tick's deadline until it started running.", "task", name);
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    // Stop future ticks and wait up to a second for a running tick to finish. Returns false if a tick is
+    // still running, in which case the caller must not release anything the action uses.
+    public boolean cancel(){
+        cancelled = true;
+        scheduler.remove(this);
+        long end = System.nanoTime() + 1000000000L;
+        while (running.get() && System.nanoTime() - end < 0){
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return !running.get();
+    }
+
+    public boolean isCancelled(){
+        return cancelled;
+    }
+
+    public long getTickCount(){
+        return ticks.get();
+    }
+
+    public long getSkippedCount(){
+        return skipped.get();
+    }
+
+    public long getOverrunCount(){
+        return overruns.get();
+    }
+
+    public long getErrorCount(){
+        return errors.get();
+    }
+
+    long getDeadline(){
+        return deadline;
+    }
+
+    // Called by the timing thread when the deadline has passed. Returns true if the tick should be run.
+    boolean due(long now){
+        // Skip ticks the scheduler was too late for, keeping only the newest one that is due
+        long latest = tickAt(now);
+        if (latest > tick){
+            skipped.addAndGet(latest - tick);
+            skippedMetric.add(latest - tick);
+            tick = latest;
+        }
+        long tickDeadline = deadlineOf(tick);
+        tick++;
+        deadline = deadlineOf(tick);
+        if (!running.compareAndSet(false, true)){
+            skipped.incrementAndGet(); // the previous tick is still running
+            skippedMetric.increment();
+            return false;
+        }
+        overrunDeadline = deadline;
+        lateness.record(now - tickDeadline);
+        return true;
+    }
+
+    // The tick could not be handed to a worker
+    void rejected(){
+        running.set(false);
+    }
+
+    // Runs on a worker thread. Exceptions are contained so the next tick still runs.
+    void run(){
+        try {
+            if (!cancelled){
+                action.run();
+            }
+        } catch (Throwable t){
+            long count = errors.incrementAndGet();
+            errorsMetric.increment();
+            if (count <= MAX_REPORTED_ERRORS){
+                System.err.printf("[ERROR]: Scheduled task %s failed (%d times).%s\n", name, count,
+                        count == MAX_REPORTED_ERRORS ? " Further errors are only counted." : "");
+                t.printStackTrace();
+            }
+            if (t instanceof VirtualMachineError){
+                throw (VirtualMachineError) t; // e.g. OutOfMemoryError, the pool replaces the worker
+            }
+        } finally {
+            ticks.incrementAndGet();
+            ticksMetric.increment();
+            if (System.nanoTime() - overrunDeadline > 0){
+                overruns.incrementAndGet();
+                overrunsMetric.increment();
+            }
+            running.set(false);
+        }
+    }
+
+    private long deadlineOf(long k){
+        return base + (k / den) * num + (k % den) * num / den;
+    }
+
+    // Newest tick whose deadline is at or before now
+    private long tickAt(long now){
+        long elapsed = now - base;
+        long whole = elapsed / num; // whole periods of num ns, each den ticks
+        long k = whole * den + (elapsed - whole * num) * den / num;
+        return deadlineOf(k) > now ? k - 1 : k;
+    }
+}
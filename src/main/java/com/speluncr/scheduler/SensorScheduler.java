@@ -0,0 +1,166 @@
+package com.speluncr.scheduler;
+
+import com.speluncr.PropertyReader;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/************************************************************
+ * Shared runtime for the sensors' periodic work. One timing
+ * thread sleeps until the earliest deadline and hands due
+ * ticks to a small pool of worker threads (SchedulerThreads in
+ * servlet.conf), so a slow task only delays itself.
+ *
+ * Ticks are fixed-rate and aligned to the wall clock: a 30 Hz
+ * task runs at 0, 1/30, 2/30... s past each epoch second and a
+ * 250 ms task at every quarter second, whenever it was
+ * scheduled. Tasks that throw are reported and keep running.
+ *
+ * Cancelled tasks can simply be scheduled again, and the
+ * threads are started again after shutdown() when a task is
+ * scheduled, so sensors can be stopped and restarted.
+ ************************************************************/
+public class SensorScheduler {
+    private static final long SECOND = 1000000000L;
+    private static final int QUEUE_SIZE = 256; // ticks waiting for a worker. Each task has at most one.
+    private final int threads;
+    private final List<ScheduledTask> tasks = new ArrayList<>(); // guarded by this
+    private ExecutorService workers = null;
+    private Thread timer = null;
+    private final long epochAnchor; // epoch ns at nanoAnchor
+    private final long nanoAnchor;
+
+    public SensorScheduler(int threads){
+        this.threads = threads;
+        Instant now = Instant.now();
+        nanoAnchor = System.nanoTime();
+        epochAnchor = now.getEpochSecond() * SECOND + now.getNano();
+    }
+
+    public static SensorScheduler fromProperties(Properties properties){
+        return new SensorScheduler(PropertyReader.getInt(properties, "SchedulerThreads", 2, 1, 16));
+    }
+
+    // Run action hz times a second, aligned to epoch seconds
+    public ScheduledTask scheduleAtRate(String name, int hz, Runnable action){
+        return schedule(name, SECOND, Math.max(1, hz), action);
+    }
+
+    // Run action every periodNanos, aligned to multiples of the period since the epoch
+    public ScheduledTask scheduleAtFixedRate(String name, long periodNanos, Runnable action){
+        return schedule(name, Math.max(1, periodNanos), 1, action);
+    }
+
+    private synchronized ScheduledTask schedule(String name, long num, long den, Runnable action){
+        // Tick 0 is at the last multiple of num ns since the epoch, the first tick to run is the next one after now
+        long nowNanos = System.nanoTime();
+        long epoch = epochAnchor + (nowNanos - nanoAnchor);
+        long base = nowNanos - Math.floorMod(epoch, num);
+        long firstTick = (nowNanos - base) * den / num + 1;
+        ScheduledTask task = new ScheduledTask(this, name, num, den, base, firstTick, action);
+        tasks.add(task);
+        start();
+        LockSupport.unpark(timer);
+        return task;
+    }
+
+    synchronized void remove(ScheduledTask task){
+        tasks.remove(task);
+    }
+
+    // Stop the threads. Tasks still scheduled are cancelled.
+    public void shutdown(){
+        Thread thread;
+        ExecutorService pool;
+        synchronized (this){
+            for (ScheduledTask task : tasks){
+                System.out.printf("[INFO]: Scheduled task %s cancelled at shutdown.\n", task.getName());
+            }
+            tasks.clear();
+            thread = timer;
+            pool = workers;
+            timer = null;
+            workers = null;
+        }
+        if (thread == null){
+            return;
+        }
+        LockSupport.unpark(thread);
+        pool.shutdown();
+        try {
+            thread.join(1000);
+            if (!pool.awaitTermination(1, TimeUnit.SECONDS)){
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void start(){
+        if (timer != null){
+            return;
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), runnable -> {
+                    Thread worker = new Thread(runnable, "Sensor Worker " + count.incrementAndGet());
+                    worker.setDaemon(true);
+                    worker.setPriority(Thread.MAX_PRIORITY);
+                    return worker;
+                });
+        pool.prestartAllCoreThreads();
+        workers = pool;
+        timer = new Thread(this::run, "Sensor Scheduler");
+        timer.setDaemon(true);
+        timer.setPriority(Thread.MAX_PRIORITY);
+        timer.start();
+    }
+
+    private void run(){
+        List<ScheduledTask> due = new ArrayList<>();
+        while (true){
+            long wait;
+            ExecutorService pool;
+            synchronized (this){
+                if (timer != Thread.currentThread()){
+                    return;
+                }
+                pool = workers;
+                long now = System.nanoTime();
+                wait = SECOND;
+                for (int i = 0; i < tasks.size(); i++){ // indexed so the timing loop does not allocate
+                    ScheduledTask task = tasks.get(i);
+                    long untilDue = task.getDeadline() - now;
+                    if (untilDue <= 0){
+                        if (task.due(now)){
+                            due.add(task);
+                        }
+                        untilDue = task.getDeadline() - now;
+                    }
+                    wait = Math.min(wait, untilDue);
+                }
+            }
+            for (int i = 0; i < due.size(); i++){
+                ScheduledTask task = due.get(i);
+                try {
+                    pool.execute(task.runner);
+                } catch (RejectedExecutionException e){
+                    task.rejected(); // shut down, or more tasks than the queue holds
+                }
+            }
+            due.clear();
+            if (wait > 0){
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.speluncr.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/************************************************************
+ * Delivers alert frames (FrameCodec.TYPE_ALERT) to every
+ * session of /attitude, /radiation and /telemetry, ahead of
+ * the telemetry waiting to be sent to them. Sessions that
+ * connect while alerts are raised are sent those alerts
+ * first, before their history or any live telemetry, so a
+ * relay knows the rover's raised alerts once other frames
+ * arrive (see RelayClient).
+ ************************************************************/
+public final class AlertChannel {
+    private static volatile List<ByteBuffer> raised = Collections.emptyList(); // frames of the raised alerts
+
+    private AlertChannel(){}
+
+    // Send an alert frame to every session. raised holds the frames of every alert still raised afterwards.
+    // Synchronized with sendRaised() so a session is sent either a change or the raised alerts that include it.
+    public static synchronized void publish(ByteBuffer frame, List<ByteBuffer> raisedFrames){
+        raised = raisedFrames;
+        AttitudeEndpoint.publishUrgent(frame);
+        RadiationEndpoint.publishUrgent(frame);
+        TelemetryEndpoint.publishUrgent(frame);
+    }
+
+    // Call once the session receives published alerts, and before its snapshot is queued
+    static synchronized void sendRaised(SessionMailbox mailbox){
+        for (ByteBuffer frame : raised){
+            mailbox.offerUrgent(frame);
+        }
+    }
+}
@@ -1,32 +1,76 @@
 package com.speluncr.websocket;
 
+import com.speluncr.metrics.Counter;
+import com.speluncr.metrics.Metrics;
 import javax.websocket.*;
 import javax.websocket.server.ServerEndpoint;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.ByteOrder;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @ServerEndpoint("/attitude")
 public class AttitudeEndpoint {
-    private Session session;
-    private static final Set<AttitudeEndpoint> ENDPTS = new HashSet<>();
+    private static final Broadcaster ENDPTS = new Broadcaster("Attitude");
+    // Pooled frames hold one sample between the sensor and the broadcast thread. The broadcast
+    // thread packs the samples into FrameCodec frames.
+    private static final int FRAME_SIZE = 4*Double.BYTES + Long.BYTES + Integer.BYTES; // roll, pitch, yaw, temp, time, sequence
+    private static final int TIME_OFFSET = 4*Double.BYTES;
+    private static final int SEQUENCE_OFFSET = TIME_OFFSET + Long.BYTES;
     private static final ArrayBlockingQueue<ByteBuffer> SEND_QUEUE = new ArrayBlockingQueue<>(3);
-    private static boolean broadcasting = false;
-    private static Thread broadcastThread;
+    // Frames are recycled so the sampling loop does not allocate. There is one frame for each
+    // queue slot, one for the broadcast thread to send and one for the sensor to fill.
+    private static final ArrayBlockingQueue<ByteBuffer> FREE_FRAMES = new ArrayBlockingQueue<>(SEND_QUEUE.remainingCapacity() + 2);
+    private static final Counter QUEUE_DROPS = Metrics.counter("speluncr_attitude_queue_dropped_total",
+            "Attitude samples dropped because the broadcast queue was full.");
+    private static final Counter NO_FREE_FRAME = Metrics.counter("speluncr_attitude_frames_unavailable_total",
+            "Attitude samples not broadcast because every pooled frame was in use.");
+    static {
+        while (FREE_FRAMES.remainingCapacity() > 0){
+            FREE_FRAMES.add(ByteBuffer.allocate(FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        Metrics.gauge("speluncr_attitude_queue_depth", "Attitude samples waiting for the broadcast thread.", SEND_QUEUE::size);
+    }
+    private static final AtomicInteger SEQUENCE = new AtomicInteger(); // numbers samples as they are queued
+    // Samples sent to viewers when they connect, recorded as they are queued
+    private static final TelemetryHistory HISTORY = new TelemetryHistory("attitude", FrameCodec.TYPE_ATTITUDE, 4);
+    private static volatile int batchSamples = 1; // samples packed into each message
+    private static volatile long batchDelay = 100000000L; // ns the first sample of a batch may wait
+    private static volatile boolean replaying = false; // live frames are only recorded in the history during a replay
+    private static volatile Thread broadcastThread; // the thread that should be broadcasting
     private static final Runnable BROADCAST_RUNNABLE = () -> {
-        broadcasting = true;
-        while(broadcasting){
+        FrameCodec.Encoder batch = null;
+        long batchDue = 0;
+        while(broadcastThread == Thread.currentThread()){
             try {
-                // take() blocks until a message is on the queue. Then it returns the message
-                ByteBuffer msg = SEND_QUEUE.take();
-                for (AttitudeEndpoint endpt: ENDPTS){
-                    endpt.session.getBasicRemote().sendBinary(msg);
+                if (batch == null || batch.isEmpty() && batch.getMaxSamples() != batchSamples){
+                    batch = new FrameCodec.Encoder(FrameCodec.TYPE_ATTITUDE, batchSamples);
+                }
+                // Block until a sample is on the queue, or until the batch waiting to be sent is due
+                ByteBuffer msg = batch.isEmpty() ? SEND_QUEUE.take()
+                        : SEND_QUEUE.poll(batchDue - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (msg != null){
+                    try {
+                        if (!add(batch, msg)){
+                            publish(batch.finish()); // sample does not fit, it starts the next batch
+                            add(batch, msg);
+                        }
+                    } finally {
+                        recycleFrame(msg);
+                    }
+                    if (batch.getCount() == 1){
+                        batchDue = System.nanoTime() + batchDelay;
+                    }
+                }
+                if (!batch.isEmpty() && (batch.isFull() || msg == null || System.nanoTime() - batchDue >= 0)){
+                    publish(batch.finish()); // does not wait for any session to receive it
                 }
-            } catch (InterruptedException | IOException e) {
+            } catch (InterruptedException e) {
                 System.out.printf("Broadcast interrupted. Broadcast = %s\n",
-                        broadcasting ? "true":"false");
+                        broadcastThread == Thread.currentThread() ? "true":"false");
             }
         }
     };
@@ -34,32 +78,44 @@ public class AttitudeEndpoint {
     @OnOpen
     public void onOpen(Session session){
         session.setMaxIdleTimeout(10000); // 10 second timeout (no messages in 10 s)
-        this.session = session;
+        // Held first, so every sample is either in the snapshot or in a live frame
+        SessionMailbox mailbox = ENDPTS.addHeld(session);
+        AlertChannel.sendRaised(mailbox);
+        mailbox.queueSnapshot(0, snapshot());
+        mailbox.release();
+        startBroadcasting();
+        System.out.printf("Attitude Endpoint Session %s Opened.\n", session.getId());
+    }
+
+    @OnClose
+    public void onClose(Session session){
+        ENDPTS.remove(session);
+        stopBroadcastingIfIdle();
+        System.out.printf("Attitude Endpoint Session %s Closed.\n", session.getId());
+    }
+
+    static synchronized void startBroadcasting(){
         if (broadcastThread == null || !broadcastThread.isAlive()){
             System.out.println("Starting broadcast thread...");
             broadcastThread = new Thread(BROADCAST_RUNNABLE, "Attitude_Broadcast");
             broadcastThread.start();
         }
-        ENDPTS.add(this);
-        System.out.printf("Attitude Endpoint Session %s Opened.\n", session.getId());
     }
 
-    @OnClose
-    public void onClose(Session session){
-        ENDPTS.remove(this);
-
-        // End runnable if there are no sockets to broadcast to
-        if (ENDPTS.isEmpty()){
-            SEND_QUEUE.clear();
-            broadcasting = false;
-            broadcastThread.interrupt();
+    // End runnable if there are no sockets to broadcast to, including /telemetry subscribers
+    static synchronized void stopBroadcastingIfIdle(){
+        if (ENDPTS.isEmpty() && TelemetryEndpoint.isEmpty() && broadcastThread != null){
+            Thread thread = broadcastThread;
+            broadcastThread = null;
+            thread.interrupt();
+            SEND_QUEUE.drainTo(FREE_FRAMES);
         }
-        System.out.printf("Attitude Endpoint Session %s Closed.\n", session.getId());
     }
 
     @OnError
     public void onError(Session session, Throwable throwable){
-        ENDPTS.remove(this);
+        ENDPTS.remove(session);
+        stopBroadcastingIfIdle();
         System.err.printf("Attitude Endpoint Session %s Error: %s\n", session.getId(), throwable);
         try {
             session.close();
@@ -69,16 +125,108 @@ public class AttitudeEndpoint {
         }
     }
 
+    // Get an empty frame to fill with setFrame(). Returns null if all frames are in use.
+    // Frames must be handed back with broadcast() so they return to the pool.
+    public static ByteBuffer acquireFrame(){
+        ByteBuffer frame = FREE_FRAMES.poll();
+        if (frame != null){
+            frame.clear();
+        } else {
+            NO_FREE_FRAME.increment();
+        }
+        return frame;
+    }
+
+    // Fill a pooled frame with one attitude sample taken at timeMicros (epoch us, see FrameCodec)
+    public static void setFrame(ByteBuffer frame, long timeMicros, double roll, double pitch, double yaw, double temp){
+        frame.putDouble(0, roll);
+        frame.putDouble(Double.BYTES, pitch);
+        frame.putDouble(2*Double.BYTES, yaw);
+        frame.putDouble(3*Double.BYTES, temp);
+        frame.putLong(TIME_OFFSET, timeMicros);
+    }
+
+    // Only called with batching settings from servlet.conf when the sensor starts
+    public static void setBatching(int samples, long maxDelayNanos){
+        batchSamples = Math.max(1, Math.min(FrameCodec.MAX_SAMPLES, samples));
+        batchDelay = maxDelayNanos;
+    }
+
+    // Only called with the history length from servlet.conf when the sensor starts
+    public static void setHistory(int samples){
+        HISTORY.setCapacity(samples);
+    }
+
+    // Frames of the recent samples, for a viewer that is connecting
+    static List<ByteBuffer> snapshot(){
+        return HISTORY.snapshot();
+    }
+
+    private static boolean add(FrameCodec.Encoder batch, ByteBuffer frame){
+        return batch.addAttitude(frame.getInt(SEQUENCE_OFFSET), frame.getLong(TIME_OFFSET),
+                frame.getDouble(0), frame.getDouble(Double.BYTES), frame.getDouble(2*Double.BYTES), frame.getDouble(3*Double.BYTES));
+    }
+
+    static void publishUrgent(ByteBuffer payload){
+        ENDPTS.publishUrgent(payload);
+    }
+
+    private static void publish(ByteBuffer payload){
+        ENDPTS.publish(payload);
+        TelemetryEndpoint.publishAttitude(payload);
+    }
+
+    private static void recycleFrame(ByteBuffer frame){
+        FREE_FRAMES.offer(frame);
+    }
+
+    // Broadcast a live frame from the attitude sensor. During a replay it is only recorded in the history.
     public static void broadcast(ByteBuffer buffer){
-        try {
-            buffer.position(0); // The websocket sendBinary() method doesn't seem to like other positions
-            // drop item at head of queue if queue gets too backed up
-            if (SEND_QUEUE.remainingCapacity() == 0){
-                SEND_QUEUE.take(); // should not block since remaining capacity is 0
+        int sequence = SEQUENCE.getAndIncrement();
+        buffer.putInt(SEQUENCE_OFFSET, sequence); // numbered before any drop so viewers see gaps
+        // Recorded before it can be published, so a snapshot taken after a viewer connects holds every earlier sample
+        HISTORY.add(sequence, buffer.getLong(TIME_OFFSET), buffer.getDouble(0), buffer.getDouble(Double.BYTES),
+                buffer.getDouble(2*Double.BYTES), buffer.getDouble(3*Double.BYTES));
+        if (replaying){
+            recycleFrame(buffer);
+            return;
+        }
+        enqueue(buffer);
+    }
+
+    // Broadcast a frame received from the rover in relay mode, keeping the rover's sequence numbers.
+    // Only called by the RelayClient's upstream session.
+    static void relay(ByteBuffer frame){
+        ByteBuffer in = FrameCodec.wrap(frame);
+        int sequence = FrameCodec.getSequence(in);
+        for (int i = 0; i < FrameCodec.getCount(in); i++){
+            HISTORY.add(sequence + i, FrameCodec.getTime(in, i), FrameCodec.getRoll(in, i), FrameCodec.getPitch(in, i),
+                    FrameCodec.getYaw(in, i), FrameCodec.getTemp(in, i));
+        }
+        publish(frame);
+    }
+
+    // Broadcast a frame from a recording being replayed. It is not kept in the history, which holds the live
+    // samples. Numbered with them, so a viewer that connects during a replay gets its frames after the snapshot.
+    public static void broadcastReplay(ByteBuffer buffer){
+        buffer.putInt(SEQUENCE_OFFSET, SEQUENCE.getAndIncrement());
+        enqueue(buffer);
+    }
+
+    public static void setReplaying(boolean replay){
+        replaying = replay;
+    }
+
+    private static void enqueue(ByteBuffer buffer){
+        // drop item at head of queue if queue gets too backed up and return it to the pool
+        while (!SEND_QUEUE.offer(buffer)){
+            ByteBuffer dropped = SEND_QUEUE.poll();
+            if (dropped != null){
+                recycleFrame(dropped);
+                if (broadcastThread != null){
+                    QUEUE_DROPS.increment(); // without viewers the queue just holds the newest samples
+                }
             }
-            SEND_QUEUE.put(buffer);
-        } catch (InterruptedException e){
-            e.printStackTrace();
         }
     }
 }
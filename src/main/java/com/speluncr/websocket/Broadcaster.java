@@ -0,0 +1,93 @@
+package com.speluncr.websocket;
+
+import com.speluncr.metrics.Metrics;
+import javax.websocket.Session;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/************************************************************
+ * Concurrent registry of the sessions connected to one
+ * endpoint. publish() hands the same read-only payload to
+ * every session's mailbox without blocking, so delivery to
+ * one viewer does not wait on any other. Sessions can be
+ * added and removed while a publish is in progress.
+ ************************************************************/
+public class Broadcaster {
+    private final String name;
+    private final int slots; // latest-value slots per session, one for each stream
+    private final Map<String, SessionMailbox> mailboxes = new ConcurrentHashMap<>();
+
+    public Broadcaster(String name){
+        this(name, 1);
+    }
+
+    // A broadcaster for several streams, so a slow session keeps the latest message of each
+    public Broadcaster(String name, int slots){
+        this.name = name;
+        this.slots = slots;
+        Metrics.gauge("speluncr_websocket_sessions", "Open websocket sessions.", this::size, "endpoint", getEndpoint());
+    }
+
+    public SessionMailbox add(Session session){
+        SessionMailbox mailbox = new SessionMailbox(session, slots, getEndpoint());
+        mailboxes.put(session.getId(), mailbox);
+        return mailbox;
+    }
+
+    // Add a session whose live messages are held until a snapshot is queued and the mailbox is released
+    public SessionMailbox addHeld(Session session){
+        SessionMailbox mailbox = new SessionMailbox(session, slots, getEndpoint());
+        mailbox.hold();
+        mailboxes.put(session.getId(), mailbox);
+        return mailbox;
+    }
+
+    public void remove(Session session){
+        SessionMailbox mailbox = mailboxes.remove(session.getId());
+        if (mailbox != null && mailbox.getDroppedCount() + mailbox.getFailedCount() > 0){
+            System.out.printf("%s session %s: %d sent, %d dropped, %d failed.\n", name, session.getId(),
+                    mailbox.getSentCount(), mailbox.getDroppedCount(), mailbox.getFailedCount());
+        }
+    }
+
+    // Label of this broadcaster's metrics
+    public String getEndpoint(){
+        return name.toLowerCase();
+    }
+
+    public boolean isEmpty(){
+        return mailboxes.isEmpty();
+    }
+
+    public int size(){
+        return mailboxes.size();
+    }
+
+    // The payload must not be modified after it is published
+    public void publish(ByteBuffer payload){
+        publish(0, payload);
+    }
+
+    public void publish(int slot, ByteBuffer payload){
+        ByteBuffer shared = payload.isReadOnly() ? payload : payload.asReadOnlyBuffer();
+        for (SessionMailbox mailbox : mailboxes.values()){
+            mailbox.offer(slot, shared);
+        }
+    }
+
+    // Send a payload to every session ahead of the messages waiting for them, e.g. an alert
+    public void publishUrgent(ByteBuffer payload){
+        ByteBuffer shared = payload.isReadOnly() ? payload : payload.asReadOnlyBuffer();
+        for (SessionMailbox mailbox : mailboxes.values()){
+            mailbox.offerUrgent(shared);
+        }
+    }
+
+    // Copy a message into a new read-only payload that can be shared between sessions
+    public static ByteBuffer share(ByteBuffer message){
+        ByteBuffer copy = ByteBuffer.allocate(message.remaining()).order(message.order());
+        copy.put(message.duplicate()).flip();
+        return copy.asReadOnlyBuffer();
+    }
+}
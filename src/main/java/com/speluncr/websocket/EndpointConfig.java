@@ -9,7 +9,9 @@ import java.util.Set;
 public class EndpointConfig implements ServerApplicationConfig {
     @Override
     public Set<ServerEndpointConfig> getEndpointConfigs(Set<Class<? extends Endpoint>> scanned) {
-        return new HashSet<>();
+        Set<ServerEndpointConfig> configs = new HashSet<>();
+        configs.add(ServerEndpointConfig.Builder.create(TelemetryEndpoint.class, TelemetryEndpoint.PATH).build());
+        return configs;
     }
 
     @Override
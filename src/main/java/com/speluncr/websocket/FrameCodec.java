@@ -0,0 +1,331 @@
+package com.speluncr.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+
+/************************************************************
+ * Binary telemetry frame format (version 1). Every websocket
+ * message is one frame holding one or more samples of one
+ * type. All fields are little-endian.
+ *
+ * Header (16 bytes):
+ *   u8  version    (1)
+ *   u8  type       (1 = attitude, 2 = radiation,
+ *                  3 = radiation statistics, 4 = alert)
+ *   u16 count      samples in the frame
+ *   u32 sequence   sequence number of the first sample. The
+ *                  samples that follow are numbered in turn,
+ *                  so a gap means samples were dropped.
+ *   i64 timestamp  time of the first sample (us since the
+ *                  epoch, from the server's monotonic clock)
+ *
+ * Attitude sample (18 bytes):
+ *   u32 offset     us after the frame timestamp
+ *   f32 roll, f32 pitch, f32 yaw   (rad)
+ *   i16 temp       (0.01 C)
+ *
+ * Radiation sample (8 bytes):
+ *   u32 offset     us after the frame timestamp (start of the
+ *                  second that was counted)
+ *   u32 count      Geiger counter events in that second
+ *
+ * Radiation statistics sample (76 bytes):
+ *   u32 offset     us after the frame timestamp (start of the
+ *                  newest second in the windows)
+ *   for the 1 s, 10 s, 60 s and 10 min windows:
+ *     f32 cpm, f32 cpm lower, f32 cpm upper (95% interval),
+ *     f32 dose rate (uSv/h)
+ *   f32 moving average cpm, f32 moving average dose rate
+ *
+ * Alert sample (16 bytes):
+ *   u32 offset     us after the frame timestamp (time of the
+ *                  sample or event that changed the alert)
+ *   u8  alert      (1 = roll, 2 = pitch, 3 = tilt rate,
+ *                  4 = radiation rate)
+ *   u8  state      (1 = raised, 0 = cleared)
+ *   u8  severity   (1 = warning, 2 = critical)
+ *   u8  reserved
+ *   f32 value      that raised or cleared the alert (deg,
+ *                  deg/s or counts/s)
+ *   f32 threshold  the value had to pass
+ *
+ * Encoder packs samples into a frame. The static getters read
+ * a frame wrapped with wrap().
+ ************************************************************/
+public final class FrameCodec {
+    public static final int VERSION = 1;
+    public static final int TYPE_ATTITUDE = 1;
+    public static final int TYPE_RADIATION = 2;
+    public static final int TYPE_RADIATION_STATS = 3;
+    public static final int TYPE_ALERT = 4;
+    public static final int MAX_ALERT = 4; // highest alert number
+    public static final int HEADER_SIZE = 16;
+    public static final int ATTITUDE_SAMPLE_SIZE = 18;
+    public static final int RADIATION_SAMPLE_SIZE = 8;
+    public static final int STATS_VALUES = 18;
+    public static final int STATS_SAMPLE_SIZE = 4 + 4*STATS_VALUES;
+    public static final int ALERT_SAMPLE_SIZE = 16;
+    public static final int MAX_SAMPLES = 0xFFFF;
+    private static final long MAX_OFFSET = 0xFFFFFFFFL; // us, about 71 minutes
+
+    // Anchor of the monotonic clock used for frame timestamps
+    private static final long EPOCH_MICROS;
+    private static final long NANO_ANCHOR;
+    static {
+        Instant now = Instant.now();
+        NANO_ANCHOR = System.nanoTime();
+        EPOCH_MICROS = now.getEpochSecond() * 1000000L + now.getNano() / 1000;
+    }
+
+    private FrameCodec(){}
+
+    // Convert a System.nanoTime() value to epoch microseconds on the frame clock
+    public static long toEpochMicros(long nanoTime){
+        return EPOCH_MICROS + (nanoTime - NANO_ANCHOR) / 1000;
+    }
+
+    public static int sampleSize(int type){
+        switch (type){
+            case TYPE_ATTITUDE:
+                return ATTITUDE_SAMPLE_SIZE;
+            case TYPE_RADIATION_STATS:
+                return STATS_SAMPLE_SIZE;
+            case TYPE_ALERT:
+                return ALERT_SAMPLE_SIZE;
+            default:
+                return RADIATION_SAMPLE_SIZE;
+        }
+    }
+
+    /************************************************************
+     * Packs samples of one type into a frame. Not thread safe.
+     * add() returns false when the sample does not fit (frame
+     * full, or its time cannot be expressed as an offset), in
+     * which case the frame should be finished and the sample
+     * added to the next one.
+     ************************************************************/
+    public static class Encoder {
+        private final int type;
+        private final int maxSamples;
+        private final ByteBuffer buffer;
+        private int count = 0;
+        private long timestamp;
+
+        public Encoder(int type, int maxSamples){
+            this.type = type;
+            this.maxSamples = Math.max(1, Math.min(MAX_SAMPLES, maxSamples));
+            buffer = ByteBuffer.allocate(HEADER_SIZE + this.maxSamples * sampleSize(type)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public int getCount(){
+            return count;
+        }
+
+        public int getMaxSamples(){
+            return maxSamples;
+        }
+
+        public boolean isEmpty(){
+            return count == 0;
+        }
+
+        public boolean isFull(){
+            return count == maxSamples;
+        }
+
+        // Time of the first sample in the frame (epoch us)
+        public long getTimestamp(){
+            return timestamp;
+        }
+
+        public boolean addAttitude(int sequence, long timeMicros, double roll, double pitch, double yaw, double temp){
+            if (!start(sequence, timeMicros)){
+                return false;
+            }
+            buffer.putInt((int) (timeMicros - timestamp));
+            buffer.putFloat((float) roll).putFloat((float) pitch).putFloat((float) yaw);
+            buffer.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(temp * 100))));
+            count++;
+            return true;
+        }
+
+        public boolean addRadiation(int sequence, long timeMicros, long counts){
+            if (!start(sequence, timeMicros)){
+                return false;
+            }
+            buffer.putInt((int) (timeMicros - timestamp));
+            buffer.putInt((int) Math.min(counts, MAX_OFFSET));
+            count++;
+            return true;
+        }
+
+        // values holds the STATS_VALUES statistics in frame order
+        public boolean addStatistics(int sequence, long timeMicros, float[] values){
+            if (!start(sequence, timeMicros)){
+                return false;
+            }
+            buffer.putInt((int) (timeMicros - timestamp));
+            for (int i = 0; i < STATS_VALUES; i++){
+                buffer.putFloat(values[i]);
+            }
+            count++;
+            return true;
+        }
+
+        public boolean addAlert(int sequence, long timeMicros, int alert, boolean raised, int severity, double value,
+                                double threshold){
+            if (!start(sequence, timeMicros)){
+                return false;
+            }
+            buffer.putInt((int) (timeMicros - timestamp));
+            buffer.put((byte) alert).put((byte) (raised ? 1 : 0)).put((byte) severity).put((byte) 0);
+            buffer.putFloat((float) value).putFloat((float) threshold);
+            count++;
+            return true;
+        }
+
+        // Write the header for the first sample, or check that another sample fits
+        private boolean start(int sequence, long timeMicros){
+            if (count == 0){
+                timestamp = timeMicros;
+                buffer.clear();
+                buffer.put((byte) VERSION).put((byte) type).putShort((short) 0).putInt(sequence).putLong(timeMicros);
+                return true;
+            }
+            long offset = timeMicros - timestamp;
+            return count < maxSamples && offset >= 0 && offset <= MAX_OFFSET;
+        }
+
+        // Copy the frame into a new read-only payload that can be shared between sessions, and start a new frame
+        public ByteBuffer finish(){
+            buffer.putShort(2, (short) count);
+            buffer.flip();
+            ByteBuffer frame = Broadcaster.share(buffer);
+            count = 0;
+            return frame;
+        }
+    }
+
+    // Little-endian view of a frame for the getters below (read-only payloads are always big-endian)
+    public static ByteBuffer wrap(ByteBuffer frame){
+        return frame.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // True if the frame is a complete version 1 frame of a known type
+    public static boolean isValid(ByteBuffer frame){
+        if (frame.limit() < HEADER_SIZE || getVersion(frame) != VERSION){
+            return false;
+        }
+        int type = getType(frame);
+        return (type == TYPE_ATTITUDE || type == TYPE_RADIATION || type == TYPE_RADIATION_STATS || type == TYPE_ALERT)
+                && frame.limit() >= HEADER_SIZE + getCount(frame) * sampleSize(type);
+    }
+
+    public static int getVersion(ByteBuffer frame){
+        return frame.get(0) & 0xFF;
+    }
+
+    public static int getType(ByteBuffer frame){
+        return frame.get(1) & 0xFF;
+    }
+
+    public static int getCount(ByteBuffer frame){
+        return frame.getShort(2) & 0xFFFF;
+    }
+
+    public static int getSequence(ByteBuffer frame){
+        return frame.getInt(4);
+    }
+
+    public static long getTimestamp(ByteBuffer frame){
+        return frame.getLong(8);
+    }
+
+    // Time of sample i (epoch us)
+    public static long getTime(ByteBuffer frame, int i){
+        return getTimestamp(frame) + (frame.getInt(sample(frame, i)) & MAX_OFFSET);
+    }
+
+    public static float getRoll(ByteBuffer frame, int i){
+        return frame.getFloat(sample(frame, i) + 4);
+    }
+
+    public static float getPitch(ByteBuffer frame, int i){
+        return frame.getFloat(sample(frame, i) + 8);
+    }
+
+    public static float getYaw(ByteBuffer frame, int i){
+        return frame.getFloat(sample(frame, i) + 12);
+    }
+
+    public static double getTemp(ByteBuffer frame, int i){
+        return frame.getShort(sample(frame, i) + 16) / 100d;
+    }
+
+    public static long getRadiationCount(ByteBuffer frame, int i){
+        return frame.getInt(sample(frame, i) + 4) & 0xFFFFFFFFL;
+    }
+
+    // Statistic number value (in frame order) of sample i
+    public static float getStatistic(ByteBuffer frame, int i, int value){
+        return frame.getFloat(sample(frame, i) + 4 + 4*value);
+    }
+
+    public static int getAlert(ByteBuffer frame, int i){
+        return frame.get(sample(frame, i) + 4) & 0xFF;
+    }
+
+    public static boolean isAlertRaised(ByteBuffer frame, int i){
+        return frame.get(sample(frame, i) + 5) != 0;
+    }
+
+    public static int getAlertSeverity(ByteBuffer frame, int i){
+        return frame.get(sample(frame, i) + 6) & 0xFF;
+    }
+
+    public static float getAlertValue(ByteBuffer frame, int i){
+        return frame.getFloat(sample(frame, i) + 8);
+    }
+
+    public static float getAlertThreshold(ByteBuffer frame, int i){
+        return frame.getFloat(sample(frame, i) + 12);
+    }
+
+    private static int sample(ByteBuffer frame, int i){
+        return HEADER_SIZE + i * sampleSize(getType(frame));
+    }
+
+    // New single sample frame holding the last sample of a frame, for subscribers that want a lower rate
+    public static ByteBuffer lastSample(ByteBuffer frame){
+        return samplesFrom(wrap(frame), getCount(wrap(frame)) - 1);
+    }
+
+    // The samples of a frame numbered after sequence: the frame itself if all of them are, a new frame if only
+    // some are, or null if none are. Sequence numbers wrap around, so they are compared by their difference.
+    public static ByteBuffer samplesAfter(ByteBuffer frame, int sequence){
+        ByteBuffer in = wrap(frame);
+        int newer = getSequence(in) - sequence - 1; // samples at the start of the frame that are not newer
+        if (newer >= 0){
+            return frame;
+        }
+        int count = getCount(in);
+        return -newer >= count ? null : samplesFrom(in, -newer);
+    }
+
+    // New frame holding samples [first, count) of a wrapped frame, with the offsets measured from sample first
+    private static ByteBuffer samplesFrom(ByteBuffer in, int first){
+        int count = getCount(in);
+        int size = sampleSize(getType(in));
+        long timestamp = getTime(in, first);
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + (count - first) * size).order(ByteOrder.LITTLE_ENDIAN);
+        out.put((byte) VERSION).put((byte) getType(in)).putShort((short) (count - first))
+                .putInt(getSequence(in) + first).putLong(timestamp);
+        for (int i = first; i < count; i++){
+            int sample = HEADER_SIZE + i * size;
+            out.putInt((int) (getTime(in, i) - timestamp)).put(in.duplicate().position(sample + 4).limit(sample + size));
+        }
+        out.flip();
+        return out.asReadOnlyBuffer();
+    }
+}
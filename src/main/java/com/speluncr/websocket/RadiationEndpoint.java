@@ -1,5 +1,6 @@
 package com.speluncr.websocket;
 
+import com.speluncr.radiation.RadiationStatistics;
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnOpen;
@@ -7,30 +8,42 @@ import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collections;
+import java.util.List;
 
 @ServerEndpoint("/radiation")
 public class RadiationEndpoint {
-    private static final Set<RadiationEndpoint> ENDPTS = new HashSet<>();
-    private Session session;
+    private static final int COUNTS = 0; // mailbox slots, so counts and statistics never replace each other
+    private static final int STATISTICS = 1;
+    private static final Broadcaster ENDPTS = new Broadcaster("Radiation", 2);
+    private static final FrameCodec.Encoder FRAME = new FrameCodec.Encoder(FrameCodec.TYPE_RADIATION, 1);
+    private static final FrameCodec.Encoder STATS_FRAME = new FrameCodec.Encoder(FrameCodec.TYPE_RADIATION_STATS, 1);
+    private static final float[] STATS_VALUES = new float[FrameCodec.STATS_VALUES];
+    private static int nextSequence = 0; // one sample per second
+    private static int nextStatsSequence = 0;
+    // Per-second counts sent to viewers when they connect, with the newest statistics
+    private static final TelemetryHistory HISTORY = new TelemetryHistory("radiation", FrameCodec.TYPE_RADIATION, 1);
+    private static volatile ByteBuffer lastStatistics = null;
 
     @OnOpen
     public void onOpen(Session session){
-        this.session = session;
-        ENDPTS.add(this);
+        // Held first, so every second is either in the snapshot or in a live frame
+        SessionMailbox mailbox = ENDPTS.addHeld(session);
+        AlertChannel.sendRaised(mailbox);
+        mailbox.queueSnapshot(COUNTS, snapshotCounts());
+        mailbox.queueSnapshot(STATISTICS, snapshotStatistics());
+        mailbox.release();
     }
 
     @OnClose
     public void onClose(Session session){
-        ENDPTS.remove(this);
+        ENDPTS.remove(session);
         System.out.printf("Radiation Endpoint Session %s Closed.\n", session.getId());
     }
 
     @OnError
     public void onError(Session session, Throwable throwable){
-        ENDPTS.remove(this);
+        ENDPTS.remove(session);
         System.err.printf("Radiation Endpoint Session %s Error: %s\n", session.getId(), throwable);
         try {
             session.close();
@@ -40,17 +53,75 @@ public class RadiationEndpoint {
         }
     }
 
-    public static synchronized void broadcast(int cps){
-        try {
-            for (RadiationEndpoint endpt : ENDPTS) {
-                ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES);
-                payload.order(ByteOrder.LITTLE_ENDIAN);
-                payload.putInt(cps);
-                payload.position(0);
-                endpt.session.getBasicRemote().sendBinary(payload);
-            }
-        } catch (IOException e){
-            e.printStackTrace();
+    // Only called with the history length from servlet.conf when the sensor starts
+    public static void setHistory(int seconds){
+        HISTORY.setCapacity(seconds);
+    }
+
+    // Frames of the recent per-second counts, for a viewer that is connecting
+    static List<ByteBuffer> snapshotCounts(){
+        return HISTORY.snapshot();
+    }
+
+    // The newest statistics frame, for a viewer that is connecting
+    static List<ByteBuffer> snapshotStatistics(){
+        ByteBuffer frame = lastStatistics;
+        return frame == null ? Collections.emptyList() : Collections.singletonList(frame);
+    }
+
+    // Send the counts for a completed second to every session. Never blocks on a slow session.
+    // Only called by the radiation event writer thread.
+    public static void broadcast(long epochSecond, int count){
+        int sequence = nextSequence++;
+        long timeMicros = epochSecond * 1000000L;
+        HISTORY.add(sequence, timeMicros, count); // before it is published, see SessionMailbox.hold()
+        if (!ENDPTS.isEmpty() || !TelemetryEndpoint.isEmpty()){
+            FRAME.addRadiation(sequence, timeMicros, count);
+            ByteBuffer frame = FRAME.finish();
+            ENDPTS.publish(COUNTS, frame);
+            TelemetryEndpoint.publishRadiation(frame);
+        }
+    }
+
+    static void publishUrgent(ByteBuffer payload){
+        ENDPTS.publishUrgent(payload);
+    }
+
+    // Send counts received from the rover in relay mode, keeping the rover's sequence numbers.
+    // Only called by the RelayClient's upstream session.
+    static void relayCounts(ByteBuffer frame){
+        ByteBuffer in = FrameCodec.wrap(frame);
+        int sequence = FrameCodec.getSequence(in);
+        for (int i = 0; i < FrameCodec.getCount(in); i++){
+            HISTORY.add(sequence + i, FrameCodec.getTime(in, i), FrameCodec.getRadiationCount(in, i));
+        }
+        ENDPTS.publish(COUNTS, frame);
+        TelemetryEndpoint.publishRadiation(frame);
+    }
+
+    // Send statistics received from the rover in relay mode. Only called by the RelayClient's upstream session.
+    static void relayStatistics(ByteBuffer frame){
+        lastStatistics = frame;
+        ENDPTS.publish(STATISTICS, frame);
+        TelemetryEndpoint.publishStatistics(frame);
+    }
+
+    // Send the current statistics to every session, and keep them for viewers that connect later.
+    // Only called by the radiation event writer thread.
+    public static void broadcastStatistics(RadiationStatistics statistics){
+        int v = 0;
+        for (int w = 0; w < RadiationStatistics.WINDOWS.length; w++){
+            STATS_VALUES[v++] = (float) statistics.getCpm(w);
+            STATS_VALUES[v++] = (float) statistics.getCpmLower(w);
+            STATS_VALUES[v++] = (float) statistics.getCpmUpper(w);
+            STATS_VALUES[v++] = (float) statistics.getDoseRate(w);
         }
+        STATS_VALUES[v++] = (float) statistics.getEmaCpm();
+        STATS_VALUES[v] = (float) statistics.getEmaDoseRate();
+        STATS_FRAME.addStatistics(nextStatsSequence++, statistics.getLastSecond() * 1000000L, STATS_VALUES);
+        ByteBuffer frame = STATS_FRAME.finish();
+        lastStatistics = frame;
+        ENDPTS.publish(STATISTICS, frame);
+        TelemetryEndpoint.publishStatistics(frame);
     }
-}
\ No newline at end of file
+}
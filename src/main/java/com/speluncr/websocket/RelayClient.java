@@ -0,0 +1,235 @@
+package com.speluncr.websocket;
+
+import com.speluncr.PropertyReader;
+import com.speluncr.TelemetryServlet;
+import com.speluncr.gpio.Sensor;
+import com.speluncr.metrics.Counter;
+import com.speluncr.metrics.Metrics;
+import com.speluncr.scheduler.ScheduledTask;
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.CloseReason;
+import javax.websocket.ContainerProvider;
+import javax.websocket.DeploymentException;
+import javax.websocket.Endpoint;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Properties;
+
+/************************************************************
+ * Relay mode (Mode=relay in servlet.conf). Instead of running
+ * the sensors, the webapp holds one /telemetry connection to
+ * the rover (RelayUpstream) at full rate and re-broadcasts
+ * what it receives to its own /attitude, /radiation and
+ * /telemetry viewers, with its own fan-out and history. The
+ * rover then serves one session however many viewers there
+ * are, e.g. when a ground station relays to the team.
+ *
+ * Frames keep the rover's sequence numbers. The connection is
+ * supervised like a sensor: a failed connect is retried with
+ * backoff, and a connection that closes or sends nothing for
+ * RelayTimeoutSeconds is dropped and made again. Reconnects
+ * resume: the newest sequence number of each topic is sent
+ * (<topic>After) so the rover only sends the history that was
+ * missed, and samples received twice are dropped. Alerts are
+ * relayed too. They are not resumed: the rover sends the
+ * raised ones again on each connect, ahead of any other
+ * frame, and the relayed alerts it did not send are cleared
+ * when the first other frame arrives.
+ ************************************************************/
+public class RelayClient extends Endpoint implements Sensor {
+    private static final int MAX_MESSAGE = 1 << 20; // bytes, larger than the biggest snapshot frame
+    private static final String[] TOPICS = {"attitude", "radiation", "statistics"}; // by frame type - 1, alerts are not resumed
+    private static final Counter FRAMES = Metrics.counter("speluncr_relay_frames_total",
+            "Frames received from the rover in relay mode.");
+    private static final Counter DUPLICATES = Metrics.counter("speluncr_relay_duplicate_samples_total",
+            "Samples received from the rover again after a reconnect, and dropped.");
+    private static final Counter MISSED = Metrics.counter("speluncr_relay_missed_samples_total",
+            "Samples missing from the rover's sequence numbers, dropped upstream or lost while disconnected.");
+    private static final Counter CONNECTS = Metrics.counter("speluncr_relay_connects_total",
+            "Connections made to the rover in relay mode.");
+    private final TelemetryServlet servlet;
+    private volatile Session session = null;
+    private volatile String error = null;
+    private volatile long lastMessage; // nanoTime a message was last received
+    private long timeout; // ns without a message before reconnecting
+    private ScheduledTask watchdog = null;
+    // Newest sample received on each topic, for resuming. Only used by the upstream session's message thread
+    // and while connecting.
+    private final boolean[] received = new boolean[TOPICS.length];
+    private final int[] lastSequence = new int[TOPICS.length];
+    private final long[] lastTime = new long[TOPICS.length];
+    // Alerts the rover sent since connecting, until the first other frame. Only used by the message thread.
+    private boolean reconciling = false;
+    private final boolean[] resent = new boolean[FrameCodec.MAX_ALERT + 1];
+
+    public RelayClient(TelemetryServlet telemetryServlet){
+        servlet = telemetryServlet;
+    }
+
+    @Override
+    public synchronized void startSensor(){
+        if (isRunning()){
+            return;
+        }
+        Properties properties = servlet.getProperties();
+        String upstream = PropertyReader.getString(properties, "RelayUpstream", "ws://localhost:8080/speluncr/telemetry");
+        timeout = PropertyReader.getInt(properties, "RelayTimeoutSeconds", 10, 2, 600) * 1000000000L;
+        StringBuilder query = new StringBuilder("?attitude=0&radiation=0&statistics=0");
+        for (int topic = 0; topic < TOPICS.length; topic++){
+            if (received[topic]){
+                query.append('&').append(TOPICS[topic]).append("After=").append(lastSequence[topic]);
+            }
+        }
+        try {
+            WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+            container.setDefaultMaxBinaryMessageBufferSize(MAX_MESSAGE);
+            lastMessage = System.nanoTime();
+            session = container.connectToServer(this, ClientEndpointConfig.Builder.create().build(),
+                    URI.create(upstream + query));
+            error = null;
+            CONNECTS.increment();
+            System.out.printf("[INFO]: Relaying telemetry from %s\n", upstream);
+        } catch (DeploymentException | IOException | IllegalArgumentException e){
+            error = "Cannot connect to " + upstream + ": " + e.getMessage();
+            session = null;
+            return;
+        }
+        watchdog = servlet.getScheduler().scheduleAtRate("relay-watchdog", 1, this::checkUpstream);
+    }
+
+    @Override
+    public synchronized void stopSensor(){
+        if (watchdog != null){
+            watchdog.cancel();
+            watchdog = null;
+        }
+        close(CloseReason.CloseCodes.GOING_AWAY, "Relay stopped");
+        session = null;
+    }
+
+    @Override
+    public boolean isRunning(){
+        Session current = session;
+        return current != null && current.isOpen();
+    }
+
+    @Override
+    public String getError(){
+        return error;
+    }
+
+    @Override
+    public void onOpen(Session session, javax.websocket.EndpointConfig config){
+        session.setMaxIdleTimeout(0); // the watchdog notices a silent rover
+        reconciling = true;
+        Arrays.fill(resent, false);
+        session.addMessageHandler(ByteBuffer.class, (MessageHandler.Whole<ByteBuffer>) this::onFrame);
+    }
+
+    @Override
+    public void onClose(Session session, CloseReason closeReason){
+        error = "Rover closed the connection: " + closeReason.getCloseCode() + " " + closeReason.getReasonPhrase();
+        System.err.printf("[WARNING]: %s\n", error);
+    }
+
+    @Override
+    public void onError(Session session, Throwable throwable){
+        error = "Connection to the rover failed: " + throwable;
+        System.err.printf("[WARNING]: %s\n", error);
+    }
+
+    // Re-broadcast a frame from the rover, without the samples that were already received
+    private void onFrame(ByteBuffer message){
+        lastMessage = System.nanoTime();
+        ByteBuffer frame = Broadcaster.share(message); // the container reuses its buffer
+        ByteBuffer in = FrameCodec.wrap(frame);
+        if (!FrameCodec.isValid(in)){
+            return;
+        }
+        FRAMES.increment();
+        int type = FrameCodec.getType(in);
+        if (type == FrameCodec.TYPE_ALERT){
+            // Not dropped by sequence number: the raised alerts are sent again with their old numbers
+            if (reconciling){
+                for (int i = 0; i < FrameCodec.getCount(in); i++){
+                    int alert = FrameCodec.getAlert(in, i);
+                    if (alert <= FrameCodec.MAX_ALERT){
+                        resent[alert] = FrameCodec.isAlertRaised(in, i);
+                    }
+                }
+            }
+            servlet.getAlerts().relay(frame);
+            return;
+        }
+        if (reconciling){
+            reconciling = false;
+            servlet.getAlerts().clearRelayed(resent);
+        }
+        frame = newSamples(type - 1, frame);
+        if (frame == null){
+            return;
+        }
+        if (type == FrameCodec.TYPE_ATTITUDE){
+            AttitudeEndpoint.relay(frame);
+        } else if (type == FrameCodec.TYPE_RADIATION){
+            RadiationEndpoint.relayCounts(frame);
+        } else {
+            RadiationEndpoint.relayStatistics(frame);
+        }
+    }
+
+    // The samples of a frame that were not received before, or null if there are none. topic is the frame type - 1.
+    ByteBuffer newSamples(int topic, ByteBuffer frame){
+        ByteBuffer in = FrameCodec.wrap(frame);
+        int count = FrameCodec.getCount(in);
+        if (received[topic]){
+            int first = FrameCodec.getSequence(in);
+            if (first - lastSequence[topic] <= 0 && FrameCodec.getTimestamp(in) > lastTime[topic]){
+                // A number already received with a newer time: the rover restarted and numbers from 0 again
+                System.out.printf("[INFO]: Rover %s sequence restarted.\n", TOPICS[topic]);
+            } else {
+                ByteBuffer newer = FrameCodec.samplesAfter(frame, lastSequence[topic]);
+                int kept = newer == null ? 0 : FrameCodec.getCount(FrameCodec.wrap(newer));
+                DUPLICATES.add(count - kept);
+                if (newer == null){
+                    return null;
+                }
+                if (first - lastSequence[topic] > 1){
+                    MISSED.add(first - lastSequence[topic] - 1);
+                }
+                frame = newer;
+                in = FrameCodec.wrap(frame);
+                count = kept;
+            }
+        }
+        received[topic] = true;
+        lastSequence[topic] = FrameCodec.getSequence(in) + count - 1;
+        lastTime[topic] = FrameCodec.getTime(in, count - 1);
+        return frame;
+    }
+
+    // Drop a connection that has gone quiet, e.g. the WiFi link was lost without closing it
+    private void checkUpstream(){
+        if (isRunning() && System.nanoTime() - lastMessage > timeout){
+            error = "Nothing received from the rover for " + timeout / 1000000000L + " s";
+            System.err.printf("[WARNING]: %s. Reconnecting.\n", error);
+            close(CloseReason.CloseCodes.GOING_AWAY, "No data");
+        }
+    }
+
+    private void close(CloseReason.CloseCode code, String reason){
+        Session current = session;
+        if (current != null && current.isOpen()){
+            try {
+                current.close(new CloseReason(code, reason));
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+}
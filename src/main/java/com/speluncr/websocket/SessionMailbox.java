@@ -0,0 +1,307 @@
+package com.speluncr.websocket;
+
+import com.speluncr.metrics.Counter;
+import com.speluncr.metrics.Histogram;
+import com.speluncr.metrics.Metrics;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/************************************************************
+ * Outgoing message slots for one websocket session. Sends are
+ * asynchronous and at most one is in flight per session. A
+ * message offered while a send is in flight waits in the
+ * latest-value slot for its stream. A newer message replaces
+ * it and the older one is counted as dropped, so a slow viewer
+ * only ever falls one message behind on each stream and never
+ * holds up other sessions. Sessions that multiplex several
+ * streams have one slot per stream, served in turn.
+ *
+ * A new session can be held while a snapshot of the recent
+ * history is built: live messages then queue in order behind
+ * the snapshot until it has been sent, and samples that were
+ * already in the snapshot are cut from them by sequence
+ * number, so the viewer gets no gap and no duplicate where
+ * the history meets the live stream.
+ *
+ * Urgent messages (alerts) are never held: they are sent
+ * before anything else waiting, as soon as the send in flight
+ * completes. Each alert has its own slot, so only the newest
+ * state of an alert waits and one that flaps cannot grow the
+ * mailbox.
+ *
+ * Send latency, sends, drops and failures are recorded in the
+ * metrics of the session's endpoint.
+ ************************************************************/
+public class SessionMailbox implements SendHandler {
+    private static final long SEND_TIMEOUT = 5000; // ms before a stuck send fails
+    private static final int MAX_QUEUED = 1024; // live messages queued behind a snapshot, newer ones are dropped
+    private static final long NO_SNAPSHOT = Long.MIN_VALUE;
+    private final Session session;
+    private final RemoteEndpoint.Async remote;
+    private final AtomicReferenceArray<ByteBuffer> pending;
+    // Newest frame of each alert by alert number (0 for unknown ones), sent before anything else
+    private final AtomicReferenceArray<ByteBuffer> urgent = new AtomicReferenceArray<>(FrameCodec.MAX_ALERT + 1);
+    // Snapshot frames, then the live messages offered while holding, all sent before the slots. Guarded by queued.
+    private final ArrayDeque<ByteBuffer> queued = new ArrayDeque<>();
+    private final ArrayDeque<Held> held = new ArrayDeque<>(); // live messages offered before release(), guarded by queued
+    private volatile boolean holding = false; // live messages are queued instead of using the slots
+    private boolean released = false; // the snapshot is queued, guarded by queued
+    private final AtomicLongArray snapshotEnd; // per slot, sequence of the last sample sent in the snapshot
+    private int nextSlot = 0; // slot to check first, only used while holding the sending flag
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private long sendStart; // nanoTime the send in flight started, only used while holding the sending flag
+    private final Histogram sendLatency;
+    private final Counter sentMetric;
+    private final Counter droppedMetric;
+    private final Counter failedMetric;
+
+    public SessionMailbox(Session session, String endpoint){
+        this(session, 1, endpoint);
+    }
+
+    // endpoint labels the metrics, e.g. "attitude"
+    public SessionMailbox(Session session, int slots, String endpoint){
+        this.session = session;
+        pending = new AtomicReferenceArray<>(slots);
+        snapshotEnd = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++){
+            snapshotEnd.set(i, NO_SNAPSHOT);
+        }
+        remote = session.getAsyncRemote();
+        remote.setSendTimeout(SEND_TIMEOUT);
+        sendLatency = Metrics.histogram("speluncr_websocket_send_seconds",
+                "Time from starting a send to a session until it completed.", "endpoint", endpoint);
+        sentMetric = Metrics.counter("speluncr_websocket_sent_total", "Messages sent to sessions.", "endpoint", endpoint);
+        droppedMetric = Metrics.counter("speluncr_websocket_dropped_total",
+                "Messages replaced by a newer one before they could be sent.", "endpoint", endpoint);
+        failedMetric = Metrics.counter("speluncr_websocket_send_failures_total",
+                "Sends that failed or timed out.", "endpoint", endpoint);
+    }
+
+    // A live message offered before the snapshot was known
+    private static class Held {
+        final int slot;
+        final ByteBuffer payload;
+
+        Held(int slot, ByteBuffer payload){
+            this.slot = slot;
+            this.payload = payload;
+        }
+    }
+
+    public Session getSession(){
+        return session;
+    }
+
+    // Queue live messages in order instead of sending them, until release(). Call before the session is published to.
+    public void hold(){
+        holding = true;
+    }
+
+    // Send frames of the stream in the given slot first, oldest first. Call between hold() and release().
+    public void queueSnapshot(int slot, List<ByteBuffer> frames){
+        synchronized (queued){
+            for (ByteBuffer frame : frames){
+                ByteBuffer wrapped = FrameCodec.wrap(frame);
+                snapshotEnd.set(slot, FrameCodec.getSequence(wrapped) + FrameCodec.getCount(wrapped) - 1);
+                queued.add(frame);
+            }
+        }
+    }
+
+    // Send the snapshot, then the live messages held since hold() without the samples the snapshot already had
+    public void release(){
+        synchronized (queued){
+            for (Held message : held){
+                ByteBuffer payload = trim(message.slot, message.payload);
+                if (payload != null){
+                    queued.add(payload);
+                }
+            }
+            held.clear();
+            released = true;
+        }
+        trySend();
+    }
+
+    // Queue a shared read-only alert frame of one sample to be sent before every other waiting message, in place
+    // of any earlier state of the same alert still waiting. Never blocks.
+    public void offerUrgent(ByteBuffer payload){
+        int alert = FrameCodec.getAlert(FrameCodec.wrap(payload), 0);
+        if (urgent.getAndSet(alert <= FrameCodec.MAX_ALERT ? alert : 0, payload) != null){
+            dropped.incrementAndGet();
+            droppedMetric.increment();
+        }
+        trySend();
+    }
+
+    // Queue a shared read-only payload for this session. Never blocks.
+    public void offer(ByteBuffer payload){
+        offer(0, payload);
+    }
+
+    // Queue a shared read-only payload in the given stream's slot. Never blocks.
+    public void offer(int slot, ByteBuffer payload){
+        if (holding){
+            synchronized (queued){
+                if (holding){
+                    if (released){
+                        payload = trim(slot, payload);
+                        if (payload == null){
+                            return;
+                        }
+                    }
+                    if (queued.size() + held.size() >= MAX_QUEUED){
+                        dropped.incrementAndGet();
+                        droppedMetric.increment();
+                    } else if (released){
+                        queued.add(payload);
+                    } else {
+                        held.add(new Held(slot, payload));
+                    }
+                    payload = null;
+                }
+            }
+            if (payload == null){
+                trySend();
+                return;
+            }
+        }
+        payload = trim(slot, payload);
+        if (payload == null){
+            return;
+        }
+        if (pending.getAndSet(slot, payload) != null){
+            dropped.incrementAndGet();
+            droppedMetric.increment();
+        }
+        trySend();
+    }
+
+    // The payload without the samples that were sent in the snapshot, or null if it has nothing newer
+    private ByteBuffer trim(int slot, ByteBuffer payload){
+        long end = snapshotEnd.get(slot);
+        if (end == NO_SNAPSHOT){
+            return payload;
+        }
+        ByteBuffer newer = FrameCodec.samplesAfter(payload, (int) end);
+        if (newer != null){
+            snapshotEnd.set(slot, NO_SNAPSHOT); // later messages of the stream are newer still
+        }
+        return newer;
+    }
+
+    private boolean hasPending(){
+        for (int i = 0; i < urgent.length(); i++){
+            if (urgent.get(i) != null){
+                return true;
+            }
+        }
+        if (holding){
+            synchronized (queued){
+                if (released){
+                    if (!queued.isEmpty()){
+                        return true;
+                    }
+                    holding = false; // caught up with the live stream, which now uses the slots
+                }
+            }
+        }
+        for (int i = 0; i < pending.length(); i++){
+            if (pending.get(i) != null){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Take the next waiting message, urgent ones first, then checking the slots in turn so no stream starves the others
+    private ByteBuffer takeNext(){
+        for (int i = 0; i < urgent.length(); i++){
+            ByteBuffer alert = urgent.getAndSet(i, null);
+            if (alert != null){
+                return alert;
+            }
+        }
+        if (holding){
+            synchronized (queued){
+                if (!released){
+                    return null;
+                }
+                if (!queued.isEmpty()){
+                    return queued.poll();
+                }
+                holding = false; // caught up with the live stream
+            }
+        }
+        for (int i = 0; i < pending.length(); i++){
+            int slot = (nextSlot + i) % pending.length();
+            ByteBuffer next = pending.getAndSet(slot, null);
+            if (next != null){
+                nextSlot = slot + 1;
+                return next;
+            }
+        }
+        return null;
+    }
+
+    private void trySend(){
+        while (hasPending() && sending.compareAndSet(false, true)){
+            ByteBuffer next = takeNext();
+            if (next == null){
+                sending.set(false);
+                continue;
+            }
+            try {
+                // Each session gets its own view of the shared payload so positions don't interfere
+                sendStart = System.nanoTime();
+                remote.sendBinary(next.duplicate(), this);
+                return;
+            } catch (RuntimeException e){
+                // Session closed between offer and send
+                failed.incrementAndGet();
+                failedMetric.increment();
+                sending.set(false);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onResult(SendResult result){
+        sendLatency.recordSince(sendStart);
+        if (result.isOK()){
+            sent.incrementAndGet();
+            sentMetric.increment();
+        } else {
+            failed.incrementAndGet();
+            failedMetric.increment();
+        }
+        sending.set(false);
+        trySend();
+    }
+
+    public long getSentCount(){
+        return sent.get();
+    }
+
+    public long getDroppedCount(){
+        return dropped.get();
+    }
+
+    public long getFailedCount(){
+        return failed.get();
+    }
+}
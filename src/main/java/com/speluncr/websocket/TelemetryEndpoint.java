@@ -0,0 +1,286 @@
+package com.speluncr.websocket;
+
+import com.speluncr.metrics.Metrics;
+import javax.websocket.CloseReason;
+import javax.websocket.Endpoint;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/************************************************************
+ * Multiplexed telemetry endpoint (/telemetry). One connection
+ * carries any of the telemetry topics, each at a maximum rate
+ * chosen by the client. Topics are selected with query
+ * parameters when connecting (/telemetry?attitude=2&radiation=1)
+ * or with text commands at any time:
+ *
+ *   subscribe <topic> [maxHz]     (maxHz 0 or absent = full rate)
+ *   unsubscribe <topic>
+ *
+ * Topics: attitude, radiation, statistics. Messages are FrameCodec frames,
+ * the same ones the single topic endpoints send, so the frame
+ * type tells the topics apart. A reduced attitude rate sends
+ * the newest sample at most maxHz times a second. A reduced
+ * radiation rate sends every per-second count, batched into
+ * one frame per interval. A reduced statistics rate sends the
+ * newest statistics at most maxHz times a second.
+ *
+ * The topics subscribed to with query parameters start with
+ * the recent history kept for them (see TelemetryHistory). A
+ * client that reconnects can skip the samples it already has
+ * with <topic>After=<sequence> parameters. Alerts (see
+ * AlertChannel) are sent to every subscriber.
+ *
+ * Registered through EndpointConfig.
+ ************************************************************/
+public class TelemetryEndpoint extends Endpoint {
+    public static final String PATH = "/telemetry";
+    static final int ATTITUDE = 0;
+    static final int RADIATION = 1;
+    static final int STATISTICS = 2;
+    private static final String[] TOPICS = {"attitude", "radiation", "statistics"};
+    private static final long SECOND = 1000000000L;
+    private static final Map<String, Subscriber> SUBSCRIBERS = new ConcurrentHashMap<>();
+    static {
+        Metrics.gauge("speluncr_websocket_sessions", "Open websocket sessions.", SUBSCRIBERS::size, "endpoint", "telemetry");
+    }
+
+    // Per session subscription state. Rates are set by the message thread and read by the publishers.
+    private static class Subscriber {
+        final SessionMailbox mailbox;
+        final boolean[] subscribed = new boolean[TOPICS.length];
+        final long[] interval = new long[TOPICS.length]; // ns between messages, 0 = every message
+        final long[] nextDue = new long[TOPICS.length];
+        FrameCodec.Encoder radiationBatch = null; // per-second counts waiting for a reduced rate message
+
+        Subscriber(Session session){
+            mailbox = new SessionMailbox(session, TOPICS.length, "telemetry");
+        }
+
+        synchronized void subscribe(int topic, double maxHz){
+            interval[topic] = maxHz > 0 ? (long) (SECOND / maxHz) : 0;
+            nextDue[topic] = System.nanoTime();
+            subscribed[topic] = true;
+            if (topic == RADIATION){
+                radiationBatch = interval[topic] == 0 ? null
+                        : new FrameCodec.Encoder(FrameCodec.TYPE_RADIATION, (int) (interval[topic] / SECOND) + 1);
+            }
+        }
+
+        synchronized void unsubscribe(int topic){
+            subscribed[topic] = false;
+        }
+
+        // True if a message for the topic may be sent now. Advances the schedule when it returns true.
+        synchronized boolean due(int topic, long now){
+            if (!subscribed[topic] || now - nextDue[topic] < 0){
+                return false;
+            }
+            // Keep the average rate without bursting after a pause
+            nextDue[topic] = Math.max(nextDue[topic] + interval[topic], now - interval[topic]);
+            return true;
+        }
+
+        synchronized boolean isSubscribed(int topic){
+            return subscribed[topic];
+        }
+    }
+
+    @Override
+    public void onOpen(Session session, javax.websocket.EndpointConfig config){
+        session.setMaxIdleTimeout(0); // low rate subscribers may not send anything for a long time
+        Subscriber subscriber = new Subscriber(session);
+        for (Map.Entry<String, List<String>> parameter : session.getRequestParameterMap().entrySet()){
+            int topic = topicId(parameter.getKey());
+            if (topic >= 0){
+                subscriber.subscribe(topic, parseRate(parameter.getValue().get(0)));
+            }
+        }
+        session.addMessageHandler(String.class, (MessageHandler.Whole<String>) command -> handleCommand(subscriber, command));
+        // Send the recent history of the topics subscribed to when connecting, then their live frames
+        subscriber.mailbox.hold();
+        SUBSCRIBERS.put(session.getId(), subscriber);
+        AlertChannel.sendRaised(subscriber.mailbox); // ahead of everything else, see RelayClient
+        if (subscriber.isSubscribed(ATTITUDE)){
+            subscriber.mailbox.queueSnapshot(ATTITUDE, resume(session, ATTITUDE, AttitudeEndpoint.snapshot()));
+        }
+        if (subscriber.isSubscribed(RADIATION)){
+            subscriber.mailbox.queueSnapshot(RADIATION, resume(session, RADIATION, RadiationEndpoint.snapshotCounts()));
+        }
+        if (subscriber.isSubscribed(STATISTICS)){
+            subscriber.mailbox.queueSnapshot(STATISTICS, resume(session, STATISTICS, RadiationEndpoint.snapshotStatistics()));
+        }
+        subscriber.mailbox.release();
+        AttitudeEndpoint.startBroadcasting();
+        System.out.printf("Telemetry Endpoint Session %s Opened.\n", session.getId());
+    }
+
+    @Override
+    public void onClose(Session session, CloseReason closeReason){
+        SUBSCRIBERS.remove(session.getId());
+        AttitudeEndpoint.stopBroadcastingIfIdle();
+        System.out.printf("Telemetry Endpoint Session %s Closed.\n", session.getId());
+    }
+
+    @Override
+    public void onError(Session session, Throwable throwable){
+        SUBSCRIBERS.remove(session.getId());
+        AttitudeEndpoint.stopBroadcastingIfIdle();
+        System.err.printf("Telemetry Endpoint Session %s Error: %s\n", session.getId(), throwable);
+        try {
+            session.close();
+        } catch (IOException e){
+            System.err.printf("onError(): Failed to close session %s after error occurred.", session.getId());
+            e.printStackTrace();
+        }
+    }
+
+    static boolean isEmpty(){
+        return SUBSCRIBERS.isEmpty();
+    }
+
+    // Send an attitude frame to every subscriber that is due for one
+    static void publishAttitude(ByteBuffer frame){
+        if (SUBSCRIBERS.isEmpty()){
+            return;
+        }
+        long now = System.nanoTime();
+        boolean batched = FrameCodec.getCount(FrameCodec.wrap(frame)) > 1;
+        ByteBuffer newest = null; // newest sample on its own, for reduced rate subscribers
+        for (Subscriber subscriber : SUBSCRIBERS.values()){
+            if (!subscriber.due(ATTITUDE, now)){
+                continue;
+            }
+            if (!batched || subscriber.interval[ATTITUDE] == 0){
+                subscriber.mailbox.offer(ATTITUDE, frame);
+            } else {
+                if (newest == null){
+                    newest = FrameCodec.lastSample(frame);
+                }
+                subscriber.mailbox.offer(ATTITUDE, newest);
+            }
+        }
+    }
+
+    // Send a frame of per-second counts (one second, or more from a relay), batched for subscribers that
+    // want less than 1 Hz
+    static void publishRadiation(ByteBuffer frame){
+        if (SUBSCRIBERS.isEmpty()){
+            return;
+        }
+        long now = System.nanoTime();
+        ByteBuffer in = FrameCodec.wrap(frame);
+        int sequence = FrameCodec.getSequence(in);
+        int count = FrameCodec.getCount(in);
+        for (Subscriber subscriber : SUBSCRIBERS.values()){
+            ByteBuffer message = null;
+            synchronized (subscriber){
+                if (!subscriber.subscribed[RADIATION]){
+                    continue;
+                }
+                FrameCodec.Encoder batch = subscriber.radiationBatch;
+                if (batch == null){
+                    message = frame;
+                } else {
+                    for (int i = 0; i < count; i++){
+                        long timeMicros = FrameCodec.getTime(in, i);
+                        long counts = FrameCodec.getRadiationCount(in, i);
+                        if (!batch.addRadiation(sequence + i, timeMicros, counts)){
+                            // Full early, e.g. after a pause in counting or while a relay catches up
+                            subscriber.mailbox.offer(RADIATION, batch.finish());
+                            batch.addRadiation(sequence + i, timeMicros, counts);
+                        }
+                    }
+                    if (message == null && subscriber.due(RADIATION, now)){
+                        message = batch.finish();
+                    }
+                    if (message == null){
+                        continue;
+                    }
+                }
+            }
+            subscriber.mailbox.offer(RADIATION, message);
+        }
+    }
+
+    // Send an alert to every subscriber, whatever their topics, ahead of their waiting telemetry
+    static void publishUrgent(ByteBuffer frame){
+        for (Subscriber subscriber : SUBSCRIBERS.values()){
+            subscriber.mailbox.offerUrgent(frame);
+        }
+    }
+
+    // Send a radiation statistics frame to every subscriber that is due for one
+    static void publishStatistics(ByteBuffer frame){
+        long now = System.nanoTime();
+        for (Subscriber subscriber : SUBSCRIBERS.values()){
+            if (subscriber.due(STATISTICS, now)){
+                subscriber.mailbox.offer(STATISTICS, frame);
+            }
+        }
+    }
+
+    // The snapshot without the samples a reconnecting client already has, given by a <topic>After=<sequence>
+    // query parameter (see RelayClient). Ignored if the sequence is newer than the snapshot, which means the
+    // client saw it before this server restarted.
+    private static List<ByteBuffer> resume(Session session, int topic, List<ByteBuffer> frames){
+        List<String> values = session.getRequestParameterMap().get(TOPICS[topic] + "After");
+        if (values == null || frames.isEmpty()){
+            return frames;
+        }
+        int after;
+        try {
+            after = Integer.parseInt(values.get(0));
+        } catch (NumberFormatException e){
+            return frames;
+        }
+        ByteBuffer newest = FrameCodec.wrap(frames.get(frames.size() - 1));
+        if (FrameCodec.getSequence(newest) + FrameCodec.getCount(newest) - 1 - after < 0){
+            return frames;
+        }
+        List<ByteBuffer> newer = new ArrayList<>();
+        for (ByteBuffer frame : frames){
+            ByteBuffer samples = FrameCodec.samplesAfter(frame, after);
+            if (samples != null){
+                newer.add(samples);
+            }
+        }
+        return newer;
+    }
+
+    private static void handleCommand(Subscriber subscriber, String command){
+        String[] words = command.trim().split("\\s+");
+        int topic = words.length > 1 ? topicId(words[1]) : -1;
+        if (topic < 0){
+            System.err.printf("[INFO]: Ignoring telemetry command \"%s\"\n", command);
+            return;
+        }
+        if ("subscribe".equalsIgnoreCase(words[0])){
+            subscriber.subscribe(topic, words.length > 2 ? parseRate(words[2]) : 0);
+        } else if ("unsubscribe".equalsIgnoreCase(words[0])){
+            subscriber.unsubscribe(topic);
+        }
+    }
+
+    private static int topicId(String name){
+        for (int i = 0; i < TOPICS.length; i++){
+            if (TOPICS[i].equalsIgnoreCase(name)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static double parseRate(String value){
+        try {
+            return Math.max(0, Double.parseDouble(value));
+        } catch (NumberFormatException | NullPointerException e){
+            return 0;
+        }
+    }
+}
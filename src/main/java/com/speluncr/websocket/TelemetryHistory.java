@@ -0,0 +1,148 @@
+package com.speluncr.websocket;
+
+import com.speluncr.metrics.Metrics;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/************************************************************
+ * The newest samples of one stream, kept so a viewer that
+ * connects (or reconnects after the WiFi drops) is sent the
+ * last minutes of data before the live frames. Samples are
+ * held in primitive arrays allocated once, when the sensor
+ * starts, so memory use is fixed by the capacity set in
+ * servlet.conf.
+ *
+ * Samples are added by one thread at a time, before they are
+ * published. snapshot() copies the ring without locking, so
+ * a viewer connecting never holds up the sensor: any sample
+ * overwritten while it was being copied is left out.
+ ************************************************************/
+public class TelemetryHistory {
+    // Samples per snapshot frame. Longer histories are split so each send completes well within the send timeout.
+    static final int MAX_FRAME_SAMPLES = 8192;
+    private final int type; // FrameCodec type
+    private final int width; // values per sample
+    private volatile Ring ring = null;
+
+    // Fixed-size ring. Sample n is stored at index n % capacity.
+    private static class Ring {
+        final int capacity;
+        final int[] sequences;
+        final long[] times; // epoch us
+        final double[] values;
+        final AtomicLong written = new AtomicLong(); // samples added, published after each sample is stored
+
+        Ring(int capacity, int width){
+            this.capacity = capacity;
+            sequences = new int[capacity];
+            times = new long[capacity];
+            values = new double[capacity * width];
+        }
+    }
+
+    // name labels the metrics, e.g. "attitude"
+    public TelemetryHistory(String name, int type, int width){
+        this.type = type;
+        this.width = width;
+        Metrics.gauge("speluncr_history_samples", "Samples kept to send to viewers when they connect.", this::size,
+                "stream", name);
+    }
+
+    // Allocate room for the given number of samples (0 keeps none). The samples already kept are discarded
+    // unless the capacity is unchanged. Only called when the sensor starts.
+    public synchronized void setCapacity(int samples){
+        Ring current = ring;
+        if (samples <= 0){
+            ring = null;
+        } else if (current == null || current.capacity != samples){
+            ring = new Ring(samples, width);
+        }
+    }
+
+    public int getCapacity(){
+        Ring current = ring;
+        return current == null ? 0 : current.capacity;
+    }
+
+    public int size(){
+        Ring current = ring;
+        return current == null ? 0 : (int) Math.min(current.written.get(), current.capacity);
+    }
+
+    public synchronized void add(int sequence, long timeMicros, double value){
+        Ring current = ring;
+        if (current != null){
+            long n = current.written.get();
+            int i = (int) (n % current.capacity);
+            current.sequences[i] = sequence;
+            current.times[i] = timeMicros;
+            current.values[i * width] = value;
+            current.written.set(n + 1);
+        }
+    }
+
+    public synchronized void add(int sequence, long timeMicros, double a, double b, double c, double d){
+        Ring current = ring;
+        if (current != null){
+            long n = current.written.get();
+            int i = (int) (n % current.capacity);
+            current.sequences[i] = sequence;
+            current.times[i] = timeMicros;
+            int v = i * width;
+            current.values[v] = a;
+            current.values[v + 1] = b;
+            current.values[v + 2] = c;
+            current.values[v + 3] = d;
+            current.written.set(n + 1);
+        }
+    }
+
+    // Frames of the kept samples, oldest first. Every sample added before the call is included, unless it
+    // was overwritten. A gap in the sequence numbers or time starts a new frame.
+    public List<ByteBuffer> snapshot(){
+        Ring current = ring;
+        if (current == null){
+            return Collections.emptyList();
+        }
+        long end = current.written.get();
+        long start = Math.max(0, end - current.capacity);
+        int n = (int) (end - start);
+        int[] sequences = new int[n];
+        long[] times = new long[n];
+        double[] values = new double[n * width];
+        for (int k = 0; k < n; k++){
+            int i = (int) ((start + k) % current.capacity);
+            sequences[k] = current.sequences[i];
+            times[k] = current.times[i];
+            System.arraycopy(current.values, i * width, values, k * width, width);
+        }
+        // The sample being added when the copy finished, and the ones before it, may have replaced copied samples
+        int first = (int) Math.max(0, Math.min(n, current.written.get() - current.capacity + 1 - start));
+
+        List<ByteBuffer> frames = new ArrayList<>();
+        FrameCodec.Encoder frame = new FrameCodec.Encoder(type, Math.min(n - first, MAX_FRAME_SAMPLES));
+        for (int k = first; k < n; k++){
+            if (!frame.isEmpty() && sequences[k] != sequences[k - 1] + 1){
+                frames.add(frame.finish());
+            }
+            if (!add(frame, sequences[k], times[k], values, k * width)){
+                frames.add(frame.finish());
+                add(frame, sequences[k], times[k], values, k * width);
+            }
+        }
+        if (!frame.isEmpty()){
+            frames.add(frame.finish());
+        }
+        return frames;
+    }
+
+    private boolean add(FrameCodec.Encoder frame, int sequence, long timeMicros, double[] values, int v){
+        if (type == FrameCodec.TYPE_ATTITUDE){
+            return frame.addAttitude(sequence, timeMicros, values[v], values[v + 1], values[v + 2], values[v + 3]);
+        }
+        return frame.addRadiation(sequence, timeMicros, (long) values[v]);
+    }
+}
@@ -59,14 +59,33 @@ function setNavballRPY(roll, pitch, yaw){
 * WEBSOCKET CONNECTION
 * Connects to the java servlet to obtain data from SPELUNCR
 **********************************************************/
-// Attitude websocket message data indices
-const ROLL_IDX 	= 0;
-const PITCH_IDX = 1;
-const YAW_IDX 	= 2;
-const TEMP_IDX 	= 3;
+// Websocket frame format (see FrameCodec.java). Little-endian header:
+// u8 version, u8 type, u16 sample count, u32 sequence of the first sample, i64 timestamp (us)
+const FRAME_VERSION 		= 1;
+const FRAME_ATTITUDE 		= 1;
+const FRAME_RADIATION 		= 2;
+const FRAME_STATISTICS 		= 3;
+const FRAME_ALERT 			= 4;
+const FRAME_HEADER_SIZE 	= 16;
+const ATTITUDE_SAMPLE_SIZE 	= 18; // u32 time offset (us), f32 roll, f32 pitch, f32 yaw, i16 temp (0.01 C)
+const RADIATION_SAMPLE_SIZE = 8;  // u32 time offset (us), u32 count
+// Statistics sample: u32 time offset (us), then f32 values. For the 1 s, 10 s, 60 s and 10 min windows:
+// cpm, cpm lower, cpm upper (95% interval), dose rate (uSv/h). Then moving average cpm and dose rate.
+const STATS_SAMPLE_SIZE 	= 76;
+const STATS_WINDOW_60S 		= 2;
+// Alert sample: u32 time offset (us), u8 alert, u8 state (1 = raised), u8 severity (2 = critical), u8 reserved,
+// f32 value, f32 threshold (deg, deg/s or counts/s)
+const ALERT_SAMPLE_SIZE 	= 16;
+const ALERT_NAMES 			= ['', 'Roll', 'Pitch', 'Tilt rate', 'Radiation rate'];
+const ALERT_UNITS 			= ['', '&deg', '&deg', '&deg/s', ' cps'];
 
 var attUps = 0; // Attitude updates per second
+var attDropped = 0; // Attitude samples missed in the last second
+var attNextSeq; // Sequence number expected in the next attitude frame
+var attNewestTime; // Time (epoch us) of the newest attitude sample
+var attRateFrom; // Only samples newer than this time (epoch us) count as updates, set at each report
 var attUpsTimer = setInterval(repAttRate, 1000); // Report update rate every second
+var alerts = {}; // Newest state of each alert by alert number
 
 // Get the socket addresses and create the websockets. Use arraybuffer for binary data
 const ATTITUDE_SOCKET_URL = window.location.hostname + ':' + window.location.port + '/speluncr/attitude';
@@ -93,12 +112,43 @@ function websocketOpen(event, socketName){
 // Server data is in little endian as this is most common.
 // There will be trouble if a system using big endian data tries to read this
 ATTITUDE_SOCKET.onmessage = function(event) {
-	// Interpret data
-    const buffer = new Float64Array(event.data);
-	const roll	= buffer[ROLL_IDX];
-	const pitch = buffer[PITCH_IDX];
-	const yaw 	= buffer[YAW_IDX];
-	const temp	= buffer[TEMP_IDX];
+	const view = new DataView(event.data);
+	if (isFrame(view, FRAME_ALERT)) {
+		showAlerts(view);
+		return;
+	}
+	if (!isFrame(view, FRAME_ATTITUDE)) {
+		return;
+	}
+	const count = view.getUint16(2, true);
+	const seq = view.getUint32(4, true);
+
+	// A jump in the sequence number means samples were dropped on the way
+	if (typeof attNextSeq !== 'undefined') {
+		attDropped += (seq - attNextSeq) >>> 0;
+	}
+	attNextSeq = (seq + count) >>> 0;
+
+	// Count the samples taken since the last report. The history sent when connecting arrives before the
+	// first report, so it is not counted.
+	const timestamp = view.getUint32(8, true) + view.getUint32(12, true) * 4294967296;
+	for (let i = count - 1; i >= 0; i--) {
+		const time = timestamp + view.getUint32(FRAME_HEADER_SIZE + i * ATTITUDE_SAMPLE_SIZE, true);
+		if (i === count - 1) {
+			attNewestTime = time;
+		}
+		if (typeof attRateFrom === 'undefined' || time <= attRateFrom) {
+			break;
+		}
+		attUps++;
+	}
+
+	// Only the newest sample in a batch is shown
+	const offset = FRAME_HEADER_SIZE + (count - 1) * ATTITUDE_SAMPLE_SIZE;
+	const roll	= view.getFloat32(offset + 4, true);
+	const pitch = view.getFloat32(offset + 8, true);
+	const yaw 	= view.getFloat32(offset + 12, true);
+	const temp	= view.getInt16(offset + 16, true) / 100;
 
 	// Change navball orientation
 	setNavballRPY(roll, pitch, yaw);
@@ -108,15 +158,69 @@ ATTITUDE_SOCKET.onmessage = function(event) {
 	document.getElementById("pitch").innerHTML = (pitch * 180 / Math.PI).toFixed(2) + '&deg';
 	document.getElementById("yaw").innerHTML = (yaw * 180 / Math.PI).toFixed(2) + '&deg';
 	document.getElementById("temp").innerHTML = temp.toFixed(2) + "&degC";
-
-    attUps++; // This counts as an attitude update. Increment the counter
 };
 
 RADIATION_SOCKET.onmessage = function(event) {
-    const buffer = new Int32Array(event.data);
-    document.getElementById('cps').innerHTML = buffer[0] + " cps";
+	const view = new DataView(event.data);
+	if (isFrame(view, FRAME_RADIATION)) {
+		const count = view.getUint16(2, true);
+		const offset = FRAME_HEADER_SIZE + (count - 1) * RADIATION_SAMPLE_SIZE;
+	    document.getElementById('cps').innerHTML = view.getUint32(offset + 4, true) + " cps";
+	} else if (isFrame(view, FRAME_STATISTICS)) {
+		// Show the 60 s window of the newest statistics
+		const count = view.getUint16(2, true);
+		const offset = FRAME_HEADER_SIZE + (count - 1) * STATS_SAMPLE_SIZE + 4 + STATS_WINDOW_60S * 16;
+		const cpm = view.getFloat32(offset, true);
+		const lower = view.getFloat32(offset + 4, true);
+		const upper = view.getFloat32(offset + 8, true);
+		const dose = view.getFloat32(offset + 12, true);
+		document.getElementById('doseRate').innerHTML =
+			`${dose.toFixed(3)} &micro;Sv/h (${cpm.toFixed(0)} CPM, 95% ${lower.toFixed(0)}-${upper.toFixed(0)})`;
+	} else if (isFrame(view, FRAME_ALERT)) {
+		showAlerts(view);
+	}
 };
 
+// Keep the newest state of each alert in the frame and list the raised ones. Every websocket is sent every
+// alert, so a state older than the one already shown is one the other websocket delivered first.
+function showAlerts(view){
+	const count = view.getUint16(2, true);
+	const timestamp = view.getUint32(8, true) + view.getUint32(12, true) * 4294967296;
+	for (let i = 0; i < count; i++) {
+		const offset = FRAME_HEADER_SIZE + i * ALERT_SAMPLE_SIZE;
+		const alert = view.getUint8(offset + 4);
+		const time = timestamp + view.getUint32(offset, true);
+		if (alert < 1 || alert >= ALERT_NAMES.length || (alert in alerts && alerts[alert].time > time)) {
+			continue;
+		}
+		alerts[alert] = {
+			time: time,
+			raised: view.getUint8(offset + 5) !== 0,
+			critical: view.getUint8(offset + 6) === 2,
+			value: view.getFloat32(offset + 8, true),
+			threshold: view.getFloat32(offset + 12, true)
+		};
+	}
+	let html = '';
+	for (const alert in alerts) {
+		const a = alerts[alert];
+		if (a.raised) {
+			const unit = ALERT_UNITS[alert];
+			html += `<span class="${a.critical ? 'critical' : 'warning'}">${a.critical ? 'CRITICAL' : 'WARNING'}: `
+				+ `${ALERT_NAMES[alert]} ${a.value.toFixed(1)}${unit} (limit ${a.threshold.toFixed(1)}${unit})</span><br>`;
+		}
+	}
+	document.getElementById('alerts').innerHTML = html;
+}
+
+// Check the frame header. Frames of another version or type are ignored.
+function isFrame(view, type){
+	return view.byteLength >= FRAME_HEADER_SIZE
+		&& view.getUint8(0) === FRAME_VERSION
+		&& view.getUint8(1) === type
+		&& view.getUint16(2, true) > 0;
+}
+
 // Event handler for the websocket closing
 ATTITUDE_SOCKET.onclose = function(event) {
     websocketClose(event, 'Attitude');
@@ -153,6 +257,8 @@ function websocketError(error, websocketName){
 
 // Report the attitude update rate
 function repAttRate(){
-    document.getElementById("attUpdateRate").innerHTML=attUps + " Hz";
+    document.getElementById("attUpdateRate").innerHTML=attUps + " Hz" + (attDropped > 0 ? ` (${attDropped} dropped)` : '');
     attUps=0;
+    attDropped=0;
+    attRateFrom=attNewestTime;
 }
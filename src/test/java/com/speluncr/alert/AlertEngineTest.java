@@ -0,0 +1,223 @@
+package com.speluncr.alert;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Properties;
+import static org.junit.jupiter.api.Assertions.*;
+
+/************************************************************
+ * Attitude samples and Geiger counter events with synthetic
+ * timestamps checked against the alert rules. Changes are
+ * handed to the dispatcher, so each check stops it, which
+ * sends every change made so far, and starts it again.
+ ************************************************************/
+class AlertEngineTest {
+    private static final long MS = 1000000L; // ns
+    private final Properties properties = new Properties();
+    private final AlertEngine alerts = new AlertEngine();
+    private long start; // time of the first sample, a minute ahead so the idle check leaves the alerts to the test
+
+    @BeforeEach
+    void setUp(){
+        properties.setProperty("AlertLogFile", "");
+        alerts.configure(properties);
+        alerts.start();
+        start = System.nanoTime() + 60000 * MS;
+    }
+
+    @AfterEach
+    void tearDown(){
+        alerts.stop();
+    }
+
+    @Test
+    void rollAndPitchRaiseAndClearWithHysteresis(){
+        properties.setProperty("AlertTiltRateDegPerSec", "0"); // the angles below change faster than the limit
+        alerts.configure(properties);
+        attitude(0, 34.9, 0);
+        attitude(1, 35, 0);
+        attitude(2, 31, 0); // within the hysteresis
+        flush();
+        assertTrue(alerts.isRaised(AlertEngine.ROLL));
+        attitude(3, 29.9, 0);
+        attitude(4, 0, -35.5);
+        attitude(5, 0, -30.5);
+        flush();
+        assertFalse(alerts.isRaised(AlertEngine.ROLL));
+        assertTrue(alerts.isRaised(AlertEngine.PITCH));
+        attitude(6, 0, -29);
+        flush();
+        assertFalse(alerts.isRaised(AlertEngine.PITCH));
+
+        List<AlertEngine.Alert> recent = alerts.getRecent(); // newest first
+        assertEquals(4, recent.size());
+        assertChange(recent.get(3), "roll", true, 35, 35);
+        assertChange(recent.get(2), "roll", false, 29.9, 30);
+        assertChange(recent.get(1), "pitch", true, 35.5, 35);
+        assertChange(recent.get(0), "pitch", false, 29, 30);
+        assertEquals("critical", recent.get(0).getSeverity());
+    }
+
+    @Test
+    void tiltRateIsFilteredBeforeItIsChecked(){
+        properties.setProperty("AlertRollDegrees", "0");
+        properties.setProperty("AlertPitchDegrees", "0");
+        alerts.configure(properties);
+        // 100 Hz. A single 2 degree spike is 200 deg/s from one sample to the next, but filtered over 100 ms
+        // it is about 18 deg/s.
+        long t = 0;
+        attitude(t++ * 10, 0, 0);
+        attitude(t++ * 10, 2, 0);
+        attitude(t++ * 10, 0, 0);
+        // A jump across a gap of more than a second is not a rate
+        t += 200;
+        attitude(t++ * 10, 40, 0);
+        attitude(t++ * 10, 40, 0);
+        flush();
+        assertFalse(alerts.isRaised(AlertEngine.TILT_RATE));
+
+        // Tipping over at 120 deg/s
+        double roll = 40;
+        for (int i = 0; i < 50; i++){
+            roll += 1.2;
+            attitude(t++ * 10, roll, 0);
+        }
+        flush();
+        assertTrue(alerts.isRaised(AlertEngine.TILT_RATE));
+        // Stopped: the filtered rate decays by 0.1 / 0.11 a sample, to below the 45 deg/s clear level after 11
+        for (int i = 0; i < 10; i++){
+            attitude(t++ * 10, roll, 0);
+        }
+        flush();
+        assertTrue(alerts.isRaised(AlertEngine.TILT_RATE));
+        attitude(t * 10, roll, 0);
+        flush();
+        assertFalse(alerts.isRaised(AlertEngine.TILT_RATE));
+
+        List<AlertEngine.Alert> recent = alerts.getRecent();
+        assertEquals(2, recent.size());
+        assertTrue(recent.get(1).getValue() >= 90);
+        assertEquals(90, recent.get(1).getThreshold(), 1e-9);
+        assertEquals("warning", recent.get(1).getSeverity());
+        assertEquals(45, recent.get(0).getThreshold(), 1e-9);
+        assertTrue(recent.get(0).getValue() < 45);
+    }
+
+    @Test
+    void radiationRateRaisesHoldsAndClears(){
+        // 50 cps over 250 ms: 13 events within the window raise, fewer than 7 clear
+        long t = 0;
+        for (int i = 0; i < 12; i++){
+            alerts.onRadiationEvent(start + t * MS);
+            t += 10;
+        }
+        flush();
+        assertFalse(alerts.isRaised(AlertEngine.RADIATION_RATE), "raised by 12 events");
+        alerts.onRadiationEvent(start + t * MS);
+        flush();
+        assertTrue(alerts.isRaised(AlertEngine.RADIATION_RATE));
+        assertEquals(50, alerts.getRecent().get(0).getThreshold(), 1e-9);
+
+        // 25 cps, the clear level: 7 events span 240 ms
+        for (int i = 0; i < 50; i++){
+            t += 40;
+            alerts.onRadiationEvent(start + t * MS);
+        }
+        flush();
+        assertTrue(alerts.isRaised(AlertEngine.RADIATION_RATE), "cleared at the clear level");
+
+        // 20 cps: cleared once the 7 newest events span more than the window
+        for (int i = 0; i < 6; i++){
+            t += 50;
+            alerts.onRadiationEvent(start + t * MS);
+        }
+        flush();
+        assertFalse(alerts.isRaised(AlertEngine.RADIATION_RATE));
+        assertEquals(2, alerts.getRecent().size());
+        assertEquals(28, alerts.getRecent().get(0).getThreshold(), 1e-9); // 7 events in 250 ms
+    }
+
+    @Test
+    void radiationAlertClearsWhenEventsStop(){
+        long now = System.nanoTime();
+        for (int i = 0; i < 13; i++){
+            alerts.onRadiationEvent(now + i * 10 * MS);
+        }
+        // No more events arrive, so only the dispatcher's idle check can clear it
+        long deadline = System.nanoTime() + 5000 * MS;
+        while (alerts.getRecent().size() < 2 && System.nanoTime() - deadline < 0){
+            Thread.onSpinWait();
+        }
+        assertFalse(alerts.isRaised(AlertEngine.RADIATION_RATE));
+        List<AlertEngine.Alert> recent = alerts.getRecent();
+        assertChange(recent.get(0), "radiation_rate", false, 0, 28);
+        assertTrue(recent.get(0).getTime().isAfter(recent.get(1).getTime()));
+    }
+
+    @Test
+    void newRulesClearAlertsRaisedUnderTheOldOnes(){
+        attitude(0, 40, 0);
+        flush();
+        assertTrue(alerts.isRaised(AlertEngine.ROLL));
+
+        properties.setProperty("AlertRollDegrees", "60");
+        alerts.configure(properties);
+        attitude(2000, 40, 0); // within the new limit
+        attitude(4000, 40, 40); // more than a second apart, so not a tilt rate
+        flush();
+        assertFalse(alerts.isRaised(AlertEngine.ROLL));
+        assertTrue(alerts.isRaised(AlertEngine.PITCH));
+        List<AlertEngine.Alert> recent = alerts.getRecent();
+        assertEquals(3, recent.size());
+        assertChange(recent.get(1), "roll", false, 0, 0);
+        assertChange(recent.get(0), "pitch", true, 40, 35);
+    }
+
+    @Test
+    void steadySamplesDoNotAllocate(){
+        final int samples = 100000;
+        long t = 0;
+        for (int pass = 0; pass < 2; pass++){
+            long before = allocatedBytes();
+            for (int i = 0; i < samples; i++){
+                alerts.onAttitude(start + t * MS, Math.toRadians(10 + i % 3), Math.toRadians(-5));
+                if (i % 10 == 0){
+                    alerts.onRadiationEvent(start + t * MS); // 10 cps
+                }
+                t += 10;
+            }
+            long allocated = allocatedBytes() - before;
+            // The first pass warms up the JIT, which allocates while compiling
+            if (pass == 1){
+                assertTrue(allocated < samples, allocated + " bytes allocated by " + samples + " samples");
+            }
+        }
+        flush();
+        assertTrue(alerts.getRecent().isEmpty());
+    }
+
+    // Send every change made so far
+    private void flush(){
+        alerts.stop();
+        alerts.start();
+    }
+
+    private void attitude(long millis, double rollDegrees, double pitchDegrees){
+        alerts.onAttitude(start + millis * MS, Math.toRadians(rollDegrees), Math.toRadians(pitchDegrees));
+    }
+
+    private static void assertChange(AlertEngine.Alert change, String name, boolean raised, double value, double threshold){
+        assertEquals(name, change.getName());
+        assertEquals(raised, change.isRaised());
+        assertEquals(value, change.getValue(), 1e-6);
+        assertEquals(threshold, change.getThreshold(), 1e-6);
+    }
+
+    private static long allocatedBytes(){
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,83 @@
+package com.speluncr.assets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import static org.junit.jupiter.api.Assertions.*;
+
+/************************************************************
+ * A small webapp built in a temporary directory, checking
+ * which assets get hashed copies and gzip variants and where
+ * the references end up pointing.
+ ************************************************************/
+class AssetBuilderTest {
+    @TempDir
+    Path root;
+
+    @Test
+    void onlyReferencedAssetsAreHashed() throws IOException{
+        write("index.html", "<link href=\"style.css\"><script src=\"app.js\"></script>"
+                + "<video><source src=\"media/clip.mp4\"></video><img src=\"media/photo.jpg\">");
+        write("style.css", "body { background: url(media/icon.png); }\n".repeat(20));
+        write("app.js", "load(\"model.gltf\");\n".repeat(20));
+        write("model.gltf", "{\"buffers\": []}\n".repeat(20));
+        write("unused.js", "load(\"model.gltf\");\n".repeat(20));
+        Files.createDirectory(root.resolve("media"));
+        Files.write(root.resolve("media/icon.png"), new byte[1000]);
+        Files.write(root.resolve("media/photo.jpg"), new byte[300 * 1024]); // over the media size, like the video
+        Files.write(root.resolve("media/clip.mp4"), new byte[2048 * 1024]);
+        Files.write(root.resolve("media/logo.png"), new byte[1000]);
+
+        AssetBuilder.main(new String[]{root.toString()});
+        AssetBuilder.main(new String[]{root.toString()}); // a second build leaves the same files
+
+        List<String> files = files();
+        String style = hashed(files, "style", ".css");
+        String app = hashed(files, "app", ".js");
+        String model = hashed(files, "model", ".gltf");
+        String icon = hashed(files, "media/icon", ".png");
+        assertEquals(Stream.of("index.html", "index.html.gz", "style.css", style, style + ".gz", "app.js", app, app + ".gz",
+                "model.gltf", model, model + ".gz", "unused.js", "unused.js.gz", "media/icon.png", icon, "media/logo.png",
+                "media/photo.jpg", "media/clip.mp4").sorted().collect(Collectors.toList()), files);
+
+        String page = read("index.html");
+        assertTrue(page.contains("href=\"" + style + "\""), page);
+        assertTrue(page.contains("src=\"" + app + "\""), page);
+        assertTrue(page.contains("src=\"media/clip.mp4\""), page);
+        assertTrue(page.contains("src=\"media/photo.jpg\""), page);
+        assertTrue(read(style).contains("url(" + icon + ")"));
+        assertTrue(read(app).contains("\"" + model + "\""));
+        assertTrue(read("unused.js").contains("\"model.gltf\""));
+    }
+
+    private void write(String name, String text) throws IOException{
+        Files.write(root.resolve(name), text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String read(String name) throws IOException{
+        return new String(Files.readAllBytes(root.resolve(name)), StandardCharsets.US_ASCII);
+    }
+
+    private List<String> files() throws IOException{
+        try (Stream<Path> paths = Files.walk(root)){
+            return paths.filter(Files::isRegularFile)
+                    .map(file -> root.relativize(file).toString().replace('\\', '/'))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // The hashed copy of prefix + extension
+    private static String hashed(List<String> files, String prefix, String extension){
+        return files.stream()
+                .filter(file -> file.matches(prefix + "\\.[0-9a-f]{8}" + extension.replace(".", "\\.")))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("no hashed copy of " + prefix + extension + " in " + files));
+    }
+}
@@ -0,0 +1,126 @@
+package com.speluncr.fusion;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import static java.lang.Math.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/************************************************************
+ * Replays a recording of the simulated MPU6050 (rock-100hz.csv,
+ * 100 Hz, at rest for 2 s then rocking) through each filter
+ * and compares the estimate with the true attitude recorded
+ * with every sample. The recording has the simulator's gyro
+ * bias, so the filters only keep yaw when the startup
+ * calibration removes it.
+ ************************************************************/
+class FusionFilterReplayTest {
+    private static final double ACC_SCALE = 16384; // LSB/g for +/- 2g range
+    private static final double GYR_SCALE = 32.8 * 180 / PI; // LSB/rad/s for +/- 1000 deg/s range
+    private static final int CALIBRATION_SAMPLES = 200; // the 2 s at rest
+    private static final double SETTLED = 3; // s, compared from here so the filters have converged after calibrating
+    private static List<double[]> samples; // time, accel x/y/z, gyro x/y/z, true roll/pitch/yaw
+
+    @BeforeAll
+    static void load() throws IOException{
+        samples = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                FusionFilterReplayTest.class.getResourceAsStream("rock-100hz.csv"), StandardCharsets.US_ASCII))){
+            String line;
+            while ((line = in.readLine()) != null){
+                if (line.startsWith("#")){
+                    continue;
+                }
+                String[] f = line.split(",");
+                samples.add(new double[]{Double.parseDouble(f[0]),
+                        Integer.parseInt(f[1]) / ACC_SCALE, Integer.parseInt(f[2]) / ACC_SCALE, Integer.parseInt(f[3]) / ACC_SCALE,
+                        Integer.parseInt(f[5]) / GYR_SCALE, Integer.parseInt(f[6]) / GYR_SCALE, Integer.parseInt(f[7]) / GYR_SCALE,
+                        Double.parseDouble(f[8]), Double.parseDouble(f[9]), Double.parseDouble(f[10])});
+            }
+        }
+        assertEquals(1700, samples.size());
+    }
+
+    @Test
+    void complementaryFollowsTheRecording(){
+        assertReplay(new ComplementaryFilter(CALIBRATION_SAMPLES, 2.0), 0.5, 0.5, 0.5);
+    }
+
+    @Test
+    void mahonyFollowsTheRecording(){
+        assertReplay(new MahonyFilter(CALIBRATION_SAMPLES, 1.0, 0.0), 0.5, 0.5, 0.5);
+    }
+
+    @Test
+    void madgwickFollowsTheRecording(){
+        assertReplay(new MadgwickFilter(CALIBRATION_SAMPLES, 0.1), 1.0, 1.0, 0.5);
+    }
+
+    @Test
+    void calibrationLevelsTheFilterAndRemovesTheGyroBias(){
+        FusionFilter[] filters = {new ComplementaryFilter(CALIBRATION_SAMPLES, 2.0),
+                new MahonyFilter(CALIBRATION_SAMPLES, 1.0, 0.0), new MadgwickFilter(CALIBRATION_SAMPLES, 0.1)};
+        FusionFilter[] uncalibrated = {new ComplementaryFilter(0, 2.0), new MahonyFilter(0, 1.0, 0.0),
+                new MadgwickFilter(0, 0.1)};
+        for (int f = 0; f < filters.length; f++){
+            FusionFilter filter = filters[f];
+            String name = filter.getClass().getSimpleName();
+            for (int i = 0; i < CALIBRATION_SAMPLES; i++){
+                assertTrue(filter.isCalibrating(), name + " stopped calibrating after " + i + " samples");
+                update(filter, samples.get(i));
+                // Levelled from gravity alone, with no yaw
+                assertEquals(0, filter.getRoll(), 0.01, name);
+                assertEquals(0, filter.getPitch(), 0.01, name);
+                assertEquals(0, filter.getYaw(), 0, name);
+            }
+            assertFalse(filter.isCalibrating(), name);
+
+            // Without calibration the bias is integrated into yaw, which gravity cannot correct
+            double[] error = replay(filter, CALIBRATION_SAMPLES);
+            double[] uncalibratedError = replay(uncalibrated[f], 0);
+            assertTrue(uncalibratedError[2] > 5 * error[2] && uncalibratedError[2] > toRadians(5),
+                    String.format("%s yaw error %.2f deg calibrated, %.2f deg without", name,
+                            toDegrees(error[2]), toDegrees(uncalibratedError[2])));
+
+            filter.reset();
+            assertTrue(filter.isCalibrating(), name);
+            assertEquals(0, filter.getYaw(), 0, name);
+        }
+    }
+
+    // Replay the whole recording and check the largest errors once settled (degrees)
+    private static void assertReplay(FusionFilter filter, double rollDegrees, double pitchDegrees, double yawDegrees){
+        double[] error = replay(filter, 0);
+        String name = filter.getClass().getSimpleName();
+        String errors = String.format("%s largest errors: roll %.3f, pitch %.3f, yaw %.3f deg", name,
+                toDegrees(error[0]), toDegrees(error[1]), toDegrees(error[2]));
+        assertTrue(toDegrees(error[0]) < rollDegrees, errors);
+        assertTrue(toDegrees(error[1]) < pitchDegrees, errors);
+        assertTrue(toDegrees(error[2]) < yawDegrees, errors);
+        assertFalse(filter.isCalibrating());
+    }
+
+    // Feed the samples from first on and return the largest roll, pitch and yaw errors (rad) after SETTLED
+    private static double[] replay(FusionFilter filter, int first){
+        double[] error = new double[3];
+        for (int i = first; i < samples.size(); i++){
+            double[] s = samples.get(i);
+            update(filter, s);
+            if (s[0] >= SETTLED){
+                error[0] = max(error[0], abs(AbstractFusionFilter.wrap(filter.getRoll() - s[7])));
+                error[1] = max(error[1], abs(filter.getPitch() - s[8]));
+                error[2] = max(error[2], abs(AbstractFusionFilter.wrap(filter.getYaw() - s[9])));
+            }
+        }
+        return error;
+    }
+
+    private static void update(FusionFilter filter, double[] s){
+        filter.update(s[4], s[5], s[6], s[1], s[2], s[3], 0.01);
+    }
+}
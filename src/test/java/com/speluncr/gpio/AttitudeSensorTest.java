@@ -0,0 +1,287 @@
+package com.speluncr.gpio;
+
+import com.speluncr.TelemetryServlet;
+import com.speluncr.alert.AlertEngine;
+import com.speluncr.hardware.HardwareBackend;
+import com.speluncr.metrics.Counter;
+import com.speluncr.metrics.Metrics;
+import com.speluncr.scheduler.ScheduledTask;
+import com.speluncr.scheduler.SensorScheduler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import static org.junit.jupiter.api.Assertions.*;
+
+/************************************************************
+ * Drives the AttitudeSensor through a fake MPU6050, with the
+ * sensor's scheduled work run directly on the test thread.
+ * In FIFO mode the test fills the FIFO and raises the data
+ * ready interrupt itself, standing in for the ISR thread.
+ ************************************************************/
+class AttitudeSensorTest {
+    private static final int SAMPLES = 20000;
+    private static final int SMPLRT_DIV = 0x19;
+    private static final int BATCH = 10; // data ready interrupts per FIFO drain at 100 Hz sampling, 10 Hz broadcast
+    private final FakeMPU6050 device = new FakeMPU6050();
+    private final Properties properties = new Properties();
+    private final CountingAlerts alerts = new CountingAlerts();
+    private CapturingScheduler scheduler;
+    private AttitudeSensor sensor;
+
+    // The servlet's sensor settings, hardware and scheduler, without a servlet container
+    private class TestServlet extends TelemetryServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Properties getProperties(){
+            return properties;
+        }
+
+        @Override
+        public HardwareBackend getHardware(){
+            return device.hardware();
+        }
+
+        @Override
+        public SensorScheduler getScheduler(){
+            return scheduler;
+        }
+
+        @Override
+        public AlertEngine getAlerts(){
+            return alerts;
+        }
+    }
+
+    // Keeps the sensor's polling action for the test to run, and schedules a task that does nothing instead
+    // unless schedulesAction is set
+    private static class CapturingScheduler extends SensorScheduler {
+        volatile Runnable action = null;
+        volatile boolean schedulesAction = false;
+
+        CapturingScheduler(){
+            super(1);
+        }
+
+        @Override
+        public ScheduledTask scheduleAtRate(String name, int hz, Runnable action){
+            this.action = action;
+            return schedulesAction ? super.scheduleAtRate(name, hz, action) : super.scheduleAtRate(name, 1, () -> {});
+        }
+    }
+
+    // Counts the samples the sensor processes, each of which is checked against the alert rules
+    static class CountingAlerts extends AlertEngine {
+        final AtomicInteger samples = new AtomicInteger();
+        volatile long lastSampleNanos = 0;
+
+        @Override
+        public void onAttitude(long sampleNanos, double roll, double pitch){
+            samples.incrementAndGet();
+            lastSampleNanos = sampleNanos;
+            super.onAttitude(sampleNanos, roll, pitch);
+        }
+    }
+
+    @BeforeEach
+    void setUp(){
+        properties.setProperty("AttitudeRecording", "false");
+        properties.setProperty("AttitudeHistoryMinutes", "1");
+        properties.setProperty("AttitudeCalibrationSamples", "10");
+        scheduler = new CapturingScheduler();
+        sensor = new AttitudeSensor(new TestServlet());
+        device.setSample(0, 0, 1, 0.5, -0.5, 0.25); // level, turning slowly
+    }
+
+    @AfterEach
+    void tearDown(){
+        sensor.stopSensor();
+        scheduler.shutdown();
+    }
+
+    @Test
+    void pollingReadsTheDataBlockInOneBurst(){
+        sensor.startSensor();
+        assertTrue(sensor.isRunning(), sensor.getError());
+        for (int i = 0; i < 100; i++){
+            scheduler.action.run();
+        }
+        assertEquals(100, device.burstReads);
+        assertEquals(0, device.otherReads);
+        assertEquals(100, alerts.samples.get());
+    }
+
+    @Test
+    void pollingAllocatesNothingPerSample(){
+        Counter unavailable = Metrics.counter("speluncr_attitude_frames_unavailable_total",
+                "Attitude samples not broadcast because every pooled frame was in use.");
+        sensor.startSensor();
+        Runnable poll = scheduler.action;
+        for (int i = 0; i < SAMPLES; i++){ // past calibration, and long enough for the loop to be compiled
+            poll.run();
+        }
+        long frameMisses = unavailable.get();
+
+        long before = allocatedBytes();
+        for (int i = 0; i < SAMPLES; i++){
+            poll.run();
+        }
+        long allocated = allocatedBytes() - before;
+
+        // Less than a byte per sample. A few hundred bytes come from the counter itself and from the JIT
+        // recompiling the loop, a single object per sample would be 16 or more.
+        assertTrue(allocated < SAMPLES, allocated + " bytes allocated by " + SAMPLES + " samples");
+        assertEquals(2 * SAMPLES, device.burstReads);
+        assertEquals(frameMisses, unavailable.get(), "pooled frames were not recycled");
+        assertNull(sensor.getError());
+    }
+
+    @Test
+    void stopClosesTheDevice(){
+        sensor.startSensor();
+        scheduler.action.run();
+        sensor.stopSensor();
+        assertFalse(sensor.isRunning());
+        assertTrue(device.closed);
+    }
+
+    @Test
+    void stopLeavesTheDeviceOpenUnderAReadInProgress() throws InterruptedException{
+        scheduler.schedulesAction = true;
+        sensor.startSensor();
+        await(() -> device.burstReads > 0, "scheduled read");
+        device.stalled = true;
+        await(() -> device.readStalled, "read stalled");
+
+        sensor.stopSensor(); // gives up waiting for the read after a second
+        assertFalse(sensor.isRunning());
+        assertFalse(device.closed, "device closed under a read in progress");
+
+        // The stalled read completes normally once the bus returns
+        int reads = device.burstReads;
+        device.stalled = false;
+        await(() -> device.burstReads == reads + 1, "stalled read completed");
+        assertNull(sensor.getError());
+    }
+
+    @Test
+    void pollingSamplesAtLeastAsFastAsItReads(){
+        for (int rate : new int[]{1, 4, 30, 60, 100}){
+            properties.setProperty("AttitudeBroadcastRate", Integer.toString(rate));
+            sensor.startSensor();
+            int divider = device.registers[SMPLRT_DIV] & 0xFF;
+            sensor.stopSensor();
+            double sampleRate = 1000d / (1 + divider);
+            assertTrue(sampleRate >= rate, "sensor samples at " + sampleRate + " Hz, polled at " + rate + " Hz");
+            assertTrue(sampleRate < 2 * rate || divider == 0xFF, "sensor samples at " + sampleRate + " Hz, polled at " + rate + " Hz");
+        }
+    }
+
+    @Test
+    void fifoDrainsCompleteSamplesAndKeepsAPartialOne() throws InterruptedException{
+        startFifo();
+        device.pushBytes(3 * FakeMPU6050.SAMPLE_BYTES + 5);
+        await(() -> alerts.samples.get() == 3, "three samples processed");
+        assertEquals(3 * FakeMPU6050.SAMPLE_BYTES, device.lastFifoReadLength);
+        assertEquals(5, device.getFifoCount(), "partial sample left in the FIFO");
+
+        // The rest of the partial sample arrives, and the next drain reads it whole
+        device.pushBytes(FakeMPU6050.SAMPLE_BYTES - 5);
+        await(() -> alerts.samples.get() == 4, "partial sample processed once complete");
+        assertEquals(FakeMPU6050.SAMPLE_BYTES, device.lastFifoReadLength);
+        assertEquals(0, device.getFifoCount());
+        assertNull(sensor.getError());
+    }
+
+    @Test
+    void fifoOverflowResetsTheFifo() throws InterruptedException{
+        Counter overflows = Metrics.counter("speluncr_attitude_fifo_overflows_total",
+                "MPU6050 FIFO overflows. The FIFO is reset and its samples are lost.");
+        startFifo();
+        long overflowed = overflows.get();
+        int resets = device.fifoResets;
+        int reads = device.fifoReads;
+        device.pushBytes(FakeMPU6050.FIFO_SIZE + 3 * FakeMPU6050.SAMPLE_BYTES); // sample boundaries are lost
+
+        await(() -> device.fifoResets == resets + 1, "FIFO reset after the overflow");
+        assertEquals(overflowed + 1, overflows.get());
+        assertEquals(reads, device.fifoReads, "overflowed FIFO was read");
+        assertEquals(0, alerts.samples.get());
+        assertTrue(sensor.isRunning());
+
+        // Sampling carries on from the reset
+        device.pushBytes(2 * FakeMPU6050.SAMPLE_BYTES);
+        await(() -> alerts.samples.get() == 2, "samples processed after the reset");
+
+        // Just short of full is not an overflow: every complete sample is read and the partial one is kept
+        int full = FakeMPU6050.FIFO_SIZE / FakeMPU6050.SAMPLE_BYTES; // 73 samples, 1022 bytes
+        device.pushBytes(FakeMPU6050.FIFO_SIZE - 4); // 72 samples and 12 bytes of the next
+        await(() -> alerts.samples.get() == 2 + full - 1, "samples read from a FIFO just short of full");
+        assertEquals(resets + 1, device.fifoResets, "FIFO short of full was reset");
+        device.pushBytes(2);
+        await(() -> alerts.samples.get() == 2 + full, "partial sample completed");
+        assertEquals(overflowed + 1, overflows.get());
+    }
+
+    @Test
+    void fifoInterruptsWakeTheDrainThreadOnceABatchIsWaiting() throws InterruptedException{
+        startFifo();
+        Runnable isr = device.interruptHandler;
+        assertNotNull(isr, "no data ready interrupt attached");
+
+        // Just after a timed wake (every 50 ms) the drain thread is parked, and only a full batch of interrupts wakes it early
+        int countReads = device.countReads;
+        await(() -> device.countReads > countReads, "timed FIFO drain");
+        long wake = device.lastCountRead;
+        device.pushBytes(BATCH * FakeMPU6050.SAMPLE_BYTES);
+        for (int i = 0; i < BATCH - 1; i++){
+            isr.run();
+        }
+        Thread.sleep(20);
+        assertEquals(wake, device.lastCountRead, "drain thread woke before a batch was waiting");
+
+        long interrupt = System.nanoTime();
+        isr.run();
+        await(() -> alerts.samples.get() == BATCH, "batch drained");
+        assertTrue(device.lastCountRead - interrupt < 20000000L,
+                "drain started " + (device.lastCountRead - interrupt) / 1000000 + " ms after the interrupt");
+        assertEquals(BATCH * FakeMPU6050.SAMPLE_BYTES, device.lastFifoReadLength);
+    }
+
+    @Test
+    void fifoStopDetachesTheInterrupt(){
+        startFifo();
+        sensor.stopSensor();
+        assertNull(device.interruptHandler);
+        assertTrue(device.closed);
+        assertEquals(0, device.registers[FakeMPU6050.USER_CTRL], "FIFO left enabled");
+    }
+
+    // FIFO mode at 100 Hz, broadcasting at 10 Hz
+    private void startFifo(){
+        properties.setProperty("AttitudeAcquisitionMode", "fifo");
+        properties.setProperty("AttitudeSampleRate", "100");
+        properties.setProperty("AttitudeBroadcastRate", "10");
+        sensor.startSensor();
+        assertTrue(sensor.isRunning(), sensor.getError());
+        assertEquals(9, device.registers[SMPLRT_DIV]);
+    }
+
+    // Wait up to a second for the drain thread
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException{
+        long end = System.nanoTime() + 1000000000L;
+        while (!condition.getAsBoolean()){
+            assertTrue(System.nanoTime() - end < 0, "timed out waiting for: " + message);
+            Thread.sleep(1);
+        }
+    }
+
+    private static long allocatedBytes(){
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,176 @@
+package com.speluncr.gpio;
+
+import com.speluncr.hardware.DigitalOutput;
+import com.speluncr.hardware.HardwareBackend;
+import com.speluncr.hardware.RegisterDevice;
+import java.io.IOException;
+
+/************************************************************
+ * Register device standing in for the MPU6050 in the sensor
+ * tests. Writes are stored and the data registers (0x3B-0x48)
+ * hold one fixed sample, set by the test. Reads are counted
+ * without allocating, so they don't show up in allocation
+ * measurements.
+ *
+ * The 1024 byte FIFO is filled by the test with pushBytes(),
+ * a byte stream repeating the sample in FIFO order, and keeps
+ * the newest bytes when it overflows like the real sensor.
+ * Setting FIFO_RESET in USER_CTRL empties it.
+ *
+ * While stalled is set, reads do not return, like a bus
+ * transaction that hangs.
+ *
+ * hardware() is a backend that opens this device on any bus.
+ ************************************************************/
+class FakeMPU6050 implements RegisterDevice {
+    static final int ACCEL_XOUT_H = 0x3B;
+    static final int SAMPLE_BYTES = 14;
+    static final int USER_CTRL = 0x6A;
+    static final int FIFO_COUNT_H = 0x72;
+    static final int FIFO_R_W = 0x74;
+    static final int FIFO_SIZE = 1024;
+    static final double ACC_SCALE = 16384; // LSB/g, +/- 2g
+    static final double GYR_SCALE = 32.8; // LSB/(deg/s), +/- 1000 deg/s
+
+    final byte[] registers = new byte[128];
+    private final byte[] sample = new byte[SAMPLE_BYTES]; // accel, temp and gyro registers in order
+    volatile int burstReads = 0; // reads of the whole data block in one transaction
+    volatile int otherReads = 0; // any other read
+    volatile boolean closed = false;
+    volatile boolean stalled = false;
+    volatile boolean readStalled = false; // a read is waiting for stalled to clear
+    volatile Runnable interruptHandler = null; // attached through hardware()
+    private final byte[] fifo = new byte[FIFO_SIZE];
+    private int fifoHead = 0; // oldest byte
+    private int fifoCount = 0;
+    private int streamOffset = 0; // position in the sample of the next byte pushed
+    volatile int fifoResets = 0;
+    volatile int countReads = 0; // reads of FIFO_COUNT
+    volatile long lastCountRead = 0; // nanoTime of the last one
+    volatile int fifoReads = 0; // reads of FIFO_R_W
+    volatile int lastFifoReadLength = 0;
+
+    // Set the data registers. Acceleration in g, rates in deg/s.
+    synchronized void setSample(double accX, double accY, double accZ, double gyrX, double gyrY, double gyrZ){
+        putShort(sample, 0, accX * ACC_SCALE);
+        putShort(sample, 2, accY * ACC_SCALE);
+        putShort(sample, 4, accZ * ACC_SCALE);
+        putShort(sample, 6, (25 - 36.53) * 340);
+        putShort(sample, 8, gyrX * GYR_SCALE);
+        putShort(sample, 10, gyrY * GYR_SCALE);
+        putShort(sample, 12, gyrZ * GYR_SCALE);
+    }
+
+    static void putShort(byte[] bytes, int offset, double value){
+        long v = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+        bytes[offset] = (byte) (v >> 8);
+        bytes[offset + 1] = (byte) v;
+    }
+
+    // Append the next bytes of the sample stream to the FIFO
+    synchronized void pushBytes(int count){
+        for (int i = 0; i < count; i++){
+            if (fifoCount == FIFO_SIZE){
+                fifoHead = (fifoHead + 1) % FIFO_SIZE; // full, the oldest byte is overwritten
+                fifoCount--;
+            }
+            fifo[(fifoHead + fifoCount) % FIFO_SIZE] = sample[streamOffset];
+            fifoCount++;
+            streamOffset = (streamOffset + 1) % SAMPLE_BYTES;
+        }
+    }
+
+    synchronized int getFifoCount(){
+        return fifoCount;
+    }
+
+    @Override
+    public synchronized void write(int register, byte value){
+        if (register == USER_CTRL && (value & 0x04) != 0){
+            fifoHead = 0; // FIFO_RESET, clears itself
+            fifoCount = 0;
+            streamOffset = 0;
+            fifoResets++;
+            value &= ~0x04;
+        }
+        registers[register & 0x7F] = value;
+    }
+
+    @Override
+    public synchronized int read(int register, byte[] buffer, int offset, int length) throws IOException{
+        while (stalled){
+            readStalled = true;
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e){
+                throw new IOException("Interrupted", e);
+            }
+        }
+        readStalled = false;
+        if (closed){
+            throw new IOException("Device closed");
+        }
+        if (register == ACCEL_XOUT_H && length == SAMPLE_BYTES){
+            System.arraycopy(sample, 0, buffer, offset, SAMPLE_BYTES);
+            burstReads++;
+        } else if (register == FIFO_COUNT_H && length == 2){
+            buffer[offset] = (byte) (fifoCount >> 8);
+            buffer[offset + 1] = (byte) fifoCount;
+            countReads++;
+            lastCountRead = System.nanoTime();
+        } else if (register == FIFO_R_W){
+            for (int i = 0; i < length; i++){
+                buffer[offset + i] = fifoCount > 0 ? fifo[fifoHead] : 0;
+                if (fifoCount > 0){
+                    fifoHead = (fifoHead + 1) % FIFO_SIZE;
+                    fifoCount--;
+                }
+            }
+            fifoReads++;
+            lastFifoReadLength = length;
+        } else {
+            for (int i = 0; i < length; i++){
+                int r = register + i;
+                buffer[offset + i] = r >= ACCEL_XOUT_H && r < ACCEL_XOUT_H + SAMPLE_BYTES
+                        ? sample[r - ACCEL_XOUT_H] : registers[r & 0x7F];
+            }
+            otherReads++;
+        }
+        return length;
+    }
+
+    @Override
+    public void close(){
+        closed = true;
+    }
+
+    // A backend with this device on every bus. Interrupt handlers are kept so the test can raise them.
+    HardwareBackend hardware(){
+        return new HardwareBackend() {
+            @Override
+            public DigitalOutput provisionOutput(int pin, boolean high, boolean shutdownHigh){
+                return value -> {};
+            }
+
+            @Override
+            public void attachInterrupt(int pin, Edge edge, Pull pull, Runnable handler){
+                interruptHandler = handler;
+            }
+
+            @Override
+            public void detachInterrupt(int pin){
+                interruptHandler = null;
+            }
+
+            @Override
+            public RegisterDevice openDevice(int bus, int address){
+                closed = false;
+                return FakeMPU6050.this;
+            }
+
+            @Override
+            public void shutdown(){
+            }
+        };
+    }
+}
@@ -0,0 +1,176 @@
+package com.speluncr.radiation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import static org.junit.jupiter.api.Assertions.*;
+
+/************************************************************
+ * Legacy .data files, .rlog segments and .rarc archives
+ * compacted into an archive and read back. The inputs overlap
+ * with events at the same times, as when an archive is
+ * compacted again with the logs it was made from.
+ ************************************************************/
+class RadiationCompactorTest {
+    private static final long MS = 1000000L; // ns
+    private static final long START = 1700000000L * 1000000000L; // epoch ns, 2023-11-14T22:13:20Z
+    private static final int BLOCK = 100; // events per archive block, so reads cross blocks
+
+    @TempDir
+    File directory;
+
+    @Test
+    void overlappingFilesAreMergedOnce() throws IOException{
+        TreeSet<Long> expected = new TreeSet<>();
+        // Legacy file: one event a millisecond for 1 s
+        File data = legacyFile("radiation-2023-11-14T22:13:20.data", START, 0, 1000, 1, expected);
+        // Log of the next session, starting during the legacy one with the same event times
+        File log = logFile("first", START + 500 * MS, 1000, 1, expected);
+        // A log with an event logged twice
+        File repeats = logFile("repeats", START + 1700 * MS, new long[]{0, 5 * MS, 5 * MS, 9 * MS}, expected);
+
+        File archive = new File(directory, "first.rarc");
+        compact(Arrays.asList(data, log, repeats), Long.MIN_VALUE, Long.MAX_VALUE, archive, null);
+        assertArchive(archive, expected);
+        assertEquals(1503, expected.size());
+
+        // Compacted again with the log it was made from and a newer one that overlaps its end
+        File newer = logFile("newer", START + 1400 * MS, 200, 3, expected);
+        File again = new File(directory, "again.rarc");
+        compact(Arrays.asList(archive, log, newer), Long.MIN_VALUE, Long.MAX_VALUE, again, null);
+        assertArchive(again, expected);
+    }
+
+    @Test
+    void timesRepeatedInOneFileAreStoredOnceWhenFilesAreConcatenated() throws IOException{
+        TreeSet<Long> expected = new TreeSet<>();
+        File repeats = logFile("repeats", START, new long[]{0, 5 * MS, 5 * MS, 9 * MS}, expected);
+        File later = logFile("later", START + 1000 * MS, 10, 1, expected); // no overlap, so no interleaving
+        File archive = new File(directory, "concatenated.rarc");
+        compact(Arrays.asList(repeats, later), Long.MIN_VALUE, Long.MAX_VALUE, archive, null);
+        assertArchive(archive, expected);
+        assertEquals(13, expected.size());
+    }
+
+    @Test
+    void onlyEventsInTheTimeRangeAreKept() throws IOException{
+        TreeSet<Long> all = new TreeSet<>();
+        File data = legacyFile("radiation-2023-11-14T22:13:20.data", START, 0, 1000, 1, all);
+        File log = logFile("log", START + 2000 * MS, 1000, 1, all);
+        long from = START + 250 * MS;
+        long to = START + 2500 * MS;
+
+        File archive = new File(directory, "range.rarc");
+        compact(Arrays.asList(data, log), from, to, archive, null);
+        TreeSet<Long> expected = new TreeSet<>(all.subSet(from, to)); // from inclusive, to exclusive
+        assertEquals(750 + 500, expected.size());
+        assertArchive(archive, expected);
+    }
+
+    @Test
+    void readRangeSpansBlocks() throws IOException{
+        TreeSet<Long> all = new TreeSet<>();
+        File log = logFile("log", START, 1000, 1, all);
+        File archive = new File(directory, "blocks.rarc");
+        compact(List.of(log), Long.MIN_VALUE, Long.MAX_VALUE, archive, null);
+
+        try (RadiationArchive.Reader reader = new RadiationArchive.Reader(archive)){
+            assertEquals(1000, reader.getEventCount());
+            assertEquals(1000 / BLOCK, reader.getBlockCount());
+            assertEquals(START, reader.getStartTime());
+            assertEquals(START + 999 * MS, reader.getEndTime());
+            // From inside the second block to the start of the eighth, on and between event times
+            long[][] ranges = {{START + 150 * MS, START + 700 * MS}, {START + 150 * MS + 1, START + 699 * MS + 1},
+                    {START + 99 * MS, START + 100 * MS}, {Long.MIN_VALUE, START + 1}, {START + 999 * MS, Long.MAX_VALUE},
+                    {START - 10 * MS, START}, {START + 2000 * MS, Long.MAX_VALUE}};
+            for (long[] range : ranges){
+                List<Long> read = new ArrayList<>();
+                long count = reader.read(range[0], range[1], read::add);
+                List<Long> expected = new ArrayList<>(all.subSet(range[0], range[1]));
+                assertEquals(expected, read, "events from " + range[0] + " to " + range[1]);
+                assertEquals(expected.size(), count);
+            }
+        }
+    }
+
+    @Test
+    void csvFormatsTimesBefore1970() throws IOException{
+        long[] events = {
+                Instant.parse("1900-01-01T00:00:00.5Z").getEpochSecond() * 1000000000L + 500 * MS,
+                -1000000001L,
+                -1,
+                0,
+                START + 123456789,
+        };
+        File csv = new File(directory, "events.csv");
+        new RadiationCompactor(ZoneOffset.UTC, Long.MIN_VALUE, Long.MAX_VALUE, 2, 2).write(events, null, csv);
+        List<String> rows = Files.readAllLines(csv.toPath(), StandardCharsets.US_ASCII);
+        assertEquals(Arrays.asList(
+                "time,epoch_ns",
+                "1900-01-01T00:00:00.500000000Z,-2208988799500000000",
+                "1969-12-31T23:59:58.999999999Z,-1000000001",
+                "1969-12-31T23:59:59.999999999Z,-1",
+                "1970-01-01T00:00:00.000000000Z,0",
+                "2023-11-14T22:13:20.123456789Z,1700000000123456789"), rows);
+    }
+
+    private static void compact(List<File> files, long from, long to, File archive, File csv) throws IOException{
+        RadiationCompactor compactor = new RadiationCompactor(ZoneOffset.UTC, from, to, BLOCK, 4);
+        compactor.write(compactor.load(files), archive, csv);
+    }
+
+    // Legacy file of count events every interval ms from the first ms after the time in its name
+    private File legacyFile(String name, long start, int first, int count, int interval, TreeSet<Long> times)
+            throws IOException{
+        File file = new File(directory, name);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file.toPath()))){
+            for (int i = 0; i < count; i++){
+                long offset = (first + (long) i * interval) * MS;
+                out.writeLong(offset);
+                times.add(start + offset);
+            }
+        }
+        return file;
+    }
+
+    // Log segment of count events every interval ms from start, in a directory of its own
+    private File logFile(String name, long start, int count, int interval, TreeSet<Long> times) throws IOException{
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; i++){
+            offsets[i] = (long) i * interval * MS;
+        }
+        return logFile(name, start, offsets, times);
+    }
+
+    private File logFile(String name, long start, long[] offsets, TreeSet<Long> times) throws IOException{
+        File logDirectory = new File(directory, name);
+        assertTrue(logDirectory.mkdir());
+        RadiationLog log = new RadiationLog(logDirectory, 1048576L, 3600000 * MS, start, 0);
+        File segment = log.getSegmentFile();
+        for (long offset : offsets){
+            log.append(offset);
+            times.add(start + offset);
+        }
+        log.close();
+        return segment;
+    }
+
+    private static void assertArchive(File archive, TreeSet<Long> expected) throws IOException{
+        List<Long> read = new ArrayList<>();
+        try (RadiationArchive.Reader reader = new RadiationArchive.Reader(archive)){
+            assertEquals(expected.size(), reader.readAll(read::add));
+            assertEquals(expected.size(), reader.getEventCount());
+        }
+        assertEquals(new ArrayList<>(expected), read);
+    }
+}
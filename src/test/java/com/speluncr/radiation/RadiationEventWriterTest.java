@@ -0,0 +1,150 @@
+package com.speluncr.radiation;
+
+import com.speluncr.scheduler.SensorScheduler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.*;
+
+/************************************************************
+ * Simulated Geiger counter interrupts published into the
+ * EventRingBuffer from one thread, as RadiationSensor does,
+ * and drained by the RadiationEventWriter on the scheduler
+ * into a RadiationLog. The log is read back to check that
+ * every accepted event was saved once and in order, and that
+ * every event not saved was counted as an overflow.
+ ************************************************************/
+class RadiationEventWriterTest {
+    private static final long SECOND = 1000000000L;
+    private static final long INTERVAL = 10000; // ns between events, 10^5 events per second
+    private final SensorScheduler scheduler = new SensorScheduler(2);
+    private final Map<Long, Integer> periods = new HashMap<>(); // counts passed to the listener, by epoch second
+    private int reportedPeriods = 0;
+    private final long nanoAnchor = System.nanoTime();
+    private final long epochAnchor;
+    @TempDir
+    File directory;
+
+    RadiationEventWriterTest(){
+        Instant now = Instant.now();
+        epochAnchor = now.getEpochSecond() * SECOND + now.getNano();
+    }
+
+    @AfterEach
+    void tearDown(){
+        scheduler.shutdown();
+    }
+
+    @Test
+    void writerKeepsUpWithAHundredThousandEventsPerSecond() throws Exception{
+        EventRingBuffer events = new EventRingBuffer(65536);
+        RadiationEventWriter writer = startWriter(events);
+
+        // The interrupt thread: an event every 10 us for 2 s, published when it is due
+        int attempts = (int) (2 * SECOND / INTERVAL);
+        long[] accepted = new long[attempts];
+        int[] acceptedCount = new int[1];
+        long start = System.nanoTime();
+        Thread isr = new Thread(() -> {
+            for (int k = 0; k < attempts; k++){
+                long time = start + k * INTERVAL;
+                while (System.nanoTime() - time < 0){
+                    Thread.onSpinWait();
+                }
+                if (events.publish(time)){
+                    accepted[acceptedCount[0]++] = time;
+                }
+            }
+        }, "Simulated Geiger Interrupt");
+        isr.start();
+        isr.join();
+        writer.stop();
+
+        int published = acceptedCount[0];
+        assertEquals(attempts, published + events.getOverflowCount(), "events neither saved nor counted as overflows");
+        assertEquals(0, events.size());
+        assertLogged(Arrays.copyOf(accepted, published));
+        assertPeriodCounts(Arrays.copyOf(accepted, published));
+        assertTrue(periods.values().stream().anyMatch(count -> count > 90000), "no complete second counted: " + periods);
+    }
+
+    @Test
+    void overflowsAreCountedAndTheOldestEventsKept() throws Exception{
+        EventRingBuffer events = new EventRingBuffer(1024);
+
+        // The writer has stalled: only the ring's capacity is kept, the rest are counted as they are dropped
+        long start = System.nanoTime();
+        long[] times = new long[5000];
+        int dropped = 0;
+        for (int k = 0; k < times.length; k++){
+            times[k] = start + k * INTERVAL;
+            if (!events.publish(times[k])){
+                dropped++;
+            }
+        }
+        assertEquals(times.length - events.capacity(), dropped);
+        assertEquals(dropped, events.getOverflowCount());
+
+        // Once drained there is room again
+        RadiationEventWriter writer = startWriter(events);
+        writer.stop();
+        assertEquals(0, events.size());
+        assertTrue(events.publish(start + times.length * INTERVAL));
+        assertEquals(dropped, events.getOverflowCount());
+        assertLogged(Arrays.copyOf(times, events.capacity()));
+    }
+
+    private RadiationEventWriter startWriter(EventRingBuffer events) throws IOException{
+        RadiationLog log = new RadiationLog(directory, 16 * 1048576L, 3600 * SECOND, epochAnchor, nanoAnchor);
+        RadiationEventWriter writer = new RadiationEventWriter(events, log, SECOND, epochAnchor, nanoAnchor,
+                (second, count) -> {
+                    synchronized (periods){
+                        periods.merge(second, count, Integer::sum);
+                        reportedPeriods++;
+                    }
+                });
+        writer.start(scheduler);
+        return writer;
+    }
+
+    // The log holds exactly these events (nanoTime), in order
+    private void assertLogged(long[] expected) throws IOException{
+        List<Long> logged = new ArrayList<>();
+        File[] segments = directory.listFiles(RadiationLogReader::isLogFile);
+        assertNotNull(segments);
+        Arrays.sort(segments);
+        for (File segment : segments){
+            RadiationLogReader.read(segment, logged::add);
+        }
+        assertEquals(expected.length, logged.size(), "events in the log");
+        for (int i = 0; i < expected.length; i++){
+            long time = epochAnchor + (expected[i] - nanoAnchor);
+            if (logged.get(i) != time){
+                fail("event " + i + " logged at " + logged.get(i) + ", published at " + time);
+            }
+        }
+    }
+
+    // Every completed second was counted from the event times
+    private void assertPeriodCounts(long[] times){
+        Map<Long, Integer> expected = new HashMap<>();
+        for (long time : times){
+            expected.merge(Math.floorDiv(epochAnchor + (time - nanoAnchor), SECOND), 1, Integer::sum);
+        }
+        synchronized (periods){
+            assertFalse(periods.isEmpty());
+            assertEquals(periods.size(), reportedPeriods, "a second was counted twice");
+            for (Map.Entry<Long, Integer> period : periods.entrySet()){
+                assertEquals(expected.getOrDefault(period.getKey(), 0), period.getValue(), "count of second " + period.getKey());
+            }
+        }
+    }
+}
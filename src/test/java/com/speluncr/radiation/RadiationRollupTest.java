@@ -0,0 +1,60 @@
+package com.speluncr.radiation;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/************************************************************
+ * Queries against an index holding ten days of counts: older
+ * than the 1 s buckets keep, within the minute and hour ones.
+ ************************************************************/
+class RadiationRollupTest {
+    private static final long NOW = 1700000000L - 1700000000L % 3600; // epoch s, on the hour
+    private static final int DAYS = 10;
+    private final RadiationRollup rollup = new RadiationRollup();
+
+    @BeforeEach
+    void setUp(){
+        // 2 counts every second
+        for (long second = NOW - DAYS * 86400L; second < NOW; second++){
+            rollup.add(second, 2);
+        }
+    }
+
+    @Test
+    void recentSecondsAreReadFromTheSecondBuckets(){
+        long[] counts = new long[4];
+        assertTrue(rollup.query(NOW - 90 * 4, 90, counts, 4));
+        assertArrayEquals(new long[]{180, 180, 180, 180}, counts);
+    }
+
+    @Test
+    void lastWeekIsReadFromTheMinuteAndHourBuckets(){
+        long from = NOW - 7 * 86400L;
+        long[] counts = new long[3];
+        assertTrue(rollup.query(from, 60, counts, 3));
+        assertArrayEquals(new long[]{120, 120, 120}, counts);
+        assertTrue(rollup.query(from, 3600, counts, 3));
+        assertArrayEquals(new long[]{7200, 7200, 7200}, counts);
+        assertTrue(rollup.query(from, 86400, counts, 3));
+        assertArrayEquals(new long[]{172800, 172800, 172800}, counts);
+    }
+
+    @Test
+    void resolutionNotKeptThatFarBackIsRefused(){
+        // 90 s bins from last week need the 1 s buckets, which only go back 2 days
+        long from = NOW - 7 * 86400L;
+        long[] counts = {-1, -1};
+        assertFalse(rollup.query(from - Math.floorMod(from, 90), 90, counts, 2));
+        assertArrayEquals(new long[]{-1, -1}, counts);
+        // Minute bins not aligned to the minute, likewise
+        assertFalse(rollup.query(from + 30, 60, counts, 2));
+    }
+
+    @Test
+    void emptyIndexHasNothingToLose(){
+        long[] counts = {-1, -1};
+        assertTrue(new RadiationRollup().query(NOW - 7 * 86400L + 30, 90, counts, 2));
+        assertArrayEquals(new long[]{0, 0}, counts);
+    }
+}
@@ -0,0 +1,102 @@
+package com.speluncr.radiation;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/************************************************************
+ * Statistics of known per-second counts. The interval bounds
+ * are checked against the exact (Garwood) Poisson 95%
+ * interval, which the Wilson-Hilferty approximation is within
+ * 0.2% of from 10 counts, and 1% at 0.
+ ************************************************************/
+class RadiationStatisticsTest {
+    private static final long START = 1700000000L; // epoch s
+    private static final double USV_PER_CPM = 0.0057;
+    private static final int ONE_SECOND = 0; // WINDOWS index
+    private static final int TEN_SECONDS = 1;
+    private static final int SIXTY_SECONDS = 2;
+    private static final int TEN_MINUTES = 3;
+
+    @Test
+    void windowSumsFollowTheRingAcrossItsWrap(){
+        RadiationStatistics statistics = new RadiationStatistics(USV_PER_CPM, 0, 10);
+        int[] counts = new int[1500];
+        for (int s = 0; s < counts.length; s++){
+            counts[s] = (s * 7 + s / 100) % 23; // no period that divides a window
+            statistics.add(START + s, counts[s]);
+            for (int w = 0; w < RadiationStatistics.WINDOWS.length; w++){
+                int length = Math.min(s + 1, RadiationStatistics.WINDOWS[w]);
+                long sum = 0;
+                for (int k = s - length + 1; k <= s; k++){
+                    sum += counts[k];
+                }
+                assertEquals(length, statistics.getSeconds(w));
+                assertEquals(sum, statistics.getCount(w), "window " + RadiationStatistics.WINDOWS[w] + " s at second " + s);
+                assertEquals(60.0 * sum / length, statistics.getCpm(w), 1e-9);
+            }
+        }
+        assertEquals(START + counts.length - 1, statistics.getLastSecond());
+    }
+
+    @Test
+    void gapStartsTheWindowsAgain(){
+        RadiationStatistics statistics = new RadiationStatistics(USV_PER_CPM, 0, 10);
+        for (int s = 0; s < 700; s++){
+            statistics.add(START + s, 5);
+        }
+        statistics.add(START + 650, 100); // older than the newest second, ignored
+        assertEquals(3000, statistics.getCount(TEN_MINUTES));
+        statistics.add(START + 800, 3);
+        assertEquals(1, statistics.getSeconds(TEN_MINUTES));
+        assertEquals(3, statistics.getCount(TEN_MINUTES));
+        assertEquals(180, statistics.getCpm(TEN_MINUTES), 1e-9);
+        assertEquals(180, statistics.getEmaCpm(), 1e-9);
+    }
+
+    @Test
+    void intervalMatchesExactPoissonBounds(){
+        // counts in the window, exact lower and upper bounds, tolerance
+        double[][] reference = {
+                {0, 0, 3.688879, 0.01},
+                {10, 4.795389, 18.390356, 0.002},
+                {100, 81.363970, 121.626752, 0.0002},
+        };
+        for (double[] r : reference){
+            RadiationStatistics statistics = new RadiationStatistics(USV_PER_CPM, 0, 10);
+            statistics.add(START, (int) r[0]);
+            // Counts per minute from one second
+            assertEquals(60 * r[0], statistics.getCpm(ONE_SECOND), 1e-9);
+            assertEquals(60 * r[1], statistics.getCpmLower(ONE_SECOND), 60 * r[1] * r[3], "lower bound of " + r[0]);
+            assertEquals(60 * r[2], statistics.getCpmUpper(ONE_SECOND), 60 * r[2] * r[3], "upper bound of " + r[0]);
+        }
+
+        // The same counts spread over ten seconds give a tenth of the rate and its bounds
+        RadiationStatistics statistics = new RadiationStatistics(USV_PER_CPM, 0, 10);
+        for (int s = 0; s < 10; s++){
+            statistics.add(START + s, 10);
+        }
+        assertEquals(600, statistics.getCpm(TEN_SECONDS), 1e-9);
+        assertEquals(6 * 81.363970, statistics.getCpmLower(TEN_SECONDS), 6 * 81.363970 * 0.0002);
+        assertEquals(6 * 121.626752, statistics.getCpmUpper(TEN_SECONDS), 6 * 121.626752 * 0.0002);
+    }
+
+    @Test
+    void doseRateIsTheCpmConverted(){
+        RadiationStatistics statistics = new RadiationStatistics(USV_PER_CPM, 0, 10);
+        for (int s = 0; s < 60; s++){
+            statistics.add(START + s, 20);
+        }
+        assertEquals(1200, statistics.getCpm(SIXTY_SECONDS), 1e-9);
+        assertEquals(1200 * USV_PER_CPM, statistics.getDoseRate(SIXTY_SECONDS), 1e-9);
+        assertEquals(1200 * USV_PER_CPM, statistics.getEmaDoseRate(), 1e-9);
+    }
+
+    @Test
+    void deadTimeCorrectsTheRate(){
+        // 100 cps measured with a 100 us dead time: the tube is busy 1% of the time
+        RadiationStatistics statistics = new RadiationStatistics(USV_PER_CPM, 100e-6, 10);
+        statistics.add(START, 100);
+        assertEquals(60 * 100 / 0.99, statistics.getCpm(ONE_SECOND), 1e-9);
+        assertEquals(60 * 100 / 0.99 * USV_PER_CPM, statistics.getDoseRate(ONE_SECOND), 1e-9);
+    }
+}
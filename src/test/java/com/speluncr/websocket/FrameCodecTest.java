@@ -0,0 +1,213 @@
+package com.speluncr.websocket;
+
+import org.junit.jupiter.api.Test;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import static org.junit.jupiter.api.Assertions.*;
+
+/************************************************************
+ * Frames of each type encoded with the Encoder and read back
+ * with the getters, as a viewer or relay decodes them, and
+ * the frames derived from them for reconnecting and reduced
+ * rate subscribers.
+ ************************************************************/
+class FrameCodecTest {
+    private static final long TIME = 1600000000000000L; // epoch us
+
+    @Test
+    void attitudeRoundTrip(){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_ATTITUDE, 3);
+        for (int i = 0; i < 3; i++){
+            assertTrue(encoder.addAttitude(100 + i, TIME + i * 10000, 0.1 * i, -0.2 * i, 3.1 - i, 25.304 + i));
+        }
+        assertTrue(encoder.isFull());
+        ByteBuffer frame = encoder.finish();
+        assertTrue(frame.isReadOnly());
+        assertEquals(FrameCodec.HEADER_SIZE + 3 * FrameCodec.ATTITUDE_SAMPLE_SIZE, frame.remaining());
+
+        ByteBuffer in = FrameCodec.wrap(frame);
+        assertTrue(FrameCodec.isValid(in));
+        assertHeader(in, FrameCodec.TYPE_ATTITUDE, 3, 100, TIME);
+        for (int i = 0; i < 3; i++){
+            assertEquals(TIME + i * 10000, FrameCodec.getTime(in, i));
+            assertEquals((float) (0.1 * i), FrameCodec.getRoll(in, i));
+            assertEquals((float) (-0.2 * i), FrameCodec.getPitch(in, i));
+            assertEquals((float) (3.1 - i), FrameCodec.getYaw(in, i));
+            assertEquals(25.30 + i, FrameCodec.getTemp(in, i), 1e-9); // 0.01 C
+        }
+    }
+
+    @Test
+    void radiationRoundTrip(){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_RADIATION, 3);
+        encoder.addRadiation(7, TIME, 0);
+        encoder.addRadiation(8, TIME + 1000000, 3000000000L); // above int range, below u32
+        encoder.addRadiation(9, TIME + 2000000, 1L << 40); // saturates
+        ByteBuffer in = FrameCodec.wrap(encoder.finish());
+        assertTrue(FrameCodec.isValid(in));
+        assertHeader(in, FrameCodec.TYPE_RADIATION, 3, 7, TIME);
+        assertEquals(0, FrameCodec.getRadiationCount(in, 0));
+        assertEquals(3000000000L, FrameCodec.getRadiationCount(in, 1));
+        assertEquals(0xFFFFFFFFL, FrameCodec.getRadiationCount(in, 2));
+        assertEquals(TIME + 2000000, FrameCodec.getTime(in, 2));
+    }
+
+    @Test
+    void statisticsRoundTrip(){
+        float[] values = new float[FrameCodec.STATS_VALUES];
+        for (int v = 0; v < values.length; v++){
+            values[v] = 1.5f * v - 4;
+        }
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_RADIATION_STATS, 1);
+        encoder.addStatistics(12, TIME, values);
+        ByteBuffer frame = encoder.finish();
+        assertEquals(FrameCodec.HEADER_SIZE + FrameCodec.STATS_SAMPLE_SIZE, frame.remaining());
+        ByteBuffer in = FrameCodec.wrap(frame);
+        assertTrue(FrameCodec.isValid(in));
+        assertHeader(in, FrameCodec.TYPE_RADIATION_STATS, 1, 12, TIME);
+        for (int v = 0; v < values.length; v++){
+            assertEquals(values[v], FrameCodec.getStatistic(in, 0, v));
+        }
+    }
+
+    @Test
+    void alertRoundTrip(){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_ALERT, 2);
+        encoder.addAlert(3, TIME, 1, true, 2, 47.5, 45);
+        encoder.addAlert(4, TIME + 500, 3, false, 1, 8.25, 10);
+        ByteBuffer in = FrameCodec.wrap(encoder.finish());
+        assertTrue(FrameCodec.isValid(in));
+        assertHeader(in, FrameCodec.TYPE_ALERT, 2, 3, TIME);
+        assertEquals(1, FrameCodec.getAlert(in, 0));
+        assertTrue(FrameCodec.isAlertRaised(in, 0));
+        assertEquals(2, FrameCodec.getAlertSeverity(in, 0));
+        assertEquals(47.5f, FrameCodec.getAlertValue(in, 0));
+        assertEquals(45f, FrameCodec.getAlertThreshold(in, 0));
+        assertEquals(3, FrameCodec.getAlert(in, 1));
+        assertFalse(FrameCodec.isAlertRaised(in, 1));
+        assertEquals(1, FrameCodec.getAlertSeverity(in, 1));
+        assertEquals(8.25f, FrameCodec.getAlertValue(in, 1));
+        assertEquals(10f, FrameCodec.getAlertThreshold(in, 1));
+        assertEquals(TIME + 500, FrameCodec.getTime(in, 1));
+    }
+
+    @Test
+    void batchStartsANewFrameWhenASampleDoesNotFit(){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_ATTITUDE, 2);
+        assertTrue(encoder.addAttitude(0, TIME, 0, 0, 0, 20));
+        assertTrue(encoder.addAttitude(1, TIME + 1, 0, 0, 0, 20));
+        assertFalse(encoder.addAttitude(2, TIME + 2, 0, 0, 0, 20), "sample added to a full frame");
+        assertHeader(FrameCodec.wrap(encoder.finish()), FrameCodec.TYPE_ATTITUDE, 2, 0, TIME);
+
+        // The sample that did not fit starts the next frame, with its own header
+        assertTrue(encoder.isEmpty());
+        assertTrue(encoder.addAttitude(2, TIME + 2, 0, 0, 0, 20));
+        assertEquals(TIME + 2, encoder.getTimestamp());
+        // Times before the frame, or too far after it for a u32 offset, do not fit either
+        assertFalse(encoder.addAttitude(3, TIME + 1, 0, 0, 0, 20));
+        assertFalse(encoder.addAttitude(3, TIME + 2 + 0x100000000L, 0, 0, 0, 20));
+        assertHeader(FrameCodec.wrap(encoder.finish()), FrameCodec.TYPE_ATTITUDE, 1, 2, TIME + 2);
+    }
+
+    @Test
+    void samplesAfterKeepsOnlyNewerSamples(){
+        ByteBuffer frame = radiationFrame(10, 4); // samples 10 to 13
+
+        assertSame(frame, FrameCodec.samplesAfter(frame, 9));
+        assertSame(frame, FrameCodec.samplesAfter(frame, -5));
+        assertNull(FrameCodec.samplesAfter(frame, 13));
+        assertNull(FrameCodec.samplesAfter(frame, 20));
+
+        ByteBuffer in = FrameCodec.wrap(FrameCodec.samplesAfter(frame, 11));
+        assertTrue(FrameCodec.isValid(in));
+        assertHeader(in, FrameCodec.TYPE_RADIATION, 2, 12, TIME + 2000000); // timestamp of the first sample kept
+        assertEquals(TIME + 3000000, FrameCodec.getTime(in, 1));
+        assertEquals(12, FrameCodec.getRadiationCount(in, 0));
+        assertEquals(13, FrameCodec.getRadiationCount(in, 1));
+    }
+
+    @Test
+    void samplesAfterComparesWrappedSequences(){
+        ByteBuffer frame = radiationFrame(Integer.MAX_VALUE - 1, 4); // MAX - 1, MAX, MIN, MIN + 1
+        assertSame(frame, FrameCodec.samplesAfter(frame, Integer.MAX_VALUE - 2));
+        ByteBuffer in = FrameCodec.wrap(FrameCodec.samplesAfter(frame, Integer.MAX_VALUE));
+        assertEquals(2, FrameCodec.getCount(in));
+        assertEquals(Integer.MIN_VALUE, FrameCodec.getSequence(in));
+        assertNull(FrameCodec.samplesAfter(frame, Integer.MIN_VALUE + 1));
+    }
+
+    @Test
+    void lastSampleIsAFrameOfItsOwn(){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_ATTITUDE, 3);
+        for (int i = 0; i < 3; i++){
+            encoder.addAttitude(50 + i, TIME + i * 33333, i, 2 * i, 3 * i, 20 + i);
+        }
+        ByteBuffer in = FrameCodec.wrap(FrameCodec.lastSample(encoder.finish()));
+        assertTrue(FrameCodec.isValid(in));
+        assertEquals(FrameCodec.HEADER_SIZE + FrameCodec.ATTITUDE_SAMPLE_SIZE, in.remaining());
+        assertHeader(in, FrameCodec.TYPE_ATTITUDE, 1, 52, TIME + 2 * 33333);
+        assertEquals(TIME + 2 * 33333, FrameCodec.getTime(in, 0));
+        assertEquals(2f, FrameCodec.getRoll(in, 0));
+        assertEquals(4f, FrameCodec.getPitch(in, 0));
+        assertEquals(6f, FrameCodec.getYaw(in, 0));
+        assertEquals(22, FrameCodec.getTemp(in, 0), 1e-9);
+    }
+
+    @Test
+    void invalidFramesAreRejected(){
+        ByteBuffer frame = radiationFrame(0, 2);
+        assertTrue(FrameCodec.isValid(FrameCodec.wrap(frame)));
+
+        ByteBuffer version = copy(frame);
+        version.put(0, (byte) 2);
+        assertFalse(FrameCodec.isValid(version), "unknown version");
+
+        for (int type : new int[]{0, 5, 255}){
+            ByteBuffer unknown = copy(frame);
+            unknown.put(1, (byte) type);
+            assertFalse(FrameCodec.isValid(unknown), "unknown type " + type);
+        }
+
+        ByteBuffer truncated = copy(frame);
+        truncated.limit(truncated.limit() - 1);
+        assertFalse(FrameCodec.isValid(truncated), "last sample cut short");
+
+        ByteBuffer overcounted = copy(frame);
+        overcounted.putShort(2, (short) 3);
+        assertFalse(FrameCodec.isValid(overcounted), "count larger than the samples sent");
+
+        ByteBuffer header = copy(frame);
+        header.limit(FrameCodec.HEADER_SIZE - 1);
+        assertFalse(FrameCodec.isValid(header), "header cut short");
+        assertFalse(FrameCodec.isValid(ByteBuffer.allocate(0)), "empty message");
+
+        // A larger type's samples do not fit in the bytes of a smaller one
+        ByteBuffer retyped = copy(frame);
+        retyped.put(1, (byte) FrameCodec.TYPE_RADIATION_STATS);
+        assertFalse(FrameCodec.isValid(retyped));
+    }
+
+    // Radiation frame of count samples numbered from sequence, one a second, each counting its own sequence
+    private static ByteBuffer radiationFrame(int sequence, int count){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_RADIATION, count);
+        for (int i = 0; i < count; i++){
+            encoder.addRadiation(sequence + i, TIME + i * 1000000L, (sequence + i) & 0xFFFFFFFFL);
+        }
+        return encoder.finish();
+    }
+
+    // Writable little-endian copy of a frame
+    private static ByteBuffer copy(ByteBuffer frame){
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        copy.put(frame.duplicate()).flip();
+        return copy;
+    }
+
+    private static void assertHeader(ByteBuffer in, int type, int count, int sequence, long timestamp){
+        assertEquals(FrameCodec.VERSION, FrameCodec.getVersion(in));
+        assertEquals(type, FrameCodec.getType(in));
+        assertEquals(count, FrameCodec.getCount(in));
+        assertEquals(sequence, FrameCodec.getSequence(in));
+        assertEquals(timestamp, FrameCodec.getTimestamp(in));
+    }
+}
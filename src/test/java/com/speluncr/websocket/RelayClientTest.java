@@ -0,0 +1,200 @@
+package com.speluncr.websocket;
+
+import com.speluncr.TelemetryServlet;
+import com.speluncr.alert.AlertEngine;
+import com.speluncr.metrics.Counter;
+import com.speluncr.metrics.Metrics;
+import org.junit.jupiter.api.Test;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import static org.junit.jupiter.api.Assertions.*;
+
+/************************************************************
+ * Frames from the rover fed to a relay's upstream session,
+ * across reconnects, checking what the relay keeps: samples
+ * it already has are cut by sequence number, and alerts are
+ * reconciled with the ones the rover still has raised.
+ ************************************************************/
+class RelayClientTest {
+    private static final long TIME = 1600000000000000L; // epoch us
+    private static final int ROLL = 1;
+    private static final int PITCH = 2;
+    private static final int ATTITUDE = FrameCodec.TYPE_ATTITUDE - 1; // topic
+    private final AlertEngine alerts = new AlertEngine();
+    private final RelayClient relay = new RelayClient(new TestServlet());
+    // The relay's counters, shared by every test
+    private final Counter duplicates = Metrics.counter("speluncr_relay_duplicate_samples_total", "");
+    private final Counter missed = Metrics.counter("speluncr_relay_missed_samples_total", "");
+    private MessageHandler.Whole<ByteBuffer> handler = null;
+    private int statistics = 0;
+
+    // The relay's alerts, without a servlet container
+    private class TestServlet extends TelemetryServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public AlertEngine getAlerts(){
+            return alerts;
+        }
+    }
+
+    @Test
+    void overlappingFramesKeepOnlyNewSamples(){
+        long duplicatesBefore = duplicates.get();
+        assertSamples(relay.newSamples(ATTITUDE, attitude(0, 10)), 0, 10);
+        // Resent after a reconnect, with the samples missed while disconnected
+        assertSamples(relay.newSamples(ATTITUDE, attitude(8, 5)), 10, 3);
+        assertNull(relay.newSamples(ATTITUDE, attitude(5, 8)));
+        assertNull(relay.newSamples(ATTITUDE, attitude(12, 1)));
+        assertEquals(2 + 8 + 1, duplicates.get() - duplicatesBefore);
+        assertSamples(relay.newSamples(ATTITUDE, attitude(13, 1)), 13, 1);
+    }
+
+    @Test
+    void gapIsCountedAsMissed(){
+        long missedBefore = missed.get();
+        relay.newSamples(ATTITUDE, attitude(0, 10));
+        assertSamples(relay.newSamples(ATTITUDE, attitude(17, 3)), 17, 3);
+        assertEquals(7, missed.get() - missedBefore);
+        // Overlapping the last frame and beyond it: the cut frame starts right after it, nothing missed
+        assertSamples(relay.newSamples(ATTITUDE, attitude(19, 5)), 20, 4);
+        assertEquals(7, missed.get() - missedBefore);
+    }
+
+    @Test
+    void sequenceWrapsAround(){
+        long missedBefore = missed.get();
+        relay.newSamples(ATTITUDE, attitude(Integer.MAX_VALUE - 3, 3)); // to MAX - 1
+        assertSamples(relay.newSamples(ATTITUDE, attitude(Integer.MAX_VALUE - 2, 4)), Integer.MAX_VALUE, 2);
+        assertNull(relay.newSamples(ATTITUDE, attitude(Integer.MAX_VALUE, 2)));
+        assertSamples(relay.newSamples(ATTITUDE, attitude(Integer.MIN_VALUE + 3, 1)), Integer.MIN_VALUE + 3, 1);
+        assertEquals(2, missed.get() - missedBefore); // MIN + 1 and MIN + 2
+    }
+
+    @Test
+    void restartedRoverIsNotDroppedAsDuplicates(){
+        relay.newSamples(ATTITUDE, attitude(0, 500));
+        // The rover restarted and sends its history from 0 again, with newer times. It is kept whole even where
+        // it reaches past the last number received before the restart.
+        assertSamples(relay.newSamples(ATTITUDE, attitude(0, 800, TIME + 3600000000L)), 0, 800);
+        assertSamples(relay.newSamples(ATTITUDE, attitude(795, 10, TIME + 3600000000L)), 800, 5);
+        // Old numbers with old times are still duplicates
+        assertNull(relay.newSamples(ATTITUDE, attitude(300, 5, TIME + 3600000000L)));
+        assertNull(relay.newSamples(ATTITUDE, attitude(300, 5)));
+    }
+
+    @Test
+    void topicsAreCutSeparately(){
+        relay.newSamples(ATTITUDE, attitude(0, 10));
+        ByteBuffer counts = radiation(5, 3);
+        assertSame(counts, relay.newSamples(FrameCodec.TYPE_RADIATION - 1, counts));
+    }
+
+    @Test
+    void reconnectClearsAlertsClearedWhileDisconnected(){
+        connect();
+        receive(alert(7, ROLL, true));
+        receive(alert(8, PITCH, true));
+        receive(statistics());
+        assertTrue(alerts.isRaised(ROLL));
+        assertTrue(alerts.isRaised(PITCH));
+
+        // The roll alert cleared while the relay was disconnected. The rover sends the one still raised, with the
+        // sequence number it was raised with, ahead of anything else.
+        connect();
+        receive(alert(8, PITCH, true));
+        assertTrue(alerts.isRaised(ROLL), "cleared before the rover has sent all its raised alerts");
+        receive(statistics());
+        assertFalse(alerts.isRaised(ROLL));
+        assertTrue(alerts.isRaised(PITCH));
+        assertEquals(3, alerts.getRecent().size(), "the pitch alert sent again is not a change");
+    }
+
+    @Test
+    void alertSentAgainIsNotDroppedAsADuplicate(){
+        connect();
+        receive(alert(7, ROLL, true));
+        receive(alert(8, ROLL, false));
+        receive(statistics());
+
+        // Raised again while disconnected. Its sequence number is older than any alert received,
+        // e.g. after the rover restarted.
+        connect();
+        receive(alert(0, ROLL, true));
+        receive(statistics());
+        assertTrue(alerts.isRaised(ROLL));
+    }
+
+    @Test
+    void reconnectWithNoAlertsRaisedClearsThemAll(){
+        connect();
+        receive(alert(1, ROLL, true));
+        receive(alert(2, PITCH, true));
+        receive(statistics());
+        connect();
+        receive(statistics());
+        assertFalse(alerts.isRaised(ROLL));
+        assertFalse(alerts.isRaised(PITCH));
+    }
+
+    // Open a new upstream session, as the relay does after the last one was dropped
+    @SuppressWarnings("unchecked")
+    private void connect(){
+        Session session = (Session) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Session.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("addMessageHandler") && args.length == 2){
+                        handler = (MessageHandler.Whole<ByteBuffer>) args[1];
+                    }
+                    return null;
+                });
+        relay.onOpen(session, null);
+    }
+
+    private void receive(ByteBuffer frame){
+        handler.onMessage(frame);
+    }
+
+    // Attitude frame of count samples numbered from sequence, 10 ms apart, so equal numbers have equal times
+    private static ByteBuffer attitude(int sequence, int count){
+        return attitude(sequence, count, TIME);
+    }
+
+    private static ByteBuffer attitude(int sequence, int count, long start){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_ATTITUDE, count);
+        for (int i = 0; i < count; i++){
+            encoder.addAttitude(sequence + i, start + ((long) sequence + i) * 10000, 0, 0, 0, 20);
+        }
+        return encoder.finish();
+    }
+
+    private static ByteBuffer radiation(int sequence, int count){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_RADIATION, count);
+        for (int i = 0; i < count; i++){
+            encoder.addRadiation(sequence + i, TIME + ((long) sequence + i) * 1000000, 10);
+        }
+        return encoder.finish();
+    }
+
+    private static void assertSamples(ByteBuffer frame, int sequence, int count){
+        assertNotNull(frame);
+        ByteBuffer in = FrameCodec.wrap(frame);
+        assertTrue(FrameCodec.isValid(in));
+        assertEquals(sequence, FrameCodec.getSequence(in));
+        assertEquals(count, FrameCodec.getCount(in));
+    }
+
+    private static ByteBuffer alert(int sequence, int alert, boolean raised){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_ALERT, 1);
+        encoder.addAlert(sequence, TIME + sequence, alert, raised, 2, 40, 35);
+        return encoder.finish();
+    }
+
+    private ByteBuffer statistics(){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_RADIATION_STATS, 1);
+        encoder.addStatistics(statistics, TIME + statistics * 1000000L, new float[FrameCodec.STATS_VALUES]);
+        statistics++;
+        return encoder.finish();
+    }
+}
@@ -0,0 +1,200 @@
+package com.speluncr.websocket;
+
+import org.junit.jupiter.api.Test;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.*;
+
+/************************************************************
+ * Alerts, snapshots and live frames offered to a session
+ * whose sends only complete when the test completes them, as
+ * for a viewer on a slow link.
+ ************************************************************/
+class SessionMailboxTest {
+    private static final long TIME = 1600000000000000L; // epoch us
+    private static final int ROLL = 1;
+    private static final int TILT_RATE = 3;
+    private final List<ByteBuffer> sent = new ArrayList<>(); // in the order the sends started
+    private SendHandler inFlight = null;
+    private final SessionMailbox mailbox = new SessionMailbox(slowSession(), 1, "test");
+    private int sequence = 0;
+
+    @Test
+    void flappingAlertKeepsOnlyItsNewestState(){
+        mailbox.offerUrgent(alert(TILT_RATE, true)); // sent at once, and stuck
+        for (int i = 0; i < 10000; i++){
+            mailbox.offerUrgent(alert(TILT_RATE, i % 2 == 0));
+        }
+        mailbox.offerUrgent(alert(ROLL, true));
+        assertEquals(1, sent.size());
+        assertEquals(9999, mailbox.getDroppedCount());
+
+        complete();
+        complete();
+        assertEquals(3, sent.size());
+        assertAlert(sent.get(1), ROLL, true, 10001);
+        assertAlert(sent.get(2), TILT_RATE, false, 10000); // the last state offered
+        complete();
+        assertEquals(3, sent.size(), "nothing else waiting");
+    }
+
+    @Test
+    void alertsGoAheadOfWaitingTelemetry(){
+        mailbox.offer(radiation(0)); // in flight
+        mailbox.offer(radiation(1));
+        mailbox.offerUrgent(alert(ROLL, true));
+        complete();
+        assertAlert(sent.get(1), ROLL, true, 0);
+        complete();
+        assertEquals(FrameCodec.TYPE_RADIATION, FrameCodec.getType(FrameCodec.wrap(sent.get(2))));
+        assertEquals(0, mailbox.getDroppedCount());
+    }
+
+    @Test
+    void heldFramesOverlappingTheSnapshotAreCut(){
+        mailbox.hold();
+        // Live frames published while the snapshot is built, some of them already in it
+        mailbox.offer(attitude(6, 3)); // 6 to 8
+        mailbox.offer(attitude(9, 3)); // 9 to 11
+        mailbox.offerUrgent(alert(ROLL, true));
+        assertEquals(1, sent.size(), "alerts are not held");
+        mailbox.queueSnapshot(0, Arrays.asList(attitude(0, 5), attitude(5, 5))); // 0 to 9
+        mailbox.release();
+        mailbox.offer(attitude(12, 1));
+
+        completeAll();
+        assertEquals(5, sent.size());
+        assertAlert(sent.get(0), ROLL, true, 0);
+        assertSamples(sent.get(1), 0, 5);
+        assertSamples(sent.get(2), 5, 5);
+        assertSamples(sent.get(3), 10, 2);
+        assertSamples(sent.get(4), 12, 1);
+        assertEquals(0, mailbox.getDroppedCount());
+    }
+
+    @Test
+    void liveFramesAfterReleaseOverlappingTheSnapshotAreCut(){
+        mailbox.hold();
+        mailbox.queueSnapshot(0, Arrays.asList(attitude(0, 10)));
+        mailbox.release(); // the snapshot is in flight
+        mailbox.offer(attitude(8, 2)); // all in the snapshot
+        mailbox.offer(attitude(9, 3));
+        mailbox.offer(attitude(12, 2));
+
+        completeAll();
+        assertEquals(3, sent.size());
+        assertSamples(sent.get(0), 0, 10);
+        assertSamples(sent.get(1), 10, 2);
+        assertSamples(sent.get(2), 12, 2);
+
+        // Caught up, so the next frames use the slot: one waits while another is in flight
+        mailbox.offer(attitude(14, 1));
+        mailbox.offer(attitude(15, 1));
+        mailbox.offer(attitude(16, 1));
+        completeAll();
+        assertEquals(5, sent.size());
+        assertSamples(sent.get(4), 16, 1);
+        assertEquals(1, mailbox.getDroppedCount());
+    }
+
+    @Test
+    void liveFramesCutAcrossSequenceWraparound(){
+        mailbox.hold();
+        mailbox.offer(attitude(Integer.MAX_VALUE - 1, 4)); // MAX - 1 to MIN + 1
+        mailbox.queueSnapshot(0, Arrays.asList(attitude(Integer.MAX_VALUE - 5, 6))); // to MAX
+        mailbox.release();
+        completeAll();
+        assertEquals(2, sent.size());
+        assertSamples(sent.get(1), Integer.MIN_VALUE, 2);
+    }
+
+    @Test
+    void emptySnapshotSendsTheHeldFrames(){
+        mailbox.hold();
+        mailbox.offer(attitude(0, 1));
+        mailbox.offer(attitude(1, 1));
+        assertEquals(0, sent.size(), "held until released");
+        mailbox.queueSnapshot(0, Collections.emptyList());
+        mailbox.release();
+        completeAll();
+        assertEquals(2, sent.size());
+        assertSamples(sent.get(0), 0, 1);
+        assertSamples(sent.get(1), 1, 1);
+    }
+
+    // Complete the send in flight, which starts the next one
+    private void complete(){
+        SendHandler handler = inFlight;
+        inFlight = null;
+        if (handler != null){
+            handler.onResult(new SendResult());
+        }
+    }
+
+    // Complete sends until nothing is waiting
+    private void completeAll(){
+        while (inFlight != null){
+            complete();
+        }
+    }
+
+    // Attitude frame of count samples numbered from sequence
+    private static ByteBuffer attitude(int sequence, int count){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_ATTITUDE, count);
+        for (int i = 0; i < count; i++){
+            encoder.addAttitude(sequence + i, TIME + (sequence + (long) i) * 33333, 0, 0, 0, 20);
+        }
+        return encoder.finish();
+    }
+
+    private ByteBuffer alert(int alert, boolean raised){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_ALERT, 1);
+        encoder.addAlert(sequence++, TIME, alert, raised, 1, 1.0, 0.5);
+        return encoder.finish();
+    }
+
+    private static ByteBuffer radiation(int sequence){
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder(FrameCodec.TYPE_RADIATION, 1);
+        encoder.addRadiation(sequence, TIME + sequence * 1000000L, 10);
+        return encoder.finish();
+    }
+
+    private static void assertSamples(ByteBuffer frame, int sequence, int count){
+        ByteBuffer in = FrameCodec.wrap(frame);
+        assertEquals(FrameCodec.TYPE_ATTITUDE, FrameCodec.getType(in));
+        assertEquals(sequence, FrameCodec.getSequence(in));
+        assertEquals(count, FrameCodec.getCount(in));
+    }
+
+    private static void assertAlert(ByteBuffer frame, int alert, boolean raised, int sequence){
+        ByteBuffer in = FrameCodec.wrap(frame);
+        assertEquals(FrameCodec.TYPE_ALERT, FrameCodec.getType(in));
+        assertEquals(alert, FrameCodec.getAlert(in, 0));
+        assertEquals(raised, FrameCodec.isAlertRaised(in, 0));
+        assertEquals(sequence, FrameCodec.getSequence(in));
+    }
+
+    // A session that records each binary send and keeps its handler until complete()
+    private Session slowSession(){
+        RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{RemoteEndpoint.Async.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("sendBinary") && args.length == 2){
+                        assertNull(inFlight, "second send started while one was in flight");
+                        sent.add((ByteBuffer) args[0]);
+                        inFlight = (SendHandler) args[1];
+                    }
+                    return null;
+                });
+        return (Session) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Session.class},
+                (proxy, method, args) -> method.getName().equals("getAsyncRemote") ? remote : null);
+    }
+}
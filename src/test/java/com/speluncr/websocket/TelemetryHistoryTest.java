@@ -0,0 +1,128 @@
+package com.speluncr.websocket;
+
+import org.junit.jupiter.api.Test;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.jupiter.api.Assertions.*;
+
+/************************************************************
+ * Snapshots of the history ring as samples are added, both
+ * between snapshots and while one is being copied. Each
+ * sample's values are derived from its sequence number, so a
+ * sample that was overwritten while it was copied shows up
+ * as values that do not match.
+ ************************************************************/
+class TelemetryHistoryTest {
+    private static final long TIME = 1600000000000000L; // epoch us
+    private static final int CAPACITY = 100;
+
+    @Test
+    void snapshotHoldsTheNewestSamplesOldestFirst(){
+        TelemetryHistory history = history(CAPACITY);
+        assertTrue(history.snapshot().isEmpty());
+        for (int sequence = 0; sequence < 250; sequence++){
+            add(history, sequence);
+        }
+        assertEquals(CAPACITY, history.size());
+        // The oldest slot of a full ring is the next to be written, so it is left out
+        List<ByteBuffer> frames = history.snapshot();
+        assertEquals(1, frames.size());
+        assertEquals(151, checkSamples(frames));
+        assertEquals(CAPACITY - 1, FrameCodec.getCount(FrameCodec.wrap(frames.get(0))));
+    }
+
+    @Test
+    void gapInTheSequenceStartsANewFrame(){
+        TelemetryHistory history = history(CAPACITY);
+        for (int sequence = 0; sequence < 10; sequence++){
+            add(history, sequence);
+        }
+        for (int sequence = 20; sequence < 25; sequence++){
+            add(history, sequence); // samples 10 to 19 were dropped before they were recorded
+        }
+        List<ByteBuffer> frames = history.snapshot();
+        assertEquals(2, frames.size());
+        assertEquals(20, FrameCodec.getSequence(FrameCodec.wrap(frames.get(1))));
+        assertEquals(5, FrameCodec.getCount(FrameCodec.wrap(frames.get(1))));
+    }
+
+    @Test
+    void longHistoryIsSplitIntoFramesThatFit(){
+        int capacity = TelemetryHistory.MAX_FRAME_SAMPLES * 2 + 10;
+        TelemetryHistory history = history(capacity);
+        for (int sequence = 0; sequence < capacity - 1; sequence++){
+            add(history, sequence);
+        }
+        List<ByteBuffer> frames = history.snapshot();
+        assertEquals(3, frames.size());
+        assertEquals(TelemetryHistory.MAX_FRAME_SAMPLES, FrameCodec.getCount(FrameCodec.wrap(frames.get(0))));
+        assertEquals(9, FrameCodec.getCount(FrameCodec.wrap(frames.get(2))));
+        assertEquals(0, checkSamples(frames));
+    }
+
+    @Test
+    void samplesOverwrittenDuringASnapshotAreLeftOut() throws InterruptedException{
+        TelemetryHistory history = history(CAPACITY);
+        AtomicBoolean running = new AtomicBoolean(true);
+        int[] added = new int[1]; // read after join
+        Thread sensor = new Thread(() -> {
+            int sequence = 0;
+            while (running.get()){
+                add(history, sequence++);
+            }
+            added[0] = sequence;
+        }, "History Writer");
+        sensor.start();
+        try {
+            long end = System.nanoTime() + 500000000L;
+            int snapshots = 0;
+            while (System.nanoTime() - end < 0 || snapshots < 1000){
+                List<ByteBuffer> frames = history.snapshot();
+                if (!frames.isEmpty()){
+                    checkSamples(frames);
+                }
+                snapshots++;
+            }
+        } finally {
+            running.set(false);
+            sensor.join();
+        }
+        assertTrue(added[0] > CAPACITY, "the ring never wrapped");
+
+        // Once the writer has stopped every kept sample but the oldest is in the snapshot
+        List<ByteBuffer> frames = history.snapshot();
+        assertEquals(added[0] - CAPACITY + 1, checkSamples(frames));
+        assertEquals(CAPACITY - 1, FrameCodec.getCount(FrameCodec.wrap(frames.get(0))));
+    }
+
+    private static TelemetryHistory history(int capacity){
+        TelemetryHistory history = new TelemetryHistory("test", FrameCodec.TYPE_ATTITUDE, 4);
+        history.setCapacity(capacity);
+        return history;
+    }
+
+    private static void add(TelemetryHistory history, int sequence){
+        history.add(sequence, TIME + sequence * 10000L, sequence * 0.001, -sequence * 0.001, sequence % 7, 20);
+    }
+
+    // Check the frames hold consecutive samples whose values match their sequence numbers, and return the first
+    private static int checkSamples(List<ByteBuffer> frames){
+        int first = FrameCodec.getSequence(FrameCodec.wrap(frames.get(0)));
+        int expected = first;
+        for (ByteBuffer frame : frames){
+            ByteBuffer in = FrameCodec.wrap(frame);
+            assertTrue(FrameCodec.isValid(in));
+            assertEquals(expected, FrameCodec.getSequence(in), "samples missing between frames");
+            for (int i = 0; i < FrameCodec.getCount(in); i++){
+                int sequence = expected + i;
+                assertEquals(TIME + sequence * 10000L, FrameCodec.getTime(in, i), "sample " + sequence);
+                assertEquals((float) (sequence * 0.001), FrameCodec.getRoll(in, i), "sample " + sequence);
+                assertEquals((float) (-sequence * 0.001), FrameCodec.getPitch(in, i), "sample " + sequence);
+                assertEquals((float) (sequence % 7), FrameCodec.getYaw(in, i), "sample " + sequence);
+            }
+            expected += FrameCodec.getCount(in);
+        }
+        return first;
+    }
+}